@@ -29,6 +29,7 @@ import com.minekube.connect.api.logger.ConnectLogger;
 import com.minekube.connect.inject.CommonPlatformInjector;
 import com.minekube.connect.network.netty.LocalServerChannelWrapper;
 import com.minekube.connect.network.netty.LocalSession;
+import com.minekube.connect.network.netty.PeerPinnedEventLoopGroup;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
@@ -244,7 +245,7 @@ public final class BungeeInjector extends CommonPlatformInjector implements List
                     }
                 })
                 .childAttr(listener, listenerInfo)
-                .group(wrapperGroup)
+                .group(wrapperGroup, new PeerPinnedEventLoopGroup(wrapperGroup))
                 .localAddress(LocalAddress.ANY))
                 .bind()
                 .syncUninterruptibly();
@@ -20,6 +20,8 @@ dependencies {
     implementation("io.libp2p:jvm-libp2p:${Versions.jvmLibp2pVersion}")
     api("io.netty", "netty-transport", Versions.nettyVersion)
     api("io.netty", "netty-codec", Versions.nettyVersion)
+    api("io.netty", "netty-codec-http", Versions.nettyVersion)
+    api("io.netty", "netty-handler", Versions.nettyVersion)
     api("io.netty", "netty-transport-native-unix-common", Versions.nettyVersion)
     implementation("org.jetbrains.kotlin:kotlin-stdlib:${Versions.kotlinStdlibVersion}")
     runtimeOnly("io.grpc", "grpc-netty-shaded", Versions.gRPCVersion)
@@ -30,6 +30,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.google.inject.multibindings.Multibinder;
@@ -50,7 +51,10 @@ import com.minekube.connect.config.ConnectConfig;
 import com.minekube.connect.inject.CommonPlatformInjector;
 import com.minekube.connect.packet.PacketHandlersImpl;
 import com.minekube.connect.platform.util.PlatformUtils;
+import com.minekube.connect.tunnel.ImpairedTunnelTransport;
+import com.minekube.connect.tunnel.NettyWebSocketTunnelTransport;
 import com.minekube.connect.tunnel.TunnelClientTransport;
+import com.minekube.connect.tunnel.TunnelSettings;
 import com.minekube.connect.tunnel.WebSocketTunnelTransport;
 import com.minekube.connect.tunnel.p2p.Libp2pTunnelTransport;
 import com.minekube.connect.util.Constants;
@@ -66,7 +70,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import lombok.RequiredArgsConstructor;
+import okhttp3.Headers;
 import okhttp3.OkHttpClient;
 
 @RequiredArgsConstructor
@@ -91,8 +97,38 @@ public class CommonModule extends AbstractModule {
 
         Multibinder<TunnelClientTransport> transports =
                 Multibinder.newSetBinder(binder(), TunnelClientTransport.class);
-        transports.addBinding().to(WebSocketTunnelTransport.class);
-        transports.addBinding().to(Libp2pTunnelTransport.class);
+        // Both WebSocket transports claim the same tunnel type, so only one of them is bound.
+        Class<? extends TunnelClientTransport> webSocketTransport =
+                TunnelSettings.system().nettyWebSocket()
+                        ? NettyWebSocketTunnelTransport.class
+                        : WebSocketTunnelTransport.class;
+        bindTransport(transports, webSocketTransport);
+        bindTransport(transports, Libp2pTunnelTransport.class);
+    }
+
+    /**
+     * Binds type as a tunnel transport, wrapped in an {@link ImpairedTunnelTransport} when a bad
+     * network is emulated for performance testing, which is logged loudly as it slows down every
+     * player.
+     */
+    private void bindTransport(
+            Multibinder<TunnelClientTransport> transports,
+            Class<? extends TunnelClientTransport> type) {
+        TunnelSettings settings = TunnelSettings.system();
+        if (!settings.impairTunnels()) {
+            transports.addBinding().to(type);
+            return;
+        }
+        Provider<? extends TunnelClientTransport> delegate = getProvider(type);
+        Provider<ConnectLogger> logger = getProvider(ConnectLogger.class);
+        transports.addBinding().toProvider((Provider<TunnelClientTransport>) () -> {
+            TunnelClientTransport transport = delegate.get();
+            logger.get().warn("Tunnel network impairment is ENABLED for the {} transport, every "
+                    + "player's connection is degraded on purpose: {}. Unset "
+                    + "CONNECT_TUNNEL_IMPAIR_ENABLED unless this is a performance test.",
+                    transport.type(), settings.impairments());
+            return new ImpairedTunnelTransport(transport, settings);
+        });
     }
 
     @Provides
@@ -179,26 +215,54 @@ public class CommonModule extends AbstractModule {
     ) {
         return defaultOkHttpClient.newBuilder()
                 .addInterceptor(chain -> chain.proceed(chain.request().newBuilder()
-                        // Add authorization token to every request
-                        .addHeader("Authorization", "Bearer " + apiToken)
-                        // Add Connect Metadata to every request
-                        .addHeader("Connect-TotalPlayers",
-                                String.valueOf(platformUtils.getPlayerCount()))
-                        .addHeader("Connect-Players", String.valueOf(api.getPlayerCount()))
-                        .addHeader("Connect-Version", Constants.VERSION)
-                        .addHeader("Connect-AuthType", platformUtils.authType().name())
-                        .addHeader("Connect-Platform", implementationName)
-                        .addHeader("Connect-Platform", platformUtils.serverImplementationName())
-                        .addHeader("Connect-MCVersion", platformUtils.minecraftVersion())
-                        .addHeader("Connect-JavaVersion", Metrics.JAVA_VERSION)
-                        .addHeader("Connect-osName", Metrics.OS_NAME)
-                        .addHeader("Connect-osArch", Metrics.OS_ARCH)
-                        .addHeader("Connect-osVersion", Metrics.OS_VERSION)
-                        .addHeader("Connect-coreCount", String.valueOf(Metrics.CORE_COUNT))
+                        .headers(chain.request().headers().newBuilder()
+                                .addAll(connectHeaders(platformUtils, implementationName, api, apiToken))
+                                .build())
                         .build()))
                 .build();
     }
 
+    /**
+     * Headers of the connectHttpClient for clients that don't go through OkHttp, like the Netty
+     * WebSocket tunnel transport. Evaluated per request as the player counts change.
+     */
+    @Provides
+    @Singleton
+    @Named("connectHeaders")
+    public Supplier<Headers> connectHeaders(
+            PlatformUtils platformUtils,
+            @Named("platformName") String implementationName,
+            ConnectApi api,
+            @Named("connectToken") String apiToken
+    ) {
+        return () -> connectHeaders(platformUtils, implementationName, api, apiToken);
+    }
+
+    private static Headers connectHeaders(
+            PlatformUtils platformUtils,
+            String implementationName,
+            ConnectApi api,
+            String apiToken
+    ) {
+        return new Headers.Builder()
+                // Add authorization token to every request
+                .add("Authorization", "Bearer " + apiToken)
+                // Add Connect Metadata to every request
+                .add("Connect-TotalPlayers", String.valueOf(platformUtils.getPlayerCount()))
+                .add("Connect-Players", String.valueOf(api.getPlayerCount()))
+                .add("Connect-Version", Constants.VERSION)
+                .add("Connect-AuthType", platformUtils.authType().name())
+                .add("Connect-Platform", implementationName)
+                .add("Connect-Platform", platformUtils.serverImplementationName())
+                .add("Connect-MCVersion", platformUtils.minecraftVersion())
+                .add("Connect-JavaVersion", Metrics.JAVA_VERSION)
+                .add("Connect-osName", Metrics.OS_NAME)
+                .add("Connect-osArch", Metrics.OS_ARCH)
+                .add("Connect-osVersion", Metrics.OS_VERSION)
+                .add("Connect-coreCount", String.valueOf(Metrics.CORE_COUNT))
+                .build();
+    }
+
     @Provides
     @Singleton
     @Named("watchHttpClient")
@@ -32,12 +32,19 @@ import com.minekube.connect.api.logger.ConnectLogger;
 import com.minekube.connect.bedrock.BedrockAdmissionCoordinator;
 import com.minekube.connect.network.netty.LocalSession.Context;
 import com.minekube.connect.tunnel.TunnelConn;
+import com.minekube.connect.tunnel.TunnelMemoryBudget;
+import com.minekube.connect.tunnel.TunnelSettings;
 import com.minekube.connect.tunnel.Tunneler;
 import io.grpc.protobuf.StatusProto;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 import org.jetbrains.annotations.NotNull;
 
@@ -52,7 +59,18 @@ public class LocalChannelInboundHandler extends SimpleChannelInboundHandler<Byte
     private final BedrockAdmissionCoordinator admissionCoordinator;
     private final AtomicLong backendToTunnelPackets = new AtomicLong();
     private final AtomicLong backendToTunnelBytes = new AtomicLong();
+    private final WriteCoalescer coalescer; // null unless write coalescing is enabled
+    private final long beforeTunnelLimitBytes;
+    private final TunnelMemoryBudget budget;
+    // Charged with everything this session buffers, in both directions.
+    private TunnelMemoryBudget.Account account;
+    // Backend data read while the tunnel is still being dialed, bounded by pausing backend reads.
+    private final Queue<ByteBuf> beforeTunnel = new ArrayDeque<>();
+    private long beforeTunnelBytes;
+    private Channel channel;
+    private boolean removed;
     private TunnelConn tunnelConn;
+    private TunnelHandler tunnelHandler;
 
     public LocalChannelInboundHandler(
             Context context,
@@ -68,11 +86,42 @@ public class LocalChannelInboundHandler extends SimpleChannelInboundHandler<Byte
             Tunneler tunneler,
             SimpleConnectApi api,
             BedrockAdmissionCoordinator admissionCoordinator) {
+        this(context, logger, tunneler, api, admissionCoordinator, TunnelSettings.system());
+    }
+
+    LocalChannelInboundHandler(
+            Context context,
+            ConnectLogger logger,
+            Tunneler tunneler,
+            SimpleConnectApi api,
+            BedrockAdmissionCoordinator admissionCoordinator,
+            TunnelSettings settings) {
+        this(context, logger, tunneler, api, admissionCoordinator, settings,
+                TunnelMemoryBudget.system());
+    }
+
+    LocalChannelInboundHandler(
+            Context context,
+            ConnectLogger logger,
+            Tunneler tunneler,
+            SimpleConnectApi api,
+            BedrockAdmissionCoordinator admissionCoordinator,
+            TunnelSettings settings,
+            TunnelMemoryBudget budget) {
+        // Read buffers are handed to the tunnel, which may then reuse them as the only owner
+        // (e.g. to mask WebSocket frames in place).
+        super(false);
         this.context = context;
         this.logger = logger;
         this.tunneler = tunneler;
         this.api = api;
         this.admissionCoordinator = admissionCoordinator;
+        this.coalescer = settings.coalesceWrites()
+                ? new WriteCoalescer(settings.coalesceMaxFrameBytes(),
+                        settings.coalesceLatencyBudgetNanos(), this::writeToTunnel)
+                : null;
+        this.beforeTunnelLimitBytes = settings.highWaterMarkBytes();
+        this.budget = budget;
     }
 
     public static void onChannelClosed(Context context,
@@ -143,31 +192,96 @@ public class LocalChannelInboundHandler extends SimpleChannelInboundHandler<Byte
         super.exceptionCaught(ctx, cause);
     }
 
-    private String tunnelSvcAddr() {
+    /**
+     * Dials the tunnel of the session without blocking the caller.
+     */
+    static CompletionStage<TunnelConn> dial(
+            Context context, Tunneler tunneler, TunnelConn.Handler handler) {
         if (FORCE_TUNNEL_SERVICE_ADDR != null && !FORCE_TUNNEL_SERVICE_ADDR.isEmpty()) {
-            return FORCE_TUNNEL_SERVICE_ADDR;
+            return tunneler.tunnelAsync(
+                    FORCE_TUNNEL_SERVICE_ADDR,
+                    context.getSessionProposal().getSession().getId(),
+                    handler
+            );
+        }
+        return tunneler.tunnelAsync(context.getSessionProposal().getSession(), handler);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        super.handlerAdded(ctx);
+        channel = ctx.channel();
+        account = budget.open(sessionId());
+        // The handler is added once the channel is registered, before the local connect is even
+        // attempted, so the tunnel is dialed in parallel with the local backend connect. Data the
+        // tunnel receives until then is held back by the TunnelHandler.
+        tunnelHandler = new TunnelHandler(logger, ctx.channel(), playerName(), sessionId(), account);
+        account.listen(tunnelHandler::budgetPressureChanged, this::shed);
+        if (!ctx.channel().isActive()) {
+            tunnelHandler.backendConnecting();
+        }
+        // Dialing must not block the event loop: a slow edge would stall every other channel on it.
+        CompletionStage<TunnelConn> dial;
+        try {
+            dial = dial(context, tunneler, tunnelHandler);
+        } catch (RuntimeException e) {
+            exceptionCaught(ctx, e);
+            return;
+        }
+        dial.whenComplete((conn, error) -> {
+            if (ctx.executor().inEventLoop()) {
+                tunnelResolved(ctx, conn, error);
+                return;
+            }
+            try {
+                ctx.executor().execute(() -> tunnelResolved(ctx, conn, error));
+            } catch (RejectedExecutionException e) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        });
+    }
+
+    private void tunnelResolved(ChannelHandlerContext ctx, TunnelConn conn, Throwable error) {
+        if (error != null) {
+            releaseBeforeTunnel();
+            if (!removed) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error;
+                try {
+                    exceptionCaught(ctx, cause);
+                } catch (Exception e) {
+                    ctx.close();
+                }
+            }
+            return;
+        }
+        if (removed) {
+            // The backend went away while the tunnel was being dialed.
+            conn.close();
+            return;
+        }
+        tunnelConn = conn;
+        tunnelHandler.attach(conn);
+        context.tunnelConn.set(conn);
+        ByteBuf data;
+        while ((data = beforeTunnel.poll()) != null) {
+            account.release(data.readableBytes());
+            conn.write(account.charged(data));
+        }
+        beforeTunnelBytes = 0;
+        if (!ctx.channel().config().isAutoRead() && conn.isWritable() && !account.pressured()) {
+            ctx.channel().config().setAutoRead(true);
         }
-        return context.getSessionProposal().getSession().getTunnelServiceAddr();
     }
 
     @Override
     public void channelActive(@NotNull ChannelHandlerContext ctx) throws Exception {
         logger.debug("Connect local backend channel active player={} session={} local={} remote={}",
                 playerName(), sessionId(), ctx.channel().localAddress(), ctx.channel().remoteAddress());
-        // Start tunnel from downstream server -> upstream TunnelService
-        if (FORCE_TUNNEL_SERVICE_ADDR != null && !FORCE_TUNNEL_SERVICE_ADDR.isEmpty()) {
-            tunnelConn = tunneler.tunnel(
-                    tunnelSvcAddr(),
-                    context.getSessionProposal().getSession().getId(),
-                    new TunnelHandler(logger, ctx.channel(), playerName(), sessionId())
-            );
-        } else {
-            tunnelConn = tunneler.tunnel(
-                    context.getSessionProposal().getSession(),
-                    new TunnelHandler(logger, ctx.channel(), playerName(), sessionId())
-            );
-        }
-        context.tunnelConn.set(tunnelConn);
+        tunnelHandler.backendActive();
         super.channelActive(ctx);
     }
 
@@ -176,9 +290,89 @@ public class LocalChannelInboundHandler extends SimpleChannelInboundHandler<Byte
         int readableBytes = buf.readableBytes();
         backendToTunnelPackets.incrementAndGet();
         backendToTunnelBytes.addAndGet(readableBytes);
-        byte[] data = ByteBufUtil.getBytes(buf, buf.readerIndex(), buf.readableBytes(), true);
         // downstream server -> local session server -> TunnelService
-        tunnelConn.write(data);
+        // The tunnel takes ownership of the buffer and releases it once sent.
+        if (coalescer != null) {
+            coalescer.add(ctx, buf);
+        } else {
+            writeToTunnel(buf);
+        }
+        if (account.pressured() && ctx.channel().config().isAutoRead()) {
+            // Resumed by the TunnelHandler once the budget frees up.
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (coalescer != null) {
+            coalescer.flush();
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (tunnelHandler != null) {
+            // Stop pulling from the tunnel while the backend cannot keep up.
+            tunnelHandler.backendWritabilityChanged();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        removed = true;
+        if (coalescer != null) {
+            coalescer.discard();
+        }
+        releaseBeforeTunnel();
+        if (account != null) {
+            account.close();
+        }
+        // The local connect failed while the tunnel was already dialed. Sessions that got
+        // connected close their tunnel in channelInactive instead.
+        TunnelConn danglingTunnel = context.getTunnelConn().getAndSet(null);
+        if (danglingTunnel != null) {
+            danglingTunnel.close();
+        }
+        super.handlerRemoved(ctx);
+    }
+
+    private void writeToTunnel(ByteBuf data) {
+        if (tunnelConn != null) {
+            tunnelConn.write(account.charged(data));
+            return;
+        }
+        if (removed) {
+            data.release();
+            return;
+        }
+        beforeTunnel.add(data);
+        account.charge(data.readableBytes());
+        beforeTunnelBytes += data.readableBytes();
+        if (beforeTunnelBytes >= beforeTunnelLimitBytes) {
+            // Stop reading the backend until the tunnel resolves.
+            channel.config().setAutoRead(false);
+        }
+    }
+
+    private void releaseBeforeTunnel() {
+        ByteBuf data;
+        while ((data = beforeTunnel.poll()) != null) {
+            if (account != null) {
+                account.release(data.readableBytes());
+            }
+            data.release();
+        }
+        beforeTunnelBytes = 0;
+    }
+
+    private void shed() {
+        logger.warn("Closing Connect session player={} session={} to stay within the tunnel memory "
+                        + "budget: {} of {} bytes buffered, {} by this session",
+                playerName(), sessionId(), budget.usedBytes(), budget.limitBytes(), account.bytes());
+        channel.close();
     }
 
     @Override
@@ -186,10 +380,15 @@ public class LocalChannelInboundHandler extends SimpleChannelInboundHandler<Byte
         TunnelConn activeTunnelConn = context.getTunnelConn().get();
         if (logger.isDebug()) {
             logger.info("Connect local backend channel inactive player={} session={} local={} remote={} "
-                            + "backendToTunnelPackets={} backendToTunnelBytes={} tunnelOpened={}",
+                            + "backendToTunnelPackets={} backendToTunnelBytes={} tunnelOpened={} rtt=[{}]",
                     playerName(), sessionId(), ctx.channel().localAddress(), ctx.channel().remoteAddress(),
                     backendToTunnelPackets.get(), backendToTunnelBytes.get(),
-                    activeTunnelConn != null && activeTunnelConn.opened());
+                    activeTunnelConn != null && activeTunnelConn.opened(),
+                    activeTunnelConn == null ? null : activeTunnelConn.rtt());
+        }
+        if (coalescer != null) {
+            // Whatever was read before the backend closed still belongs to the player.
+            coalescer.flush();
         }
         onChannelClosed(context, api, logger, admissionCoordinator);
         super.channelInactive(ctx);
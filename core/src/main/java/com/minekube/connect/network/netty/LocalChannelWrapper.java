@@ -36,13 +36,16 @@ public class LocalChannelWrapper extends LocalChannel {
      * initialized.
      */
     private volatile ChannelWrapper tempWrapper;
+    private final LocalChannel peer;
 
     public LocalChannelWrapper() {
         wrapper = new ChannelWrapper(this);
+        peer = null;
     }
 
     public LocalChannelWrapper(LocalServerChannel parent, LocalChannel peer) {
         super(parent, peer);
+        this.peer = peer;
         if (tempWrapper == null) {
             this.wrapper = new ChannelWrapper(this);
         } else {
@@ -54,6 +57,13 @@ public class LocalChannelWrapper extends LocalChannel {
         return wrapper;
     }
 
+    /**
+     * Returns the client end of this channel, or null if it was not accepted by a server channel.
+     */
+    public LocalChannel peer() {
+        return peer;
+    }
+
     @Override
     protected DefaultChannelPipeline newChannelPipeline() {
         if (wrapper != null) {
@@ -28,14 +28,46 @@ package com.minekube.connect.network.netty;
 import com.minekube.connect.api.ConnectAttributes;
 import com.minekube.connect.api.player.ConnectPlayer;
 import com.minekube.connect.network.netty.LocalSession.Context;
+import io.netty.channel.Channel;
 import io.netty.channel.local.LocalChannel;
 import io.netty.channel.local.LocalServerChannel;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * If the incoming channel is an instance of LocalChannelWithRemoteAddress, this server creates a
  * LocalChannelWrapper for the other end and attaches the spoofed remote address
  */
 public class LocalServerChannelWrapper extends LocalServerChannel {
+    private static final Map<SocketAddress, LocalServerChannelWrapper> BOUND =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Returns the server channel bound to the address, which {@link TunnelChannel}s are handed
+     * to directly instead of connecting a local channel to it.
+     *
+     * @return the bound server channel or null if there is none
+     */
+    static LocalServerChannelWrapper boundTo(SocketAddress address) {
+        return BOUND.get(address);
+    }
+
+    @Override
+    protected void doBind(SocketAddress localAddress) throws Exception {
+        super.doBind(localAddress);
+        BOUND.put(localAddress(), this);
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        SocketAddress address = localAddress();
+        if (address != null) {
+            BOUND.remove(address, this);
+        }
+        super.doClose();
+    }
+
     @Override
     protected LocalChannel newLocalChannel(LocalChannel peer) {
         // LocalChannel here should be an instance of LocalChannelWithSessionContext,
@@ -60,7 +92,7 @@ public class LocalServerChannelWrapper extends LocalServerChannel {
      * Connect and are deliberately left unmarked so they still go through the server's own login
      * flow. See {@link ConnectAttributes#CONNECT_PLAYER} for the public contract.
      */
-    private static void markExternallyAuthenticated(LocalChannelWrapper channel, Context context) {
+    static void markExternallyAuthenticated(Channel channel, Context context) {
         if (context == null) {
             return;
         }
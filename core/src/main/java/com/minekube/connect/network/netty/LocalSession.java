@@ -31,6 +31,8 @@ import com.minekube.connect.api.logger.ConnectLogger;
 import com.minekube.connect.api.player.ConnectPlayer;
 import com.minekube.connect.bedrock.BedrockAdmissionCoordinator;
 import com.minekube.connect.tunnel.TunnelConn;
+import com.minekube.connect.tunnel.TunnelMemoryBudget;
+import com.minekube.connect.tunnel.TunnelSettings;
 import com.minekube.connect.tunnel.Tunneler;
 import com.minekube.connect.watch.SessionProposal;
 import com.minekube.connect.watch.SessionProposal.State;
@@ -49,6 +51,7 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
@@ -116,6 +119,9 @@ public final class LocalSession {
         if (channel instanceof LocalChannelWrapper) {
             return Optional.of(((LocalChannelWrapper) channel).wrapper().getContext());
         }
+        if (channel instanceof TunnelChannel) {
+            return Optional.of(((TunnelChannel) channel).context());
+        }
         return Optional.empty();
     }
 
@@ -162,6 +168,14 @@ public final class LocalSession {
                 sessionProposal.getProtocol(),
                 sessionProposal.getAdmissionToken());
 
+        if (TunnelSettings.system().directInjection()) {
+            LocalServerChannelWrapper server = LocalServerChannelWrapper.boundTo(targetAddress);
+            if (server != null) {
+                connectDirect(server, context);
+                return;
+            }
+        }
+
         // Use platform-specific event loop if available (e.g., BungeeCord's event loops)
         // Otherwise fall back to default event loop group
         EventLoopGroup eventLoopGroup;
@@ -202,6 +216,8 @@ public final class LocalSession {
 
         logger.debug("Connecting {} to local downstream server {}",
                 logPlayer(context), targetAddress);
+        // LocalChannelInboundHandler dials the tunnel as soon as the channel is registered, so
+        // the tunnel handshake runs in parallel with this connect instead of after it.
         bootstrap
                 .remoteAddress(targetAddress)
                 .connect()
@@ -210,17 +226,38 @@ public final class LocalSession {
                         exceptionCaught(future.cause(), context.player);
                         return;
                     }
-                    try {
-                        ConnectPlayer displaced = api.addPlayer(context.player);
-                        if (admissionCoordinator != null && displaced != null && displaced != context.player) {
-                            admissionCoordinator.discard(displaced);
-                        }
-                    } catch (RuntimeException | Error e) {
-                        exceptionCaught(e, context.player);
-                    }
+                    connected(context);
                 });
     }
 
+    /**
+     * Hands the session to the platform's server channel as a single {@link TunnelChannel} fed
+     * by the tunnel, so neither direction crosses a local channel pair.
+     */
+    private void connectDirect(LocalServerChannelWrapper server, Context context) {
+        TunnelChannel channel = new TunnelChannel(server, context, logger, tunneler, api,
+                admissionCoordinator, TunnelMemoryBudget.system(), () -> connected(context));
+        logger.debug("Handing {} to local downstream server {} directly",
+                logPlayer(context), targetAddress);
+        try {
+            // The server channel initializes and registers it like an accepted local channel.
+            server.eventLoop().execute(() -> server.pipeline().fireChannelRead(channel));
+        } catch (RejectedExecutionException e) {
+            exceptionCaught(e, context.player);
+        }
+    }
+
+    private void connected(Context context) {
+        try {
+            ConnectPlayer displaced = api.addPlayer(context.player);
+            if (admissionCoordinator != null && displaced != null && displaced != context.player) {
+                admissionCoordinator.discard(displaced);
+            }
+        } catch (RuntimeException | Error e) {
+            exceptionCaught(e, context.player);
+        }
+    }
+
     private static String logPlayer(Context context) {
         return context.sessionProposal.hasBedrockPrincipalV2()
                 ? "<bedrock-principal-v2>"
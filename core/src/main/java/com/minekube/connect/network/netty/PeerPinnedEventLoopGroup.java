@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.network.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.AbstractEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Child group of a {@link LocalServerChannelWrapper} that registers the server end of a Connect
+ * session on the event loop of its client end, so both ends of the local channel pair (and a
+ * tunnel transport running on that loop) hand data to each other without switching threads.
+ * Channels whose peer is not registered on a loop of the delegate are spread as usual.
+ */
+public final class PeerPinnedEventLoopGroup extends AbstractEventExecutorGroup
+        implements EventLoopGroup {
+    private final EventLoopGroup delegate;
+
+    public PeerPinnedEventLoopGroup(EventLoopGroup delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public EventLoop next() {
+        return delegate.next();
+    }
+
+    @Override
+    public Iterator<EventExecutor> iterator() {
+        return delegate.iterator();
+    }
+
+    @Override
+    public ChannelFuture register(Channel channel) {
+        return loopFor(channel).register(channel);
+    }
+
+    @Override
+    public ChannelFuture register(ChannelPromise promise) {
+        return loopFor(promise.channel()).register(promise);
+    }
+
+    @Deprecated
+    @Override
+    public ChannelFuture register(Channel channel, ChannelPromise promise) {
+        return loopFor(channel).register(channel, promise);
+    }
+
+    private EventLoop loopFor(Channel channel) {
+        if (channel instanceof LocalChannelWrapper) {
+            Channel peer = ((LocalChannelWrapper) channel).peer();
+            if (peer != null && peer.isRegistered() && owns(peer.eventLoop())) {
+                return peer.eventLoop();
+            }
+        }
+        return delegate.next();
+    }
+
+    private boolean owns(EventLoop loop) {
+        for (EventExecutor executor : delegate) {
+            if (executor == loop) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isShuttingDown() {
+        return delegate.isShuttingDown();
+    }
+
+    @Override
+    public Future<?> shutdownGracefully(long quietPeriod, long timeout, TimeUnit unit) {
+        return delegate.shutdownGracefully(quietPeriod, timeout, unit);
+    }
+
+    @Override
+    public Future<?> terminationFuture() {
+        return delegate.terminationFuture();
+    }
+
+    @Deprecated
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.network.netty;
+
+import com.minekube.connect.api.SimpleConnectApi;
+import com.minekube.connect.api.logger.ConnectLogger;
+import com.minekube.connect.bedrock.BedrockAdmissionCoordinator;
+import com.minekube.connect.network.netty.LocalSession.Context;
+import com.minekube.connect.tunnel.TunnelConn;
+import com.minekube.connect.tunnel.TunnelMemoryBudget;
+import com.minekube.connect.tunnel.Tunneler;
+import io.grpc.protobuf.StatusProto;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.AbstractChannel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultChannelConfig;
+import io.netty.channel.EventLoop;
+import io.netty.util.internal.StringUtil;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Server end of a Connect session that is handed to the platform's server channel directly,
+ * instead of accepting a local channel connected to it. Tunnel data is fired into its pipeline as
+ * it arrives and whatever the platform writes goes to the tunnel, so each direction crosses one
+ * pipeline and no local channel inbound queue or loop handoff sits in between.
+ */
+final class TunnelChannel extends AbstractChannel {
+    private static final ChannelMetadata METADATA = new ChannelMetadata(false);
+
+    private final Context context;
+    private final ConnectLogger logger;
+    private final Tunneler tunneler;
+    private final SimpleConnectApi api;
+    private final BedrockAdmissionCoordinator admissionCoordinator;
+    private final TunnelMemoryBudget budget;
+    private final Runnable onRegistered;
+    private final ChannelConfig config = new Config();
+    private volatile boolean open = true;
+    // Set on the event loop once registered.
+    private TunnelMemoryBudget.Account account;
+    private Inbound inbound;
+    private TunnelConn tunnelConn;
+    // Whether the platform asked for a read while auto read is off, only touched on the loop.
+    private boolean readPending;
+
+    TunnelChannel(
+            LocalServerChannelWrapper parent,
+            Context context,
+            ConnectLogger logger,
+            Tunneler tunneler,
+            SimpleConnectApi api,
+            BedrockAdmissionCoordinator admissionCoordinator,
+            TunnelMemoryBudget budget,
+            Runnable onRegistered) {
+        super(parent);
+        this.context = context;
+        this.logger = logger;
+        this.tunneler = tunneler;
+        this.api = api;
+        this.admissionCoordinator = admissionCoordinator;
+        this.budget = budget;
+        this.onRegistered = onRegistered;
+        LocalServerChannelWrapper.markExternallyAuthenticated(this, context);
+        // Ahead of the platform's initializer, which the server channel adds when accepting.
+        pipeline().addFirst("connect-tunnel", new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
+                ctx.pipeline().remove(this);
+                registered();
+                super.channelRegistered(ctx);
+            }
+        });
+        closeFuture().addListener(future -> closed());
+    }
+
+    Context context() {
+        return context;
+    }
+
+    private void registered() {
+        onRegistered.run();
+        account = budget.open(sessionId());
+        inbound = new Inbound(this, logger, playerName(), sessionId(), account);
+        account.listen(inbound::budgetPressureChanged, this::shed);
+        CompletionStage<TunnelConn> dial;
+        try {
+            dial = LocalChannelInboundHandler.dial(context, tunneler, inbound);
+        } catch (RuntimeException e) {
+            tunnelFailed(e);
+            return;
+        }
+        dial.whenComplete((conn, error) -> {
+            EventLoop loop = eventLoop();
+            if (loop.inEventLoop()) {
+                tunnelResolved(conn, error);
+                return;
+            }
+            try {
+                loop.execute(() -> tunnelResolved(conn, error));
+            } catch (RejectedExecutionException e) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        });
+    }
+
+    private void tunnelResolved(TunnelConn conn, Throwable error) {
+        if (error != null) {
+            tunnelFailed(error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause()
+                    : error);
+            return;
+        }
+        if (!open) {
+            conn.close();
+            return;
+        }
+        tunnelConn = conn;
+        inbound.attach(conn);
+        context.tunnelConn.set(conn);
+        // Sends what the platform flushed while the tunnel was being dialed.
+        ((TunnelUnsafe) unsafe()).resumeWrites();
+    }
+
+    private void tunnelFailed(Throwable cause) {
+        logger.warn("Connect tunnel failed player={} session={} cause={}",
+                playerName(), sessionId(), cause.toString());
+        LocalChannelInboundHandler.rejectProposal(context, StatusProto.fromThrowable(cause));
+        close();
+    }
+
+    private void shed() {
+        logger.warn("Closing Connect session player={} session={} to stay within the tunnel memory "
+                        + "budget: {} of {} bytes buffered, {} by this session",
+                playerName(), sessionId(), budget.usedBytes(), budget.limitBytes(), account.bytes());
+        close();
+    }
+
+    private void closed() {
+        if (account != null) {
+            account.close();
+        }
+        LocalChannelInboundHandler.onChannelClosed(context, api, logger, admissionCoordinator);
+    }
+
+    @Override
+    protected void doWrite(ChannelOutboundBuffer in) {
+        TunnelConn conn = tunnelConn;
+        if (conn == null) {
+            return; // kept until the tunnel is attached
+        }
+        for (;;) {
+            Object msg = in.current();
+            if (msg == null) {
+                return;
+            }
+            if (!conn.isWritable() || account.pressured()) {
+                // Kept until the tunnel drained, the outbound buffer marks the channel unwritable.
+                return;
+            }
+            if (!(msg instanceof ByteBuf)) {
+                in.remove(new UnsupportedOperationException(
+                        "unsupported message type: " + StringUtil.simpleClassName(msg)));
+                continue;
+            }
+            ByteBuf data = ((ByteBuf) msg).retain();
+            in.remove();
+            // The tunnel takes ownership of the buffer and releases it once sent.
+            conn.write(account.charged(data));
+        }
+    }
+
+    @Override
+    protected boolean isCompatible(EventLoop loop) {
+        // Does no I/O of its own, so it runs on whichever loop the platform picked.
+        return true;
+    }
+
+    @Override
+    protected SocketAddress localAddress0() {
+        return parent().localAddress();
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return context.getSpoofedAddress();
+    }
+
+    @Override
+    protected void doBind(SocketAddress localAddress) {
+        // Fails the bind promise, AbstractUnsafe#bind is final.
+        throw new UnsupportedOperationException(
+                "tunnel channels are connected and cannot be bound");
+    }
+
+    @Override
+    protected void doDisconnect() {
+        doClose();
+    }
+
+    @Override
+    protected void doClose() {
+        open = false;
+    }
+
+    @Override
+    protected void doBeginRead() {
+        readPending = true;
+        if (inbound != null) {
+            // Reads may have been paused while auto read was off.
+            inbound.backendWritabilityChanged();
+            inbound.resumeDelivery();
+        }
+    }
+
+    @Override
+    protected AbstractUnsafe newUnsafe() {
+        return new TunnelUnsafe();
+    }
+
+    @Override
+    public ChannelConfig config() {
+        return config;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isActive() {
+        return open;
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+    private String playerName() {
+        return context.getSessionProposal().hasBedrockPrincipalV2()
+                ? "<bedrock-principal-v2>"
+                : context.getPlayer().getUsername();
+    }
+
+    private String sessionId() {
+        return context.getSessionProposal().getSession().getId();
+    }
+
+    private final class TunnelUnsafe extends AbstractUnsafe {
+        @Override
+        public void connect(
+                SocketAddress remoteAddress, SocketAddress localAddress, ChannelPromise promise) {
+            safeSetFailure(promise, new UnsupportedOperationException("already connected"));
+        }
+
+        /**
+         * Writes what was flushed but held back in {@link #doWrite(ChannelOutboundBuffer)}.
+         */
+        void resumeWrites() {
+            flush0();
+        }
+    }
+
+    private final class Config extends DefaultChannelConfig {
+        private Config() {
+            super(TunnelChannel.this);
+        }
+
+        @Override
+        protected void autoReadCleared() {
+            if (inbound != null) {
+                inbound.backendWritabilityChanged();
+            }
+        }
+    }
+
+    /**
+     * Feeds tunnel data into the pipeline instead of writing it to a local channel. The platform
+     * pausing auto read pauses the tunnel and holds back what it already received until the
+     * platform reads again, and the tunnel draining resumes sending what the platform wrote.
+     */
+    private static final class Inbound extends TunnelHandler {
+        private final TunnelChannel channel;
+
+        private Inbound(
+                TunnelChannel channel,
+                ConnectLogger logger,
+                String playerName,
+                String sessionId,
+                TunnelMemoryBudget.Account account) {
+            super(logger, channel, playerName, sessionId, account);
+            this.channel = channel;
+        }
+
+        @Override
+        void writeToBackend(ByteBuf data) {
+            channel.pipeline().fireChannelRead(data);
+        }
+
+        @Override
+        void flushToBackend() {
+            // A read asked for while auto read is off takes one batch, like a socket read.
+            channel.readPending = false;
+            channel.pipeline().fireChannelReadComplete();
+        }
+
+        @Override
+        boolean backendAccepting() {
+            return channel.config().isAutoRead();
+        }
+
+        @Override
+        boolean backendReading() {
+            return channel.config().isAutoRead() || channel.readPending;
+        }
+
+        @Override
+        void backendReads(boolean read) {
+            // Nothing to pause: doWrite holds the platform's writes back itself while the tunnel
+            // is unwritable or the budget is pressured.
+            if (read) {
+                ((TunnelUnsafe) channel.unsafe()).resumeWrites();
+            }
+        }
+    }
+}
@@ -26,45 +26,280 @@
 package com.minekube.connect.network.netty;
 
 import com.minekube.connect.api.logger.ConnectLogger;
+import com.minekube.connect.tunnel.BorrowedByteBuf;
+import com.minekube.connect.tunnel.TunnelConn;
 import com.minekube.connect.tunnel.TunnelConn.Handler;
+import com.minekube.connect.tunnel.TunnelMemoryBudget;
+import com.minekube.connect.tunnel.TunnelSettings;
 import io.grpc.Status;
 import io.grpc.Status.Code;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.EventLoop;
-import java.util.Arrays;
+import io.netty.util.internal.PlatformDependent;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import lombok.RequiredArgsConstructor;
 
-@RequiredArgsConstructor
 class TunnelHandler implements Handler {
+    private static final Object CLOSE = new Object();
+
     private final ConnectLogger logger;
     private final Channel downstreamServerConn; // local server connection
     private final String playerName;
     private final String sessionId;
+    private final long highWaterMark;
+    private final long lowWaterMark;
+    private final TunnelMemoryBudget.Account account; // null if the session is not accounted
     private final AtomicLong tunnelToBackendPackets = new AtomicLong();
     private final AtomicLong tunnelToBackendBytes = new AtomicLong();
+    // Bytes accepted from the tunnel that the backend channel has not taken yet.
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile boolean tunnelReadsPaused;
+    // Tunnel data and the close event on their way to the backend channel's event loop.
+    private final Queue<Object> inbound = PlatformDependent.newMpscQueue();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = this::drain;
+    private volatile TunnelConn tunnelConn;
+    // Tunnel data that arrived before the backend channel was connected, only touched on its loop.
+    private final Queue<ByteBuf> beforeBackendActive = new ArrayDeque<>();
+    private boolean backendActive = true;
+    private boolean closed;
+
+    TunnelHandler(ConnectLogger logger, Channel downstreamServerConn, String playerName, String sessionId) {
+        this(logger, downstreamServerConn, playerName, sessionId, TunnelSettings.system());
+    }
+
+    TunnelHandler(
+            ConnectLogger logger,
+            Channel downstreamServerConn,
+            String playerName,
+            String sessionId,
+            TunnelMemoryBudget.Account account) {
+        this(logger, downstreamServerConn, playerName, sessionId, TunnelSettings.system(), account);
+    }
+
+    TunnelHandler(
+            ConnectLogger logger,
+            Channel downstreamServerConn,
+            String playerName,
+            String sessionId,
+            TunnelSettings settings) {
+        this(logger, downstreamServerConn, playerName, sessionId, settings, null);
+    }
+
+    TunnelHandler(
+            ConnectLogger logger,
+            Channel downstreamServerConn,
+            String playerName,
+            String sessionId,
+            TunnelSettings settings,
+            TunnelMemoryBudget.Account account) {
+        this.logger = logger;
+        this.downstreamServerConn = downstreamServerConn;
+        this.playerName = playerName;
+        this.sessionId = sessionId;
+        this.highWaterMark = settings.highWaterMarkBytes();
+        this.lowWaterMark = settings.lowWaterMarkBytes();
+        this.account = account;
+    }
+
+    /**
+     * Attaches the tunnel this handler receives from, so reads can be paused while the backend
+     * channel is backed up.
+     */
+    synchronized void attach(TunnelConn conn) {
+        tunnelConn = conn;
+        if (tunnelReadsPaused) {
+            conn.setAutoRead(false);
+        }
+    }
+
+    @Override
+    public TunnelMemoryBudget.Account memoryAccount() {
+        return account;
+    }
 
     @Override
     public void onReceive(byte[] data) {
+        // Transports hand the array over, so it can be wrapped without copying.
+        onReceive(Unpooled.wrappedBuffer(data));
+    }
+
+    @Override
+    public void onReceive(ByteBuffer data, Runnable release) {
+        onReceive(BorrowedByteBuf.wrap(data, release));
+    }
+
+    @Override
+    public void onReceive(ByteBuf data) {
+        int length = data.readableBytes();
         tunnelToBackendPackets.incrementAndGet();
-        tunnelToBackendBytes.addAndGet(data.length);
-        byte[] payload = Arrays.copyOf(data, data.length);
+        tunnelToBackendBytes.addAndGet(length);
+        if (account != null) {
+            account.charge(length);
+        }
+        if (pendingBytes.addAndGet(length) > highWaterMark && !tunnelReadsPaused) {
+            updateTunnelReads();
+        }
         // TunnelService -> local session server -> downstream server.
-        // Allocate the ByteBuf inside the lambda so it isn't leaked if execute()
-        // rejects (event loop shutting down during proxy stop).
+        enqueue(data);
+    }
+
+    @Override
+    public void onWritabilityChanged(boolean writable) {
+        // Stop reading from the backend while the tunnel is backed up. The task re-reads the
+        // tunnel state because writability events of different threads may overtake each other.
+        updateBackendReads(writable);
+    }
+
+    /**
+     * Called when the memory budget asks sessions to stop reading or lets them resume.
+     */
+    void budgetPressureChanged() {
+        updateTunnelReads();
+        if (tunnelConn != null) {
+            updateBackendReads(true);
+        }
+    }
+
+    private void updateBackendReads(boolean writable) {
         Channel ch = downstreamServerConn;
-        EventLoop el = ch.eventLoop();
+        Runnable update = () -> {
+            TunnelConn conn = tunnelConn;
+            backendReads((conn == null ? writable : conn.isWritable()) && !pressured());
+        };
+        if (ch.eventLoop().inEventLoop()) {
+            update.run();
+            return;
+        }
+        try {
+            ch.eventLoop().execute(update);
+        } catch (RejectedExecutionException ignored) {
+            // Event loop is shutting down; the channel is going away anyway.
+        }
+    }
+
+    @Override
+    public EventLoop eventLoop() {
+        return downstreamServerConn.eventLoop();
+    }
+
+    /**
+     * Holds back tunnel data until {@link #backendActive()}, as the tunnel is dialed while the
+     * backend channel is still connecting. Must be called on the backend channel's event loop.
+     */
+    void backendConnecting() {
+        backendActive = false;
+    }
+
+    /**
+     * Writes the tunnel data held back while the backend channel was connecting. Must be called
+     * on the backend channel's event loop.
+     */
+    void backendActive() {
+        if (backendActive) {
+            return;
+        }
+        backendActive = true;
+        ByteBuf data;
+        while ((data = beforeBackendActive.poll()) != null) {
+            int length = data.readableBytes();
+            writeToBackend(data);
+            delivered(length);
+        }
+        flushToBackend();
+    }
+
+    /**
+     * Called when the writability of the backend channel changed.
+     */
+    void backendWritabilityChanged() {
+        updateTunnelReads();
+    }
+
+    /**
+     * Writes tunnel data to the backend, called on the backend channel's event loop.
+     */
+    void writeToBackend(ByteBuf data) {
+        downstreamServerConn.write(data, downstreamServerConn.voidPromise());
+    }
+
+    /**
+     * Flushes what {@link #writeToBackend(ByteBuf)} wrote.
+     */
+    void flushToBackend() {
+        downstreamServerConn.flush();
+    }
+
+    /**
+     * Whether the backend takes more tunnel data right now.
+     */
+    boolean backendAccepting() {
+        return downstreamServerConn.isWritable();
+    }
+
+    /**
+     * Whether tunnel data may be written to the backend right now. While it may not, data stays
+     * queued behind the first chunk held back until {@link #resumeDelivery()}.
+     */
+    boolean backendReading() {
+        return true;
+    }
+
+    /**
+     * Delivers the tunnel data held back while {@link #backendReading()} was false. Runs as a
+     * task, as it is called from within the backend's pipeline.
+     */
+    void resumeDelivery() {
+        if (inbound.peek() == null || !drainScheduled.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            // Keep acceptance and delivery in one FIFO event-loop task. Scheduling flush as a
-            // second task allows unrelated channel work to observe the packet before it is
-            // delivered, which can stall time-sensitive protocol responses such as keepalives.
-            el.execute(() -> ch.writeAndFlush(
-                    Unpooled.wrappedBuffer(payload), ch.voidPromise()));
+            downstreamServerConn.eventLoop().execute(drainTask);
         } catch (RejectedExecutionException ignored) {
             // Event loop is shutting down; the channel is going away anyway.
+            drainScheduled.set(false);
+            discardInbound();
+        }
+    }
+
+    /**
+     * Pauses or resumes reading from the backend, called on the backend channel's event loop.
+     */
+    void backendReads(boolean read) {
+        downstreamServerConn.config().setAutoRead(read);
+    }
+
+    private boolean pressured() {
+        return account != null && account.pressured();
+    }
+
+    private void delivered(int length) {
+        if (account != null) {
+            account.release(length);
+        }
+        if (pendingBytes.addAndGet(-length) <= lowWaterMark && tunnelReadsPaused) {
+            updateTunnelReads();
+        }
+    }
+
+    private synchronized void updateTunnelReads() {
+        long pending = pendingBytes.get();
+        boolean pause = !backendAccepting()
+                || pressured()
+                || pending > (tunnelReadsPaused ? lowWaterMark : highWaterMark);
+        if (pause == tunnelReadsPaused) {
+            return;
+        }
+        tunnelReadsPaused = pause;
+        TunnelConn conn = tunnelConn;
+        if (conn != null) {
+            conn.setAutoRead(!pause);
         }
     }
 
@@ -84,23 +319,105 @@ class TunnelHandler implements Handler {
     @Override
     public void onClose() {
         if (logger.isDebug()) {
+            TunnelConn conn = tunnelConn;
             logger.info("Connect tunnel stream closed; closing local backend channel player={} session={} "
-                            + "local={} remote={} tunnelToBackendPackets={} tunnelToBackendBytes={}",
+                            + "local={} remote={} tunnelToBackendPackets={} tunnelToBackendBytes={} rtt=[{}]",
                     playerName, sessionId, downstreamServerConn.localAddress(), downstreamServerConn.remoteAddress(),
-                    tunnelToBackendPackets.get(), tunnelToBackendBytes.get());
+                    tunnelToBackendPackets.get(), tunnelToBackendBytes.get(),
+                    conn == null ? null : conn.rtt());
+        }
+        // Queued behind the data accepted before it, so that data is written first.
+        enqueue(CLOSE);
+    }
+
+    /**
+     * Hands a tunnel event to the backend channel's event loop. Producers only append to the
+     * queue; a drain is scheduled by whoever finds none pending, so a burst of messages costs
+     * one task and one wakeup. A transport pinned to that loop drains right away.
+     */
+    private void enqueue(Object msg) {
+        inbound.offer(msg);
+        if (!drainScheduled.compareAndSet(false, true)) {
+            return; // the pending drain picks it up
+        }
+        EventLoop el = downstreamServerConn.eventLoop();
+        if (el.inEventLoop()) {
+            drain();
+            return;
         }
-        // Flush before closing as a final safeguard for any outbound data written by another
-        // channel handler. Accepted onReceive tasks are FIFO-ordered ahead of this close task.
-        Channel ch = downstreamServerConn;
         try {
-            ch.eventLoop().execute(() -> {
+            el.execute(drainTask);
+        } catch (RejectedExecutionException ignored) {
+            // Event loop is shutting down; the channel is going away anyway.
+            drainScheduled.set(false);
+            discardInbound();
+        }
+    }
+
+    /**
+     * Writes every queued chunk the backend reads and flushes once. Acceptance and delivery stay
+     * in one FIFO event-loop task: scheduling the flush as a second task would let unrelated
+     * channel work observe the data before it is delivered, which can stall time-sensitive
+     * protocol responses such as keepalives.
+     */
+    private void drain() {
+        // Cleared before polling, so messages offered from now on schedule another drain.
+        drainScheduled.set(false);
+        Channel ch = downstreamServerConn;
+        boolean written = false;
+        Object msg;
+        while ((msg = inbound.peek()) != null) {
+            if (msg != CLOSE && !closed && backendActive && !backendReading()) {
+                break; // picked up again by resumeDelivery()
+            }
+            inbound.poll();
+            if (msg == CLOSE) {
+                // Flush before closing as a final safeguard for any outbound data written by
+                // another channel handler. Also tears down a backend that is still connecting.
+                closed = true;
+                releaseBeforeBackendActive();
                 ch.flush();
                 ch.close();
-            });
-        } catch (RejectedExecutionException ignored) {
-            // Event loop already shut down: close directly. Netty's close is
-            // thread-safe and a no-op on an already-closed channel.
-            ch.close();
+                written = false;
+                continue;
+            }
+            ByteBuf data = (ByteBuf) msg;
+            if (closed) {
+                data.release();
+                continue;
+            }
+            if (!backendActive) {
+                beforeBackendActive.add(data);
+                continue;
+            }
+            int length = data.readableBytes();
+            writeToBackend(data);
+            written = true;
+            delivered(length);
+        }
+        if (written) {
+            flushToBackend();
+        }
+    }
+
+    private void discardInbound() {
+        synchronized (inbound) {
+            Object msg;
+            while ((msg = inbound.poll()) != null) {
+                if (msg == CLOSE) {
+                    // Netty's close is thread-safe and a no-op on an already-closed channel.
+                    downstreamServerConn.close();
+                } else {
+                    ((ByteBuf) msg).release();
+                }
+            }
+        }
+    }
+
+    private void releaseBeforeBackendActive() {
+        ByteBuf data;
+        while ((data = beforeBackendActive.poll()) != null) {
+            data.release();
         }
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.network.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Gathers the backend reads of one event-loop read cycle into fewer tunnel frames.
+ * <p>
+ * A read that ends up alone in its frame is passed on as it is. Once a second one arrives both
+ * are copied into a pooled frame buffer sized for them, which grows up to the frame cap. Reads
+ * that already fill a frame are passed through untouched. The frame is handed to the sink when
+ * it is full, when the read cycle ends ({@link #flush()} from {@code channelReadComplete}) or
+ * when the latency budget of the oldest pending byte ran out, checked by a timer on the event
+ * loop. Keepalives therefore never wait for data that is not already being read. Must only be
+ * used from the channel's event loop.
+ */
+final class WriteCoalescer {
+    private final int maxFrameBytes;
+    private final long latencyBudgetNanos;
+    private final Consumer<ByteBuf> sink;
+
+    // A lone read as it was read, or the frame buffer gathering several.
+    private ByteBuf pending;
+    private boolean gathering;
+    private long pendingSince;
+    private ScheduledFuture<?> budgetTimer;
+
+    WriteCoalescer(int maxFrameBytes, long latencyBudgetNanos, Consumer<ByteBuf> sink) {
+        this.maxFrameBytes = maxFrameBytes;
+        this.latencyBudgetNanos = latencyBudgetNanos;
+        this.sink = sink;
+    }
+
+    /**
+     * Adds a read to the current frame, taking ownership of data.
+     */
+    void add(ChannelHandlerContext ctx, ByteBuf data) {
+        int length = data.readableBytes();
+        if (pending != null && pending.readableBytes() + length > maxFrameBytes) {
+            flush();
+        }
+        if (length >= maxFrameBytes) {
+            sink.accept(data);
+            return;
+        }
+
+        if (pending == null) {
+            pending = data;
+            pendingSince = System.nanoTime();
+            armBudgetTimer(ctx.executor());
+        } else {
+            try {
+                if (!gathering) {
+                    ByteBuf frame = ctx.alloc().ioBuffer(
+                            pending.readableBytes() + length, maxFrameBytes);
+                    frame.writeBytes(pending);
+                    pending.release();
+                    pending = frame;
+                    gathering = true;
+                }
+                pending.writeBytes(data);
+            } finally {
+                data.release();
+            }
+        }
+
+        if (pending.readableBytes() >= maxFrameBytes
+                || System.nanoTime() - pendingSince >= latencyBudgetNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Hands the pending frame, if any, to the sink.
+     */
+    void flush() {
+        ByteBuf frame = pending;
+        if (frame != null) {
+            pending = null;
+            gathering = false;
+            sink.accept(frame);
+        }
+    }
+
+    /**
+     * Drops the pending frame without sending it.
+     */
+    void discard() {
+        ByteBuf frame = pending;
+        if (frame != null) {
+            pending = null;
+            gathering = false;
+            frame.release();
+        }
+    }
+
+    /**
+     * Makes sure a timer flushes the pending frame once its budget ran out, in case the read
+     * cycle takes longer. One timer is kept armed at a time and re-armed for the frame pending
+     * when it fires, so read cycles that end in time cost no task of their own.
+     */
+    private void armBudgetTimer(EventExecutor executor) {
+        if (budgetTimer != null || latencyBudgetNanos <= 0) {
+            return;
+        }
+        long left = latencyBudgetNanos - (System.nanoTime() - pendingSince);
+        try {
+            budgetTimer = executor.schedule(() -> budgetExpired(executor),
+                    Math.max(0, left), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // The loop is shutting down, the read cycle's end still flushes.
+        }
+    }
+
+    private void budgetExpired(EventExecutor executor) {
+        budgetTimer = null;
+        if (pending == null) {
+            return;
+        }
+        if (System.nanoTime() - pendingSince >= latencyBudgetNanos) {
+            flush();
+        } else {
+            armBudgetTimer(executor);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.buffer.UnpooledHeapByteBuf;
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps memory handed over through {@link TunnelConn.Handler#onReceive(ByteBuffer, Runnable)}
+ * into a {@link ByteBuf} without copying it. The owner's release callback runs once the wrapper
+ * is deallocated, so the memory stays valid for as long as the local pipeline holds on to it.
+ * Buffers can be wrapped as well, see {@link #wrap(ByteBuf, Runnable)}.
+ * <p>
+ * The libp2p runtime keeps its own copy of this class in {@code tunnel.p2p} because it is loaded
+ * against a different Netty.
+ */
+public final class BorrowedByteBuf {
+
+    private BorrowedByteBuf() {
+    }
+
+    public static ByteBuf wrap(ByteBuffer memory, Runnable release) {
+        return wrap(memory, null, release);
+    }
+
+    /**
+     * Wraps the readable bytes of owner, which is released together with the wrapper before
+     * release runs. Unlike the buffer itself, the wrapper does not tell whether anybody else
+     * holds on to the memory, so code that modifies buffers in place asks {@link #owner}.
+     */
+    public static ByteBuf wrap(ByteBuf owner, Runnable release) {
+        ByteBuffer memory;
+        try {
+            memory = owner.nioBuffer();
+        } catch (RuntimeException e) {
+            owner.release();
+            release.run();
+            throw e;
+        }
+        return wrap(memory, owner, () -> {
+            try {
+                owner.release();
+            } finally {
+                release.run();
+            }
+        });
+    }
+
+    /**
+     * Returns the buffer a wrapper made by {@link #wrap(ByteBuf, Runnable)} borrows its memory
+     * from, or null for any other buffer.
+     */
+    public static ByteBuf owner(ByteBuf buf) {
+        if (buf instanceof Direct) {
+            return ((Direct) buf).owner;
+        }
+        ByteBuf heap = buf.unwrap();
+        // Heap memory is handed out as a slice, only that one stands for the owner.
+        return heap instanceof Heap && ((Heap) heap).view == buf ? ((Heap) heap).owner : null;
+    }
+
+    private static ByteBuf wrap(ByteBuffer memory, ByteBuf owner, Runnable release) {
+        int length = memory.remaining();
+        if (memory.isDirect() && !memory.isReadOnly()) {
+            return new Direct(memory, owner, release);
+        }
+        if (memory.hasArray()) {
+            Heap heap = new Heap(memory.array(), owner, release);
+            heap.view = heap.slice(memory.arrayOffset() + memory.position(), length);
+            return heap.view;
+        }
+        // Read-only memory cannot be wrapped, so copy it as a last resort.
+        try {
+            return Unpooled.copiedBuffer(memory);
+        } finally {
+            release.run();
+        }
+    }
+
+    private static final class Direct extends UnpooledDirectByteBuf {
+        private final ByteBuf owner;
+        private final Runnable release;
+
+        private Direct(ByteBuffer memory, ByteBuf owner, Runnable release) {
+            super(ByteBufAllocator.DEFAULT, memory, memory.remaining());
+            this.owner = owner;
+            this.release = release;
+        }
+
+        @Override
+        protected void deallocate() {
+            try {
+                super.deallocate();
+            } finally {
+                release.run();
+            }
+        }
+    }
+
+    private static final class Heap extends UnpooledHeapByteBuf {
+        private final ByteBuf owner;
+        private final Runnable release;
+        private ByteBuf view;
+
+        private Heap(byte[] memory, ByteBuf owner, Runnable release) {
+            super(ByteBufAllocator.DEFAULT, memory, memory.length);
+            this.owner = owner;
+            this.release = release;
+        }
+
+        @Override
+        protected void deallocate() {
+            try {
+                super.deallocate();
+            } finally {
+                release.run();
+            }
+        }
+    }
+}
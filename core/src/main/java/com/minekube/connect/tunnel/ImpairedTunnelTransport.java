@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import com.minekube.connect.tunnel.TunnelConn.Handler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.EventLoop;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
+
+/**
+ * Runs the tunnels of another transport through an emulated bad network, for measuring how
+ * buffering, backpressure and timeouts of the data path behave without a real WAN. Bound in
+ * place of every transport when {@link TunnelSettings#impairTunnels()}.
+ * <p>
+ * Each direction of a tunnel is a link that delays every chunk by the configured latency plus a
+ * random jitter and, with a bandwidth cap, by the time it takes to serialize the chunks before
+ * it. Chunks keep their order like on a reliable transport, so jitter shows as head-of-line
+ * delay, except for the {@link TunnelSettings#impairReorderPercent()} that may overtake: those
+ * break the byte stream on purpose to exercise the error paths. Tunnels are dropped after a
+ * random lifetime around {@link TunnelSettings#impairDropAfterMillis()}.
+ * <p>
+ * Chunks are copied and delivered from a single timer thread; this is a test tool, not fast.
+ */
+public final class ImpairedTunnelTransport implements TunnelClientTransport {
+    private final TunnelClientTransport delegate;
+    private final TunnelSettings settings;
+    private ScheduledExecutorService timer;
+
+    public ImpairedTunnelTransport(TunnelClientTransport delegate, TunnelSettings settings) {
+        this.delegate = delegate;
+        this.settings = settings;
+    }
+
+    @Override
+    public Type type() {
+        return delegate.type();
+    }
+
+    @Override
+    public void prepare(String address) {
+        delegate.prepare(address);
+    }
+
+    @Override
+    public TunnelConn tunnel(String address, String sessionId, Handler handler) {
+        Session session = new Session(handler);
+        return session.attach(delegate.tunnel(address, sessionId, session.new Inbound()));
+    }
+
+    @Override
+    public CompletionStage<TunnelConn> tunnelAsync(
+            String address,
+            String sessionId,
+            Handler handler) {
+        Session session = new Session(handler);
+        CompletableFuture<TunnelConn> dialing = delegate
+                .tunnelAsync(address, sessionId, session.new Inbound())
+                .toCompletableFuture();
+        CompletableFuture<TunnelConn> attached = new CompletableFuture<>();
+        dialing.whenComplete((conn, error) -> {
+            if (error != null) {
+                attached.completeExceptionally(error);
+            } else if (attached.isCancelled() || !attached.complete(session.attach(conn))) {
+                conn.close();
+            }
+        });
+        // Cancelling the race attempt cancels the dial underneath.
+        attached.whenComplete((conn, error) -> {
+            if (attached.isCancelled()) {
+                dialing.cancel(false);
+            }
+        });
+        return attached;
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+        synchronized (this) {
+            if (timer != null) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "connect-tunnel-impair");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    private final class Session {
+        private final Handler handler;
+        private final Link inbound = new Link(this);
+        private final Link outbound = new Link(this);
+        private final AtomicLong pendingOutbound = new AtomicLong();
+        private final AtomicBoolean writable = new AtomicBoolean(true);
+        private volatile TunnelConn conn;
+
+        private Session(Handler handler) {
+            this.handler = handler;
+        }
+
+        private TunnelConn attach(TunnelConn conn) {
+            this.conn = conn;
+            long mean = settings.impairDropAfterMillis();
+            if (mean > 0) {
+                long lifetime = (long) (mean * (0.5 + ThreadLocalRandom.current().nextDouble()));
+                schedule(() -> conn.close(new IOException("tunnel dropped by network impairment")),
+                        TimeUnit.MILLISECONDS.toNanos(lifetime));
+            }
+            return new ImpairedConn();
+        }
+
+        private void schedule(Runnable task, long delayNanos) {
+            try {
+                timer().schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // The transport closed, and so did its tunnels.
+            }
+        }
+
+        private void sent(int length) {
+            if (pendingOutbound.addAndGet(-length) <= settings.lowWaterMarkBytes()
+                    && writable.compareAndSet(false, true)) {
+                handler.onWritabilityChanged(true);
+            }
+        }
+
+        private final class Inbound implements Handler {
+            @Override
+            public void onReceive(byte[] data) {
+                inbound.deliver(data.length, () -> handler.onReceive(data));
+            }
+
+            @Override
+            public void onReceive(ByteBuf data) {
+                byte[] bytes;
+                try {
+                    bytes = ByteBufUtil.getBytes(data);
+                } finally {
+                    data.release();
+                }
+                onReceive(bytes);
+            }
+
+            @Override
+            public void onReceive(ByteBuffer data, Runnable release) {
+                byte[] bytes = new byte[data.remaining()];
+                try {
+                    data.get(bytes);
+                } finally {
+                    release.run();
+                }
+                onReceive(bytes);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                inbound.after(() -> handler.onError(t));
+            }
+
+            @Override
+            public void onOpen() {
+                inbound.after(handler::onOpen);
+            }
+
+            @Override
+            public void onWritabilityChanged(boolean writable) {
+                handler.onWritabilityChanged(writable);
+            }
+
+            @Override
+            public void onClose() {
+                inbound.after(handler::onClose);
+            }
+
+            @Override
+            public EventLoop eventLoop() {
+                return handler.eventLoop();
+            }
+        }
+
+        private final class ImpairedConn extends TunnelConn {
+            @Override
+            public void write(byte[] data) {
+                send(Arrays.copyOf(data, data.length));
+            }
+
+            @Override
+            public void write(ByteBuf data) {
+                byte[] bytes;
+                try {
+                    bytes = ByteBufUtil.getBytes(data);
+                } finally {
+                    data.release();
+                }
+                send(bytes);
+            }
+
+            @Override
+            public void write(ByteBuffer data, Runnable release) {
+                byte[] bytes = new byte[data.remaining()];
+                try {
+                    data.get(bytes);
+                } finally {
+                    release.run();
+                }
+                send(bytes);
+            }
+
+            private void send(byte[] data) {
+                if (pendingOutbound.addAndGet(data.length) >= settings.highWaterMarkBytes()
+                        && writable.compareAndSet(true, false)) {
+                    handler.onWritabilityChanged(false);
+                }
+                outbound.deliver(data.length, () -> {
+                    try {
+                        conn.write(data);
+                    } finally {
+                        sent(data.length);
+                    }
+                });
+            }
+
+            @Override
+            public boolean isWritable() {
+                return writable.get() && conn.isWritable();
+            }
+
+            @Override
+            public void setAutoRead(boolean autoRead) {
+                conn.setAutoRead(autoRead);
+            }
+
+            @Override
+            public TunnelRtt rtt() {
+                return conn.rtt();
+            }
+
+            @Override
+            public void close(Throwable t) {
+                outbound.after(() -> conn.close(t));
+            }
+
+            @Override
+            public boolean opened() {
+                return conn.opened();
+            }
+        }
+    }
+
+    /**
+     * One direction of a tunnel. In order chunks wait in a queue whose head is scheduled on the
+     * timer, so chunks due at the same time cannot swap places.
+     */
+    private final class Link {
+        private final Session session;
+        private final Queue<Delivery> queue = new ArrayDeque<>();
+        private long nextFreeNanos;
+        private long lastDueNanos;
+
+        private Link(Session session) {
+            this.session = session;
+        }
+
+        private void deliver(int length, Runnable task) {
+            long now = System.nanoTime();
+            long due;
+            boolean overtake;
+            synchronized (this) {
+                long sent = now;
+                long bandwidth = settings.impairBandwidthBytesPerSecond();
+                if (bandwidth > 0) {
+                    sent = Math.max(now, nextFreeNanos)
+                            + length * TimeUnit.SECONDS.toNanos(1) / bandwidth;
+                    nextFreeNanos = sent;
+                }
+                due = sent + TimeUnit.MILLISECONDS.toNanos(settings.impairLatencyMillis())
+                        + jitterNanos();
+                overtake = ThreadLocalRandom.current().nextInt(100)
+                        < settings.impairReorderPercent();
+                if (!overtake) {
+                    due = Math.max(due, lastDueNanos);
+                    lastDueNanos = due;
+                }
+            }
+            if (overtake) {
+                session.schedule(task, due - now);
+            } else {
+                enqueue(new Delivery(due, task), now);
+            }
+        }
+
+        /**
+         * Runs task once everything queued before it was delivered.
+         */
+        private void after(Runnable task) {
+            long now = System.nanoTime();
+            long due;
+            synchronized (this) {
+                due = Math.max(now, lastDueNanos);
+                lastDueNanos = due;
+            }
+            enqueue(new Delivery(due, task), now);
+        }
+
+        private void enqueue(Delivery delivery, long now) {
+            boolean first;
+            synchronized (this) {
+                queue.add(delivery);
+                first = queue.size() == 1;
+            }
+            if (first) {
+                session.schedule(this::runDue, delivery.due - now);
+            }
+        }
+
+        private void runDue() {
+            for (;;) {
+                Delivery head;
+                long now = System.nanoTime();
+                synchronized (this) {
+                    head = queue.peek();
+                    if (head == null) {
+                        return;
+                    }
+                    if (head.due > now) {
+                        session.schedule(this::runDue, head.due - now);
+                        return;
+                    }
+                    queue.poll();
+                }
+                try {
+                    head.task.run();
+                } catch (RuntimeException e) {
+                    session.handler.onError(e);
+                }
+            }
+        }
+
+        private long jitterNanos() {
+            long jitter = settings.impairJitterMillis();
+            return jitter > 0
+                    ? ThreadLocalRandom.current().nextLong(TimeUnit.MILLISECONDS.toNanos(jitter))
+                    : 0;
+        }
+    }
+
+    private static final class Delivery {
+        private final long due;
+        private final Runnable task;
+
+        private Delivery(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Frames outbound tunnel payloads as masked binary WebSocket frames.
+ * <p>
+ * Netty's frame encoder copies every client payload into a new buffer to mask it. This one masks
+ * the payload in place when it is the only owner of the buffer and writes the frame header as a
+ * separate small buffer, so the payload reaches the socket without another copy. Shared or
+ * read-only payloads are copied into a pooled buffer first. Other messages, like the control
+ * frames of the handshaker's encoder, pass through.
+ * <p>
+ * Once permessage-deflate was negotiated, payloads go through a {@link TunnelDeflater} first and
+ * the frames of compressed ones carry the RSV1 bit.
+ */
+final class MaskedBinaryFrameEncoder extends ChannelOutboundHandlerAdapter {
+    private static final int FIN_BINARY = 0x80 | 0x2;
+    private static final int RSV1 = 0x40;
+    private static final int MASKED = 0x80;
+    private TunnelDeflater deflater;
+
+    /**
+     * Compresses payloads with deflater from now on. Must be called on the channel's loop.
+     */
+    void deflateWith(TunnelDeflater deflater) {
+        this.deflater = deflater;
+    }
+
+    TunnelDeflater deflater() {
+        return deflater;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        ByteBuf payload = (ByteBuf) msg;
+        ByteBuf header;
+        try {
+            boolean compressed = false;
+            if (deflater != null) {
+                ByteBuf deflated = deflater.deflate(ctx.alloc(), payload);
+                if (deflated != null) {
+                    payload = deflated;
+                    compressed = true;
+                }
+            }
+            if (!compressed && !exclusive(payload)) {
+                ByteBuf copy = ctx.alloc().ioBuffer(payload.readableBytes());
+                copy.writeBytes(payload);
+                payload.release();
+                payload = copy;
+            }
+            int mask = ThreadLocalRandom.current().nextInt();
+            mask(payload, mask);
+            header = header(ctx.alloc(), payload.readableBytes(), mask, compressed);
+        } catch (Throwable t) {
+            ReferenceCountUtil.safeRelease(payload);
+            promise.tryFailure(t);
+            return;
+        }
+        ctx.write(header, ctx.voidPromise());
+        ctx.write(payload, promise);
+    }
+
+    /**
+     * Whether buf may be modified in place: nobody else holds a reference to it, or to any
+     * component of a composite. Slices and duplicates count as shared, as their reference count
+     * is the one of the buffer they view, which may be read elsewhere. Memory borrowed from
+     * a buffer, like the payloads charged to a {@link TunnelMemoryBudget}, is as shared as
+     * that buffer.
+     */
+    static boolean exclusive(ByteBuf buf) {
+        if (buf.refCnt() != 1 || buf.isReadOnly()) {
+            return false;
+        }
+        ByteBuf owner = BorrowedByteBuf.owner(buf);
+        if (owner != null) {
+            return exclusive(owner);
+        }
+        if (!(buf instanceof CompositeByteBuf)) {
+            ByteBuf unwrapped = buf.unwrap();
+            // Leak detection wraps the buffers it samples without sharing them.
+            return unwrapped == null
+                    || buf.getClass().getSimpleName().contains("LeakAware") && exclusive(unwrapped);
+        }
+        CompositeByteBuf composite = (CompositeByteBuf) buf;
+        for (int i = 0; i < composite.numComponents(); i++) {
+            // Components come back as slices of the buffers they were added as.
+            ByteBuf component = composite.internalComponent(i);
+            if (!exclusive(component.unwrap() != null ? component.unwrap() : component)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * XORs the readable bytes of buf with the 4 byte masking key, in place.
+     */
+    static void mask(ByteBuf buf, int mask) {
+        long mask64 = ((long) mask << 32) | (mask & 0xFFFFFFFFL);
+        int i = buf.readerIndex();
+        int end = buf.writerIndex();
+        for (; i + 8 <= end; i += 8) {
+            buf.setLong(i, buf.getLong(i) ^ mask64);
+        }
+        for (int shift = 24; i < end; i++, shift = (shift + 24) % 32) {
+            buf.setByte(i, buf.getByte(i) ^ (mask >>> shift));
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (deflater != null) {
+            deflater.close();
+            deflater = null;
+        }
+    }
+
+    static ByteBuf header(ByteBufAllocator alloc, int length, int mask) {
+        return header(alloc, length, mask, false);
+    }
+
+    static ByteBuf header(ByteBufAllocator alloc, int length, int mask, boolean compressed) {
+        int lengthBytes = length <= 125 ? 0 : length <= 0xFFFF ? 2 : 8;
+        ByteBuf header = alloc.ioBuffer(2 + lengthBytes + 4);
+        header.writeByte(compressed ? FIN_BINARY | RSV1 : FIN_BINARY);
+        if (lengthBytes == 0) {
+            header.writeByte(MASKED | length);
+        } else if (lengthBytes == 2) {
+            header.writeByte(MASKED | 126);
+            header.writeShort(length);
+        } else {
+            header.writeByte(MASKED | 127);
+            header.writeLong(length);
+        }
+        header.writeInt(mask);
+        return header;
+    }
+}
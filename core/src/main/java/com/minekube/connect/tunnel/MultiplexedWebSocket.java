@@ -0,0 +1,614 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import com.minekube.connect.tunnel.TunnelConn.Handler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One WebSocket to a tunnel service that carries the tunnels of many sessions.
+ * <p>
+ * The mode is negotiated per service: the handshake announces {@value #CAPABILITY} in the
+ * {@value #CAPABILITIES_HEADER} header and only a service echoing it in its response is spoken
+ * to in multiplexed frames. Sessions of services that don't are given a WebSocket of their own.
+ * Every binary message carries one or more frames of
+ * {@code type (1 byte) | stream id (4) | length (4) | payload (length)}:
+ * <ul>
+ * <li>{@code OPEN} opens a stream for the session id in the payload. The service answers with
+ * an empty {@code OPEN} once it accepted the session or with a {@code CLOSE}.</li>
+ * <li>{@code DATA} carries tunnel bytes, never more than the receiver granted.</li>
+ * <li>{@code WINDOW_UPDATE} grants {@code length} more bytes and has no payload.</li>
+ * <li>{@code CLOSE} closes the stream, the payload is an optional UTF-8 reason.</li>
+ * </ul>
+ * Like yamux, each stream starts with a window of {@value #INITIAL_WINDOW} bytes per direction
+ * and client stream ids are odd. Data may follow an {@code OPEN} before it was answered. A
+ * stream withholds window updates while its reads are paused, so a slow backend only stalls its
+ * own session. All state is confined to the connection's event loop.
+ */
+final class MultiplexedWebSocket {
+    static final String CAPABILITIES_HEADER = "Connect-Tunnel-Capabilities";
+    static final String CAPABILITY = "multiplex/1";
+    static final int TYPE_OPEN = 0;
+    static final int TYPE_DATA = 1;
+    static final int TYPE_WINDOW_UPDATE = 2;
+    static final int TYPE_CLOSE = 3;
+    static final int HEADER_BYTES = 9;
+    static final int INITIAL_WINDOW = 256 * 1024;
+    // How long a service that did not accept multiplexing is not asked again.
+    private static final long UNSUPPORTED_RETRY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private enum State {
+        NEW, NEGOTIATING, MULTIPLEXED, UNSUPPORTED, CLOSED
+    }
+
+    private final NettyWebSocketTunnelTransport transport;
+    private final URI uri;
+    private final EventLoop loop;
+    private final long highWaterMark;
+    private final long lowWaterMark;
+    // Shared by all streams, which the service answers over the same connection.
+    private final WebSocketRttProbe rttProbe;
+    private final Map<Integer, StreamConn> streams = new HashMap<>();
+    private final List<StreamConn> pendingOpen = new ArrayList<>();
+    private volatile State state = State.NEW;
+    private volatile long unsupportedSince;
+    private Channel channel;
+    private WebSocketClientHandshaker handshaker;
+    private Throwable failure;
+    private int nextStreamId = 1;
+
+    MultiplexedWebSocket(
+            NettyWebSocketTunnelTransport transport,
+            URI uri,
+            EventLoop loop,
+            TunnelSettings settings) {
+        this.transport = transport;
+        this.uri = uri;
+        this.loop = loop;
+        this.highWaterMark = settings.highWaterMarkBytes();
+        this.lowWaterMark = settings.lowWaterMarkBytes();
+        this.rttProbe = new WebSocketRttProbe(settings);
+    }
+
+    /**
+     * Whether this connection is gone or should negotiate again, so a new one should be used.
+     */
+    boolean retryable() {
+        State current = state;
+        return current == State.CLOSED || current == State.UNSUPPORTED
+                && System.nanoTime() - unsupportedSince >= UNSUPPORTED_RETRY_NANOS;
+    }
+
+    TunnelConn open(String sessionId, Handler handler) {
+        if (state == State.UNSUPPORTED) {
+            return transport.connect(uri, sessionId, handler);
+        }
+        StreamConn stream = new StreamConn(sessionId, handler);
+        if (!execute(() -> open(stream))) {
+            handler.onError(new ClosedChannelException());
+            stream.handlerOnClose();
+        }
+        return stream;
+    }
+
+    private void open(StreamConn stream) {
+        switch (state) {
+            case NEW:
+                connect();
+                pendingOpen.add(stream);
+                break;
+            case NEGOTIATING:
+                pendingOpen.add(stream);
+                break;
+            case MULTIPLEXED:
+                stream.start();
+                channel.flush();
+                break;
+            default:
+                // Negotiation failed or the connection went away in the meantime.
+                stream.fallBack();
+        }
+    }
+
+    private void connect() {
+        state = State.NEGOTIATING;
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.add(CAPABILITIES_HEADER, CAPABILITY);
+        handshaker = transport.handshaker(uri, headers);
+        ChannelFuture connect = transport.connect(uri, loop, new InboundHandler());
+        channel = connect.channel();
+        connect.addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                unsupported();
+            }
+        });
+    }
+
+    private void unsupported() {
+        if (state != State.NEGOTIATING) {
+            return;
+        }
+        unsupportedSince = System.nanoTime();
+        state = State.UNSUPPORTED;
+        for (StreamConn stream : pendingOpen) {
+            stream.fallBack();
+        }
+        pendingOpen.clear();
+        channel.close();
+    }
+
+    private void multiplexing() {
+        state = State.MULTIPLEXED;
+        for (StreamConn stream : pendingOpen) {
+            stream.start();
+        }
+        pendingOpen.clear();
+        channel.flush();
+    }
+
+    private void closed() {
+        if (state == State.NEGOTIATING) {
+            unsupported();
+            return;
+        }
+        if (state == State.UNSUPPORTED) {
+            // Kept until the retry interval passed.
+            return;
+        }
+        state = State.CLOSED;
+        transport.multiplexedClosed(this);
+        Throwable cause = failure != null ? failure : new ClosedChannelException();
+        for (StreamConn stream : new ArrayList<>(streams.values())) {
+            stream.connectionClosed(cause);
+        }
+        streams.clear();
+    }
+
+    private boolean execute(Runnable task) {
+        if (loop.inEventLoop()) {
+            task.run();
+            return true;
+        }
+        try {
+            loop.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void writeFrame(int type, int streamId, int length, ByteBuf payload) {
+        ByteBufAllocator alloc = channel.alloc();
+        boolean inPlace = payload != null && MaskedBinaryFrameEncoder.exclusive(payload);
+        ByteBuf frame = alloc.ioBuffer(payload == null || inPlace ? HEADER_BYTES : HEADER_BYTES + length);
+        frame.writeByte(type).writeInt(streamId).writeInt(length);
+        if (inPlace) {
+            // The frame encoder masks the payload in place.
+            frame = alloc.compositeDirectBuffer(2).addComponents(true, frame, payload);
+        } else if (payload != null) {
+            try {
+                frame.writeBytes(payload);
+            } finally {
+                payload.release();
+            }
+        }
+        channel.write(frame, channel.voidPromise());
+    }
+
+    private void readFrames(ByteBuf message) {
+        while (message.isReadable()) {
+            if (message.readableBytes() < HEADER_BYTES) {
+                throw new CorruptedFrameException("truncated multiplexed tunnel frame");
+            }
+            int type = message.readUnsignedByte();
+            int streamId = message.readInt();
+            int length = message.readInt();
+            if (length < 0 || type != TYPE_WINDOW_UPDATE && length > message.readableBytes()) {
+                throw new CorruptedFrameException("invalid multiplexed tunnel frame length " + length);
+            }
+            StreamConn stream = streams.get(streamId);
+            switch (type) {
+                case TYPE_OPEN:
+                    message.skipBytes(length);
+                    if (stream != null) {
+                        stream.accepted();
+                    }
+                    break;
+                case TYPE_DATA:
+                    ByteBuf payload = message.readRetainedSlice(length);
+                    if (stream != null) {
+                        stream.received(payload);
+                    } else {
+                        // Data in flight for a stream that was closed here already.
+                        payload.release();
+                    }
+                    break;
+                case TYPE_WINDOW_UPDATE:
+                    if (stream != null) {
+                        stream.windowUpdate(length);
+                    }
+                    break;
+                case TYPE_CLOSE:
+                    String reason = message.readCharSequence(length, StandardCharsets.UTF_8).toString();
+                    if (stream != null) {
+                        stream.remoteClosed(reason);
+                    }
+                    break;
+                default:
+                    throw new CorruptedFrameException("unknown multiplexed tunnel frame type " + type);
+            }
+        }
+    }
+
+    private final class InboundHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            handshaker.handshake(ctx.channel());
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            rttProbe.stop();
+            closed();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            for (StreamConn stream : streams.values()) {
+                stream.updateWritability();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (!handshaker.isHandshakeComplete()) {
+                try {
+                    FullHttpResponse response = (FullHttpResponse) msg;
+                    if (!response.status().equals(HttpResponseStatus.SWITCHING_PROTOCOLS)
+                            || !response.headers().containsValue(CAPABILITIES_HEADER, CAPABILITY, true)) {
+                        unsupported();
+                        return;
+                    }
+                    handshaker.finishHandshake(ctx.channel(), response);
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                }
+                multiplexing();
+                rttProbe.start(ctx);
+                return;
+            }
+            if (msg instanceof BinaryWebSocketFrame) {
+                try {
+                    readFrames(((BinaryWebSocketFrame) msg).content());
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                }
+                channel.flush();
+            } else if (msg instanceof PingWebSocketFrame) {
+                ctx.writeAndFlush(new PongWebSocketFrame(((PingWebSocketFrame) msg).content()));
+            } else if (msg instanceof PongWebSocketFrame) {
+                rttProbe.pong((PongWebSocketFrame) msg);
+                ReferenceCountUtil.release(msg);
+            } else if (msg instanceof CloseWebSocketFrame) {
+                ctx.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE);
+            } else {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (failure == null) {
+                failure = cause;
+            }
+            ctx.close();
+        }
+    }
+
+    /**
+     * The tunnel of one session, a stream on the multiplexed connection. Falls back to a
+     * WebSocket of its own if the service turned out not to support multiplexing.
+     */
+    final class StreamConn extends TunnelConn {
+        private final String sessionId;
+        private final Handler handler;
+        private final AtomicBoolean closeHandlerOnce = new AtomicBoolean();
+        // Written but not yet sent for lack of window, only touched on the loop.
+        private final Queue<ByteBuf> queued = new ArrayDeque<>();
+        private long queuedBytes;
+        private long sendWindow = INITIAL_WINDOW;
+        // Bytes received that were not yet granted back to the service.
+        private int unacknowledged;
+        private int id;
+        private boolean closed;
+        private TunnelConn fallback;
+        private volatile boolean opened;
+        private volatile boolean writable = true;
+        private volatile boolean autoRead = true;
+
+        private StreamConn(String sessionId, Handler handler) {
+            this.sessionId = sessionId;
+            this.handler = handler;
+        }
+
+        @Override
+        public void write(byte[] data) {
+            // The caller may reuse the array, and frames are masked in place.
+            write(Unpooled.copiedBuffer(data));
+        }
+
+        @Override
+        public void write(ByteBuf data) {
+            // Writes always pass the loop, even after falling back, so they keep their order.
+            if (!execute(() -> doWrite(data))) {
+                data.release();
+            }
+        }
+
+        private void doWrite(ByteBuf data) {
+            if (fallback != null) {
+                fallback.write(data);
+                return;
+            }
+            if (closed) {
+                data.release();
+                return;
+            }
+            queued.add(data);
+            queuedBytes += data.readableBytes();
+            if (id != 0) {
+                drain();
+                channel.flush();
+            }
+            updateWritability();
+        }
+
+        @Override
+        public boolean isWritable() {
+            TunnelConn current = fallback;
+            return current != null ? current.isWritable() : writable;
+        }
+
+        @Override
+        public TunnelRtt rtt() {
+            TunnelConn current = fallback;
+            return current != null ? current.rtt() : rttProbe.rtt();
+        }
+
+        @Override
+        public void setAutoRead(boolean autoRead) {
+            this.autoRead = autoRead;
+            execute(() -> {
+                if (fallback != null) {
+                    fallback.setAutoRead(this.autoRead);
+                } else if (this.autoRead && id != 0 && !closed) {
+                    grant();
+                    channel.flush();
+                }
+            });
+        }
+
+        @Override
+        public void close(Throwable t) {
+            if (!execute(() -> doClose(t))) {
+                handlerOnClose();
+            }
+        }
+
+        private void doClose(Throwable t) {
+            if (fallback != null) {
+                fallback.close(t);
+                return;
+            }
+            if (closed) {
+                return;
+            }
+            closed = true;
+            releaseQueued();
+            pendingOpen.remove(this);
+            if (id != 0 && streams.remove(id) != null && channel.isActive()) {
+                ByteBuf reason = t == null ? null
+                        : Unpooled.copiedBuffer(t.toString(), StandardCharsets.UTF_8);
+                writeFrame(TYPE_CLOSE, id, reason == null ? 0 : reason.readableBytes(), reason);
+                channel.flush();
+            }
+            handlerOnClose();
+        }
+
+        @Override
+        public boolean opened() {
+            TunnelConn current = fallback;
+            return current != null ? current.opened() : opened;
+        }
+
+        private void start() {
+            if (closed) {
+                return;
+            }
+            id = nextStreamId;
+            nextStreamId += 2;
+            streams.put(id, this);
+            ByteBuf session = Unpooled.copiedBuffer(sessionId, StandardCharsets.UTF_8);
+            writeFrame(TYPE_OPEN, id, session.readableBytes(), session);
+            drain();
+        }
+
+        private void fallBack() {
+            if (closed) {
+                return;
+            }
+            fallback = transport.connect(uri, sessionId, handler);
+            if (!autoRead) {
+                fallback.setAutoRead(false);
+            }
+            ByteBuf data;
+            while ((data = queued.poll()) != null) {
+                fallback.write(data);
+            }
+            queuedBytes = 0;
+        }
+
+        private void drain() {
+            ByteBuf data;
+            while (sendWindow > 0 && (data = queued.peek()) != null) {
+                int length = data.readableBytes();
+                if (length <= sendWindow) {
+                    queued.poll();
+                    writeFrame(TYPE_DATA, id, length, data);
+                    sendWindow -= length;
+                    queuedBytes -= length;
+                } else {
+                    int part = (int) sendWindow;
+                    writeFrame(TYPE_DATA, id, part, data.readRetainedSlice(part));
+                    sendWindow = 0;
+                    queuedBytes -= part;
+                }
+            }
+            updateWritability();
+        }
+
+        private void updateWritability() {
+            boolean channelWritable = channel.isWritable();
+            boolean now = writable
+                    ? queuedBytes <= highWaterMark && channelWritable
+                    : queuedBytes <= lowWaterMark && channelWritable;
+            if (now != writable) {
+                writable = now;
+                handler.onWritabilityChanged(now);
+            }
+        }
+
+        private void grant() {
+            if (unacknowledged >= INITIAL_WINDOW / 2) {
+                writeFrame(TYPE_WINDOW_UPDATE, id, unacknowledged, null);
+                unacknowledged = 0;
+            }
+        }
+
+        private void accepted() {
+            opened = true;
+            handler.onOpen();
+        }
+
+        private void received(ByteBuf payload) {
+            if (closed) {
+                payload.release();
+                return;
+            }
+            int length = payload.readableBytes();
+            if (length > INITIAL_WINDOW - unacknowledged) {
+                payload.release();
+                doClose(new IOException("tunnel service exceeded the stream window"));
+                return;
+            }
+            unacknowledged += length;
+            handler.onReceive(payload);
+            if (autoRead) {
+                grant();
+            }
+        }
+
+        private void windowUpdate(int delta) {
+            if (closed) {
+                return;
+            }
+            sendWindow += delta;
+            drain();
+        }
+
+        private void remoteClosed(String reason) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            streams.remove(id);
+            releaseQueued();
+            if (!reason.isEmpty()) {
+                handler.onError(new IOException("tunnel service closed the session: " + reason));
+            }
+            handlerOnClose();
+        }
+
+        private void connectionClosed(Throwable cause) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            releaseQueued();
+            handler.onError(cause);
+            handlerOnClose();
+        }
+
+        private void releaseQueued() {
+            ByteBuf data;
+            while ((data = queued.poll()) != null) {
+                data.release();
+            }
+            queuedBytes = 0;
+        }
+
+        private void handlerOnClose() {
+            if (closeHandlerOnce.compareAndSet(false, true)) {
+                handler.onClose();
+            }
+        }
+    }
+}
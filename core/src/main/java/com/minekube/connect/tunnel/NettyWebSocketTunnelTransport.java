@@ -0,0 +1,643 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.minekube.connect.tunnel.TunnelConn.Handler;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.IoEventLoop;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoop;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.nio.NioIoHandle;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketClientExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateClientExtensionHandshaker;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.net.URI;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
+import okhttp3.Headers;
+
+/**
+ * WebSocket tunnel transport on Netty's WebSocket client codec.
+ * <p>
+ * The OkHttp transport parks a reader thread per open socket. This one registers the tunnel
+ * channel on the event loop the session delivers on ({@link Handler#eventLoop()}) when that loop
+ * can drive NIO sockets, like the worker loops of BungeeCord, so a tunnel costs no thread of its
+ * own and backend reads are written to the socket without a task hop. Other sessions share a
+ * small NIO group of this transport. Outbound frames are masked in place, see
+ * {@link MaskedBinaryFrameEncoder}. TLS sessions are resumed across connections to the same
+ * tunnel host, on a native engine when one is available, see {@link TunnelTls}.
+ * <p>
+ * With {@link TunnelSettings#multiplexTunnels()} the sessions of a tunnel service share one
+ * {@link MultiplexedWebSocket} if the service supports it, saving the TCP and TLS handshake of
+ * every join. Otherwise {@link #prepare(String)} fills a {@link WarmWebSocketPool} of connections
+ * with TCP and TLS done when {@link TunnelSettings#warmPoolSize()} is set, and a join takes one
+ * from it, so only the upgrade request is on its critical path.
+ */
+public class NettyWebSocketTunnelTransport implements TunnelClientTransport {
+
+    private static final String SESSION_HEADER = "Connect-Session";
+    private static final int MAX_FRAME_PAYLOAD_BYTES = 16 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int HANDSHAKE_RESPONSE_MAX_BYTES = 8192;
+    private static final int MAX_WINDOW_BITS = 15;
+    private final Supplier<Headers> connectHeaders;
+    private final TunnelSettings settings;
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final Map<String, MultiplexedWebSocket> multiplexed = new ConcurrentHashMap<>();
+    private final WarmWebSocketPool warmPool;
+    private final ExecutorService lookups = Executors.newCachedThreadPool(
+            new DefaultThreadFactory("connect-tunnel-dns", true));
+    private final TunnelHostResolver resolver = new TunnelHostResolver(lookups);
+    private EventLoopGroup fallbackGroup;
+    private SslContext sslContext;
+
+    @Inject
+    public NettyWebSocketTunnelTransport(@Named("connectHeaders") Supplier<Headers> connectHeaders) {
+        this(connectHeaders, TunnelSettings.system());
+    }
+
+    public NettyWebSocketTunnelTransport(Supplier<Headers> connectHeaders, TunnelSettings settings) {
+        this.connectHeaders = connectHeaders;
+        this.settings = settings;
+        this.warmPool = new WarmWebSocketPool(this, settings);
+    }
+
+    @Override
+    public Type type() {
+        return Type.TYPE_WEBSOCKET;
+    }
+
+    @Override
+    public void prepare(String address) {
+        if (!settings.multiplexTunnels()) {
+            warmPool.fill(webSocketUri(address));
+        }
+    }
+
+    @Override
+    public TunnelConn tunnel(final String tunnelServiceAddr, String sessionId, Handler handler) {
+        checkNotNull(tunnelServiceAddr, "tunnelServiceAddr must not be null");
+        checkNotNull(sessionId, "sessionId must not be null");
+        checkNotNull(handler, "handler must not be null");
+        checkArgument(!tunnelServiceAddr.isEmpty(),
+                "tunnelServiceAddr must not be empty");
+        checkArgument(!sessionId.isEmpty(), "sessionId must not be empty");
+
+        if (settings.multiplexTunnels()) {
+            URI uri = webSocketUri(tunnelServiceAddr);
+            MultiplexedWebSocket mux = multiplexed.compute(tunnelServiceAddr,
+                    (address, existing) -> existing == null || existing.retryable()
+                            ? new MultiplexedWebSocket(this, uri, eventLoop(handler), settings)
+                            : existing);
+            return mux.open(sessionId, handler);
+        }
+        return connect(webSocketUri(tunnelServiceAddr), sessionId, handler);
+    }
+
+    /**
+     * Opens a WebSocket of its own for the session, on a warm connection if one is ready.
+     */
+    NettyWebSocketTunnelConn connect(URI uri, String sessionId, Handler handler) {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.add(SESSION_HEADER, sessionId);
+        boolean compress = settings.compressTunnels();
+        Channel warm = warmPool.poll(uri);
+        if (warm != null) {
+            // The channel stays on the loop it was dialed on.
+            NettyWebSocketTunnelConn conn = new NettyWebSocketTunnelConn(handler,
+                    handshaker(uri, headers, compress), warm.eventLoop(),
+                    new WebSocketRttProbe(settings), compress);
+            conn.channel = warm;
+            try {
+                warm.eventLoop().execute(conn::adopt);
+            } catch (RejectedExecutionException e) {
+                conn.failed(e);
+            }
+            return conn;
+        }
+        EventLoop loop = eventLoop(handler);
+        NettyWebSocketTunnelConn conn = new NettyWebSocketTunnelConn(handler,
+                handshaker(uri, headers, compress), loop,
+                new WebSocketRttProbe(settings), compress);
+        ChannelFuture connect = connect(uri, loop, conn.new InboundHandler());
+        conn.channel = connect.channel();
+        connect.addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                conn.failed(future.cause());
+            }
+        });
+        return conn;
+    }
+
+    /**
+     * Creates the client handshaker for uri, sending the Connect headers and extraHeaders.
+     */
+    WebSocketClientHandshaker handshaker(URI uri, HttpHeaders extraHeaders) {
+        return handshaker(uri, extraHeaders, false);
+    }
+
+    /**
+     * Creates the client handshaker for uri, allowing the frames of negotiated extensions if
+     * allowExtensions.
+     */
+    WebSocketClientHandshaker handshaker(
+            URI uri, HttpHeaders extraHeaders, boolean allowExtensions) {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        Headers connect = connectHeaders.get();
+        for (int i = 0; i < connect.size(); i++) {
+            headers.add(connect.name(i), connect.value(i));
+        }
+        headers.add(extraHeaders);
+        return WebSocketClientHandshakerFactory.newHandshaker(
+                uri, WebSocketVersion.V13, null, allowExtensions, headers, MAX_FRAME_PAYLOAD_BYTES);
+    }
+
+    /**
+     * Connects a tunnel channel to uri on loop. tunnelHandler is expected to run the handshake
+     * once the channel is active, outbound ByteBufs are sent as masked binary frames. The host is
+     * looked up off the loop, see {@link TunnelHostResolver}.
+     */
+    ChannelFuture connect(URI uri, EventLoop loop, ChannelHandler tunnelHandler) {
+        boolean tls = "wss".equals(uri.getScheme());
+        String host = uri.getHost();
+        int port = uri.getPort() != -1 ? uri.getPort() : tls ? 443 : 80;
+        SslContext ssl = tls ? sslContext() : null;
+        ChannelFuture connect = new Bootstrap()
+                .group(loop)
+                .channel(NioSocketChannel.class)
+                .resolver(resolver)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                        (int) Math.min(Integer.MAX_VALUE, settings.lowWaterMarkBytes()),
+                        (int) Math.min(Integer.MAX_VALUE, settings.highWaterMarkBytes())))
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        if (ssl != null) {
+                            pipeline.addLast("ssl", ssl.newHandler(ch.alloc(), host, port));
+                        }
+                        pipeline.addLast("http-codec", new HttpClientCodec());
+                        pipeline.addLast("http-aggregator",
+                                new HttpObjectAggregator(HANDSHAKE_RESPONSE_MAX_BYTES));
+                        pipeline.addLast("tunnel", tunnelHandler);
+                        pipeline.addLast("tunnel-frames", new MaskedBinaryFrameEncoder());
+                    }
+                })
+                .connect(host, port);
+        channels.add(connect.channel());
+        return connect;
+    }
+
+    WarmWebSocketPool warmPool() {
+        return warmPool;
+    }
+
+    /**
+     * Forgets mux, which went away, so the next session negotiates a new connection.
+     */
+    void multiplexedClosed(MultiplexedWebSocket mux) {
+        multiplexed.values().remove(mux);
+    }
+
+    @Override
+    public void close() {
+        warmPool.close();
+        multiplexed.clear();
+        channels.close();
+        resolver.close();
+        lookups.shutdownNow();
+        synchronized (this) {
+            if (fallbackGroup != null) {
+                fallbackGroup.shutdownGracefully();
+                fallbackGroup = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the loop the tunnel channel of handler is registered on. Only loops with a NIO
+     * handler can take a {@link NioSocketChannel}, which rules out the local loops of Spigot and
+     * native (epoll) loops.
+     */
+    EventLoop eventLoop(Handler handler) {
+        EventLoop preferred = handler.eventLoop();
+        if (preferred == null) {
+            return fallbackGroup().next();
+        }
+        boolean runsNio;
+        try {
+            runsNio = IoEventLoops.runsNio(preferred);
+        } catch (LinkageError e) {
+            // Netty 4.1 has no IoEventLoop
+            runsNio = preferred instanceof NioEventLoop;
+        }
+        return runsNio ? preferred : fallbackGroup().next();
+    }
+
+    /**
+     * Returns a loop of the transport's own group, for channels not tied to a session.
+     */
+    EventLoop fallbackLoop() {
+        return fallbackGroup().next();
+    }
+
+    private synchronized EventLoopGroup fallbackGroup() {
+        if (fallbackGroup == null) {
+            ThreadFactory threadFactory = new DefaultThreadFactory("connect-tunnel-websocket", true);
+            try {
+                fallbackGroup = IoEventLoops.nioGroup(threadFactory);
+            } catch (LinkageError e) {
+                // Netty 4.1 has no MultiThreadIoEventLoopGroup
+                fallbackGroup = new NioEventLoopGroup(0, threadFactory);
+            }
+        }
+        return fallbackGroup;
+    }
+
+    private synchronized SslContext sslContext() {
+        if (sslContext == null) {
+            sslContext = TunnelTls.clientContext(settings);
+        }
+        return sslContext;
+    }
+
+    static URI webSocketUri(String address) {
+        // Accept the same http(s) and ws(s) addresses as OkHttp does.
+        URI uri = URI.create(address);
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        switch (scheme) {
+            case "ws":
+            case "wss":
+                break;
+            case "http":
+                uri = URI.create("ws" + address.substring(scheme.length()));
+                break;
+            case "https":
+                uri = URI.create("wss" + address.substring(scheme.length()));
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported tunnel address: " + address);
+        }
+        checkArgument(uri.getHost() != null, "tunnel address has no host: %s", address);
+        return uri;
+    }
+
+    static final class NettyWebSocketTunnelConn extends TunnelConn {
+        private final Handler handler;
+        private final WebSocketClientHandshaker handshaker;
+        private final EventLoop loop;
+        private final WebSocketRttProbe rttProbe;
+        private final boolean compress;
+        private final AtomicBoolean closeHandlerOnce = new AtomicBoolean();
+        // Writes issued before the handshake completed, only touched on the loop.
+        private final Queue<ByteBuf> beforeOpen = new ArrayDeque<>();
+        private volatile Channel channel;
+        private volatile boolean opened;
+        private volatile boolean autoRead = true;
+        // Set by close(), so a tunnel closed before its channel connected never sends the upgrade.
+        private volatile boolean closing;
+        private boolean closeSent;
+        // Set once the handshake response accepted permessage-deflate.
+        private volatile TunnelDeflater deflater;
+
+        private NettyWebSocketTunnelConn(
+                Handler handler,
+                WebSocketClientHandshaker handshaker,
+                EventLoop loop,
+                WebSocketRttProbe rttProbe,
+                boolean compress) {
+            this.handler = handler;
+            this.handshaker = handshaker;
+            this.loop = loop;
+            this.rttProbe = rttProbe;
+            this.compress = compress;
+        }
+
+        @Override
+        public void write(byte[] data) {
+            // The caller may reuse the array, and frames are masked in place.
+            write(Unpooled.copiedBuffer(data));
+        }
+
+        @Override
+        public void write(ByteBuf data) {
+            if (loop.inEventLoop()) {
+                doWrite(data);
+                return;
+            }
+            try {
+                loop.execute(() -> doWrite(data));
+            } catch (RejectedExecutionException e) {
+                data.release();
+            }
+        }
+
+        private void doWrite(ByteBuf data) {
+            Channel ch = channel;
+            if (closeSent || !ch.isOpen()) {
+                data.release();
+                return;
+            }
+            if (!opened) {
+                beforeOpen.add(data);
+                return;
+            }
+            ch.writeAndFlush(data, ch.voidPromise());
+        }
+
+        @Override
+        public boolean isWritable() {
+            Channel ch = channel;
+            return ch == null || ch.isWritable();
+        }
+
+        @Override
+        public void setAutoRead(boolean autoRead) {
+            this.autoRead = autoRead;
+            Channel ch = channel;
+            if (ch != null && opened) {
+                ch.config().setAutoRead(autoRead);
+            }
+        }
+
+        @Override
+        public void close(Throwable t) {
+            closing = true;
+            if (loop.inEventLoop()) {
+                doClose(t);
+                return;
+            }
+            try {
+                loop.execute(() -> doClose(t));
+            } catch (RejectedExecutionException e) {
+                channel.close();
+            }
+        }
+
+        private void doClose(Throwable t) {
+            releaseBeforeOpen();
+            Channel ch = channel;
+            if (opened && !closeSent && ch.isActive()) {
+                closeSent = true;
+                CloseWebSocketFrame frame = t == null
+                        ? new CloseWebSocketFrame(1000, "tunnel closed clientside")
+                        : new CloseWebSocketFrame(1002, t.toString());
+                ch.writeAndFlush(frame).addListener(ChannelFutureListener.CLOSE);
+            } else {
+                ch.close();
+            }
+        }
+
+        @Override
+        public boolean opened() {
+            return opened;
+        }
+
+        @Override
+        public TunnelRtt rtt() {
+            return rttProbe.rtt();
+        }
+
+        /**
+         * The deflater of the session, null unless permessage-deflate was negotiated.
+         */
+        TunnelDeflater deflater() {
+            return deflater;
+        }
+
+        /**
+         * The loop the tunnel channel is registered on.
+         */
+        EventLoop eventLoop() {
+            return loop;
+        }
+
+        /**
+         * Takes over the warm channel, which is already connected, and sends the upgrade.
+         */
+        private void adopt() {
+            Channel ch = channel;
+            if (!ch.isActive()) {
+                failed(new ClosedChannelException());
+                return;
+            }
+            ch.pipeline().replace("tunnel", "tunnel", new InboundHandler());
+            handshake(ch);
+        }
+
+        /**
+         * Sends the upgrade request, offering permessage-deflate if the session compresses.
+         * Netty's extension handler negotiates it and inflates what the service compressed.
+         */
+        private void handshake(Channel ch) {
+            if (closing) {
+                // Lost a transport race, or the session went away while connecting.
+                ch.close();
+                return;
+            }
+            if (compress) {
+                ch.pipeline().addBefore("tunnel", "tunnel-extensions",
+                        new WebSocketClientExtensionHandler(
+                                new PerMessageDeflateClientExtensionHandshaker(
+                                        Deflater.BEST_SPEED, false, MAX_WINDOW_BITS, true, false)));
+            }
+            handshaker.handshake(ch);
+        }
+
+        private void failed(Throwable t) {
+            handler.onError(t);
+            handlerOnClose();
+        }
+
+        private void handlerOnClose() {
+            if (closeHandlerOnce.compareAndSet(false, true)) {
+                handler.onClose();
+            }
+        }
+
+        private void releaseBeforeOpen() {
+            ByteBuf data;
+            while ((data = beforeOpen.poll()) != null) {
+                data.release();
+            }
+        }
+
+        private final class InboundHandler extends ChannelInboundHandlerAdapter {
+            @Override
+            public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                handshake(ctx.channel());
+                super.channelActive(ctx);
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+                rttProbe.stop();
+                releaseBeforeOpen();
+                handlerOnClose();
+                super.channelInactive(ctx);
+            }
+
+            @Override
+            public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+                handler.onWritabilityChanged(ctx.channel().isWritable());
+                super.channelWritabilityChanged(ctx);
+            }
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                if (!handshaker.isHandshakeComplete()) {
+                    try {
+                        FullHttpResponse response = (FullHttpResponse) msg;
+                        handshaker.finishHandshake(ctx.channel(), response);
+                        if (compress) {
+                            deflater = TunnelDeflater.negotiated(response.headers()
+                                    .get(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS));
+                        }
+                    } finally {
+                        ReferenceCountUtil.release(msg);
+                    }
+                    open(ctx);
+                    return;
+                }
+                if (msg instanceof BinaryWebSocketFrame || msg instanceof ContinuationWebSocketFrame) {
+                    // The tunnel is a byte stream, fragments are delivered as they come.
+                    handler.onReceive(((WebSocketFrame) msg).content());
+                } else if (msg instanceof PingWebSocketFrame) {
+                    ctx.writeAndFlush(new PongWebSocketFrame(((PingWebSocketFrame) msg).content()));
+                } else if (msg instanceof PongWebSocketFrame) {
+                    rttProbe.pong((PongWebSocketFrame) msg);
+                    ReferenceCountUtil.release(msg);
+                } else if (msg instanceof CloseWebSocketFrame) {
+                    if (closeSent) {
+                        ReferenceCountUtil.release(msg);
+                        ctx.close();
+                    } else {
+                        closeSent = true;
+                        ctx.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE);
+                    }
+                } else {
+                    ReferenceCountUtil.release(msg);
+                }
+            }
+
+            private void open(ChannelHandlerContext ctx) {
+                opened = true;
+                Channel ch = ctx.channel();
+                if (deflater != null) {
+                    ch.pipeline().get(MaskedBinaryFrameEncoder.class).deflateWith(deflater);
+                }
+                ch.config().setAutoRead(autoRead);
+                ByteBuf data;
+                while ((data = beforeOpen.poll()) != null) {
+                    ch.write(data, ch.voidPromise());
+                }
+                ch.flush();
+                rttProbe.start(ctx);
+                handler.onOpen();
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                if (!(cause instanceof ClosedChannelException)) {
+                    handler.onError(cause);
+                }
+                ctx.close();
+            }
+        }
+    }
+
+    /**
+     * Netty 4.2 only, kept in its own class so Netty 4.1 servers fail to link it instead of
+     * failing to load the transport.
+     */
+    private static final class IoEventLoops {
+        static boolean runsNio(EventLoop loop) {
+            return loop instanceof IoEventLoop
+                    && ((IoEventLoop) loop).isCompatible(NioIoHandle.class);
+        }
+
+        static EventLoopGroup nioGroup(ThreadFactory threadFactory) {
+            return new MultiThreadIoEventLoopGroup(0, threadFactory, NioIoHandler.newFactory());
+        }
+    }
+}
@@ -0,0 +1,655 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoop;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Tunnel of a session that outlives the connection carrying it. When the connection drops
+ * without the session being closed, the session waits up to the grace period while new
+ * connections are dialed over whichever transport is available, and carries on where the old
+ * one stopped. Enabled with {@link TunnelSettings#resumeTunnels()}, the tunnel service has to
+ * speak the framing below.
+ * <p>
+ * Each connection carries frames of a type byte, a 4 byte payload length and the payload:
+ * <ul>
+ *   <li>{@value #TYPE_RESUME} opens every connection in both directions. Its 8 byte payload is
+ *   the number of session bytes the sender received so far; the other side sends everything from
+ *   there on again. The client sends it first, the service answers.</li>
+ *   <li>{@value #TYPE_DATA} carries session bytes.</li>
+ *   <li>{@value #TYPE_ACK} confirms the bytes received so far like a resume, so the other side
+ *   can drop them from its replay buffer. Sent at least every {@value #ACK_BYTES} bytes.</li>
+ *   <li>{@value #TYPE_CLOSE} ends the session. A connection closing without it is resumed.</li>
+ * </ul>
+ * Unacknowledged bytes are kept for replay up to {@link TunnelSettings#resumeBufferBytes()}. The
+ * tunnel reports itself unwritable from half of that on, so the session stops reading its
+ * backend before a session that outgrows the buffer can no longer be resumed. Buffered bytes are
+ * charged to the session's {@link TunnelMemoryBudget.Account} until they are acknowledged.
+ * <p>
+ * Transports deliver the events of one connection one at a time, which is what lets the
+ * receiving side go without a lock of its own.
+ */
+public final class ResumableTunnel extends TunnelConn {
+    static final int TYPE_RESUME = 0;
+    static final int TYPE_DATA = 1;
+    static final int TYPE_ACK = 2;
+    static final int TYPE_CLOSE = 3;
+    static final int HEADER_BYTES = 5;
+    static final int ACK_BYTES = 16 * 1024;
+    static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 2_000;
+
+    private final Handler handler;
+    private final Function<Handler, CompletionStage<TunnelConn>> dialer;
+    private final ScheduledExecutorService timer;
+    private final long graceMillis;
+    private final int bufferBytes;
+    private final TunnelMemoryBudget.Account account; // null if the session is not accounted
+    private final CompletableFuture<TunnelConn> firstOpen = new CompletableFuture<>();
+    private final AtomicBoolean handlerClosed = new AtomicBoolean();
+
+    // All guarded by this.
+    private final ArrayDeque<Sent> replay = new ArrayDeque<>();
+    private long sent;
+    private long acked;
+    private long received;
+    private long ackSent;
+    private boolean resumable = true;
+    private Connection current;
+    private boolean ready;
+    private boolean opened;
+    private boolean closed;
+    private boolean autoRead = true;
+    private boolean reportedWritable = true;
+    private int retries;
+    private ScheduledFuture<?> graceTimer;
+    private Throwable lastError;
+
+    private ResumableTunnel(
+            Handler handler,
+            Function<Handler, CompletionStage<TunnelConn>> dialer,
+            TunnelSettings settings,
+            ScheduledExecutorService timer) {
+        this.handler = handler;
+        this.dialer = dialer;
+        this.timer = timer;
+        this.graceMillis = settings.resumeGraceMillis();
+        this.bufferBytes = settings.resumeBufferBytes();
+        this.account = handler.memoryAccount();
+    }
+
+    /**
+     * Opens a resumable tunnel whose connections are dialed by dialer. The stage completes once
+     * the first connection is open and fails if it could not be opened; only connections that
+     * drop later on are resumed.
+     *
+     * @param timer runs the grace period and redial backoff
+     */
+    static CompletionStage<TunnelConn> open(
+            Handler handler,
+            Function<Handler, CompletionStage<TunnelConn>> dialer,
+            TunnelSettings settings,
+            ScheduledExecutorService timer) {
+        ResumableTunnel tunnel = new ResumableTunnel(handler, dialer, settings, timer);
+        tunnel.dial();
+        return tunnel.firstOpen;
+    }
+
+    @Override
+    public void write(byte[] data) {
+        write(Unpooled.wrappedBuffer(data));
+    }
+
+    @Override
+    public void write(ByteBuf data) {
+        int length = data.readableBytes();
+        if (length == 0) {
+            data.release();
+            return;
+        }
+        ByteBuf payload = data;
+        boolean lost;
+        synchronized (this) {
+            if (closed) {
+                payload.release();
+                return;
+            }
+            if (resumable && sent + length - acked > bufferBytes) {
+                // Can't be replayed anymore, a dropped connection ends the session from now on.
+                resumable = false;
+                releaseReplay();
+            }
+            if (resumable) {
+                replay.add(new Sent(sent, length, payload.retainedDuplicate()));
+                if (account != null) {
+                    account.charge(length);
+                }
+            }
+            sent += length;
+            if (ready) {
+                writeData(current.conn, payload);
+                payload = null;
+            }
+            lost = !resumable && !ready;
+        }
+        if (payload != null) {
+            // Kept in the replay buffer until the next connection resumes.
+            payload.release();
+        }
+        if (lost) {
+            closeSession(new IOException("tunnel replay buffer of " + bufferBytes
+                    + " bytes exceeded while resuming"));
+            return;
+        }
+        notifyWritability();
+    }
+
+    @Override
+    public void write(ByteBuffer data, Runnable release) {
+        write(BorrowedByteBuf.wrap(data, release));
+    }
+
+    @Override
+    public synchronized boolean isWritable() {
+        return ready
+                && current.conn.isWritable()
+                && (!resumable || sent - acked < bufferBytes / 2);
+    }
+
+    @Override
+    public synchronized void setAutoRead(boolean autoRead) {
+        this.autoRead = autoRead;
+        if (current != null && current.conn != null) {
+            current.conn.setAutoRead(autoRead);
+        }
+    }
+
+    @Override
+    public void close(Throwable t) {
+        TunnelConn conn = null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (current != null && current.conn != null) {
+                conn = current.conn;
+                if (ready) {
+                    conn.write(Unpooled.buffer(HEADER_BYTES).writeByte(TYPE_CLOSE).writeInt(0));
+                }
+            }
+            shutdown();
+        }
+        if (conn != null) {
+            conn.close(t);
+        }
+        handlerOnClose();
+    }
+
+    @Override
+    public synchronized boolean opened() {
+        return opened;
+    }
+
+    @Override
+    public synchronized TunnelRtt rtt() {
+        // Of the connection carrying the session right now.
+        return current != null && current.conn != null ? current.conn.rtt() : null;
+    }
+
+    private void dial() {
+        Connection connection;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            connection = new Connection();
+            current = connection;
+        }
+        CompletionStage<TunnelConn> stage;
+        try {
+            stage = dialer.apply(connection);
+        } catch (RuntimeException e) {
+            dialFailed(connection, e);
+            return;
+        }
+        stage.whenComplete((conn, error) -> {
+            if (error != null) {
+                dialFailed(connection, error instanceof CompletionException
+                        && error.getCause() != null ? error.getCause() : error);
+            } else {
+                attached(connection, conn);
+            }
+        });
+    }
+
+    private void attached(Connection connection, TunnelConn conn) {
+        boolean first;
+        synchronized (this) {
+            first = !opened;
+            if (closed || connection != current || connection.lost) {
+                if (first && !closed) {
+                    // Dropped again before the session even started.
+                    closed = true;
+                    shutdown();
+                } else {
+                    first = false;
+                }
+                conn.close();
+                if (first) {
+                    firstOpen.completeExceptionally(lastError != null
+                            ? lastError
+                            : new IOException("tunnel closed while opening"));
+                }
+                return;
+            }
+            connection.conn = conn;
+            conn.setAutoRead(autoRead);
+            conn.write(control(TYPE_RESUME, received));
+            ackSent = received;
+            if (first) {
+                // Nothing to resume yet, so the service's resume needn't be awaited.
+                opened = true;
+                ready = true;
+            }
+        }
+        if (first) {
+            firstOpen.complete(this);
+        }
+    }
+
+    private void dialFailed(Connection connection, Throwable error) {
+        long delay;
+        synchronized (this) {
+            if (closed || connection != current) {
+                return;
+            }
+            lastError = error;
+            if (!opened) {
+                closed = true;
+                shutdown();
+                delay = -1;
+            } else {
+                delay = Math.min(MAX_RETRY_MILLIS, MIN_RETRY_MILLIS << Math.min(retries++, 5));
+            }
+        }
+        if (delay < 0) {
+            firstOpen.completeExceptionally(error);
+            return;
+        }
+        try {
+            // The grace timer ends the session if no attempt succeeds in time.
+            timer.schedule(this::dial, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            closeSession(error);
+        }
+    }
+
+    private void connectionLost(Connection connection) {
+        boolean resume;
+        synchronized (this) {
+            if (closed || connection != current || !opened) {
+                // Closed by the session, or failing the first open in attached().
+                return;
+            }
+            if (connection.error != null) {
+                lastError = connection.error;
+            }
+            resume = resumable;
+            if (resume) {
+                current = null;
+                ready = false;
+                retries = 0;
+                try {
+                    graceTimer = timer.schedule(this::expired, graceMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    resume = false;
+                }
+            }
+        }
+        if (!resume) {
+            closeSession(connection.error);
+            return;
+        }
+        notifyWritability();
+        dial();
+    }
+
+    private void expired() {
+        Throwable cause;
+        synchronized (this) {
+            if (closed || ready) {
+                return;
+            }
+            cause = lastError;
+        }
+        closeSession(new IOException(
+                "tunnel was not resumed within " + graceMillis + "ms", cause));
+    }
+
+    private void resumed(Connection connection, long offset) {
+        boolean failed = false;
+        synchronized (this) {
+            if (closed || connection != current || ready) {
+                return;
+            }
+            if (offset < acked || offset > sent) {
+                failed = true;
+            } else {
+                acknowledged(offset);
+                TunnelConn conn = connection.conn;
+                for (Sent entry : replay) {
+                    int skip = (int) Math.max(0, offset - entry.start);
+                    writeData(conn, skip == 0
+                            ? entry.payload.retainedDuplicate()
+                            : entry.payload.retainedSlice(
+                                    entry.payload.readerIndex() + skip, entry.length - skip));
+                }
+                ready = true;
+                if (graceTimer != null) {
+                    graceTimer.cancel(false);
+                    graceTimer = null;
+                }
+            }
+        }
+        if (failed) {
+            closeSession(new IOException("tunnel service cannot resume at offset " + offset));
+            return;
+        }
+        notifyWritability();
+    }
+
+    private void received(Connection connection, ByteBuf payload) {
+        int length = payload.readableBytes();
+        handler.onReceive(payload);
+        synchronized (this) {
+            received += length;
+            if (ready && connection == current && received - ackSent >= ACK_BYTES) {
+                ackSent = received;
+                connection.conn.write(control(TYPE_ACK, received));
+            }
+        }
+    }
+
+    /**
+     * Drops what the other side received from the replay buffer.
+     */
+    private void acknowledged(long offset) {
+        if (offset <= acked || offset > sent) {
+            return;
+        }
+        acked = offset;
+        Sent head;
+        while ((head = replay.peek()) != null && head.start + head.length <= offset) {
+            dropped(replay.poll());
+        }
+    }
+
+    private void closeSession(Throwable cause) {
+        TunnelConn conn = null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (current != null) {
+                conn = current.conn;
+            }
+            shutdown();
+        }
+        if (conn != null) {
+            conn.close();
+        }
+        if (cause != null) {
+            handler.onError(cause);
+        }
+        handlerOnClose();
+    }
+
+    /**
+     * Releases what the session held on to. Must be called holding this.
+     */
+    private void shutdown() {
+        current = null;
+        ready = false;
+        releaseReplay();
+        if (graceTimer != null) {
+            graceTimer.cancel(false);
+            graceTimer = null;
+        }
+    }
+
+    private void releaseReplay() {
+        Sent entry;
+        while ((entry = replay.poll()) != null) {
+            dropped(entry);
+        }
+    }
+
+    private void dropped(Sent entry) {
+        entry.payload.release();
+        if (account != null) {
+            account.release(entry.length);
+        }
+    }
+
+    private void handlerOnClose() {
+        if (handlerClosed.compareAndSet(false, true)) {
+            handler.onClose();
+        }
+    }
+
+    private void notifyWritability() {
+        boolean writable;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            writable = isWritable();
+            if (writable == reportedWritable) {
+                return;
+            }
+            reportedWritable = writable;
+        }
+        handler.onWritabilityChanged(writable);
+    }
+
+    /**
+     * Writes a data frame as its header followed by the payload itself, so the payload reaches
+     * the transport without a copy. Must be called holding this, which keeps the two together.
+     */
+    private static void writeData(TunnelConn conn, ByteBuf payload) {
+        conn.write(Unpooled.buffer(HEADER_BYTES)
+                .writeByte(TYPE_DATA)
+                .writeInt(payload.readableBytes()));
+        conn.write(payload);
+    }
+
+    private static ByteBuf control(int type, long offset) {
+        return Unpooled.buffer(HEADER_BYTES + Long.BYTES)
+                .writeByte(type)
+                .writeInt(Long.BYTES)
+                .writeLong(offset);
+    }
+
+    private static final class Sent {
+        private final long start;
+        private final int length;
+        private final ByteBuf payload;
+
+        private Sent(long start, int length, ByteBuf payload) {
+            this.start = start;
+            this.length = length;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Handler of one connection, decoding its frames.
+     */
+    private final class Connection implements Handler {
+        // Set once the dial resolved, guarded by ResumableTunnel.this.
+        private TunnelConn conn;
+        private volatile boolean lost;
+        private Throwable error;
+        private ByteBuf cumulation;
+
+        @Override
+        public void onReceive(byte[] data) {
+            receive(Unpooled.wrappedBuffer(data));
+        }
+
+        @Override
+        public void onReceive(ByteBuf data) {
+            receive(data);
+        }
+
+        @Override
+        public void onReceive(ByteBuffer data, Runnable release) {
+            receive(BorrowedByteBuf.wrap(data, release));
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onWritabilityChanged(boolean writable) {
+            notifyWritability();
+        }
+
+        @Override
+        public void onClose() {
+            if (lost) {
+                return;
+            }
+            lost = true;
+            releaseCumulation();
+            connectionLost(this);
+        }
+
+        @Override
+        public EventLoop eventLoop() {
+            return handler.eventLoop();
+        }
+
+        private void receive(ByteBuf chunk) {
+            if (lost) {
+                chunk.release();
+                return;
+            }
+            ByteBuf in = chunk;
+            if (cumulation != null) {
+                cumulation.writeBytes(chunk);
+                chunk.release();
+                in = cumulation;
+            }
+            IOException malformed = null;
+            try {
+                malformed = decode(in);
+            } finally {
+                if (!in.isReadable() || malformed != null || lost) {
+                    in.release();
+                    cumulation = null;
+                } else if (in == chunk) {
+                    cumulation = Unpooled.buffer(in.readableBytes()).writeBytes(in);
+                    in.release();
+                } else {
+                    in.discardSomeReadBytes();
+                }
+            }
+            if (malformed != null) {
+                lost = true;
+                closeSession(malformed);
+            }
+        }
+
+        private IOException decode(ByteBuf in) {
+            while (in.readableBytes() >= HEADER_BYTES && !lost) {
+                int type = in.getUnsignedByte(in.readerIndex());
+                int length = in.getInt(in.readerIndex() + 1);
+                if (length < 0 || length > MAX_FRAME_BYTES) {
+                    return new IOException("tunnel frame of " + length + " bytes");
+                }
+                if (in.readableBytes() < HEADER_BYTES + length) {
+                    return null;
+                }
+                in.skipBytes(HEADER_BYTES);
+                switch (type) {
+                    case TYPE_DATA:
+                        received(this, in.readRetainedSlice(length));
+                        break;
+                    case TYPE_RESUME:
+                    case TYPE_ACK:
+                        if (length != Long.BYTES) {
+                            return new IOException("tunnel control frame of " + length + " bytes");
+                        }
+                        long offset = in.readLong();
+                        if (type == TYPE_RESUME) {
+                            resumed(this, offset);
+                        } else {
+                            synchronized (ResumableTunnel.this) {
+                                acknowledged(offset);
+                            }
+                            notifyWritability();
+                        }
+                        break;
+                    case TYPE_CLOSE:
+                        in.skipBytes(length);
+                        lost = true;
+                        closeSession(null);
+                        return null;
+                    default:
+                        return new IOException("unknown tunnel frame type " + type);
+                }
+            }
+            return null;
+        }
+
+        private void releaseCumulation() {
+            if (cumulation != null) {
+                cumulation.release();
+                cumulation = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
+
+/**
+ * Recent open latency and failures of every transport and address sessions were tunneled over.
+ * {@link Tunneler} tries candidates cheapest first and skips those whose circuit is open, so
+ * during a partial edge outage joins stop paying for attempts that are bound to fail.
+ * <p>
+ * A circuit opens after {@link TunnelSettings#breakerFailures()} failures in a row. While open,
+ * one attempt per {@link TunnelSettings#breakerCooldownMillis()} is let through as a probe, and
+ * the first one that succeeds closes the circuit again. The failure rate halves every cool-down
+ * period without new failures, so an address that was demoted gets tried again eventually.
+ * Addresses without attempts for {@link #STALE_COOLDOWNS} cool-down periods are forgotten, as
+ * sessions come and go with the edge addresses they are tunneled over.
+ */
+public final class TransportHealth {
+    // Weight of the latest sample in the moving averages.
+    static final double ALPHA = 0.2;
+    // What a failed attempt is assumed to cost a join compared to one that opened.
+    static final double FAILURE_PENALTY_MILLIS = 5_000;
+    static final int STALE_COOLDOWNS = 4;
+
+    private final ConcurrentMap<Key, Stats> stats = new ConcurrentHashMap<>();
+    private final int breakerFailures;
+    private final long breakerCooldownNanos;
+    private final LongSupplier nanoTime;
+    private volatile long lastEviction;
+
+    public TransportHealth(TunnelSettings settings) {
+        this(settings, System::nanoTime);
+    }
+
+    TransportHealth(TunnelSettings settings, LongSupplier nanoTime) {
+        this.breakerFailures = settings.breakerFailures();
+        this.breakerCooldownNanos = TimeUnit.MILLISECONDS.toNanos(settings.breakerCooldownMillis());
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Returns a snapshot of every transport and address seen so far, cheapest first.
+     */
+    public List<Score> scores() {
+        List<Score> scores = new ArrayList<>();
+        long now = now();
+        for (Map.Entry<Key, Stats> entry : stats.entrySet()) {
+            scores.add(entry.getValue().score(entry.getKey(), now));
+        }
+        scores.sort((a, b) -> Double.compare(a.cost(), b.cost()));
+        return Collections.unmodifiableList(scores);
+    }
+
+    long now() {
+        return nanoTime.getAsLong();
+    }
+
+    /**
+     * Whether an attempt may be made. Letting a probe through an open circuit arms the next
+     * cool-down, so this must only be asked right before actually trying the transport.
+     */
+    boolean allow(Type type, String address) {
+        Stats existing = stats.get(new Key(type, address));
+        return existing == null || existing.allow(now());
+    }
+
+    boolean circuitOpen(Type type, String address) {
+        Stats existing = stats.get(new Key(type, address));
+        return existing != null && existing.circuitOpen();
+    }
+
+    /**
+     * Expected cost of trying the transport in milliseconds. Transports without history are
+     * assumed to cost the median of those with history, so a new address neither jumps ahead of
+     * a preferred transport that works nor stays behind one that keeps failing. Without any
+     * history everything costs nothing and candidates keep their advertised order.
+     */
+    double cost(Type type, String address) {
+        long now = now();
+        evictStale(now);
+        Stats existing = stats.get(new Key(type, address));
+        return existing != null ? existing.cost(now) : medianCost(now);
+    }
+
+    private double medianCost(long now) {
+        List<Double> costs = new ArrayList<>();
+        for (Stats known : stats.values()) {
+            costs.add(known.cost(now));
+        }
+        if (costs.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(costs);
+        int middle = costs.size() / 2;
+        return costs.size() % 2 == 1
+                ? costs.get(middle)
+                : (costs.get(middle - 1) + costs.get(middle)) / 2;
+    }
+
+    void succeeded(Type type, String address, long latencyNanos) {
+        long now = now();
+        evictStale(now);
+        stats(type, address, now).succeeded(latencyNanos, now);
+    }
+
+    void failed(Type type, String address) {
+        long now = now();
+        evictStale(now);
+        stats(type, address, now).failed(now);
+    }
+
+    private Stats stats(Type type, String address, long now) {
+        return stats.computeIfAbsent(new Key(type, address), ignored -> new Stats(now));
+    }
+
+    /**
+     * Forgets the addresses that saw no attempt for {@link #STALE_COOLDOWNS} cool-down periods,
+     * looking at most once per cool-down.
+     */
+    private void evictStale(long now) {
+        if (now - lastEviction < breakerCooldownNanos) {
+            return;
+        }
+        lastEviction = now;
+        stats.values().removeIf(existing -> existing.stale(now));
+    }
+
+    int size() {
+        return stats.size();
+    }
+
+    /**
+     * Health of one transport address at the time {@link #scores()} was called.
+     */
+    public static final class Score {
+        private final Type type;
+        private final String address;
+        private final double latencyMillis;
+        private final double failureRate;
+        private final int consecutiveFailures;
+        private final boolean circuitOpen;
+        private final double cost;
+
+        private Score(
+                Type type,
+                String address,
+                double latencyMillis,
+                double failureRate,
+                int consecutiveFailures,
+                boolean circuitOpen,
+                double cost) {
+            this.type = type;
+            this.address = address;
+            this.latencyMillis = latencyMillis;
+            this.failureRate = failureRate;
+            this.consecutiveFailures = consecutiveFailures;
+            this.circuitOpen = circuitOpen;
+            this.cost = cost;
+        }
+
+        public Type type() {
+            return type;
+        }
+
+        public String address() {
+            return address;
+        }
+
+        /**
+         * Moving average of the time it took to open a tunnel, NaN if none opened yet.
+         */
+        public double latencyMillis() {
+            return latencyMillis;
+        }
+
+        /**
+         * Moving average of failed attempts, between 0 and 1.
+         */
+        public double failureRate() {
+            return failureRate;
+        }
+
+        public int consecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        public boolean circuitOpen() {
+            return circuitOpen;
+        }
+
+        /**
+         * Expected cost of an attempt in milliseconds, which orders the candidates.
+         */
+        public double cost() {
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s latency=%.1fms failureRate=%.2f consecutiveFailures=%d "
+                            + "circuitOpen=%s", type, address, latencyMillis, failureRate,
+                    consecutiveFailures, circuitOpen);
+        }
+    }
+
+    private final class Stats {
+        private double latencyMillis = Double.NaN;
+        private double failureRate;
+        private long rateUpdated;
+        private int consecutiveFailures;
+        private boolean open;
+        private long openUntil;
+        private long touched;
+
+        private Stats(long now) {
+            this.touched = now;
+        }
+
+        private synchronized boolean allow(long now) {
+            if (!open) {
+                return true;
+            }
+            if (now - openUntil < 0) {
+                return false;
+            }
+            openUntil = now + breakerCooldownNanos;
+            touched = now;
+            return true;
+        }
+
+        private synchronized boolean stale(long now) {
+            return now - touched >= STALE_COOLDOWNS * breakerCooldownNanos;
+        }
+
+        private synchronized boolean circuitOpen() {
+            return open;
+        }
+
+        private synchronized double cost(long now) {
+            return (Double.isNaN(latencyMillis) ? 0 : latencyMillis)
+                    + failureRate(now) * FAILURE_PENALTY_MILLIS;
+        }
+
+        private double failureRate(long now) {
+            if (failureRate == 0) {
+                return 0;
+            }
+            return failureRate * Math.pow(0.5, (double) (now - rateUpdated) / breakerCooldownNanos);
+        }
+
+        private synchronized void succeeded(long latencyNanos, long now) {
+            double millis = latencyNanos / 1_000_000.0;
+            latencyMillis = Double.isNaN(latencyMillis)
+                    ? millis
+                    : latencyMillis + ALPHA * (millis - latencyMillis);
+            failureRate = failureRate(now) * (1 - ALPHA);
+            rateUpdated = now;
+            touched = now;
+            consecutiveFailures = 0;
+            open = false;
+        }
+
+        private synchronized void failed(long now) {
+            double decayed = failureRate(now);
+            failureRate = decayed + ALPHA * (1 - decayed);
+            rateUpdated = now;
+            touched = now;
+            consecutiveFailures++;
+            if (consecutiveFailures >= breakerFailures) {
+                open = true;
+                openUntil = now + breakerCooldownNanos;
+            }
+        }
+
+        private synchronized Score score(Key key, long now) {
+            return new Score(key.type, key.address, latencyMillis, failureRate(now),
+                    consecutiveFailures, open, cost(now));
+        }
+    }
+
+    private static final class Key {
+        private final Type type;
+        private final String address;
+
+        private Key(Type type, String address) {
+            this.type = type;
+            this.address = address;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return type == other.type && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, address);
+        }
+    }
+}
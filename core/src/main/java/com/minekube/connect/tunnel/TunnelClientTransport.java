@@ -26,6 +26,8 @@
 package com.minekube.connect.tunnel;
 
 import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
 
 public interface TunnelClientTransport extends Closeable {
@@ -37,6 +39,24 @@ public interface TunnelClientTransport extends Closeable {
 
     TunnelConn tunnel(String address, String sessionId, TunnelConn.Handler handler);
 
+    /**
+     * Opens a tunnel without blocking the caller, which may be a Netty event loop. The default
+     * runs {@link #tunnel} inline and is only suitable for transports whose {@code tunnel} already
+     * returns before the connection is established.
+     */
+    default CompletionStage<TunnelConn> tunnelAsync(
+            String address,
+            String sessionId,
+            TunnelConn.Handler handler) {
+        try {
+            return CompletableFuture.completedFuture(tunnel(address, sessionId, handler));
+        } catch (RuntimeException e) {
+            CompletableFuture<TunnelConn> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
     @Override
     default void close() {
     }
@@ -25,19 +25,165 @@
 
 package com.minekube.connect.tunnel;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.EventLoop;
+import java.nio.ByteBuffer;
+
 public abstract class TunnelConn {
 
+    /**
+     * Receives data from the tunnel. Transports call whichever variant avoids a copy for them;
+     * the defaults adapt everything down to {@link #onReceive(byte[])}.
+     */
     public interface Handler {
+        /**
+         * Receives a chunk of tunnel data. The array is handed over to the handler, transports
+         * must not reuse it after this call.
+         */
         void onReceive(byte[] data);
 
+        /**
+         * Receives a chunk of tunnel data and takes ownership of the buffer, which must be
+         * released once the handler is done with it.
+         */
+        default void onReceive(ByteBuf data) {
+            byte[] bytes;
+            try {
+                bytes = ByteBufUtil.getBytes(data);
+            } finally {
+                data.release();
+            }
+            onReceive(bytes);
+        }
+
+        /**
+         * Receives memory owned by a transport running against its own Netty copy (the isolated
+         * libp2p runtime), which is why no {@link ByteBuf} can cross this call. The handler must
+         * run {@code release} exactly once when it no longer needs {@code data}.
+         */
+        default void onReceive(ByteBuffer data, Runnable release) {
+            byte[] bytes = new byte[data.remaining()];
+            try {
+                data.get(bytes);
+            } finally {
+                release.run();
+            }
+            onReceive(bytes);
+        }
+
         void onError(Throwable t);
 
+        /**
+         * Called once the tunnel is open, which for some transports is only after
+         * {@code tunnel} returned. Transports that hand out tunnels that are already open
+         * (see {@link TunnelConn#opened()}) need not call it.
+         */
+        default void onOpen() {
+        }
+
+        /**
+         * Called when {@link TunnelConn#isWritable()} changed. Callers may invoke this from any
+         * thread and events may race each other, so handlers should re-read the current state.
+         */
+        default void onWritabilityChanged(boolean writable) {
+        }
+
         default void onClose() {
         }
+
+        /**
+         * The event loop the handler delivers received data on. Transports built on the same
+         * Netty may run their channel on it so no extra thread or task hop sits in between.
+         *
+         * @return the preferred event loop or null if the handler has none
+         */
+        default EventLoop eventLoop() {
+            return null;
+        }
+
+        /**
+         * The budget account of the session, which transports charge with the bytes they hold
+         * on to beyond a single write, like the replay buffer of a {@link ResumableTunnel}.
+         *
+         * @return the account or null if the session is not accounted
+         */
+        default TunnelMemoryBudget.Account memoryAccount() {
+            return null;
+        }
     }
 
+    /**
+     * Writes data to the tunnel. Implementations must not rely on the caller keeping the array
+     * unchanged after this call.
+     */
     public abstract void write(byte[] data);
 
+    /**
+     * Writes the readable bytes of data to the tunnel and takes ownership of the buffer.
+     * The buffer is released once the transport no longer needs it.
+     */
+    public void write(ByteBuf data) {
+        if (data.nioBufferCount() != 1) {
+            byte[] bytes;
+            try {
+                bytes = ByteBufUtil.getBytes(data);
+            } finally {
+                data.release();
+            }
+            write(bytes);
+            return;
+        }
+        ByteBuffer view;
+        try {
+            view = data.nioBuffer();
+        } catch (RuntimeException e) {
+            data.release();
+            throw e;
+        }
+        write(view, data::release);
+    }
+
+    /**
+     * Classloader neutral variant of {@link #write(ByteBuf)} for transports that run against
+     * their own Netty copy. {@code release} must be run exactly once when the transport no
+     * longer needs {@code data}. The default copies and releases right away.
+     */
+    public void write(ByteBuffer data, Runnable release) {
+        byte[] bytes = new byte[data.remaining()];
+        try {
+            data.get(bytes);
+        } finally {
+            release.run();
+        }
+        write(bytes);
+    }
+
+    /**
+     * Whether the transport can take more writes without queueing them beyond its high water
+     * mark. Writes are still accepted when this returns false.
+     */
+    public boolean isWritable() {
+        return true;
+    }
+
+    /**
+     * Pauses or resumes reading from the transport, like Netty's {@code autoRead}. While paused
+     * the transport should stop pulling data from the network so the remote side backs up.
+     */
+    public void setAutoRead(boolean autoRead) {
+    }
+
+    /**
+     * Round trip times probed on the connection carrying this tunnel, see
+     * {@link TunnelSettings#rttProbeMillis()}.
+     *
+     * @return the probed round trip times or null if the transport does not probe
+     */
+    public TunnelRtt rtt() {
+        return null;
+    }
+
     public abstract void close(Throwable t);
 
     public void close() {
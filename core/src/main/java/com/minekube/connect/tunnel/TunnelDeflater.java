@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses outbound tunnel messages for a permessage-deflate WebSocket (RFC 7692), but only
+ * while that pays off.
+ * <p>
+ * Compression starts enabled and the ratio is sampled over every {@link #SAMPLE_BYTES} of
+ * payload. When a sample saves less than {@link #MIN_SAVING} the deflater is switched off, so
+ * sessions that carry already compressed packets do not spend CPU on it, and switched on for
+ * another sample after {@link #PROBE_INTERVAL_BYTES} went out as is. Uncompressed messages skip
+ * the compression context, which RFC 7692 allows even with context takeover.
+ * <p>
+ * Only used on the channel's loop.
+ */
+final class TunnelDeflater {
+    static final int SAMPLE_BYTES = 64 * 1024;
+    static final int PROBE_INTERVAL_BYTES = 1024 * 1024;
+    static final double MIN_SAVING = 0.1;
+    private static final int MIN_MESSAGE_BYTES = 64;
+    private static final String EXTENSION = "permessage-deflate";
+    private static final String CLIENT_NO_CONTEXT = "client_no_context_takeover";
+    // Every sync flushed message ends in an empty stored block the receiver appends itself.
+    private static final int TAIL = 0x0000FFFF;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final boolean noContext;
+    private boolean enabled = true;
+    private long sampleIn;
+    private long sampleOut;
+    private long skipped;
+    private long bytesIn;
+    private long bytesOut;
+
+    TunnelDeflater(boolean noContext) {
+        this.noContext = noContext;
+    }
+
+    /**
+     * Returns the deflater for the extensions the service accepted in its handshake response, or
+     * null if permessage-deflate was not negotiated.
+     */
+    static TunnelDeflater negotiated(String extensionsHeader) {
+        if (extensionsHeader == null) {
+            return null;
+        }
+        for (String extension : extensionsHeader.split(",")) {
+            String[] params = extension.split(";");
+            if (!EXTENSION.equals(params[0].trim().toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            boolean noContext = false;
+            for (int i = 1; i < params.length; i++) {
+                noContext |= CLIENT_NO_CONTEXT.equals(params[i].trim().toLowerCase(Locale.ROOT));
+            }
+            return new TunnelDeflater(noContext);
+        }
+        return null;
+    }
+
+    /**
+     * Compresses payload and releases it, or returns null if it is to be sent uncompressed.
+     */
+    ByteBuf deflate(ByteBufAllocator alloc, ByteBuf payload) {
+        int length = payload.readableBytes();
+        bytesIn += length;
+        if (length < MIN_MESSAGE_BYTES || !sampling(length)) {
+            bytesOut += length;
+            return null;
+        }
+        ByteBuf out = alloc.ioBuffer(Math.max(MIN_MESSAGE_BYTES, length / 2));
+        try {
+            deflater.setInput(payload.nioBuffer());
+            for (;;) {
+                if (!out.isWritable()) {
+                    out.ensureWritable(out.capacity());
+                }
+                int writable = out.writableBytes();
+                int written = deflater.deflate(
+                        out.nioBuffer(out.writerIndex(), writable), Deflater.SYNC_FLUSH);
+                out.writerIndex(out.writerIndex() + written);
+                if (written < writable) {
+                    break;
+                }
+            }
+            if (noContext) {
+                deflater.reset();
+            }
+        } catch (Throwable t) {
+            out.release();
+            throw t;
+        }
+        if (out.readableBytes() >= 4 && out.getInt(out.writerIndex() - 4) == TAIL) {
+            out.writerIndex(out.writerIndex() - 4);
+        }
+        payload.release();
+        record(length, out.readableBytes());
+        return out;
+    }
+
+    /**
+     * Whether a message of length is compressed, switching compression back on for a sample
+     * once enough went out uncompressed.
+     */
+    private boolean sampling(int length) {
+        if (enabled) {
+            return true;
+        }
+        skipped += length;
+        if (skipped < PROBE_INTERVAL_BYTES) {
+            return false;
+        }
+        skipped = 0;
+        enabled = true;
+        return true;
+    }
+
+    private void record(int in, int out) {
+        bytesOut += out;
+        sampleIn += in;
+        sampleOut += out;
+        if (sampleIn >= SAMPLE_BYTES) {
+            enabled = sampleOut <= sampleIn * (1 - MIN_SAVING);
+            sampleIn = 0;
+            sampleOut = 0;
+        }
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Payload bytes handed to the deflater so far.
+     */
+    long bytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Bytes sent for them, compressed or not.
+     */
+    long bytesOut() {
+        return bytesOut;
+    }
+
+    void close() {
+        deflater.end();
+    }
+}
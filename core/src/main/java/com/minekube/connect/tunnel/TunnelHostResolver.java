@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import io.netty.resolver.AbstractAddressResolver;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Promise;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Resolves tunnel hosts with the JDK resolver on lookups, a separate executor. Netty's default
+ * resolver blocks the channel's event loop in {@link InetAddress#getByName}, and tunnel channels
+ * may be registered on a platform worker loop other players share, where a slow lookup would
+ * stall all of them.
+ */
+final class TunnelHostResolver extends AddressResolverGroup<InetSocketAddress> {
+    private final Executor lookups;
+
+    TunnelHostResolver(Executor lookups) {
+        this.lookups = lookups;
+    }
+
+    @Override
+    protected AddressResolver<InetSocketAddress> newResolver(EventExecutor executor) {
+        return new Resolver(executor);
+    }
+
+    private final class Resolver extends AbstractAddressResolver<InetSocketAddress> {
+        private Resolver(EventExecutor executor) {
+            super(executor, InetSocketAddress.class);
+        }
+
+        @Override
+        protected boolean doIsResolved(InetSocketAddress address) {
+            return !address.isUnresolved();
+        }
+
+        @Override
+        protected void doResolve(
+                InetSocketAddress unresolved, Promise<InetSocketAddress> promise) {
+            lookup(promise, () -> new InetSocketAddress(
+                    InetAddress.getByName(unresolved.getHostString()), unresolved.getPort()));
+        }
+
+        @Override
+        protected void doResolveAll(
+                InetSocketAddress unresolved, Promise<List<InetSocketAddress>> promise) {
+            lookup(promise, () -> {
+                List<InetSocketAddress> resolved = new ArrayList<>();
+                for (InetAddress address : InetAddress.getAllByName(unresolved.getHostString())) {
+                    resolved.add(new InetSocketAddress(address, unresolved.getPort()));
+                }
+                return resolved;
+            });
+        }
+
+        private <T> void lookup(Promise<T> promise, Lookup<T> lookup) {
+            try {
+                lookups.execute(() -> {
+                    try {
+                        promise.trySuccess(lookup.run());
+                    } catch (UnknownHostException | RuntimeException e) {
+                        promise.tryFailure(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The transport is closing.
+                promise.tryFailure(e);
+            }
+        }
+    }
+
+    private interface Lookup<T> {
+        T run() throws UnknownHostException;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide budget for tunnel bytes that are buffered in memory, in either direction and
+ * across all sessions. Every buffered byte is charged to an {@link Account} of its session and
+ * to the global pool.
+ * <p>
+ * Above the limit all sessions are asked to stop reading their sources until usage fell back
+ * below three quarters of it. Data already in flight can still overshoot, so above a quarter
+ * more than the limit the session holding the most bytes is shed, so one slow edge or bad actor
+ * cannot run the process out of memory. Pausing everyone cannot drain a session whose peer is
+ * stuck, so if the pressure outlasts {@link #SHED_AFTER_MILLIS} the largest session is shed as
+ * well, and again every deadline while it lasts.
+ */
+public final class TunnelMemoryBudget {
+    static final long SHED_AFTER_MILLIS = 2_000;
+
+    private static volatile TunnelMemoryBudget system;
+
+    private final long limitBytes;
+    private final long resumeBytes;
+    private final long shedBytes;
+    private final long shedAfterMillis;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final Set<Account> accounts = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean shedding = new AtomicBoolean();
+    // The last shed session, no other is shed until it gave back its bytes.
+    private volatile Account shedPending;
+    private volatile boolean pressured;
+    private ScheduledFuture<?> deadline; // guarded by this
+
+    public TunnelMemoryBudget(long limitBytes) {
+        this(limitBytes, SHED_AFTER_MILLIS);
+    }
+
+    TunnelMemoryBudget(long limitBytes, long shedAfterMillis) {
+        this.limitBytes = limitBytes;
+        this.resumeBytes = limitBytes - limitBytes / 4;
+        this.shedBytes = limitBytes + limitBytes / 4;
+        this.shedAfterMillis = shedAfterMillis;
+    }
+
+    /**
+     * Returns the budget of this process, sized by {@link TunnelSettings#memoryBudgetBytes()}.
+     */
+    public static TunnelMemoryBudget system() {
+        TunnelMemoryBudget existing = system;
+        if (existing == null) {
+            synchronized (TunnelMemoryBudget.class) {
+                existing = system;
+                if (existing == null) {
+                    existing = new TunnelMemoryBudget(TunnelSettings.system().memoryBudgetBytes());
+                    system = existing;
+                }
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Opens the account of a session. It must be closed when the session ended, which gives
+     * back whatever it still has charged.
+     */
+    public Account open(String sessionId) {
+        Account account = new Account(sessionId);
+        accounts.add(account);
+        return account;
+    }
+
+    public long limitBytes() {
+        return limitBytes;
+    }
+
+    /**
+     * Bytes currently charged by all sessions.
+     */
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Whether sessions are asked to stop reading because the budget is used up.
+     */
+    public boolean pressured() {
+        return pressured;
+    }
+
+    /**
+     * Returns the bytes charged per session, largest first.
+     */
+    public List<Usage> usage() {
+        List<Usage> usage = new ArrayList<>();
+        for (Account account : accounts) {
+            usage.add(new Usage(account.sessionId, account.bytes()));
+        }
+        usage.sort(Comparator.comparingLong(Usage::bytes).reversed());
+        return usage;
+    }
+
+    private void charged(long length) {
+        long used = usedBytes.addAndGet(length);
+        if (used > limitBytes && !pressured) {
+            updatePressure();
+        }
+        if (used > shedBytes) {
+            shedLargest();
+        }
+    }
+
+    private void released(long length) {
+        if (usedBytes.addAndGet(-length) <= resumeBytes && pressured) {
+            updatePressure();
+        }
+    }
+
+    private void updatePressure() {
+        boolean changed;
+        synchronized (this) {
+            long used = usedBytes.get();
+            boolean pressure = used > (pressured ? resumeBytes : limitBytes);
+            changed = pressure != pressured;
+            pressured = pressure;
+            if (changed && pressure) {
+                scheduleDeadline();
+            } else if (changed && deadline != null) {
+                deadline.cancel(false);
+                deadline = null;
+            }
+        }
+        if (changed) {
+            for (Account account : accounts) {
+                account.pressureChanged();
+            }
+        }
+    }
+
+    private void scheduleDeadline() {
+        // The global executor's thread only runs while tasks are due, so the budget has none
+        // of its own to shut down.
+        deadline = GlobalEventExecutor.INSTANCE.schedule(
+                this::pressureOutlasted, shedAfterMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sheds the largest session when the pressure did not lift in time, as a session whose peer
+     * stopped reading keeps holding its bytes while every other session is paused.
+     */
+    private void pressureOutlasted() {
+        synchronized (this) {
+            deadline = null;
+            if (!pressured) {
+                return;
+            }
+        }
+        shedLargest();
+        synchronized (this) {
+            if (pressured && deadline == null) {
+                scheduleDeadline();
+            }
+        }
+    }
+
+    private void shedLargest() {
+        if (!shedding.compareAndSet(false, true)) {
+            return; // another thread is already picking one
+        }
+        Account largest = null;
+        try {
+            Account pending = shedPending;
+            if (pending != null && !pending.closed()) {
+                return;
+            }
+            for (Account account : accounts) {
+                if (!account.shed && (largest == null || account.bytes() > largest.bytes())) {
+                    largest = account;
+                }
+            }
+            if (largest != null) {
+                largest.shed = true;
+                shedPending = largest;
+            }
+        } finally {
+            shedding.set(false);
+        }
+        if (largest != null) {
+            largest.shed();
+        }
+    }
+
+    /**
+     * Bytes charged by one session.
+     */
+    public static final class Usage {
+        private final String sessionId;
+        private final long bytes;
+
+        private Usage(String sessionId, long bytes) {
+            this.sessionId = sessionId;
+            this.bytes = bytes;
+        }
+
+        public String sessionId() {
+            return sessionId;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return sessionId + "=" + bytes;
+        }
+    }
+
+    /**
+     * The share of the budget held by one session. Charges may come from any thread.
+     */
+    public final class Account {
+        private final String sessionId;
+        private long bytes;
+        private boolean closed;
+        private volatile boolean shed;
+        private volatile Runnable onPressureChanged;
+        private volatile Runnable onShed;
+
+        private Account(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        /**
+         * Sets what runs when the session should stop or may resume reading its sources, see
+         * {@link #pressured()}, and what runs when the session is shed to stay within the budget.
+         * Both may run on any thread.
+         */
+        public void listen(Runnable onPressureChanged, Runnable onShed) {
+            this.onPressureChanged = onPressureChanged;
+            this.onShed = onShed;
+        }
+
+        public void charge(long length) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                bytes += length;
+            }
+            charged(length);
+        }
+
+        public void release(long length) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                length = Math.min(length, bytes);
+                bytes -= length;
+            }
+            released(length);
+        }
+
+        /**
+         * Charges the readable bytes of data until the returned buffer is released, which
+         * tunnels do once the data was sent, or right away if they copy it. Buffers made of
+         * several components are merged into one first. The returned buffer borrows the memory
+         * of data, see {@link BorrowedByteBuf#owner}.
+         */
+        public ByteBuf charged(ByteBuf data) {
+            int length = data.readableBytes();
+            if (data.nioBufferCount() != 1) {
+                ByteBuf merged = data.alloc().ioBuffer(length);
+                try {
+                    merged.writeBytes(data);
+                } finally {
+                    data.release();
+                }
+                data = merged;
+            }
+            charge(length);
+            return BorrowedByteBuf.wrap(data, () -> release(length));
+        }
+
+        /**
+         * Whether the session should stop reading its sources because the budget is used up.
+         */
+        public boolean pressured() {
+            return pressured;
+        }
+
+        public synchronized long bytes() {
+            return bytes;
+        }
+
+        private synchronized boolean closed() {
+            return closed;
+        }
+
+        public void close() {
+            long remaining;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                remaining = bytes;
+                bytes = 0;
+            }
+            accounts.remove(this);
+            released(remaining);
+        }
+
+        private void pressureChanged() {
+            Runnable listener = onPressureChanged;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+
+        private void shed() {
+            Runnable listener = onShed;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+}
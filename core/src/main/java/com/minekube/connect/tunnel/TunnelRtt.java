@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip times probed on a tunnel connection, shared by every session the connection
+ * carries. Keeps a moving average weighted like TCP's smoothed RTT and the extremes.
+ * <p>
+ * Only plain Java, as the isolated libp2p runtime records into it as well.
+ */
+public final class TunnelRtt {
+    // Weight of the latest sample, the one of TCP's smoothed RTT.
+    static final double ALPHA = 0.125;
+
+    private long samples;
+    private double averageNanos;
+    private long minNanos;
+    private long maxNanos;
+
+    /**
+     * Adds a sample, negative ones are ignored.
+     */
+    public synchronized void record(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        if (samples++ == 0) {
+            averageNanos = rttNanos;
+            minNanos = rttNanos;
+            maxNanos = rttNanos;
+            return;
+        }
+        averageNanos += ALPHA * (rttNanos - averageNanos);
+        minNanos = Math.min(minNanos, rttNanos);
+        maxNanos = Math.max(maxNanos, rttNanos);
+    }
+
+    public synchronized long samples() {
+        return samples;
+    }
+
+    /**
+     * Moving average of the samples, 0 before the first one.
+     */
+    public synchronized long averageNanos() {
+        return (long) averageNanos;
+    }
+
+    public synchronized long minNanos() {
+        return minNanos;
+    }
+
+    public synchronized long maxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * Formats the samples for logs, like {@code avg=12.3ms min=10.1ms max=20.4ms samples=6}.
+     */
+    @Override
+    public synchronized String toString() {
+        if (samples == 0) {
+            return "samples=0";
+        }
+        return String.format(Locale.ROOT, "avg=%.1fms min=%.1fms max=%.1fms samples=%d",
+                millis((long) averageNanos), millis(minNanos), millis(maxNanos), samples);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
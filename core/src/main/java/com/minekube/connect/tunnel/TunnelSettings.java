@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import io.netty.util.internal.PlatformDependent;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Low-level tuning knobs of the tunnel data path. Like the libp2p endpoint settings these are
+ * read from {@code CONNECT_*} environment variables, since they are meant for operators tuning a
+ * deployment rather than for the regular config file. Unparsable values fall back to defaults.
+ */
+public final class TunnelSettings {
+    static final String COALESCE_WRITES_ENV = "CONNECT_TUNNEL_COALESCE_WRITES";
+    static final String COALESCE_MAX_FRAME_BYTES_ENV = "CONNECT_TUNNEL_COALESCE_MAX_FRAME_BYTES";
+    static final String COALESCE_LATENCY_BUDGET_MICROS_ENV = "CONNECT_TUNNEL_COALESCE_LATENCY_BUDGET_MICROS";
+    static final String HIGH_WATER_MARK_BYTES_ENV = "CONNECT_TUNNEL_HIGH_WATER_MARK_BYTES";
+    static final String LOW_WATER_MARK_BYTES_ENV = "CONNECT_TUNNEL_LOW_WATER_MARK_BYTES";
+    static final String NETTY_WEBSOCKET_ENV = "CONNECT_TUNNEL_NETTY_WEBSOCKET";
+    static final String MULTIPLEX_ENV = "CONNECT_TUNNEL_MULTIPLEX";
+    static final String RACE_TRANSPORTS_ENV = "CONNECT_TUNNEL_RACE_TRANSPORTS";
+    static final String RACE_STAGGER_MILLIS_ENV = "CONNECT_TUNNEL_RACE_STAGGER_MILLIS";
+    static final String BREAKER_FAILURES_ENV = "CONNECT_TUNNEL_BREAKER_FAILURES";
+    static final String BREAKER_COOLDOWN_MILLIS_ENV = "CONNECT_TUNNEL_BREAKER_COOLDOWN_MILLIS";
+    static final String MEMORY_BUDGET_BYTES_ENV = "CONNECT_TUNNEL_MEMORY_BUDGET_BYTES";
+    static final String DIRECT_INJECTION_ENV = "CONNECT_TUNNEL_DIRECT_INJECTION";
+    static final String RESUME_ENV = "CONNECT_TUNNEL_RESUME";
+    static final String RESUME_GRACE_MILLIS_ENV = "CONNECT_TUNNEL_RESUME_GRACE_MILLIS";
+    static final String RESUME_BUFFER_BYTES_ENV = "CONNECT_TUNNEL_RESUME_BUFFER_BYTES";
+    static final String RTT_PROBE_MILLIS_ENV = "CONNECT_TUNNEL_RTT_PROBE_MILLIS";
+    static final String WARM_POOL_SIZE_ENV = "CONNECT_TUNNEL_WARM_POOL_SIZE";
+    static final String WARM_POOL_IDLE_MILLIS_ENV = "CONNECT_TUNNEL_WARM_POOL_IDLE_MILLIS";
+    static final String STREAM_POOL_SIZE_ENV = "CONNECT_TUNNEL_STREAM_POOL_SIZE";
+    static final String STRIPES_ENV = "CONNECT_TUNNEL_STRIPES";
+    static final String QUIC_ENV = "CONNECT_TUNNEL_QUIC";
+    static final String YAMUX_AUTOTUNE_ENV = "CONNECT_TUNNEL_YAMUX_AUTOTUNE";
+    static final String YAMUX_MAX_WINDOW_BYTES_ENV = "CONNECT_TUNNEL_YAMUX_MAX_WINDOW_BYTES";
+    static final String YAMUX_WINDOW_BUDGET_BYTES_ENV = "CONNECT_TUNNEL_YAMUX_WINDOW_BUDGET_BYTES";
+    static final String FAIR_WRITES_ENV = "CONNECT_TUNNEL_FAIR_WRITES";
+    static final String COMPRESSION_ENV = "CONNECT_TUNNEL_COMPRESSION";
+    static final String IMPAIR_ENABLED_ENV = "CONNECT_TUNNEL_IMPAIR_ENABLED";
+    static final String IMPAIR_LATENCY_MILLIS_ENV = "CONNECT_TUNNEL_IMPAIR_LATENCY_MILLIS";
+    static final String IMPAIR_JITTER_MILLIS_ENV = "CONNECT_TUNNEL_IMPAIR_JITTER_MILLIS";
+    static final String IMPAIR_BANDWIDTH_ENV = "CONNECT_TUNNEL_IMPAIR_BANDWIDTH_BYTES_PER_SECOND";
+    static final String IMPAIR_REORDER_PERCENT_ENV = "CONNECT_TUNNEL_IMPAIR_REORDER_PERCENT";
+    static final String IMPAIR_DROP_AFTER_MILLIS_ENV = "CONNECT_TUNNEL_IMPAIR_DROP_AFTER_MILLIS";
+    static final String TLS_PROVIDER_ENV = "CONNECT_TUNNEL_TLS_PROVIDER";
+    static final String TLS_SESSION_CACHE_SIZE_ENV = "CONNECT_TUNNEL_TLS_SESSION_CACHE_SIZE";
+
+    private static final int DEFAULT_COALESCE_MAX_FRAME_BYTES = 32 * 1024;
+    private static final long DEFAULT_COALESCE_LATENCY_BUDGET_MICROS = 250;
+    private static final long DEFAULT_HIGH_WATER_MARK_BYTES = 1024 * 1024;
+    private static final long DEFAULT_LOW_WATER_MARK_BYTES = 256 * 1024;
+    private static final long DEFAULT_RACE_STAGGER_MILLIS = 250;
+    private static final int DEFAULT_BREAKER_FAILURES = 3;
+    private static final long DEFAULT_BREAKER_COOLDOWN_MILLIS = 30_000;
+    private static final long MIN_DEFAULT_MEMORY_BUDGET_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_RESUME_GRACE_MILLIS = 10_000;
+    private static final int DEFAULT_RESUME_BUFFER_BYTES = 1024 * 1024;
+    private static final long DEFAULT_RTT_PROBE_MILLIS = 10_000;
+    private static final long DEFAULT_WARM_POOL_IDLE_MILLIS = 30_000;
+    private static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 1024;
+    private static final long DEFAULT_YAMUX_MAX_WINDOW_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_YAMUX_WINDOW_BUDGET_BYTES = 64 * 1024 * 1024;
+
+    private static volatile TunnelSettings system;
+
+    private final boolean coalesceWrites;
+    private final int coalesceMaxFrameBytes;
+    private final long coalesceLatencyBudgetMicros;
+    private final long highWaterMarkBytes;
+    private final long lowWaterMarkBytes;
+    private final boolean nettyWebSocket;
+    private final boolean multiplexTunnels;
+    private final boolean raceTransports;
+    private final long raceStaggerMillis;
+    private final int breakerFailures;
+    private final long breakerCooldownMillis;
+    private final long memoryBudgetBytes;
+    private final boolean directInjection;
+    private final boolean resumeTunnels;
+    private final long resumeGraceMillis;
+    private final int resumeBufferBytes;
+    private final long rttProbeMillis;
+    private final int warmPoolSize;
+    private final long warmPoolIdleMillis;
+    private final int streamPoolSize;
+    private final int stripes;
+    private final boolean quic;
+    private final boolean yamuxAutotune;
+    private final int yamuxMaxWindowBytes;
+    private final long yamuxWindowBudgetBytes;
+    private final boolean fairWrites;
+    private final boolean compressTunnels;
+    private final boolean impairEnabled;
+    private final long impairLatencyMillis;
+    private final long impairJitterMillis;
+    private final long impairBandwidthBytesPerSecond;
+    private final int impairReorderPercent;
+    private final long impairDropAfterMillis;
+    private final TlsProvider tlsProvider;
+    private final int tlsSessionCacheSize;
+
+    private TunnelSettings(Map<String, String> env) {
+        this.coalesceWrites = flag(env, COALESCE_WRITES_ENV, false);
+        this.coalesceMaxFrameBytes = positiveInt(env, COALESCE_MAX_FRAME_BYTES_ENV,
+                DEFAULT_COALESCE_MAX_FRAME_BYTES);
+        this.coalesceLatencyBudgetMicros = nonNegativeLong(env, COALESCE_LATENCY_BUDGET_MICROS_ENV,
+                DEFAULT_COALESCE_LATENCY_BUDGET_MICROS);
+        this.highWaterMarkBytes = positiveLong(env, HIGH_WATER_MARK_BYTES_ENV, DEFAULT_HIGH_WATER_MARK_BYTES);
+        long lowWaterMark = nonNegativeLong(env, LOW_WATER_MARK_BYTES_ENV, DEFAULT_LOW_WATER_MARK_BYTES);
+        this.lowWaterMarkBytes = lowWaterMark <= highWaterMarkBytes ? lowWaterMark : highWaterMarkBytes / 2;
+        this.nettyWebSocket = flag(env, NETTY_WEBSOCKET_ENV, false);
+        this.multiplexTunnels = flag(env, MULTIPLEX_ENV, false);
+        this.raceTransports = flag(env, RACE_TRANSPORTS_ENV, false);
+        this.raceStaggerMillis = nonNegativeLong(env, RACE_STAGGER_MILLIS_ENV,
+                DEFAULT_RACE_STAGGER_MILLIS);
+        this.breakerFailures = positiveInt(env, BREAKER_FAILURES_ENV, DEFAULT_BREAKER_FAILURES);
+        this.breakerCooldownMillis = positiveLong(env, BREAKER_COOLDOWN_MILLIS_ENV,
+                DEFAULT_BREAKER_COOLDOWN_MILLIS);
+        this.memoryBudgetBytes = positiveLong(env, MEMORY_BUDGET_BYTES_ENV,
+                Math.max(MIN_DEFAULT_MEMORY_BUDGET_BYTES, PlatformDependent.maxDirectMemory() / 4));
+        this.directInjection = flag(env, DIRECT_INJECTION_ENV, false);
+        this.resumeTunnels = flag(env, RESUME_ENV, false);
+        this.resumeGraceMillis = positiveLong(env, RESUME_GRACE_MILLIS_ENV,
+                DEFAULT_RESUME_GRACE_MILLIS);
+        this.resumeBufferBytes = positiveInt(env, RESUME_BUFFER_BYTES_ENV,
+                DEFAULT_RESUME_BUFFER_BYTES);
+        this.rttProbeMillis = nonNegativeLong(env, RTT_PROBE_MILLIS_ENV, DEFAULT_RTT_PROBE_MILLIS);
+        this.warmPoolSize = (int) Math.min(Integer.MAX_VALUE,
+                nonNegativeLong(env, WARM_POOL_SIZE_ENV, 0));
+        this.warmPoolIdleMillis = positiveLong(env, WARM_POOL_IDLE_MILLIS_ENV,
+                DEFAULT_WARM_POOL_IDLE_MILLIS);
+        this.streamPoolSize = (int) Math.min(Integer.MAX_VALUE,
+                nonNegativeLong(env, STREAM_POOL_SIZE_ENV, 0));
+        this.stripes = positiveInt(env, STRIPES_ENV, 1);
+        this.quic = flag(env, QUIC_ENV, false);
+        this.yamuxAutotune = flag(env, YAMUX_AUTOTUNE_ENV, false);
+        this.yamuxMaxWindowBytes = (int) Math.min(Integer.MAX_VALUE,
+                positiveLong(env, YAMUX_MAX_WINDOW_BYTES_ENV, DEFAULT_YAMUX_MAX_WINDOW_BYTES));
+        this.yamuxWindowBudgetBytes = positiveLong(env, YAMUX_WINDOW_BUDGET_BYTES_ENV,
+                DEFAULT_YAMUX_WINDOW_BUDGET_BYTES);
+        this.fairWrites = flag(env, FAIR_WRITES_ENV, false);
+        this.compressTunnels = flag(env, COMPRESSION_ENV, false);
+        this.impairEnabled = flag(env, IMPAIR_ENABLED_ENV, false);
+        this.impairLatencyMillis = nonNegativeLong(env, IMPAIR_LATENCY_MILLIS_ENV, 0);
+        this.impairJitterMillis = nonNegativeLong(env, IMPAIR_JITTER_MILLIS_ENV, 0);
+        this.impairBandwidthBytesPerSecond = nonNegativeLong(env, IMPAIR_BANDWIDTH_ENV, 0);
+        this.impairReorderPercent = (int) Math.min(100,
+                nonNegativeLong(env, IMPAIR_REORDER_PERCENT_ENV, 0));
+        this.impairDropAfterMillis = nonNegativeLong(env, IMPAIR_DROP_AFTER_MILLIS_ENV, 0);
+        this.tlsProvider = tlsProvider(env);
+        this.tlsSessionCacheSize = positiveInt(env, TLS_SESSION_CACHE_SIZE_ENV,
+                DEFAULT_TLS_SESSION_CACHE_SIZE);
+    }
+
+    public static TunnelSettings fromEnvironment(Map<String, String> env) {
+        return new TunnelSettings(env);
+    }
+
+    /**
+     * Returns the settings of this process, read once from the system environment.
+     */
+    public static TunnelSettings system() {
+        TunnelSettings existing = system;
+        if (existing == null) {
+            existing = fromEnvironment(System.getenv());
+            system = existing;
+        }
+        return existing;
+    }
+
+    /**
+     * Whether backend reads of one event-loop read cycle are gathered into fewer tunnel frames.
+     */
+    public boolean coalesceWrites() {
+        return coalesceWrites;
+    }
+
+    /**
+     * Upper bound of a coalesced tunnel frame. Larger reads are passed through unchanged.
+     */
+    public int coalesceMaxFrameBytes() {
+        return coalesceMaxFrameBytes;
+    }
+
+    /**
+     * How long a coalesced frame may wait for more reads before it is sent regardless.
+     */
+    public long coalesceLatencyBudgetNanos() {
+        return TimeUnit.MICROSECONDS.toNanos(coalesceLatencyBudgetMicros);
+    }
+
+    /**
+     * Bytes a session may have queued in one direction before its source is paused.
+     */
+    public long highWaterMarkBytes() {
+        return highWaterMarkBytes;
+    }
+
+    /**
+     * Queued bytes a paused direction has to drain to before its source is resumed.
+     */
+    public long lowWaterMarkBytes() {
+        return lowWaterMarkBytes;
+    }
+
+    /**
+     * Whether WebSocket tunnels run on Netty next to the session channel instead of OkHttp.
+     */
+    public boolean nettyWebSocket() {
+        return nettyWebSocket;
+    }
+
+    /**
+     * Whether the Netty WebSocket transport offers tunnel services to carry all sessions over one
+     * multiplexed connection. Services that don't support it get a connection per session.
+     */
+    public boolean multiplexTunnels() {
+        return multiplexTunnels;
+    }
+
+    /**
+     * Whether a session's tunnel transports are raced instead of tried one after another.
+     */
+    public boolean raceTransports() {
+        return raceTransports;
+    }
+
+    /**
+     * How long a raced transport gets to open before the next candidate is started as well.
+     */
+    public long raceStaggerMillis() {
+        return raceStaggerMillis;
+    }
+
+    /**
+     * Failed tunnel attempts in a row after which a transport address is skipped.
+     */
+    public int breakerFailures() {
+        return breakerFailures;
+    }
+
+    /**
+     * How long a skipped transport address waits before it is probed again.
+     */
+    public long breakerCooldownMillis() {
+        return breakerCooldownMillis;
+    }
+
+    /**
+     * Bytes all sessions together may buffer before they are asked to stop reading, see
+     * {@link TunnelMemoryBudget}. Defaults to a quarter of the maximum direct memory.
+     */
+    public long memoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    /**
+     * Whether sessions are handed to the platform as a single channel fed by the tunnel instead
+     * of crossing a local channel pair.
+     */
+    public boolean directInjection() {
+        return directInjection;
+    }
+
+    /**
+     * Whether sessions survive a dropped tunnel connection by resuming over a new one, see
+     * {@link ResumableTunnel}. The tunnel service has to speak the resume framing.
+     */
+    public boolean resumeTunnels() {
+        return resumeTunnels;
+    }
+
+    /**
+     * How long a session whose tunnel connection dropped waits for a new one.
+     */
+    public long resumeGraceMillis() {
+        return resumeGraceMillis;
+    }
+
+    /**
+     * Unacknowledged bytes a resumable session keeps for replay. A session that outgrows it can
+     * no longer be resumed.
+     */
+    public int resumeBufferBytes() {
+        return resumeBufferBytes;
+    }
+
+    /**
+     * How often the round trip time of a tunnel connection is probed, 0 to not probe at all.
+     */
+    public long rttProbeMillis() {
+        return rttProbeMillis;
+    }
+
+    /**
+     * Connections with TCP and TLS done that are kept ready per tunnel host, 0 to dial every
+     * tunnel on demand. See {@link WarmWebSocketPool}.
+     */
+    public int warmPoolSize() {
+        return warmPoolSize;
+    }
+
+    /**
+     * How long a warm connection may sit unused before it is closed.
+     */
+    public long warmPoolIdleMillis() {
+        return warmPoolIdleMillis;
+    }
+
+    /**
+     * Upper bound on the protocol-negotiated tunnel streams kept open per warm libp2p
+     * connection; the pool sizes itself below this from the join rate. 0 disables it. Idle
+     * streams are closed after {@link #warmPoolIdleMillis()}.
+     */
+    public int streamPoolSize() {
+        return streamPoolSize;
+    }
+
+    /**
+     * Parallel libp2p connections kept per edge peer; new sessions go to the least loaded one.
+     */
+    public int stripes() {
+        return stripes;
+    }
+
+    /**
+     * Whether libp2p peers given by a TCP address are dialed over QUIC on the same port first,
+     * falling back to TCP when UDP does not get through.
+     */
+    public boolean quic() {
+        return quic;
+    }
+
+    /**
+     * Whether the receive windows of yamux tunnel streams grow with the measured bandwidth-delay
+     * product, see {@link com.minekube.connect.tunnel.p2p.YamuxWindowTuner}.
+     */
+    public boolean yamuxAutotune() {
+        return yamuxAutotune;
+    }
+
+    /**
+     * Largest receive window a single yamux tunnel stream is tuned up to.
+     */
+    public int yamuxMaxWindowBytes() {
+        return yamuxMaxWindowBytes;
+    }
+
+    /**
+     * Window all yamux tunnel streams together may be granted beyond the muxer's default.
+     */
+    public long yamuxWindowBudgetBytes() {
+        return yamuxWindowBudgetBytes;
+    }
+
+    /**
+     * Whether the session streams sharing a libp2p connection are written through a fair
+     * scheduler instead of straight into the muxer.
+     */
+    public boolean fairWrites() {
+        return fairWrites;
+    }
+
+    /**
+     * Whether tunnel WebSockets offer permessage-deflate and compress what they send while the
+     * saving is worth it, see {@link TunnelDeflater}.
+     */
+    public boolean compressTunnels() {
+        return compressTunnels;
+    }
+
+    /**
+     * Whether tunnels are run through {@link ImpairedTunnelTransport} to emulate a bad network.
+     * Meant for performance testing only, so besides an impairment it takes
+     * {@value #IMPAIR_ENABLED_ENV} to be set; a stray impairment variable alone does nothing.
+     */
+    public boolean impairTunnels() {
+        return impairEnabled && (impairLatencyMillis > 0 || impairJitterMillis > 0
+                || impairBandwidthBytesPerSecond > 0 || impairReorderPercent > 0
+                || impairDropAfterMillis > 0);
+    }
+
+    /**
+     * Lists the configured impairments for logs, like {@code latency=40ms jitter=10ms}.
+     */
+    public String impairments() {
+        StringBuilder impairments = new StringBuilder();
+        appendImpairment(impairments, "latency", impairLatencyMillis, "ms");
+        appendImpairment(impairments, "jitter", impairJitterMillis, "ms");
+        appendImpairment(impairments, "bandwidth", impairBandwidthBytesPerSecond, "B/s");
+        appendImpairment(impairments, "reorder", impairReorderPercent, "%");
+        appendImpairment(impairments, "dropAfter", impairDropAfterMillis, "ms");
+        return impairments.toString();
+    }
+
+    /**
+     * One way delay added to every chunk in both directions.
+     */
+    public long impairLatencyMillis() {
+        return impairLatencyMillis;
+    }
+
+    /**
+     * Upper bound of the random delay added on top of {@link #impairLatencyMillis()}.
+     */
+    public long impairJitterMillis() {
+        return impairJitterMillis;
+    }
+
+    /**
+     * Bytes per second each direction of a tunnel can carry, 0 for no limit.
+     */
+    public long impairBandwidthBytesPerSecond() {
+        return impairBandwidthBytesPerSecond;
+    }
+
+    /**
+     * Percentage of chunks that may overtake the ones before them when their jitter is lower.
+     */
+    public int impairReorderPercent() {
+        return impairReorderPercent;
+    }
+
+    /**
+     * Mean lifetime after which a tunnel connection is dropped, 0 to never drop.
+     */
+    public long impairDropAfterMillis() {
+        return impairDropAfterMillis;
+    }
+
+    /**
+     * The TLS engine tunnel connections are made with, see {@link TunnelTls}.
+     */
+    public TlsProvider tlsProvider() {
+        return tlsProvider;
+    }
+
+    /**
+     * TLS sessions kept per tunnel TLS context for resuming handshakes with tunnel hosts.
+     */
+    public int tlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    private static TlsProvider tlsProvider(Map<String, String> env) {
+        String value = trimmed(env, TLS_PROVIDER_ENV);
+        if (value == null) {
+            return TlsProvider.AUTO;
+        }
+        try {
+            return TlsProvider.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return TlsProvider.AUTO;
+        }
+    }
+
+    private static void appendImpairment(
+            StringBuilder impairments, String name, long value, String unit) {
+        if (value <= 0) {
+            return;
+        }
+        if (impairments.length() > 0) {
+            impairments.append(' ');
+        }
+        impairments.append(name).append('=').append(value).append(unit);
+    }
+
+    private static boolean flag(Map<String, String> env, String name, boolean defaultValue) {
+        String value = trimmed(env, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.equalsIgnoreCase("true") || value.equals("1");
+    }
+
+    private static int positiveInt(Map<String, String> env, String name, int defaultValue) {
+        long value = nonNegativeLong(env, name, defaultValue);
+        return value > 0 && value <= Integer.MAX_VALUE ? (int) value : defaultValue;
+    }
+
+    private static long positiveLong(Map<String, String> env, String name, long defaultValue) {
+        long value = nonNegativeLong(env, name, defaultValue);
+        return value > 0 ? value : defaultValue;
+    }
+
+    private static long nonNegativeLong(Map<String, String> env, String name, long defaultValue) {
+        String value = trimmed(env, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value);
+            return parsed >= 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static String trimmed(Map<String, String> env, String name) {
+        String value = env.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return value.trim();
+    }
+
+    public enum TlsProvider {
+        /**
+         * OpenSSL if netty-tcnative is available, else Conscrypt if it is installed, else the JDK.
+         */
+        AUTO,
+        JDK,
+        /**
+         * OpenSSL or BoringSSL through netty-tcnative, the JDK if it is unavailable.
+         */
+        OPENSSL,
+        /**
+         * The installed Conscrypt security provider, the JDK if there is none.
+         */
+        CONSCRYPT
+    }
+}
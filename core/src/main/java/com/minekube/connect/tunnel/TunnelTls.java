@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import com.minekube.connect.tunnel.TunnelSettings.TlsProvider;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import java.security.Provider;
+import java.security.Security;
+import javax.net.ssl.SSLException;
+
+/**
+ * Builds the client TLS context of tunnel connections.
+ * <p>
+ * A tunnel transport keeps one context for all of its connections, and handlers are created
+ * with the peer host and port, so handshakes with a tunnel host that was seen before resume
+ * the cached session (or present its session ticket) instead of doing a full handshake. The
+ * engine is picked by {@link TunnelSettings#tlsProvider()}; native engines are only used when
+ * they are on the classpath, anything else falls back to the JDK.
+ */
+final class TunnelTls {
+    private static final String CONSCRYPT = "Conscrypt";
+
+    private TunnelTls() {
+    }
+
+    static SslContext clientContext(TunnelSettings settings) {
+        SslContextBuilder builder = SslContextBuilder.forClient()
+                .sessionCacheSize(settings.tlsSessionCacheSize());
+        switch (resolve(settings.tlsProvider())) {
+            case OPENSSL:
+                builder.sslProvider(SslProvider.OPENSSL);
+                break;
+            case CONSCRYPT:
+                builder.sslProvider(SslProvider.JDK).sslContextProvider(conscrypt());
+                break;
+            default:
+                builder.sslProvider(SslProvider.JDK);
+                break;
+        }
+        try {
+            return builder.build();
+        } catch (SSLException e) {
+            throw new IllegalStateException("could not create TLS context for tunnels", e);
+        }
+    }
+
+    /**
+     * Returns the provider that is actually used for requested, never {@link TlsProvider#AUTO}.
+     */
+    static TlsProvider resolve(TlsProvider requested) {
+        switch (requested) {
+            case AUTO:
+                if (OpenSsl.isAvailable()) {
+                    return TlsProvider.OPENSSL;
+                }
+                return conscrypt() != null ? TlsProvider.CONSCRYPT : TlsProvider.JDK;
+            case OPENSSL:
+                return OpenSsl.isAvailable() ? TlsProvider.OPENSSL : TlsProvider.JDK;
+            case CONSCRYPT:
+                return conscrypt() != null ? TlsProvider.CONSCRYPT : TlsProvider.JDK;
+            default:
+                return TlsProvider.JDK;
+        }
+    }
+
+    private static Provider conscrypt() {
+        return Security.getProvider(CONSCRYPT);
+    }
+}
@@ -26,24 +26,51 @@
 package com.minekube.connect.tunnel;
 
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.minekube.connect.tunnel.TunnelConn.Handler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoop;
 import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import minekube.connect.v1alpha1.WatchServiceOuterClass.Session;
 import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport;
 import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
 
+@Singleton
 public class Tunneler implements Closeable {
 
     private final Map<Type, TunnelClientTransport> transports;
+    private final TunnelSettings settings;
+    private final TransportHealth health;
+    private ScheduledExecutorService raceScheduler;
 
     @Inject
     public Tunneler(Set<TunnelClientTransport> transports) {
+        this(transports, TunnelSettings.system());
+    }
+
+    public Tunneler(Set<TunnelClientTransport> transports, TunnelSettings settings) {
+        this.settings = settings;
+        this.health = new TransportHealth(settings);
         this.transports = new EnumMap<>(Type.class);
         for (TunnelClientTransport transport : transports) {
             this.transports.put(transport.type(), transport);
@@ -56,6 +83,9 @@ public class Tunneler implements Closeable {
 
     public void prepare(Session session) {
         for (SelectedTransport selected : select(session)) {
+            if (health.circuitOpen(selected.transport.type(), selected.address)) {
+                continue;
+            }
             try {
                 selected.transport.prepare(selected.address);
             } catch (RuntimeException ignored) {
@@ -74,10 +104,17 @@ public class Tunneler implements Closeable {
 
     public TunnelConn tunnel(Session session, Handler handler) {
         RuntimeException lastFailure = null;
-        for (SelectedTransport selected : select(session)) {
+        for (SelectedTransport selected : candidates(session)) {
+            long started = health.now();
             try {
-                return selected.transport.tunnel(selected.address, session.getId(), handler);
+                TunnelConn conn = selected.transport.tunnel(
+                        selected.address, session.getId(), handler);
+                if (conn.opened()) {
+                    recordOpened(selected, started);
+                }
+                return conn;
             } catch (RuntimeException e) {
+                recordFailed(selected);
                 lastFailure = e;
             }
         }
@@ -87,11 +124,116 @@ public class Tunneler implements Closeable {
         throw new IllegalStateException("no compatible tunnel transport configured");
     }
 
+    public CompletionStage<TunnelConn> tunnelAsync(
+            final String tunnelServiceAddr,
+            String sessionId,
+            Handler handler) {
+        TunnelClientTransport transport = transports.get(Type.TYPE_WEBSOCKET);
+        if (transport == null) {
+            return failed(new IllegalStateException("no websocket tunnel transport configured"));
+        }
+        return transport.tunnelAsync(tunnelServiceAddr, sessionId, handler);
+    }
+
+    /**
+     * Same fallback chain as {@link #tunnel(Session, Handler)}, but nothing waits on a slow
+     * transport and the stage only completes once the tunnel is open. The next transport is
+     * tried once the previous attempt failed, or raced against it with
+     * {@link TunnelSettings#raceTransports()}, see {@link Race}. With
+     * {@link TunnelSettings#resumeTunnels()} the tunnel is a {@link ResumableTunnel} whose
+     * replacement connections go through the same chain.
+     */
+    public CompletionStage<TunnelConn> tunnelAsync(Session session, Handler handler) {
+        if (settings.resumeTunnels()) {
+            EventLoop loop = handler.eventLoop();
+            return ResumableTunnel.open(handler, connection -> race(session, connection), settings,
+                    loop != null ? loop : raceScheduler());
+        }
+        return race(session, handler);
+    }
+
+    /**
+     * Returns the recent health of every transport address tunnels were opened over lately,
+     * which {@link com.minekube.connect.util.Metrics} reports per transport type.
+     */
+    public List<TransportHealth.Score> transportScores() {
+        return health.scores();
+    }
+
     @Override
     public void close() {
         for (TunnelClientTransport transport : transports.values()) {
             transport.close();
         }
+        synchronized (this) {
+            if (raceScheduler != null) {
+                raceScheduler.shutdownNow();
+                raceScheduler = null;
+            }
+        }
+    }
+
+    private CompletionStage<TunnelConn> race(Session session, Handler handler) {
+        long stagger = settings.raceTransports() ? settings.raceStaggerMillis() : -1;
+        // Candidates are picked anew for every connection, skipping those that failed lately.
+        return new Race(candidates(session).iterator(), session.getId(), handler, stagger).start();
+    }
+
+    private synchronized ScheduledExecutorService raceScheduler() {
+        if (raceScheduler == null) {
+            raceScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "connect-tunnel-race");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return raceScheduler;
+    }
+
+    private void recordOpened(SelectedTransport selected, long started) {
+        health.succeeded(selected.transport.type(), selected.address, health.now() - started);
+    }
+
+    private void recordFailed(SelectedTransport selected) {
+        health.failed(selected.transport.type(), selected.address);
+    }
+
+    private static CompletionStage<TunnelConn> failed(Throwable cause) {
+        CompletableFuture<TunnelConn> failed = new CompletableFuture<>();
+        failed.completeExceptionally(cause);
+        return failed;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null
+                ? error.getCause()
+                : error;
+    }
+
+    /**
+     * Orders the selected transports cheapest first and drops those whose circuit is open,
+     * unless that would leave nothing to try. Probes through an open circuit go first, otherwise
+     * they would hardly ever run while another transport works.
+     */
+    private List<SelectedTransport> candidates(Session session) {
+        List<SelectedTransport> selected = select(session);
+        List<SelectedTransport> probes = new ArrayList<>();
+        List<SelectedTransport> allowed = new ArrayList<>();
+        for (SelectedTransport candidate : selected) {
+            Type type = candidate.transport.type();
+            boolean probe = health.circuitOpen(type, candidate.address);
+            if (health.allow(type, candidate.address)) {
+                (probe ? probes : allowed).add(candidate);
+            }
+        }
+        if (probes.isEmpty() && allowed.isEmpty()) {
+            allowed.addAll(selected);
+        }
+        // Stable, so ties, like transports before any history, keep their advertised order.
+        allowed.sort(Comparator.comparingDouble(candidate ->
+                health.cost(candidate.transport.type(), candidate.address)));
+        probes.addAll(allowed);
+        return probes;
     }
 
     private List<SelectedTransport> select(Session session) {
@@ -122,6 +264,400 @@ public class Tunneler implements Closeable {
         }
     }
 
+    /**
+     * Races the selected transports of a session, happy eyeballs style. The preferred transport
+     * starts right away and every further one after the stagger, or as soon as an earlier attempt
+     * failed. Without a stagger this is a plain fallback chain. The first tunnel to open wins.
+     * Attempts still dialing are cancelled, which stops the transport before it claims the
+     * session on the wire, and those that already resolved are closed. Their events never reach
+     * the session handler.
+     * Data an attempt receives before the race is decided is held back and handed to the session
+     * once it won, as the service may answer before the opening transport resolved.
+     */
+    private final class Race {
+        private final Iterator<SelectedTransport> candidates;
+        private final String sessionId;
+        private final Handler handler;
+        private final long staggerMillis;
+        private final ScheduledExecutorService timer;
+        private final CompletableFuture<TunnelConn> result = new CompletableFuture<>();
+        private final List<Attempt> attempts = new ArrayList<>();
+        private ScheduledFuture<?> nextStart;
+        private Attempt winner;
+        private int running;
+        private Throwable lastFailure;
+
+        private Race(
+                Iterator<SelectedTransport> candidates,
+                String sessionId,
+                Handler handler,
+                long staggerMillis
+        ) {
+            this.candidates = candidates;
+            this.sessionId = sessionId;
+            this.handler = handler;
+            this.staggerMillis = staggerMillis;
+            // Prefer the session's own loop for the stagger timer, no extra thread involved.
+            EventLoop loop = handler.eventLoop();
+            this.timer = staggerMillis < 0 ? null : loop != null ? loop : raceScheduler();
+        }
+
+        private CompletionStage<TunnelConn> start() {
+            startNext();
+            return result;
+        }
+
+        private void startNext() {
+            SelectedTransport selected;
+            Attempt attempt;
+            Throwable exhausted = null;
+            synchronized (this) {
+                nextStart = null;
+                if (winner != null || result.isDone()) {
+                    return;
+                }
+                if (!candidates.hasNext()) {
+                    if (running == 0) {
+                        exhausted = lastFailure != null
+                                ? lastFailure
+                                : new IllegalStateException(
+                                        "no compatible tunnel transport configured");
+                    }
+                    selected = null;
+                    attempt = null;
+                } else {
+                    selected = candidates.next();
+                    attempt = new Attempt(selected);
+                    attempts.add(attempt);
+                    running++;
+                    if (timer != null && candidates.hasNext()) {
+                        try {
+                            nextStart = timer.schedule(this::startNext,
+                                    staggerMillis, TimeUnit.MILLISECONDS);
+                        } catch (RejectedExecutionException ignored) {
+                            // Shutting down, the remaining candidates only start on failures.
+                        }
+                    }
+                }
+            }
+            if (attempt == null) {
+                if (exhausted != null) {
+                    result.completeExceptionally(exhausted);
+                }
+                return;
+            }
+            CompletableFuture<TunnelConn> stage;
+            try {
+                stage = selected.transport.tunnelAsync(selected.address, sessionId, attempt)
+                        .toCompletableFuture();
+            } catch (RuntimeException e) {
+                attempt.failed(e);
+                return;
+            }
+            boolean lost;
+            synchronized (this) {
+                attempt.stage = stage;
+                lost = winner != null && winner != attempt;
+            }
+            if (lost) {
+                stage.cancel(false);
+            }
+            stage.whenComplete(attempt::resolved);
+        }
+
+        private final class Attempt implements Handler {
+            private final SelectedTransport selected;
+            private final long started = health.now();
+            // All guarded by Race.this.
+            private CompletableFuture<TunnelConn> stage;
+            private TunnelConn conn;
+            private Throwable error;
+            private boolean failed;
+            private boolean recorded;
+            private ArrayDeque<ByteBuf> early; // received before the race was decided
+            private boolean draining;
+
+            private Attempt(SelectedTransport selected) {
+                this.selected = selected;
+            }
+
+            private void resolved(TunnelConn conn, Throwable error) {
+                if (error != null) {
+                    failed(unwrap(error));
+                    return;
+                }
+                boolean lost;
+                synchronized (Race.this) {
+                    this.conn = conn;
+                    lost = winner != null && winner != this || failed;
+                }
+                if (lost) {
+                    discardEarly();
+                    if (conn.opened()) {
+                        recordOpened();
+                    }
+                    conn.close();
+                } else if (won() || conn.opened()) {
+                    opened();
+                }
+            }
+
+            private void recordOpened() {
+                synchronized (Race.this) {
+                    if (recorded) {
+                        return;
+                    }
+                    recorded = true;
+                }
+                recordOpened(selected, started);
+            }
+
+            private void opened() {
+                recordOpened();
+                List<Attempt> losers = new ArrayList<>();
+                List<CompletableFuture<TunnelConn>> dialing = new ArrayList<>();
+                boolean won;
+                TunnelConn wonConn;
+                synchronized (Race.this) {
+                    if (winner == null && !failed && !result.isDone()) {
+                        winner = this;
+                        if (nextStart != null) {
+                            nextStart.cancel(false);
+                            nextStart = null;
+                        }
+                        for (Attempt attempt : attempts) {
+                            if (attempt == this) {
+                                continue;
+                            }
+                            if (attempt.conn != null) {
+                                losers.add(attempt);
+                            } else if (attempt.stage != null && !attempt.failed) {
+                                dialing.add(attempt.stage);
+                            }
+                        }
+                    }
+                    won = winner == this;
+                    wonConn = conn;
+                }
+                if (!won) {
+                    // Opened after another transport already won.
+                    discardEarly();
+                    if (conn != null) {
+                        conn.close();
+                    }
+                    return;
+                }
+                for (CompletableFuture<TunnelConn> stage : dialing) {
+                    // Resolves the attempt as failed, or with a tunnel resolved() closes if the
+                    // transport was done already.
+                    stage.cancel(false);
+                }
+                for (Attempt loser : losers) {
+                    loser.discardEarly();
+                    loser.conn.close();
+                }
+                if (wonConn != null) {
+                    result.complete(wonConn);
+                }
+                // Otherwise the tunnel opened before tunnelAsync resolved and resolved()
+                // completes the race.
+                replayEarly();
+            }
+
+            private void failed(Throwable cause) {
+                boolean won;
+                boolean startNow;
+                boolean record;
+                synchronized (Race.this) {
+                    if (failed) {
+                        return;
+                    }
+                    failed = true;
+                    running--;
+                    lastFailure = cause;
+                    won = winner == this;
+                    // Losers are closed by the race itself, which says nothing about their health.
+                    record = !recorded && winner == null;
+                    recorded = true;
+                    // A failed attempt hands over to the next candidate without waiting out
+                    // the stagger.
+                    startNow = winner == null;
+                    if (startNow && nextStart != null) {
+                        nextStart.cancel(false);
+                        nextStart = null;
+                    }
+                }
+                if (record) {
+                    recordFailed(selected);
+                }
+                if (!won) {
+                    discardEarly();
+                }
+                if (won) {
+                    result.completeExceptionally(cause);
+                } else if (startNow) {
+                    startNext();
+                }
+            }
+
+            private boolean won() {
+                synchronized (Race.this) {
+                    return winner == this;
+                }
+            }
+
+            /**
+             * Whether received data can go straight to the session: the attempt won and nothing
+             * it held back is still waiting.
+             */
+            private boolean direct() {
+                synchronized (Race.this) {
+                    return winner == this && early == null;
+                }
+            }
+
+            private void holdBack(ByteBuf data) {
+                boolean lost;
+                boolean drain = false;
+                synchronized (Race.this) {
+                    lost = failed || winner != null && winner != this;
+                    if (!lost) {
+                        if (early == null) {
+                            early = new ArrayDeque<>();
+                        }
+                        early.add(data);
+                        drain = winner == this && !draining;
+                        draining |= drain;
+                    }
+                }
+                if (lost) {
+                    data.release();
+                } else if (drain) {
+                    drainEarly();
+                }
+            }
+
+            private void replayEarly() {
+                synchronized (Race.this) {
+                    if (early == null || draining) {
+                        return;
+                    }
+                    draining = true;
+                }
+                drainEarly();
+            }
+
+            private void drainEarly() {
+                for (;;) {
+                    ByteBuf data;
+                    synchronized (Race.this) {
+                        data = early.poll();
+                        if (data == null) {
+                            early = null;
+                            draining = false;
+                            return;
+                        }
+                    }
+                    handler.onReceive(data);
+                }
+            }
+
+            private void discardEarly() {
+                ArrayDeque<ByteBuf> dropped;
+                synchronized (Race.this) {
+                    dropped = early;
+                    early = null;
+                }
+                if (dropped != null) {
+                    for (ByteBuf data : dropped) {
+                        data.release();
+                    }
+                }
+            }
+
+            @Override
+            public void onOpen() {
+                if (won()) {
+                    handler.onOpen();
+                    return;
+                }
+                opened();
+                if (won()) {
+                    handler.onOpen();
+                }
+            }
+
+            @Override
+            public void onReceive(byte[] data) {
+                if (direct()) {
+                    handler.onReceive(data);
+                } else {
+                    holdBack(Unpooled.wrappedBuffer(data));
+                }
+            }
+
+            @Override
+            public void onReceive(ByteBuf data) {
+                if (direct()) {
+                    handler.onReceive(data);
+                } else {
+                    holdBack(data);
+                }
+            }
+
+            @Override
+            public void onReceive(ByteBuffer data, Runnable release) {
+                if (direct()) {
+                    handler.onReceive(data, release);
+                } else {
+                    holdBack(BorrowedByteBuf.wrap(data, release));
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (won()) {
+                    handler.onError(t);
+                    return;
+                }
+                synchronized (Race.this) {
+                    error = t;
+                }
+            }
+
+            @Override
+            public void onWritabilityChanged(boolean writable) {
+                if (won()) {
+                    handler.onWritabilityChanged(writable);
+                }
+            }
+
+            @Override
+            public void onClose() {
+                if (won()) {
+                    replayEarly();
+                    handler.onClose();
+                    return;
+                }
+                Throwable cause;
+                synchronized (Race.this) {
+                    cause = error;
+                }
+                failed(cause != null ? cause : new IOException("tunnel closed before it opened"));
+            }
+
+            @Override
+            public EventLoop eventLoop() {
+                return handler.eventLoop();
+            }
+
+            @Override
+            public TunnelMemoryBudget.Account memoryAccount() {
+                return handler.memoryAccount();
+            }
+        }
+    }
+
     private static final class SelectedTransport {
         private final TunnelClientTransport transport;
         private final String address;
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.net.URI;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps {@link TunnelSettings#warmPoolSize()} connections per tunnel host with TCP and TLS
+ * already done, so a join only pays for the WebSocket upgrade. The pool of a host is filled by
+ * {@link NettyWebSocketTunnelTransport#prepare(String)} and topped up whenever a connection is
+ * taken. Connections that sit unused for {@link TunnelSettings#warmPoolIdleMillis()} are closed
+ * and not replaced, so hosts that see no joins do not hold connections. After a failed dial the
+ * host is not refilled for a backoff that doubles with every failure in a row, from
+ * {@link #MIN_RETRY_MILLIS} up to {@link #MAX_RETRY_MILLIS}.
+ * <p>
+ * Warm channels carry the regular tunnel pipeline with a {@link Warm} handler in the place of
+ * the tunnel handler, which the taker swaps in before sending the upgrade request.
+ */
+final class WarmWebSocketPool {
+    static final long MIN_RETRY_MILLIS = 1000;
+    static final long MAX_RETRY_MILLIS = 30_000;
+
+    private final NettyWebSocketTunnelTransport transport;
+    private final int size;
+    private final long idleMillis;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    WarmWebSocketPool(NettyWebSocketTunnelTransport transport, TunnelSettings settings) {
+        this.transport = transport;
+        this.size = settings.warmPoolSize();
+        this.idleMillis = settings.warmPoolIdleMillis();
+    }
+
+    /**
+     * Dials connections to the host of uri until the pool of it is full.
+     */
+    void fill(URI uri) {
+        if (size <= 0 || closed) {
+            return;
+        }
+        hosts.computeIfAbsent(key(uri), key -> new Host(uri)).fill();
+    }
+
+    /**
+     * Takes a warm channel to the host of uri, or returns null if none is ready. The channel
+     * still has the {@link Warm} handler installed as "tunnel".
+     */
+    Channel poll(URI uri) {
+        Host host = hosts.get(key(uri));
+        if (host == null) {
+            return null;
+        }
+        Channel channel = host.poll();
+        if (channel != null) {
+            host.fill();
+        }
+        return channel;
+    }
+
+    /**
+     * Number of warm channels to the host of uri that are ready to be taken.
+     */
+    int idle(URI uri) {
+        Host host = hosts.get(key(uri));
+        return host == null ? 0 : host.idle.size();
+    }
+
+    /**
+     * Stops refilling. The channels themselves are closed with the transport's channel group.
+     */
+    void close() {
+        closed = true;
+        hosts.clear();
+    }
+
+    private static String key(URI uri) {
+        return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    }
+
+    private final class Host {
+        private final URI uri;
+        private final Deque<Channel> idle = new ConcurrentLinkedDeque<>();
+        // Ready and still dialing connections.
+        private final AtomicInteger members = new AtomicInteger();
+        // Dials that failed in a row, and until when no new ones are started.
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long retryAtNanos;
+
+        private Host(URI uri) {
+            this.uri = uri;
+        }
+
+        /**
+         * Dials at most the connections missing at the time of the call. A failure does not
+         * dial again, it only stops this call and backs the host off.
+         */
+        private void fill() {
+            int missing = size - members.get();
+            for (int i = 0; i < missing && !closed && !backingOff(); i++) {
+                int current = members.get();
+                if (current >= size) {
+                    return;
+                }
+                if (members.compareAndSet(current, current + 1)) {
+                    dial();
+                }
+            }
+        }
+
+        private void dial() {
+            Warm warm = new Warm(this);
+            try {
+                transport.connect(uri, transport.fallbackLoop(), warm)
+                        .addListener((ChannelFutureListener) future -> {
+                            if (!future.isSuccess()) {
+                                failed(warm);
+                            }
+                        });
+            } catch (RuntimeException e) {
+                failed(warm);
+            }
+        }
+
+        private void failed(Warm warm) {
+            int failed = Math.min(failures.incrementAndGet(), 16);
+            long backoff = Math.min(MAX_RETRY_MILLIS, MIN_RETRY_MILLIS << (failed - 1));
+            retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+            warm.leave();
+        }
+
+        private boolean backingOff() {
+            return failures.get() > 0 && System.nanoTime() - retryAtNanos < 0;
+        }
+
+        private Channel poll() {
+            Channel channel;
+            while ((channel = idle.pollFirst()) != null) {
+                Warm warm = channel.pipeline().get(Warm.class);
+                if (warm != null && channel.isActive() && warm.take()) {
+                    return channel;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Holds a pooled channel until it is taken, closes it when it goes unused for too long.
+     */
+    private final class Warm extends ChannelInboundHandlerAdapter {
+        private final Host host;
+        private final AtomicBoolean member = new AtomicBoolean(true);
+        private volatile ScheduledFuture<?> expiry;
+
+        private Warm(Host host) {
+            this.host = host;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            SslHandler ssl = ctx.pipeline().get(SslHandler.class);
+            if (ssl == null) {
+                ready(ctx);
+            } else {
+                ssl.handshakeFuture().addListener(future -> {
+                    if (future.isSuccess()) {
+                        ready(ctx);
+                    } else {
+                        ctx.close();
+                    }
+                });
+            }
+            super.channelActive(ctx);
+        }
+
+        private void ready(ChannelHandlerContext ctx) {
+            if (!member.get()) {
+                return;
+            }
+            Channel channel = ctx.channel();
+            host.failures.set(0);
+            host.idle.addLast(channel);
+            expiry = ctx.executor().schedule(() -> {
+                if (leave()) {
+                    host.idle.remove(channel);
+                    ctx.close();
+                }
+            }, idleMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (leave()) {
+                host.idle.remove(ctx.channel());
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            // Nothing was requested yet, the service has no business talking.
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+
+        private boolean take() {
+            if (!leave()) {
+                return false;
+            }
+            ScheduledFuture<?> expiry = this.expiry;
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            return true;
+        }
+
+        private boolean leave() {
+            if (member.compareAndSet(true, false)) {
+                host.members.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
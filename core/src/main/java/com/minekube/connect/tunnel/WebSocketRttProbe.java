@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes the round trip time of a tunnel WebSocket with ping frames carrying their send time,
+ * which the service echoes in its pong. Pongs without the marker, like unsolicited ones, are
+ * not counted.
+ */
+final class WebSocketRttProbe {
+    // "cnct-rtt"
+    private static final long MARKER = 0x636e63742d727474L;
+    private static final int PAYLOAD_BYTES = 2 * Long.BYTES;
+
+    private final TunnelRtt rtt = new TunnelRtt();
+    private final long intervalMillis;
+    // Only touched on the channel's loop.
+    private ScheduledFuture<?> task;
+
+    WebSocketRttProbe(TunnelSettings settings) {
+        this.intervalMillis = settings.rttProbeMillis();
+    }
+
+    TunnelRtt rtt() {
+        return rtt;
+    }
+
+    /**
+     * Starts probing once the handshake completed, beginning with one probe right away.
+     */
+    void start(ChannelHandlerContext ctx) {
+        if (intervalMillis <= 0 || task != null) {
+            return;
+        }
+        ping(ctx);
+        task = ctx.executor().scheduleAtFixedRate(
+                () -> ping(ctx), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Records the pong if it answers a probe. Does not release it.
+     */
+    void pong(PongWebSocketFrame frame) {
+        ByteBuf content = frame.content();
+        if (content.readableBytes() != PAYLOAD_BYTES
+                || content.getLong(content.readerIndex()) != MARKER) {
+            return;
+        }
+        rtt.record(System.nanoTime() - content.getLong(content.readerIndex() + Long.BYTES));
+    }
+
+    private void ping(ChannelHandlerContext ctx) {
+        if (!ctx.channel().isActive()) {
+            stop();
+            return;
+        }
+        ByteBuf payload = ctx.alloc().buffer(PAYLOAD_BYTES)
+                .writeLong(MARKER)
+                .writeLong(System.nanoTime());
+        ctx.writeAndFlush(new PingWebSocketFrame(payload), ctx.voidPromise());
+    }
+}
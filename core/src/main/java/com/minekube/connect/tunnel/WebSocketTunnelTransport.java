@@ -32,9 +32,14 @@ import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.minekube.connect.tunnel.TunnelConn.Handler;
 import com.minekube.connect.util.ReflectionUtils;
+import io.netty.buffer.ByteBuf;
 import java.io.EOFException;
 import java.lang.reflect.Field;
 import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
@@ -52,11 +57,19 @@ public class WebSocketTunnelTransport implements TunnelClientTransport {
 
     private static final String SESSION_HEADER = "Connect-Session";
     private static final Field DATA = ReflectionUtils.getField(ByteString.class, "data");
+    private static final long DRAIN_POLL_MILLIS = 10;
     private final OkHttpClient httpClient;
+    private final TunnelSettings settings;
+    private ScheduledExecutorService drainScheduler;
 
     @Inject
     public WebSocketTunnelTransport(@Named("connectHttpClient") OkHttpClient httpClient) {
+        this(httpClient, TunnelSettings.system());
+    }
+
+    public WebSocketTunnelTransport(OkHttpClient httpClient, TunnelSettings settings) {
         this.httpClient = httpClient;
+        this.settings = settings;
     }
 
     @Override
@@ -77,19 +90,158 @@ public class WebSocketTunnelTransport implements TunnelClientTransport {
                 .url(tunnelServiceAddr)
                 .addHeader(SESSION_HEADER, sessionId);
 
-        AtomicBoolean closeHandlerOnce = new AtomicBoolean();
-        Runnable handlerOnClose = () -> {
+        WebSocketTunnelConn conn = new WebSocketTunnelConn(handler);
+        conn.ws = httpClient.newWebSocket(request.build(), conn.new Listener());
+        return conn;
+    }
+
+    @Override
+    public void close() {
+        // cancel queued connections
+        Stream.of(httpClient.dispatcher().queuedCalls())
+                .flatMap(Collection::stream)
+                .filter(call -> call.request().header(SESSION_HEADER) != null)
+                .forEach(Call::cancel);
+        synchronized (this) {
+            if (drainScheduler != null) {
+                drainScheduler.shutdownNow();
+                drainScheduler = null;
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService drainScheduler() {
+        if (drainScheduler == null) {
+            drainScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "connect-tunnel-drain");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return drainScheduler;
+    }
+
+    private final class WebSocketTunnelConn extends TunnelConn {
+        private final Handler handler;
+        private final AtomicBoolean closeHandlerOnce = new AtomicBoolean();
+        private final AtomicBoolean opened = new AtomicBoolean();
+        private final AtomicBoolean writable = new AtomicBoolean(true);
+        private final Object readGate = new Object();
+        private volatile WebSocket ws;
+        private volatile boolean autoRead = true;
+        private volatile boolean closed;
+
+        private WebSocketTunnelConn(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void write(byte[] data) {
+            ws.send(ByteString.of(data));
+            afterSend();
+        }
+
+        @Override
+        public void write(ByteBuf data) {
+            // OkHttp only accepts immutable ByteStrings, so this is the single copy left
+            // between the backend channel and the socket.
+            try {
+                ws.send(ByteString.of(data.nioBuffer()));
+            } finally {
+                data.release();
+            }
+            afterSend();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return writable.get();
+        }
+
+        @Override
+        public void setAutoRead(boolean autoRead) {
+            synchronized (readGate) {
+                this.autoRead = autoRead;
+                readGate.notifyAll();
+            }
+        }
+
+        @Override
+        public void close(Throwable t) {
+            if (t == null) {
+                ws.close(1000, "tunnel closed clientside");
+            } else {
+                ws.close(1002, t.toString());
+            }
+            handlerOnClose();
+        }
+
+        @Override
+        public boolean opened() {
+            return opened.get();
+        }
+
+        private void afterSend() {
+            // OkHttp has no drain callback, so an unwritable socket is polled until its send
+            // queue fell below the low water mark. Without this OkHttp would buffer up to 16 MiB
+            // per socket before failing it.
+            if (ws.queueSize() >= settings.highWaterMarkBytes()
+                    && writable.compareAndSet(true, false)) {
+                handler.onWritabilityChanged(false);
+                scheduleDrainCheck();
+            }
+        }
+
+        private void scheduleDrainCheck() {
+            try {
+                drainScheduler().schedule(this::checkDrained, DRAIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ignored) {
+                // Transport is closing.
+            }
+        }
+
+        private void checkDrained() {
+            if (closed) {
+                return;
+            }
+            if (ws.queueSize() > settings.lowWaterMarkBytes()) {
+                scheduleDrainCheck();
+                return;
+            }
+            if (writable.compareAndSet(false, true)) {
+                handler.onWritabilityChanged(true);
+            }
+        }
+
+        private void awaitAutoRead() {
+            // OkHttp reads each socket on its own thread and only reads the next frame after
+            // onMessage returned, so holding that thread back is what pauses the socket.
+            synchronized (readGate) {
+                while (!autoRead && !closed) {
+                    try {
+                        readGate.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void handlerOnClose() {
+            synchronized (readGate) {
+                closed = true;
+                readGate.notifyAll();
+            }
             if (closeHandlerOnce.compareAndSet(false, true)) {
                 handler.onClose();
             }
-        };
-
-        AtomicBoolean opened = new AtomicBoolean();
+        }
 
-        WebSocket ws = httpClient.newWebSocket(request.build(), new WebSocketListener() {
+        private final class Listener extends WebSocketListener {
             @Override
             public void onClosed(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
-                handlerOnClose.run();
+                handlerOnClose();
             }
 
             @Override
@@ -103,7 +255,7 @@ public class WebSocketTunnelTransport implements TunnelClientTransport {
                 if (!(t instanceof EOFException)) {
                     handler.onError(t);
                 }
-                handlerOnClose.run();
+                handlerOnClose();
             }
 
 
@@ -122,44 +274,14 @@ public class WebSocketTunnelTransport implements TunnelClientTransport {
                     rawBytes = bytes.toByteArray();
                 }
                 handler.onReceive(rawBytes);
+                awaitAutoRead();
             }
 
             @Override
             public void onOpen(@NotNull WebSocket webSocket, @NotNull Response response) {
                 opened.set(true);
-                // TODO log connected(?)
+                handler.onOpen();
             }
-        });
-
-        return new TunnelConn() {
-            @Override
-            public void write(byte[] data) {
-                ws.send(ByteString.of(data));
-            }
-
-            @Override
-            public void close(Throwable t) {
-                if (t == null) {
-                    ws.close(1000, "tunnel closed clientside");
-                } else {
-                    ws.close(1002, t.toString());
-                }
-                handlerOnClose.run();
-            }
-
-            @Override
-            public boolean opened() {
-                return opened.get();
-            }
-        };
-    }
-
-    @Override
-    public void close() {
-        // cancel queued connections
-        Stream.of(httpClient.dispatcher().queuedCalls())
-                .flatMap(Collection::stream)
-                .filter(call -> call.request().header(SESSION_HEADER) != null)
-                .forEach(Call::cancel);
+        }
     }
 }
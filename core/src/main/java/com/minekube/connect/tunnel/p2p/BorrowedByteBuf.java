@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel.p2p;
+
+import com.minekube.connect.tunnel.TunnelConn;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.buffer.UnpooledHeapByteBuf;
+import java.nio.ByteBuffer;
+
+/**
+ * Runtime side twin of {@link com.minekube.connect.tunnel.BorrowedByteBuf}: wraps memory handed
+ * over through {@link TunnelConn#write(ByteBuffer, Runnable)} into a {@link ByteBuf} of the
+ * isolated libp2p Netty without copying it. The owner's release callback runs once the wrapper
+ * is deallocated, which for yamux may be well after the write future completed.
+ */
+public final class BorrowedByteBuf {
+
+    private BorrowedByteBuf() {
+    }
+
+    public static ByteBuf wrap(ByteBuffer memory, Runnable release) {
+        int length = memory.remaining();
+        if (memory.isDirect() && !memory.isReadOnly()) {
+            return new Direct(memory, release);
+        }
+        if (memory.hasArray()) {
+            return new Heap(memory.array(), release)
+                    .slice(memory.arrayOffset() + memory.position(), length);
+        }
+        // Read-only memory cannot be wrapped, so copy it as a last resort.
+        try {
+            return Unpooled.copiedBuffer(memory);
+        } finally {
+            release.run();
+        }
+    }
+
+    private static final class Direct extends UnpooledDirectByteBuf {
+        private final Runnable release;
+
+        private Direct(ByteBuffer memory, Runnable release) {
+            super(ByteBufAllocator.DEFAULT, memory, memory.remaining());
+            this.release = release;
+        }
+
+        @Override
+        protected void deallocate() {
+            try {
+                super.deallocate();
+            } finally {
+                release.run();
+            }
+        }
+    }
+
+    private static final class Heap extends UnpooledHeapByteBuf {
+        private final Runnable release;
+
+        private Heap(byte[] memory, Runnable release) {
+            super(ByteBufAllocator.DEFAULT, memory, memory.length);
+            this.release = release;
+        }
+
+        @Override
+        protected void deallocate() {
+            try {
+                super.deallocate();
+            } finally {
+                release.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel.p2p;
+
+import io.libp2p.core.Connection;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntFunction;
+
+/**
+ * Spreads the sessions to one edge peer over several parallel libp2p connections, so a loss
+ * event or a full congestion window on one connection only stalls the sessions striped onto it.
+ * <p>
+ * Every stripe is dialed by index; stripe 0 is the peer's regular warm connection. A session is
+ * assigned to the healthy stripe with the fewest sessions. A stripe whose connection dies is
+ * dialed again in the background, and until it is back new sessions go to the others. Sessions
+ * on the dead connection end with it; resumable tunnels reconnect onto the surviving stripes.
+ */
+public final class ConnectionStripes {
+    private final IntFunction<CompletableFuture<Connection>> dialer;
+    private final Stripe[] stripes;
+    private boolean closed;
+
+    public ConnectionStripes(int size, IntFunction<CompletableFuture<Connection>> dialer) {
+        this.dialer = Objects.requireNonNull(dialer, "dialer");
+        this.stripes = new Stripe[Math.max(1, size)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(i);
+        }
+    }
+
+    /**
+     * Returns the least loaded healthy connection and counts a session on it; the caller has to
+     * {@link #release(Connection)} it when the session ends. Waits for stripe 0 if no stripe is
+     * up yet.
+     */
+    public CompletableFuture<Connection> acquire() {
+        Stripe first;
+        synchronized (this) {
+            Stripe best = null;
+            for (Stripe stripe : stripes) {
+                if (!stripe.healthy()) {
+                    dial(stripe);
+                }
+                if (stripe.healthy() && (best == null || stripe.sessions < best.sessions)) {
+                    best = stripe;
+                }
+            }
+            if (best != null) {
+                best.sessions++;
+                return CompletableFuture.completedFuture(best.connection);
+            }
+            first = stripes[0];
+        }
+        if (first.dialing == null) {
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException("libp2p connection stripes are closed"));
+        }
+        return first.dialing.thenCompose(ignored -> acquire());
+    }
+
+    public synchronized void release(Connection connection) {
+        for (Stripe stripe : stripes) {
+            if (stripe.connection == connection && stripe.sessions > 0) {
+                stripe.sessions--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Dials every stripe that is not up and returns once stripe 0 is.
+     */
+    public CompletableFuture<Connection> fill() {
+        synchronized (this) {
+            for (Stripe stripe : stripes) {
+                if (!stripe.healthy()) {
+                    dial(stripe);
+                }
+            }
+            if (stripes[0].healthy()) {
+                return CompletableFuture.completedFuture(stripes[0].connection);
+            }
+            if (stripes[0].dialing == null) {
+                return CompletableFuture.failedFuture(
+                        new IllegalStateException("libp2p connection stripes are closed"));
+            }
+            return stripes[0].dialing;
+        }
+    }
+
+    /**
+     * Stops redialing and closes the extra stripes. Stripe 0 stays, it is the peer's regular
+     * connection.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        for (int i = 1; i < stripes.length; i++) {
+            Connection connection = stripes[i].connection;
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    synchronized int sessions(int stripe) {
+        return stripes[stripe].sessions;
+    }
+
+    private void dial(Stripe stripe) {
+        if (closed || (stripe.dialing != null && !stripe.dialing.isDone())) {
+            return;
+        }
+        CompletableFuture<Connection> dialing;
+        try {
+            dialing = dialer.apply(stripe.index);
+        } catch (RuntimeException e) {
+            dialing = CompletableFuture.failedFuture(e);
+        }
+        // Waiters chain on the returned stage, so they see the stripe already updated.
+        stripe.dialing = dialing.whenComplete((connection, error) -> {
+            if (error != null || connection.closeFuture().isDone()) {
+                return;
+            }
+            boolean extra;
+            synchronized (this) {
+                extra = closed && stripe.index > 0;
+                if (!extra && stripe.connection != connection) {
+                    stripe.connection = connection;
+                    stripe.sessions = 0;
+                }
+            }
+            if (extra) {
+                connection.close();
+                return;
+            }
+            connection.closeFuture().thenRun(() -> redial(stripe, connection));
+        });
+    }
+
+    private synchronized void redial(Stripe stripe, Connection dead) {
+        if (stripe.connection == dead) {
+            stripe.connection = null;
+            stripe.sessions = 0;
+            dial(stripe);
+        }
+    }
+
+    private static final class Stripe {
+        private final int index;
+        private Connection connection;
+        private CompletableFuture<Connection> dialing;
+        private int sessions;
+
+        private Stripe(int index) {
+            this.index = index;
+        }
+
+        private boolean healthy() {
+            return connection != null && !connection.closeFuture().isDone();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel.p2p;
+
+import io.libp2p.core.multiformats.Multiaddr;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps libp2p peer addresses between their TCP and QUIC forms. Edge peers listen for both on
+ * the same port, so either address of a direct (non-relayed) peer yields the other.
+ */
+public final class Libp2pDialAddresses {
+    private static final Pattern TCP = Pattern.compile(
+            "^(/(?:ip4|ip6|dns|dns4|dns6)/[^/]+)/tcp/(\\d+)(/p2p/[^/]+)?$");
+    private static final Pattern QUIC = Pattern.compile(
+            "^(/(?:ip4|ip6|dns|dns4|dns6)/[^/]+)/udp/(\\d+)/quic-v1(/p2p/[^/]+)?$");
+
+    private Libp2pDialAddresses() {
+    }
+
+    public static boolean isQuic(Multiaddr address) {
+        return QUIC.matcher(address.toString()).matches();
+    }
+
+    /**
+     * Returns the QUIC address of a direct TCP address, or null if there is none.
+     */
+    public static Multiaddr quic(Multiaddr tcp) {
+        Matcher matcher = TCP.matcher(tcp.toString());
+        if (!matcher.matches()) {
+            return null;
+        }
+        return Multiaddr.fromString(matcher.group(1) + "/udp/" + matcher.group(2) + "/quic-v1"
+                + suffix(matcher));
+    }
+
+    /**
+     * Returns the TCP address of a direct QUIC address, or null if there is none.
+     */
+    public static Multiaddr tcp(Multiaddr quic) {
+        Matcher matcher = QUIC.matcher(quic.toString());
+        if (!matcher.matches()) {
+            return null;
+        }
+        return Multiaddr.fromString(matcher.group(1) + "/tcp/" + matcher.group(2)
+                + suffix(matcher));
+    }
+
+    private static String suffix(Matcher matcher) {
+        return matcher.group(3) == null ? "" : matcher.group(3);
+    }
+}
@@ -32,11 +32,9 @@ import com.minekube.connect.bedrock.BedrockAdmissionCoordinator;
 import com.minekube.connect.watch.SessionProposal;
 import io.libp2p.core.PeerId;
 import io.libp2p.core.Stream;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -175,13 +173,7 @@ final class Libp2pSessionResponder {
     }
 
     private static void writeResponse(Stream stream, SessionResponse response) {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            P2PFrameCodec.write(out, response);
-            stream.writeAndFlush(Unpooled.wrappedBuffer(out.toByteArray()));
-        } catch (IOException e) {
-            throw new IllegalStateException("encode libp2p session response", e);
-        }
+        stream.writeAndFlush(P2PFrameCodec.encode(ByteBufAllocator.DEFAULT, response));
     }
 
 	interface Starter {
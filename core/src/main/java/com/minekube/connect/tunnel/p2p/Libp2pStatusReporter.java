@@ -34,9 +34,7 @@ import io.libp2p.core.StreamPromise;
 import io.libp2p.core.multiformats.Multiaddr;
 import io.libp2p.core.multistream.StrictProtocolBinding;
 import io.libp2p.protocol.ProtocolHandler;
-import io.netty.buffer.Unpooled;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import io.netty.buffer.ByteBufAllocator;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
@@ -197,13 +195,7 @@ final class Libp2pStatusReporter {
     }
 
     private static void writeFrame(Stream stream, MessageLite message) {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            P2PFrameCodec.write(out, message);
-            stream.writeAndFlush(Unpooled.wrappedBuffer(out.toByteArray()));
-        } catch (IOException e) {
-            throw new IllegalStateException("encode libp2p status report", e);
-        }
+        stream.writeAndFlush(P2PFrameCodec.encode(ByteBufAllocator.DEFAULT, message));
     }
 
     private static String jsonText(String text) {
@@ -28,6 +28,8 @@ package com.minekube.connect.tunnel.p2p;
 import com.google.inject.Inject;
 import com.minekube.connect.tunnel.TunnelClientTransport;
 import com.minekube.connect.tunnel.TunnelConn;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
 
 public final class Libp2pTunnelTransport implements TunnelClientTransport {
@@ -76,6 +78,19 @@ public final class Libp2pTunnelTransport implements TunnelClientTransport {
         return delegate.tunnel(address, sessionId, handler);
     }
 
+    @Override
+    public CompletionStage<TunnelConn> tunnelAsync(
+            String address,
+            String sessionId,
+            TunnelConn.Handler handler) {
+        if (delegate == null) {
+            CompletableFuture<TunnelConn> failed = new CompletableFuture<>();
+            failed.completeExceptionally(unavailable);
+            return failed;
+        }
+        return delegate.tunnelAsync(address, sessionId, handler);
+    }
+
     @Override
     public void close() {
         if (delegate != null) {
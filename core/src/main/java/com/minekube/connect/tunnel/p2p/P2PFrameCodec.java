@@ -25,8 +25,11 @@
 
 package com.minekube.connect.tunnel.p2p;
 
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -103,6 +106,71 @@ public final class P2PFrameCodec {
         return new KindPrefixedFrame((byte) kind, payload);
     }
 
+    /**
+     * Encodes a varint-delimited frame straight into a buffer from {@code alloc}, without the
+     * intermediate byte arrays of {@link #write(OutputStream, MessageLite)}.
+     */
+    public static ByteBuf encode(ByteBufAllocator alloc, MessageLite message) {
+        int size = message.getSerializedSize();
+        if (size > MAX_CONTROL_FRAME_SIZE) {
+            throw new IllegalArgumentException("frame size " + size
+                    + " exceeds max " + MAX_CONTROL_FRAME_SIZE);
+        }
+        ByteBuf out = alloc.buffer(CodedOutputStream.computeUInt32SizeNoTag(size) + size);
+        writeVarint(out, size);
+        writeMessage(out, message, size);
+        return out;
+    }
+
+    public static ByteBuf encodeKindPrefixed(
+            ByteBufAllocator alloc, byte kind, MessageLite message) {
+        requireKind(kind);
+        int size = message.getSerializedSize();
+        int length = 1 + size;
+        if (length > MAX_KIND_PREFIXED_FRAME_SIZE) {
+            throw new IllegalArgumentException("kind-prefixed frame exceeds maximum size");
+        }
+        ByteBuf out = alloc.buffer(CodedOutputStream.computeUInt32SizeNoTag(length) + length);
+        writeVarint(out, length);
+        out.writeByte(kind);
+        writeMessage(out, message, size);
+        return out;
+    }
+
+    /**
+     * Reads a frame length at the reader index of {@code in}. Returns -1 and leaves the reader
+     * index untouched while the varint is still incomplete, so decoders can wait for more bytes.
+     */
+    static long readVarint(ByteBuf in) {
+        int start = in.readerIndex();
+        long value = 0;
+        int shift = 0;
+        for (int i = 0; i < 10; i++) {
+            if (!in.isReadable()) {
+                in.readerIndex(start);
+                return -1;
+            }
+            int b = in.readUnsignedByte();
+            if (b < 0x80) {
+                if (i == 9 && b > 1) {
+                    throw new IllegalArgumentException("varint overflows a 64-bit integer");
+                }
+                return value | ((long) b << shift);
+            }
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        }
+        throw new IllegalArgumentException("varint overflows a 64-bit integer");
+    }
+
+    /**
+     * Parses the readable bytes of {@code payload} in place; heap buffers are read through
+     * their backing array and direct buffers through their address, so nothing is copied.
+     */
+    static <T extends MessageLite> T parse(ByteBuf payload, Parser<T> parser) throws IOException {
+        return parser.parseFrom(payload.nioBuffer());
+    }
+
     public record KindPrefixedFrame(byte kind, byte[] protobuf) {
         public KindPrefixedFrame {
             protobuf = protobuf.clone();
@@ -133,6 +201,29 @@ public final class P2PFrameCodec {
         out.write((int) v);
     }
 
+    private static void writeVarint(ByteBuf out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void writeMessage(ByteBuf out, MessageLite message, int size) {
+        if (size == 0) return;
+        try {
+            CodedOutputStream coded = CodedOutputStream.newInstance(
+                    out.nioBuffer(out.writerIndex(), size));
+            message.writeTo(coded);
+            coded.flush();
+            coded.checkNoSpaceLeft();
+        } catch (IOException e) {
+            out.release();
+            throw new IllegalStateException("encode protobuf frame", e);
+        }
+        out.writerIndex(out.writerIndex() + size);
+    }
+
     private static long readVarint(InputStream in) throws IOException {
         long value = 0;
         int shift = 0;
@@ -44,32 +44,20 @@ final class P2PFrameDecoder<T extends MessageLite> extends ByteToMessageDecoder
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-        in.markReaderIndex();
-        int length = 0;
-        int shift = 0;
-        for (int i = 0; i < 5; i++) {
-            if (!in.isReadable()) {
-                in.resetReaderIndex();
-                return;
-            }
-            int b = in.readUnsignedByte();
-            length |= (b & 0x7f) << shift;
-            if ((b & 0x80) == 0) {
-                if (length < 0 || length > maxFrameSize) {
-                    throw new IllegalArgumentException("protobuf frame length " + length
-                            + " exceeds max " + maxFrameSize);
-                }
-                if (in.readableBytes() < length) {
-                    in.resetReaderIndex();
-                    return;
-                }
-                byte[] bytes = new byte[length];
-                in.readBytes(bytes);
-                out.add(parser.parseFrom(bytes));
-                return;
-            }
-            shift += 7;
+        int start = in.readerIndex();
+        long length = P2PFrameCodec.readVarint(in);
+        if (length < 0) return;
+        // Reject before waiting for the payload so a hostile length cannot make us buffer it.
+        if (length > maxFrameSize) {
+            throw new IllegalArgumentException("protobuf frame length " + length
+                    + " exceeds max " + maxFrameSize);
         }
-        throw new IllegalArgumentException("protobuf frame length varint overflow");
+        if (in.readableBytes() < length) {
+            in.readerIndex(start);
+            return;
+        }
+        int size = (int) length;
+        out.add(P2PFrameCodec.parse(in.slice(in.readerIndex(), size), parser));
+        in.skipBytes(size);
     }
 }
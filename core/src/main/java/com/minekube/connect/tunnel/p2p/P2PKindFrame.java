@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel.p2p;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import java.io.IOException;
+
+/**
+ * A kind-prefixed registration frame whose payload is a retained slice of the inbound buffer.
+ * The receiving handler owns the reference; {@code SimpleChannelInboundHandler} releases it.
+ */
+final class P2PKindFrame extends DefaultByteBufHolder {
+    private final byte kind;
+
+    P2PKindFrame(byte kind, ByteBuf payload) {
+        super(payload);
+        this.kind = kind;
+    }
+
+    byte kind() {
+        return kind;
+    }
+
+    <T extends MessageLite> T parse(Parser<T> parser) throws IOException {
+        return P2PFrameCodec.parse(content(), parser);
+    }
+
+    @Override
+    public P2PKindFrame replace(ByteBuf content) {
+        return new P2PKindFrame(kind, content);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel.p2p;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import java.util.List;
+
+final class P2PKindFrameDecoder extends ByteToMessageDecoder {
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        int start = in.readerIndex();
+        long length = P2PFrameCodec.readVarint(in);
+        if (length < 0) return;
+        if (length < 1 || length > P2PFrameCodec.MAX_KIND_PREFIXED_FRAME_SIZE) {
+            throw new IllegalArgumentException("invalid kind-prefixed frame length");
+        }
+        if (in.readableBytes() < length) {
+            in.readerIndex(start);
+            return;
+        }
+        byte kind = in.readByte();
+        if (kind < P2PFrameCodec.RENEWAL_COMMIT
+                || kind > P2PFrameCodec.READINESS_ATTESTATION) {
+            throw new IllegalArgumentException("unknown kind-prefixed frame kind");
+        }
+        out.add(new P2PKindFrame(kind, in.readRetainedSlice((int) length - 1)));
+    }
+}
@@ -26,14 +26,10 @@ package com.minekube.connect.tunnel.p2p;
 import com.google.protobuf.MessageLite;
 import com.minekube.connect.bedrock.BedrockPrincipalReadiness;
 import io.libp2p.core.Stream;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.codec.ByteToMessageDecoder;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
@@ -130,23 +126,12 @@ final class PeerRegistrationClient {
     }
 
     private synchronized void writeFrame(Stream stream, MessageLite message) {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            P2PFrameCodec.write(out, message);
-            stream.writeAndFlush(Unpooled.wrappedBuffer(out.toByteArray()));
-        } catch (IOException e) {
-            throw new IllegalStateException("encode libp2p registration frame", e);
-        }
+        stream.writeAndFlush(P2PFrameCodec.encode(ByteBufAllocator.DEFAULT, message));
     }
 
     private synchronized void writeKindFrame(Stream stream, byte kind, MessageLite message) {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            P2PFrameCodec.writeKindPrefixed(out, kind, message);
-            stream.writeAndFlush(Unpooled.wrappedBuffer(out.toByteArray()));
-        } catch (IOException e) {
-            throw new IllegalStateException("encode kind-prefixed libp2p registration frame", e);
-        }
+        stream.writeAndFlush(
+                P2PFrameCodec.encodeKindPrefixed(ByteBufAllocator.DEFAULT, kind, message));
     }
 
     private final class ChallengeHandler extends SimpleChannelInboundHandler<PeerRegisterChallenge> {
@@ -256,7 +241,7 @@ final class PeerRegistrationClient {
                     && msg.getModeResult().getVersion() == 2
                     && msg.getModeResult().getAccepted()) {
                 framed = true;
-                ctx.pipeline().addLast(new KindFrameDecoder());
+                ctx.pipeline().addLast(new P2PKindFrameDecoder());
                 ctx.pipeline().addLast(new KindFrameHandler(this));
                 ctx.pipeline().remove(this);
                 ctx.pipeline().remove(legacyDecoder);
@@ -332,7 +317,7 @@ final class PeerRegistrationClient {
     }
 
     private final class KindFrameHandler
-            extends SimpleChannelInboundHandler<P2PFrameCodec.KindPrefixedFrame> {
+            extends SimpleChannelInboundHandler<P2PKindFrame> {
         private final ResultHandler registration;
 
         private KindFrameHandler(ResultHandler registration) {
@@ -341,7 +326,7 @@ final class PeerRegistrationClient {
 
         @Override
         protected void channelRead0(
-                ChannelHandlerContext ctx, P2PFrameCodec.KindPrefixedFrame frame) throws Exception {
+                ChannelHandlerContext ctx, P2PKindFrame frame) throws Exception {
             if (frame.kind() == P2PFrameCodec.RENEWAL_RESULT) {
                 registration.handleResult(ctx, frame.parse(PeerRegisterResult.parser()));
                 return;
@@ -363,47 +348,6 @@ final class PeerRegistrationClient {
         }
     }
 
-    private static final class KindFrameDecoder extends ByteToMessageDecoder {
-        @Override
-        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
-            in.markReaderIndex();
-            long length = 0;
-            int shift = 0;
-            boolean complete = false;
-            for (int index = 0; index < 10; index++) {
-                if (!in.isReadable()) {
-                    in.resetReaderIndex();
-                    return;
-                }
-                int value = in.readUnsignedByte();
-                if (index == 9 && value > 1) {
-                    throw new IllegalArgumentException("kind-prefixed frame length overflow");
-                }
-                length |= (long) (value & 0x7f) << shift;
-                if ((value & 0x80) == 0) {
-                    complete = true;
-                    break;
-                }
-                shift += 7;
-            }
-            if (!complete || length < 1 || length > P2PFrameCodec.MAX_KIND_PREFIXED_FRAME_SIZE) {
-                throw new IllegalArgumentException("invalid kind-prefixed frame length");
-            }
-            if (in.readableBytes() < length) {
-                in.resetReaderIndex();
-                return;
-            }
-            byte kind = in.readByte();
-            if (kind < P2PFrameCodec.RENEWAL_COMMIT
-                    || kind > P2PFrameCodec.READINESS_ATTESTATION) {
-                throw new IllegalArgumentException("unknown kind-prefixed frame kind");
-            }
-            byte[] payload = new byte[(int) length - 1];
-            in.readBytes(payload);
-            out.add(new P2PFrameCodec.KindPrefixedFrame(kind, payload));
-        }
-    }
-
     static long renewAckTimeoutMillis(PeerRegisterChallenge challenge) {
         long renewDelay = renewDelayMillis(challenge);
         if (challenge.getKvTtlMs() > 0) {
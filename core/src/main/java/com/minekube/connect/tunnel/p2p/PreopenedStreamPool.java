@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel.p2p;
+
+import io.libp2p.core.Stream;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Keeps tunnel streams of one libp2p connection opened and protocol-negotiated ahead of the
+ * joins that need them, so a join only has to send its session header.
+ * <p>
+ * The pool sizes itself by Little's law: it keeps as many streams ready as joins are expected to
+ * arrive while one stream is being opened, plus one, and never more than the configured maximum.
+ * Join intervals and open latencies are smoothed with an exponentially weighted moving average,
+ * and the interval since the last join counts as well, so the pool shrinks back to a single
+ * stream when joins stop. Streams nobody takes within the idle timeout are closed and replaced
+ * only while the target still calls for them.
+ */
+public final class PreopenedStreamPool {
+    static final double SMOOTHING = 0.2;
+
+    private final Supplier<CompletableFuture<Stream>> opener;
+    private final ScheduledExecutorService scheduler;
+    private final int maxSize;
+    private final long idleMillis;
+    private final LongSupplier nanoClock;
+    private final ConcurrentLinkedDeque<Ready> ready = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger opening = new AtomicInteger();
+    private long lastJoinNanos = -1;
+    private double joinIntervalNanos;
+    private double openNanos;
+    private volatile boolean closed;
+
+    public PreopenedStreamPool(
+            Supplier<CompletableFuture<Stream>> opener,
+            ScheduledExecutorService scheduler,
+            int maxSize,
+            long idleMillis) {
+        this(opener, scheduler, maxSize, idleMillis, System::nanoTime);
+    }
+
+    PreopenedStreamPool(
+            Supplier<CompletableFuture<Stream>> opener,
+            ScheduledExecutorService scheduler,
+            int maxSize,
+            long idleMillis,
+            LongSupplier nanoClock) {
+        this.opener = Objects.requireNonNull(opener, "opener");
+        this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+        this.maxSize = Math.max(1, maxSize);
+        this.idleMillis = idleMillis;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Takes a ready stream for a join, or returns null if none is ready and the caller has to
+     * open its own. Either way the join counts towards the rate and the pool is refilled.
+     */
+    public Stream poll() {
+        recordJoin();
+        Stream stream = null;
+        Ready entry;
+        while ((entry = ready.pollLast()) != null) {
+            // The freshest stream is the least likely to have been dropped by the peer.
+            if (entry.take() && !entry.stream.closeFuture().isDone()) {
+                stream = entry.stream;
+                break;
+            }
+        }
+        fill();
+        return stream;
+    }
+
+    /**
+     * Opens streams in the background until the pool holds its current target.
+     */
+    public void fill() {
+        if (closed) {
+            return;
+        }
+        int missing = target() - ready.size() - opening.get();
+        for (int i = 0; i < missing; i++) {
+            open();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        Ready entry;
+        while ((entry = ready.pollFirst()) != null) {
+            if (entry.take()) {
+                entry.stream.close();
+            }
+        }
+    }
+
+    int ready() {
+        return ready.size();
+    }
+
+    synchronized int target() {
+        if (joinIntervalNanos <= 0 || openNanos <= 0) {
+            return 1;
+        }
+        double interval = Math.max(joinIntervalNanos, nanoClock.getAsLong() - lastJoinNanos);
+        return (int) Math.min(maxSize, Math.round(openNanos / interval) + 1);
+    }
+
+    private synchronized void recordJoin() {
+        long now = nanoClock.getAsLong();
+        if (lastJoinNanos >= 0) {
+            joinIntervalNanos = smooth(joinIntervalNanos, now - lastJoinNanos);
+        }
+        lastJoinNanos = now;
+    }
+
+    private synchronized void recordOpen(long nanos) {
+        openNanos = smooth(openNanos, nanos);
+    }
+
+    private static double smooth(double average, long sample) {
+        return average <= 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    private void open() {
+        opening.incrementAndGet();
+        long started = nanoClock.getAsLong();
+        CompletableFuture<Stream> future;
+        try {
+            future = opener.get();
+        } catch (RuntimeException e) {
+            opening.decrementAndGet();
+            return;
+        }
+        future.whenComplete((stream, error) -> {
+            opening.decrementAndGet();
+            if (error != null) {
+                // A join opens its own stream and refills again, no need to retry here.
+                return;
+            }
+            recordOpen(nanoClock.getAsLong() - started);
+            offer(stream);
+        });
+    }
+
+    private void offer(Stream stream) {
+        Ready entry = new Ready(stream);
+        ready.offerLast(entry);
+        try {
+            entry.expiry = scheduler.schedule(() -> expire(entry), idleMillis,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The transport is closing.
+            closed = true;
+        }
+        stream.closeFuture().thenRun(() -> {
+            if (entry.take()) {
+                ready.remove(entry);
+            }
+        });
+        if (closed && entry.take()) {
+            ready.remove(entry);
+            stream.close();
+        }
+    }
+
+    private void expire(Ready entry) {
+        if (!entry.take()) {
+            return;
+        }
+        ready.remove(entry);
+        entry.stream.close();
+        fill();
+    }
+
+    private static final class Ready {
+        private final Stream stream;
+        private final AtomicBoolean taken = new AtomicBoolean();
+        private volatile ScheduledFuture<?> expiry;
+
+        private Ready(Stream stream) {
+            this.stream = stream;
+        }
+
+        /**
+         * Claims the stream for exactly one of a join, its expiry, its closing or the pool
+         * closing.
+         */
+        private boolean take() {
+            if (!taken.compareAndSet(false, true)) {
+                return false;
+            }
+            ScheduledFuture<?> pending = expiry;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            return true;
+        }
+    }
+}
@@ -27,13 +27,8 @@ package com.minekube.connect.tunnel.p2p;
 
 import com.minekube.connect.tunnel.TunnelClientTransport;
 import com.minekube.connect.tunnel.TunnelConn;
+import com.minekube.connect.tunnel.TunnelSettings;
 import io.libp2p.core.Stream;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufUtil;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.SimpleChannelInboundHandler;
-import java.util.Arrays;
 import java.util.Objects;
 import java.util.function.Consumer;
 import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
@@ -56,56 +51,9 @@ final class SameStreamTunnelTransport implements TunnelClientTransport {
     public TunnelConn tunnel(String ignoredAddress, String sessionId, TunnelConn.Handler handler) {
         Objects.requireNonNull(sessionId, "sessionId");
         Objects.requireNonNull(handler, "handler");
-        stream.pushHandler(new InboundBytesHandler(handler));
+        StreamTunnelConn conn = new StreamTunnelConn(stream, handler, TunnelSettings.system());
+        stream.pushHandler(conn.inboundHandler());
         onOpened.accept(sessionId);
-        return new SameStreamTunnelConn(stream);
-    }
-
-    private static final class SameStreamTunnelConn extends TunnelConn {
-        private final Stream stream;
-
-        private SameStreamTunnelConn(Stream stream) {
-            this.stream = stream;
-        }
-
-        @Override
-        public void write(byte[] data) {
-            stream.writeAndFlush(Unpooled.wrappedBuffer(Arrays.copyOf(data, data.length)));
-        }
-
-        @Override
-        public void close(Throwable t) {
-            stream.close();
-        }
-
-        @Override
-        public boolean opened() {
-            return true;
-        }
-    }
-
-    private static final class InboundBytesHandler extends SimpleChannelInboundHandler<ByteBuf> {
-        private final TunnelConn.Handler handler;
-
-        private InboundBytesHandler(TunnelConn.Handler handler) {
-            this.handler = handler;
-        }
-
-        @Override
-        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
-            handler.onReceive(ByteBufUtil.getBytes(msg, msg.readerIndex(), msg.readableBytes(), true));
-        }
-
-        @Override
-        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            handler.onError(cause);
-            ctx.close();
-        }
-
-        @Override
-        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-            handler.onClose();
-            super.channelInactive(ctx);
-        }
+        return conn;
     }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel.p2p;
+
+import com.minekube.connect.tunnel.TunnelConn;
+import com.minekube.connect.tunnel.TunnelRtt;
+import com.minekube.connect.tunnel.TunnelSettings;
+import io.libp2p.core.Stream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link TunnelConn} over a libp2p stream, shared by the dialed and the same-stream transport.
+ * <p>
+ * Outbound writability is derived from the bytes lent to the stream that were not released yet,
+ * which also covers data the muxer queues while its send window is exhausted, or that waits in
+ * the {@link StreamWriteScheduler} of a shared connection.
+ */
+public final class StreamTunnelConn extends TunnelConn {
+    private final Stream stream;
+    private final TunnelConn.Handler handler;
+    private final long highWaterMark;
+    private final long lowWaterMark;
+    private final TunnelRtt rtt;
+    private final StreamWriteScheduler.Lane lane;
+    private final YamuxWindowTuner.Window window;
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    private volatile ChannelHandlerContext ctx;
+
+    public StreamTunnelConn(Stream stream, TunnelConn.Handler handler, TunnelSettings settings) {
+        this(stream, handler, settings, null);
+    }
+
+    /**
+     * @param rtt the probed round trip times of the stream's connection, or null if unprobed
+     */
+    public StreamTunnelConn(
+            Stream stream,
+            TunnelConn.Handler handler,
+            TunnelSettings settings,
+            TunnelRtt rtt) {
+        this(stream, handler, settings, rtt, null);
+    }
+
+    /**
+     * @param rtt       the probed round trip times of the stream's connection, or null if unprobed
+     * @param scheduler schedules the writes of the streams sharing the connection, or null to
+     *                  write to the stream directly
+     */
+    public StreamTunnelConn(
+            Stream stream,
+            TunnelConn.Handler handler,
+            TunnelSettings settings,
+            TunnelRtt rtt,
+            StreamWriteScheduler scheduler) {
+        this(stream, handler, settings, rtt, scheduler, null);
+    }
+
+    /**
+     * @param rtt       the probed round trip times of the stream's connection, or null if unprobed
+     * @param scheduler schedules the writes of the streams sharing the connection, or null to
+     *                  write to the stream directly
+     * @param tuner     grows the stream's receive window with its bandwidth-delay product, or
+     *                  null to keep the muxer's default
+     */
+    public StreamTunnelConn(
+            Stream stream,
+            TunnelConn.Handler handler,
+            TunnelSettings settings,
+            TunnelRtt rtt,
+            StreamWriteScheduler scheduler,
+            YamuxWindowTuner tuner) {
+        this.stream = Objects.requireNonNull(stream, "stream");
+        this.handler = Objects.requireNonNull(handler, "handler");
+        this.highWaterMark = settings.highWaterMarkBytes();
+        this.lowWaterMark = settings.lowWaterMarkBytes();
+        this.rtt = rtt;
+        this.lane = scheduler == null ? null : scheduler.lane(stream);
+        this.window = tuner == null ? null : tuner.window(rtt);
+    }
+
+    /**
+     * Returns the handler to push onto the stream so inbound bytes reach the tunnel handler.
+     */
+    public ChannelHandler inboundHandler() {
+        return new InboundBytesHandler();
+    }
+
+    @Override
+    public void write(byte[] data) {
+        write(ByteBuffer.wrap(Arrays.copyOf(data, data.length)), () -> {
+        });
+    }
+
+    @Override
+    public void write(ByteBuffer data, Runnable release) {
+        int length = data.remaining();
+        pendingBytes.addAndGet(length);
+        Runnable done = () -> {
+            release.run();
+            written(length);
+        };
+        if (lane != null) {
+            lane.write(data, done);
+        } else {
+            stream.writeAndFlush(BorrowedByteBuf.wrap(data, done));
+        }
+        if (pendingBytes.get() >= highWaterMark && writable.compareAndSet(true, false)) {
+            handler.onWritabilityChanged(false);
+            // The stream may have drained while we were flipping the state.
+            written(0);
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    @Override
+    public void setAutoRead(boolean autoRead) {
+        // How far this reaches the remote depends on the muxer: a stream that keeps granting
+        // window updates on receipt only stops delivering, it does not stop the sender.
+        ChannelHandlerContext current = ctx;
+        if (current != null) {
+            current.channel().config().setAutoRead(autoRead);
+        }
+    }
+
+    @Override
+    public void close(Throwable t) {
+        if (lane != null) {
+            // Sends what the scheduler still holds first, like the other transports do.
+            lane.close();
+            return;
+        }
+        stream.close();
+    }
+
+    @Override
+    public boolean opened() {
+        return true;
+    }
+
+    @Override
+    public TunnelRtt rtt() {
+        return rtt;
+    }
+
+    private void written(int length) {
+        if (pendingBytes.addAndGet(-length) <= lowWaterMark && writable.compareAndSet(false, true)) {
+            handler.onWritabilityChanged(true);
+        }
+    }
+
+    private final class InboundBytesHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            StreamTunnelConn.this.ctx = ctx;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+            if (window != null) {
+                window.received(ctx.channel(), msg.readableBytes());
+            }
+            if (msg.nioBufferCount() != 1) {
+                handler.onReceive(ByteBufUtil.getBytes(msg, msg.readerIndex(), msg.readableBytes(), true));
+                return;
+            }
+            // Lend the inbound memory to the handler instead of copying it; the retained
+            // reference is dropped once the local backend channel has written it.
+            ByteBuf retained = msg.retain();
+            handler.onReceive(retained.nioBuffer(), retained::release);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            handler.onError(cause);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (lane != null) {
+                lane.abort();
+            }
+            if (window != null) {
+                window.release();
+            }
+            handler.onClose();
+            super.channelInactive(ctx);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel.p2p;
+
+import io.libp2p.core.Stream;
+import io.netty.buffer.ByteBuf;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Schedules the writes of the session streams that share one libp2p connection.
+ * <p>
+ * Without it every session writes straight into the muxer, so the keepalive of one player queues
+ * behind the world download of another. Here at most {@link #MAX_IN_FLIGHT_BYTES} are handed to
+ * the connection at a time, and at most {@link #MAX_LANE_IN_FLIGHT_BYTES} per stream, the default
+ * yamux window, so a stream whose window stalled cannot hold up the others. The rest waits per
+ * stream and is sent by deficit round robin with a quantum of {@link #QUANTUM_BYTES}, so bulk
+ * streams share the connection evenly. A stream with
+ * nothing queued whose next frame is at most {@link #SMALL_FRAME_BYTES} takes a priority lane
+ * that is served before the round robin, which keeps latency-sensitive traffic ahead of bulk
+ * transfers without reordering anything within a stream.
+ * <p>
+ * Frames are sent by a single drain task on the given executor, so the writes of a stream reach
+ * the muxer in order whichever thread queued them. Closing a lane closes its stream only after
+ * that task sent what was queued before, so the last bytes of a session are not lost.
+ */
+public final class StreamWriteScheduler {
+    static final int QUANTUM_BYTES = 16 * 1024;
+    static final int SMALL_FRAME_BYTES = 256;
+    static final int MAX_IN_FLIGHT_BYTES = 1024 * 1024;
+    static final int MAX_LANE_IN_FLIGHT_BYTES = 256 * 1024;
+
+    private final Executor executor;
+    private final Queue<Lane> priority = new ArrayDeque<>();
+    private final Queue<Lane> active = new ArrayDeque<>();
+    private long inFlight;
+    private boolean drainScheduled;
+
+    public StreamWriteScheduler(Executor executor) {
+        this.executor = Objects.requireNonNull(executor, "executor");
+    }
+
+    /**
+     * Returns the lane the writes of stream are queued on.
+     */
+    public Lane lane(Stream stream) {
+        return new Lane(Objects.requireNonNull(stream, "stream"));
+    }
+
+    synchronized long inFlight() {
+        return inFlight;
+    }
+
+    private void scheduleDrain() {
+        synchronized (this) {
+            if (drainScheduled) {
+                return;
+            }
+            drainScheduled = true;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // The transport is closing, nothing will be sent anymore.
+            List<Lane> closing = new ArrayList<>();
+            synchronized (this) {
+                drainScheduled = false;
+                for (Lane lane : priority) {
+                    if (lane.closing) {
+                        closing.add(lane);
+                    }
+                }
+                for (Lane lane : active) {
+                    if (lane.closing) {
+                        closing.add(lane);
+                    }
+                }
+            }
+            // Lanes waiting to close would otherwise keep their streams open.
+            for (Lane lane : closing) {
+                lane.abort();
+            }
+        }
+    }
+
+    private void drain() {
+        for (;;) {
+            Frame frame;
+            synchronized (this) {
+                frame = inFlight < MAX_IN_FLIGHT_BYTES ? next() : null;
+                if (frame == null) {
+                    drainScheduled = false;
+                    return;
+                }
+                frame.sent = true;
+                inFlight += frame.length;
+                frame.lane.inFlight += frame.length;
+                frame.lane.sending++;
+            }
+            Lane lane = frame.lane;
+            lane.stream.writeAndFlush(frame.buf);
+            boolean drained;
+            synchronized (this) {
+                lane.sending--;
+                drained = lane.drained();
+            }
+            if (drained) {
+                lane.stream.close();
+            }
+        }
+    }
+
+    /**
+     * Picks the next frame to send, priority lane first, skipping lanes that have
+     * {@link #MAX_LANE_IN_FLIGHT_BYTES} in flight. Must hold the lock.
+     */
+    private Frame next() {
+        Lane lane;
+        while ((lane = priority.poll()) != null) {
+            Frame frame = lane.queue.peek();
+            if (frame == null) {
+                // Closed while waiting.
+                lane.reset();
+                continue;
+            }
+            if (lane.capped()) {
+                // Waits for its turn in the round robin once its frames were released.
+                active.add(lane);
+                continue;
+            }
+            lane.queue.poll();
+            if (lane.queue.isEmpty()) {
+                lane.reset();
+            } else {
+                active.add(lane);
+            }
+            return frame;
+        }
+        int skipped = 0;
+        while (skipped < active.size() && (lane = active.peek()) != null) {
+            Frame head = lane.queue.peek();
+            if (head == null) {
+                active.poll();
+                lane.reset();
+                continue;
+            }
+            if (lane.capped()) {
+                // Its stream is not taking data, let the others go ahead.
+                active.add(active.poll());
+                skipped++;
+                continue;
+            }
+            if (!lane.topped) {
+                lane.deficit += QUANTUM_BYTES;
+                lane.topped = true;
+            }
+            if (head.length <= lane.deficit) {
+                lane.queue.poll();
+                lane.deficit -= head.length;
+                if (lane.queue.isEmpty()) {
+                    active.poll();
+                    lane.reset();
+                }
+                return head;
+            }
+            // Used up its quantum for this round.
+            active.poll();
+            lane.topped = false;
+            active.add(lane);
+            skipped = 0;
+        }
+        return null;
+    }
+
+    private void released(Frame frame) {
+        synchronized (this) {
+            if (!frame.sent) {
+                return;
+            }
+            inFlight -= frame.length;
+            frame.lane.inFlight -= frame.length;
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * The write queue of one stream.
+     */
+    public final class Lane {
+        private final Stream stream;
+        private final Queue<Frame> queue = new ArrayDeque<>();
+        private boolean scheduled;
+        private boolean topped;
+        private int deficit;
+        private long inFlight;
+        // Frames taken off the queue that the drain has not handed to the stream yet.
+        private int sending;
+        private boolean closing;
+        private boolean streamClosed;
+
+        private Lane(Stream stream) {
+            this.stream = stream;
+        }
+
+        /**
+         * Queues data for the stream. release runs once the muxer is done with the memory, or
+         * right away if the lane was closed.
+         */
+        public void write(ByteBuffer data, Runnable release) {
+            Frame frame = new Frame(this, data.remaining());
+            frame.buf = BorrowedByteBuf.wrap(data, () -> {
+                release.run();
+                released(frame);
+            });
+            boolean queued = false;
+            synchronized (StreamWriteScheduler.this) {
+                if (!closing) {
+                    queue.add(frame);
+                    if (!scheduled) {
+                        scheduled = true;
+                        if (queue.size() == 1 && frame.length <= SMALL_FRAME_BYTES) {
+                            priority.add(this);
+                        } else {
+                            active.add(this);
+                        }
+                    }
+                    queued = true;
+                }
+            }
+            if (!queued) {
+                frame.buf.release();
+                return;
+            }
+            scheduleDrain();
+        }
+
+        /**
+         * Closes the stream once what is already queued was sent. Later writes are dropped.
+         */
+        public void close() {
+            boolean drained;
+            synchronized (StreamWriteScheduler.this) {
+                closing = true;
+                drained = drained();
+            }
+            if (drained) {
+                stream.close();
+            }
+        }
+
+        /**
+         * Drops what is still queued, releasing it, and closes the stream. For streams that are
+         * already gone, or when nothing will be sent anymore.
+         */
+        public void abort() {
+            Frame[] dropped;
+            boolean closeStream;
+            synchronized (StreamWriteScheduler.this) {
+                closing = true;
+                dropped = queue.toArray(new Frame[0]);
+                queue.clear();
+                closeStream = !streamClosed;
+                streamClosed = true;
+            }
+            for (Frame frame : dropped) {
+                frame.buf.release();
+            }
+            if (closeStream) {
+                stream.close();
+            }
+        }
+
+        /**
+         * Whether the lane is closing and everything queued was handed to the stream, in which
+         * case the caller closes the stream. True only once. Must hold the lock.
+         */
+        private boolean drained() {
+            if (!closing || streamClosed || sending > 0 || !queue.isEmpty()) {
+                return false;
+            }
+            streamClosed = true;
+            return true;
+        }
+
+        private boolean capped() {
+            return inFlight >= MAX_LANE_IN_FLIGHT_BYTES;
+        }
+
+        private void reset() {
+            scheduled = false;
+            topped = false;
+            deficit = 0;
+        }
+    }
+
+    private static final class Frame {
+        private final Lane lane;
+        private final int length;
+        private ByteBuf buf;
+        private boolean sent;
+
+        private Frame(Lane lane, int length) {
+            this.lane = lane;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel.p2p;
+
+import com.minekube.connect.tunnel.TunnelRtt;
+import io.libp2p.etc.util.netty.mux.MuxId;
+import io.libp2p.mux.yamux.YamuxHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Grows the yamux receive windows of tunnel streams with their bandwidth-delay product, like TCP
+ * receive buffer autotuning.
+ * <p>
+ * The muxer grants every stream a fixed {@link #BASE_WINDOW_BYTES} and tops it up as data
+ * arrives, which caps a stream at that much per round trip: a bulk transfer over a long-haul
+ * link runs far below what the link could carry. Yamux lets a receiver raise a window at any
+ * time, so once per round trip each stream compares the bytes it received in that round trip
+ * with its window; when the sender used more than half of it, the window was the limit and is
+ * raised to twice the observed bytes per round trip. The muxer keeps topping up its own share,
+ * so a raise stays in effect for the life of the stream.
+ * <p>
+ * Windows cannot be shrunk again, which is why every raise is capped per stream and drawn from
+ * a budget shared by all streams; a stream gives its share back when it closes. Only streams
+ * with probed round trip times over a yamux connection are tuned, QUIC streams bring their own
+ * flow control.
+ */
+public final class YamuxWindowTuner {
+    static final long BASE_WINDOW_BYTES = 256 * 1024;
+    static final long MIN_EPOCH_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    static final byte WINDOW_UPDATE = 0x1;
+    private static final long UNKNOWN_STREAM = 0;
+    private static final long NOT_YAMUX = -1;
+    static final String VERIFIED_LIBP2P = "1.3";
+    private static final Logger LOGGER = Logger.getLogger(YamuxWindowTuner.class.getName());
+    private static final AtomicBoolean UNAVAILABLE_LOGGED = new AtomicBoolean();
+
+    private final long maxWindowBytes;
+    private final long budgetBytes;
+    private final AtomicLong granted = new AtomicLong();
+
+    public YamuxWindowTuner(long maxWindowBytes, long budgetBytes) {
+        this.maxWindowBytes = Math.max(BASE_WINDOW_BYTES, maxWindowBytes);
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns the window of a stream whose connection has the given round trip times.
+     */
+    public Window window(TunnelRtt rtt) {
+        return new Window(rtt);
+    }
+
+    /**
+     * Window granted to all open streams beyond the muxer's default.
+     */
+    public long granted() {
+        return granted.get();
+    }
+
+    private long reserve(long wanted) {
+        for (;;) {
+            long current = granted.get();
+            long take = Math.min(wanted, budgetBytes - current);
+            if (take <= 0) {
+                return 0;
+            }
+            if (granted.compareAndSet(current, current + take)) {
+                return take;
+            }
+        }
+    }
+
+    /**
+     * Encodes a yamux window update frame that raises the window of the stream by delta.
+     */
+    static ByteBuf windowUpdate(ByteBufAllocator alloc, long streamId, long delta) {
+        ByteBuf frame = alloc.buffer(12);
+        frame.writeByte(0); // version
+        frame.writeByte(WINDOW_UPDATE);
+        frame.writeShort(0); // flags
+        frame.writeInt((int) streamId);
+        frame.writeInt((int) delta);
+        return frame;
+    }
+
+    /**
+     * Returns the yamux id of a muxed stream channel, or -1 if it is not a yamux stream.
+     * <p>
+     * The id comes from the {@link MuxId} jvm-libp2p gives its stream channels, the frame written
+     * with it from {@link #windowUpdate}; the muxer has no API to raise a window itself. Both were
+     * checked against jvm-libp2p {@value #VERIFIED_LIBP2P}, other versions are left untuned.
+     */
+    static long streamId(Channel stream) {
+        Channel connection = stream.parent();
+        if (connection == null) {
+            return -1;
+        }
+        try {
+            if (connection.pipeline().get(YamuxHandler.class) == null) {
+                return -1;
+            }
+            String version = MuxId.class.getPackage().getImplementationVersion();
+            if (version != null && !version.startsWith(VERIFIED_LIBP2P)) {
+                unavailable("jvm-libp2p " + version + " is not " + VERIFIED_LIBP2P + ".x");
+                return -1;
+            }
+            if (!(stream.id() instanceof MuxId)) {
+                unavailable("yamux stream ids are no longer a MuxId");
+                return -1;
+            }
+            long id = ((MuxId) stream.id()).getId();
+            return id > 0 && id <= 0xffffffffL ? id : -1;
+        } catch (LinkageError e) {
+            unavailable("jvm-libp2p moved its muxer classes (" + e + ")");
+            return -1;
+        }
+    }
+
+    private static void unavailable(String reason) {
+        if (UNAVAILABLE_LOGGED.compareAndSet(false, true)) {
+            LOGGER.warning("Connect yamux window tuning is off: " + reason);
+        }
+    }
+
+    /**
+     * Receive window of one stream. Only used from the stream's event loop.
+     */
+    public final class Window {
+        private final TunnelRtt rtt;
+        private long window = BASE_WINDOW_BYTES;
+        private long epochStartNanos = -1;
+        private long epochBytes;
+        private long streamId = UNKNOWN_STREAM;
+        private boolean released;
+
+        private Window(TunnelRtt rtt) {
+            this.rtt = rtt;
+        }
+
+        /**
+         * Accounts bytes just received on stream and raises its window if the window was the
+         * limit over the last round trip.
+         */
+        public void received(Channel stream, int bytes) {
+            if (rtt == null) {
+                return;
+            }
+            if (streamId == UNKNOWN_STREAM) {
+                // Looked up once, streams of other muxers are not looked at again.
+                long id = streamId(stream);
+                streamId = id > 0 ? id : NOT_YAMUX;
+            }
+            if (streamId == NOT_YAMUX) {
+                return;
+            }
+            long delta = grant(bytes, System.nanoTime());
+            if (delta > 0) {
+                stream.parent().writeAndFlush(windowUpdate(stream.alloc(), streamId, delta));
+            }
+        }
+
+        /**
+         * Returns the bytes to raise the window by, 0 to leave it. Reserves them from the budget.
+         */
+        long grant(int bytes, long nowNanos) {
+            long srtt = rtt == null ? 0 : rtt.averageNanos();
+            if (released || srtt <= 0) {
+                return 0;
+            }
+            if (epochStartNanos < 0) {
+                epochStartNanos = nowNanos;
+                epochBytes = 0;
+            }
+            epochBytes += bytes;
+            long elapsed = nowNanos - epochStartNanos;
+            if (elapsed < Math.max(srtt, MIN_EPOCH_NANOS)) {
+                return 0;
+            }
+            long perRtt = (long) ((double) epochBytes * srtt / elapsed);
+            epochStartNanos = nowNanos;
+            epochBytes = 0;
+            if (perRtt <= window / 2) {
+                return 0;
+            }
+            long target = Math.min(maxWindowBytes, 2 * perRtt);
+            if (target <= window) {
+                return 0;
+            }
+            long delta = reserve(target - window);
+            window += delta;
+            return delta;
+        }
+
+        long bytes() {
+            return window;
+        }
+
+        /**
+         * Gives the raised part of the window back to the budget once the stream closed.
+         */
+        public void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            granted.addAndGet(-(window - BASE_WINDOW_BYTES));
+        }
+    }
+}
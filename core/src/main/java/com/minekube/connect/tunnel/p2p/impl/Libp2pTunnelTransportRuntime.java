@@ -29,8 +29,17 @@ import com.google.inject.Inject;
 import com.minekube.connect.tunnel.P2PTunnelHeader;
 import com.minekube.connect.tunnel.TunnelClientTransport;
 import com.minekube.connect.tunnel.TunnelConn;
+import com.minekube.connect.tunnel.TunnelRtt;
+import com.minekube.connect.tunnel.TunnelSettings;
+import com.minekube.connect.tunnel.p2p.ConnectionStripes;
+import com.minekube.connect.tunnel.p2p.Libp2pDialAddresses;
+import com.minekube.connect.tunnel.p2p.PreopenedStreamPool;
+import com.minekube.connect.tunnel.p2p.StreamTunnelConn;
+import com.minekube.connect.tunnel.p2p.StreamWriteScheduler;
+import com.minekube.connect.tunnel.p2p.YamuxWindowTuner;
 import io.libp2p.core.Connection;
 import io.libp2p.core.Host;
+import io.libp2p.core.Network;
 import io.libp2p.core.PeerId;
 import io.libp2p.core.crypto.PrivKey;
 import io.libp2p.core.Stream;
@@ -40,30 +49,35 @@ import io.libp2p.core.dsl.HostBuilder;
 import io.libp2p.core.mux.StreamMuxerProtocol;
 import io.libp2p.core.multiformats.Multiaddr;
 import io.libp2p.core.multistream.StrictProtocolBinding;
+import io.libp2p.core.transport.Transport;
 import io.libp2p.protocol.circuit.CircuitHopProtocol;
 import io.libp2p.protocol.circuit.CircuitStopProtocol;
 import io.libp2p.protocol.circuit.RelayTransport;
+import io.libp2p.protocol.Ping;
+import io.libp2p.protocol.PingController;
 import io.libp2p.protocol.ProtocolHandler;
 import io.libp2p.security.noise.NoiseXXSecureChannel;
 import io.libp2p.transport.ConnectionUpgrader;
 import io.libp2p.transport.quic.QuicConfig;
 import io.libp2p.transport.quic.QuicTransport;
 import io.libp2p.transport.tcp.TcpTransport;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.SimpleChannelInboundHandler;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -71,14 +85,35 @@ import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
 
 public final class Libp2pTunnelTransportRuntime implements TunnelClientTransport {
     public static final String PROTOCOL_ID = "/minekube/connect/tunnel/1.0.0";
+    static final String PING_PROTOCOL_ID = "/ipfs/ping/1.0.0";
 
     private static final long START_TIMEOUT_SECONDS = 10;
     private static final long CONNECT_TIMEOUT_SECONDS = 15;
     private static final long STREAM_TIMEOUT_SECONDS = 5;
+    private static final long QUIC_TIMEOUT_SECONDS = 3;
 
     private final Host host;
     private final ConcurrentMap<PeerId, Connection> warmConnections = new ConcurrentHashMap<>();
-    private boolean started;
+    private final ConcurrentMap<PeerId, CompletableFuture<Connection>> connecting =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<Connection, RttProbe> rttProbes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Connection, StreamWriteScheduler> writeSchedulers =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<Connection, PreopenedStreamPool> streamPools =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<PeerId, ConnectionStripes> stripes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<PeerId, Long> quicFailures = new ConcurrentHashMap<>();
+    private final TunnelSettings settings;
+    private final long rttProbeMillis;
+    private final boolean fairWrites;
+    private final int stripeCount;
+    private final int streamPoolSize;
+    private final long streamPoolIdleMillis;
+    private final YamuxWindowTuner windowTuner;
+    private CompletableFuture<Host> starting;
+    private ScheduledExecutorService rttScheduler;
+    private ScheduledExecutorService streamScheduler;
+    private ExecutorService writeExecutor;
 
     @Inject
     public Libp2pTunnelTransportRuntime() {
@@ -86,8 +121,23 @@ public final class Libp2pTunnelTransportRuntime implements TunnelClientTransport
     }
 
     public Libp2pTunnelTransportRuntime(Host host) {
+        this(host, TunnelSettings.system());
+    }
+
+    public Libp2pTunnelTransportRuntime(Host host, TunnelSettings settings) {
         this.host = Objects.requireNonNull(host, "host");
+        this.settings = Objects.requireNonNull(settings, "settings");
         this.host.addProtocolHandler(new TunnelProtocolBinding());
+        this.host.addProtocolHandler(new Ping());
+        this.rttProbeMillis = settings.rttProbeMillis();
+        this.fairWrites = settings.fairWrites();
+        this.stripeCount = settings.stripes();
+        this.streamPoolSize = settings.streamPoolSize();
+        this.streamPoolIdleMillis = settings.warmPoolIdleMillis();
+        this.windowTuner = settings.yamuxAutotune()
+                ? new YamuxWindowTuner(settings.yamuxMaxWindowBytes(),
+                        settings.yamuxWindowBudgetBytes())
+                : null;
     }
 
     public static Host createHost() {
@@ -179,12 +229,13 @@ public final class Libp2pTunnelTransportRuntime implements TunnelClientTransport
 
         Multiaddr multiaddr = Multiaddr.fromString(address);
         PeerId peerId = requirePeerId(multiaddr, address);
-        warmConnections.compute(peerId, (ignored, existing) -> {
-            if (isHealthy(existing)) {
-                return existing;
-            }
-            return connect(peerId, multiaddr);
-        });
+        Connection connection = stripeCount > 1
+                ? join(stripes(peerId, multiaddr).fill())
+                : join(connection(peerId, multiaddr));
+        PreopenedStreamPool pool = streamPool(connection);
+        if (pool != null) {
+            pool.fill();
+        }
     }
 
     public boolean hasWarmConnection(String address) {
@@ -195,63 +246,349 @@ public final class Libp2pTunnelTransportRuntime implements TunnelClientTransport
 
     @Override
     public TunnelConn tunnel(String address, String sessionId, TunnelConn.Handler handler) {
+        return join(tunnelAsync(address, sessionId, handler).toCompletableFuture());
+    }
+
+    /**
+     * Opens the session stream without blocking the caller. Every step (host start, connect,
+     * stream open, protocol negotiation) is chained on the libp2p futures with its own timeout,
+     * so the returned stage completes on a libp2p thread. Cancelling the stage before the stream
+     * is open closes the stream without sending the session header, so the edge never sees the
+     * session on it.
+     */
+    @Override
+    public CompletionStage<TunnelConn> tunnelAsync(
+            String address,
+            String sessionId,
+            TunnelConn.Handler handler) {
         Objects.requireNonNull(handler, "handler");
         byte[] header = P2PTunnelHeader.encode(sessionId);
         Multiaddr multiaddr = Multiaddr.fromString(address);
         PeerId peerId = requirePeerId(multiaddr, address);
-        Connection connection = warmConnection(peerId, multiaddr);
-        Stream stream = openStream(connection);
+        CompletableFuture<Stream> opening;
+        if (stripeCount > 1) {
+            ConnectionStripes peer = stripes(peerId, multiaddr);
+            opening = peer.acquire()
+                    .thenCompose(connection -> stream(connection).whenComplete((stream, error) -> {
+                        if (error != null) {
+                            peer.release(connection);
+                        } else {
+                            stream.closeFuture().thenRun(() -> peer.release(connection));
+                        }
+                    }));
+        } else {
+            opening = connection(peerId, multiaddr).thenCompose(this::stream);
+        }
+        CompletableFuture<TunnelConn> result = new CompletableFuture<>();
+        opening.whenComplete((stream, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (result.isCancelled()) {
+                stream.close();
+                return;
+            }
+            TunnelConn conn;
+            try {
+                conn = attach(stream, handler, header);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            if (!result.complete(conn)) {
+                // Cancelled while the header was being sent.
+                conn.close();
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void close() {
+        stripes.values().forEach(ConnectionStripes::close);
+        stripes.clear();
+        warmConnections.clear();
+        rttProbes.clear();
+        writeSchedulers.clear();
+        streamPools.values().forEach(PreopenedStreamPool::close);
+        streamPools.clear();
+        CompletableFuture<Host> started;
+        synchronized (this) {
+            started = starting;
+            starting = null;
+            if (rttScheduler != null) {
+                rttScheduler.shutdownNow();
+                rttScheduler = null;
+            }
+            if (writeExecutor != null) {
+                writeExecutor.shutdownNow();
+                writeExecutor = null;
+            }
+            if (streamScheduler != null) {
+                streamScheduler.shutdownNow();
+                streamScheduler = null;
+            }
+        }
+        if (started == null || started.isCompletedExceptionally()) {
+            return;
+        }
+        await(started.thenCompose(Host::stop), START_TIMEOUT_SECONDS * 2, "stop libp2p host");
+    }
+
+    private TunnelConn attach(Stream stream, TunnelConn.Handler handler, byte[] header) {
         try {
-            stream.pushHandler(new InboundBytesHandler(handler));
+            StreamTunnelConn conn = new StreamTunnelConn(stream, handler, settings,
+                    rtt(stream.getConnection()), writeScheduler(stream.getConnection()),
+                    windowTuner);
+            stream.pushHandler(conn.inboundHandler());
             stream.writeAndFlush(Unpooled.wrappedBuffer(header));
-            return new Libp2pTunnelConn(stream);
+            return conn;
         } catch (RuntimeException e) {
             stream.close();
             throw e;
         }
     }
 
-    @Override
-    public void close() {
-        warmConnections.clear();
-        Host host;
-        synchronized (this) {
-            if (!started) {
-                return;
+    /**
+     * Returns the round trip times of connection, which every session stream over it shares,
+     * and starts probing them with the libp2p ping protocol on first use.
+     */
+    private TunnelRtt rtt(Connection connection) {
+        if (rttProbeMillis <= 0) {
+            return null;
+        }
+        RttProbe probe = rttProbes.computeIfAbsent(connection, RttProbe::new);
+        probe.start();
+        return probe.rtt;
+    }
+
+    /**
+     * Returns the scheduler the session streams over connection share, or null if they write
+     * straight into the muxer.
+     */
+    private StreamWriteScheduler writeScheduler(Connection connection) {
+        if (!fairWrites) {
+            return null;
+        }
+        StreamWriteScheduler scheduler = writeSchedulers.get(connection);
+        if (scheduler == null) {
+            StreamWriteScheduler created = new StreamWriteScheduler(writeExecutor());
+            scheduler = writeSchedulers.putIfAbsent(connection, created);
+            if (scheduler == null) {
+                scheduler = created;
+                connection.closeFuture().thenRun(() -> writeSchedulers.remove(connection, created));
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Returns the pool of pre-opened tunnel streams over connection, or null if every join
+     * opens its own stream.
+     */
+    private PreopenedStreamPool streamPool(Connection connection) {
+        if (streamPoolSize <= 0) {
+            return null;
+        }
+        PreopenedStreamPool pool = streamPools.get(connection);
+        if (pool == null) {
+            PreopenedStreamPool created = new PreopenedStreamPool(() -> openStream(connection),
+                    streamScheduler(), streamPoolSize, streamPoolIdleMillis);
+            pool = streamPools.putIfAbsent(connection, created);
+            if (pool == null) {
+                pool = created;
+                connection.closeFuture().thenRun(() -> {
+                    streamPools.remove(connection, created);
+                    created.close();
+                });
             }
-            host = this.host;
-            started = false;
         }
-        await(host.stop(), START_TIMEOUT_SECONDS, "stop libp2p host");
+        return pool;
     }
 
-    private Connection warmConnection(PeerId peerId, Multiaddr multiaddr) {
-        prepare(multiaddr.toString());
-        Connection connection = warmConnections.get(peerId);
-        if (!isHealthy(connection)) {
-            throw new IllegalStateException("libp2p connection is not warm for " + multiaddr);
+    /**
+     * Takes a pre-opened stream over connection if one is ready, otherwise opens one.
+     */
+    private CompletableFuture<Stream> stream(Connection connection) {
+        PreopenedStreamPool pool = streamPool(connection);
+        Stream ready = pool == null ? null : pool.poll();
+        return ready != null ? CompletableFuture.completedFuture(ready) : openStream(connection);
+    }
+
+    private synchronized ScheduledExecutorService streamScheduler() {
+        if (streamScheduler == null) {
+            streamScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "connect-libp2p-streams");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
-        return connection;
+        return streamScheduler;
     }
 
-    private Connection connect(PeerId peerId, Multiaddr multiaddr) {
-        return await(startedHost().getNetwork().connect(peerId, multiaddr),
-                CONNECT_TIMEOUT_SECONDS, "connect libp2p peer " + peerId);
+    private synchronized ExecutorService writeExecutor() {
+        if (writeExecutor == null) {
+            writeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "connect-libp2p-writes");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return writeExecutor;
     }
 
-    private Stream openStream(Connection connection) {
-        StreamPromise<Object> promise = startedHost().newStream(Arrays.asList(PROTOCOL_ID), connection);
-        Stream stream = await(promise.getStream(), STREAM_TIMEOUT_SECONDS, "open libp2p tunnel stream");
-        await(stream.getProtocol(), STREAM_TIMEOUT_SECONDS, "negotiate libp2p tunnel protocol");
-        return stream;
+    private synchronized ScheduledExecutorService rttScheduler() {
+        if (rttScheduler == null) {
+            rttScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "connect-libp2p-rtt");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return rttScheduler;
     }
 
-    private synchronized Host startedHost() {
-        if (!started) {
-            await(host.start(), START_TIMEOUT_SECONDS, "start libp2p host");
-            started = true;
+    /**
+     * Returns the warm connection to the peer, dialing it if needed. Concurrent callers for the
+     * same peer share a single dial.
+     */
+    private CompletableFuture<Connection> connection(PeerId peerId, Multiaddr multiaddr) {
+        Connection warm = warmConnections.get(peerId);
+        if (isHealthy(warm)) {
+            return CompletableFuture.completedFuture(warm);
         }
-        return host;
+
+        CompletableFuture<Connection> connected = new CompletableFuture<>();
+        CompletableFuture<Connection> pending = connecting.putIfAbsent(peerId, connected);
+        if (pending != null) {
+            return pending;
+        }
+        warm = warmConnections.get(peerId);
+        if (isHealthy(warm)) {
+            // another dial finished between the two lookups
+            connecting.remove(peerId, connected);
+            connected.complete(warm);
+            return connected;
+        }
+
+        startedHost()
+                .thenCompose(started -> dial(started, peerId, multiaddr))
+                .whenComplete((connection, error) -> {
+                    if (error == null) {
+                        warmConnections.put(peerId, connection);
+                    }
+                    connecting.remove(peerId, connected);
+                    complete(connected, connection, error);
+                });
+        return connected;
+    }
+
+    /**
+     * Dials the peer over QUIC first when it has a QUIC address, which brings its own stream
+     * multiplexing and a single handshake round trip instead of TCP with Noise and yamux. If
+     * the QUIC dial does not complete, UDP is taken to be blocked: the peer is dialed over TCP
+     * on the same port, and keeps being dialed over TCP for the breaker cooldown.
+     */
+    private CompletableFuture<Connection> dial(Host started, PeerId peerId, Multiaddr multiaddr) {
+        Multiaddr quic;
+        Multiaddr tcp;
+        if (Libp2pDialAddresses.isQuic(multiaddr)) {
+            quic = multiaddr;
+            tcp = Libp2pDialAddresses.tcp(multiaddr);
+        } else {
+            quic = settings.quic() ? Libp2pDialAddresses.quic(multiaddr) : null;
+            tcp = multiaddr;
+        }
+        if (quic == null || tcp == null) {
+            return connect(started, peerId, multiaddr, CONNECT_TIMEOUT_SECONDS);
+        }
+        Long failedAt = quicFailures.get(peerId);
+        if (failedAt != null
+                && System.currentTimeMillis() - failedAt < settings.breakerCooldownMillis()) {
+            return connect(started, peerId, tcp, CONNECT_TIMEOUT_SECONDS);
+        }
+        return connect(started, peerId, quic, QUIC_TIMEOUT_SECONDS)
+                .thenApply(connection -> {
+                    quicFailures.remove(peerId);
+                    return connection;
+                })
+                .exceptionallyCompose(error -> {
+                    quicFailures.put(peerId, System.currentTimeMillis());
+                    return connect(started, peerId, tcp, CONNECT_TIMEOUT_SECONDS);
+                });
+    }
+
+    private static CompletableFuture<Connection> connect(
+            Host started, PeerId peerId, Multiaddr multiaddr, long timeoutSeconds) {
+        return within(started.getNetwork().connect(peerId, multiaddr),
+                timeoutSeconds, "connect libp2p peer " + peerId + " at " + multiaddr);
+    }
+
+    /**
+     * Returns the stripes of the peer. Stripe 0 is its warm connection, the others are dialed
+     * straight through the transport because the network hands out one connection per peer.
+     */
+    private ConnectionStripes stripes(PeerId peerId, Multiaddr multiaddr) {
+        return stripes.computeIfAbsent(peerId, ignored -> new ConnectionStripes(stripeCount,
+                index -> index == 0
+                        ? connection(peerId, multiaddr)
+                        : dialStripe(peerId, multiaddr)));
+    }
+
+    private CompletableFuture<Connection> dialStripe(PeerId peerId, Multiaddr multiaddr) {
+        return startedHost().thenCompose(started -> {
+            Network network = started.getNetwork();
+            Transport transport = network.getTransports().stream()
+                    .filter(candidate -> candidate.handles(multiaddr))
+                    .findFirst()
+                    .orElse(null);
+            if (transport == null) {
+                return CompletableFuture.failedFuture(new IllegalArgumentException(
+                        "no libp2p transport dials " + multiaddr));
+            }
+            return within(transport.dial(multiaddr, network.getConnectionHandler(), null),
+                    CONNECT_TIMEOUT_SECONDS, "connect libp2p stripe to " + peerId);
+        });
+    }
+
+    private CompletableFuture<Stream> openStream(Connection connection) {
+        StreamPromise<Object> promise = host.newStream(Arrays.asList(PROTOCOL_ID), connection);
+        return within(promise.getStream(), STREAM_TIMEOUT_SECONDS, "open libp2p tunnel stream")
+                .thenCompose(stream -> {
+                    CompletableFuture<String> negotiated = within(stream.getProtocol(),
+                            STREAM_TIMEOUT_SECONDS, "negotiate libp2p tunnel protocol");
+                    negotiated.whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            stream.close();
+                        }
+                    });
+                    return negotiated.thenApply(ignored -> stream);
+                });
+    }
+
+    private CompletableFuture<Host> startedHost() {
+        CompletableFuture<Host> started;
+        synchronized (this) {
+            if (starting != null) {
+                return starting;
+            }
+            started = new CompletableFuture<>();
+            starting = started;
+        }
+        within(host.start(), START_TIMEOUT_SECONDS, "start libp2p host")
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        // let the next tunnel retry the start
+                        synchronized (this) {
+                            if (starting == started) {
+                                starting = null;
+                            }
+                        }
+                    }
+                    complete(started, host, error);
+                });
+        return started;
     }
 
     private static PeerId requirePeerId(Multiaddr multiaddr, String address) {
@@ -307,6 +644,69 @@ public final class Libp2pTunnelTransportRuntime implements TunnelClientTransport
         }
     }
 
+    /**
+     * Pings the peer of a connection over one ping stream, reopened if it fails, until the
+     * connection closes.
+     */
+    private final class RttProbe {
+        private final Connection connection;
+        private final TunnelRtt rtt = new TunnelRtt();
+        private volatile CompletableFuture<PingController> ping;
+        private ScheduledFuture<?> task;
+
+        private RttProbe(Connection connection) {
+            this.connection = connection;
+        }
+
+        private synchronized void start() {
+            if (task != null) {
+                return;
+            }
+            try {
+                task = rttScheduler().scheduleWithFixedDelay(
+                        this::probe, 0, rttProbeMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closing, nothing left to probe.
+            }
+        }
+
+        private synchronized void stop() {
+            if (task != null) {
+                task.cancel(false);
+            }
+            rttProbes.remove(connection, this);
+        }
+
+        private void probe() {
+            if (!isHealthy(connection)) {
+                stop();
+                return;
+            }
+            CompletableFuture<PingController> current = ping;
+            if (current == null) {
+                StreamPromise<PingController> promise =
+                        host.newStream(Collections.singletonList(PING_PROTOCOL_ID), connection);
+                current = within(promise.getController(), STREAM_TIMEOUT_SECONDS,
+                        "open libp2p ping stream");
+                ping = current;
+            }
+            CompletableFuture<PingController> used = current;
+            used.thenCompose(controller -> {
+                        long started = System.nanoTime();
+                        return controller.ping().thenApply(ignored -> System.nanoTime() - started);
+                    })
+                    .orTimeout(STREAM_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .whenComplete((rttNanos, error) -> {
+                        if (error == null) {
+                            rtt.record(rttNanos);
+                        } else if (ping == used) {
+                            // Open a new ping stream next time.
+                            ping = null;
+                        }
+                    });
+        }
+    }
+
     private static final class DenyRelayManager implements CircuitHopProtocol.RelayManager {
         @Override
         public boolean hasReservation(PeerId peerId) {
@@ -339,52 +739,51 @@ public final class Libp2pTunnelTransportRuntime implements TunnelClientTransport
         }
     }
 
-    private static final class Libp2pTunnelConn extends TunnelConn {
-        private final Stream stream;
-
-        private Libp2pTunnelConn(Stream stream) {
-            this.stream = stream;
-        }
-
-        @Override
-        public void write(byte[] data) {
-            stream.writeAndFlush(Unpooled.wrappedBuffer(Arrays.copyOf(data, data.length)));
-        }
-
-        @Override
-        public void close(Throwable t) {
-            stream.close();
-        }
-
-        @Override
-        public boolean opened() {
-            return true;
+    /**
+     * Waits for a future whose steps are already bounded by {@link #within}, rethrowing the
+     * step failure as is.
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for libp2p", e);
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e.getCause());
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
         }
     }
 
-    private static final class InboundBytesHandler extends SimpleChannelInboundHandler<ByteBuf> {
-        private final TunnelConn.Handler handler;
-
-        private InboundBytesHandler(TunnelConn.Handler handler) {
-            this.handler = handler;
-        }
-
-        @Override
-        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
-            handler.onReceive(ByteBufUtil.getBytes(msg, msg.readerIndex(), msg.readableBytes(), true));
-        }
+    private static <T> CompletableFuture<T> within(
+            CompletableFuture<T> future,
+            long timeoutSeconds,
+            String action) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.orTimeout(timeoutSeconds, TimeUnit.SECONDS).whenComplete((value, error) ->
+                complete(result, value, error == null
+                        ? null
+                        : new IllegalStateException("failed to " + action, unwrap(error))));
+        return result;
+    }
 
-        @Override
-        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            handler.onError(cause);
-            ctx.close();
+    private static <T> void complete(CompletableFuture<T> future, T value, Throwable error) {
+        if (error == null) {
+            future.complete(value);
+        } else {
+            future.completeExceptionally(unwrap(error));
         }
+    }
 
-        @Override
-        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-            handler.onClose();
-            super.channelInactive(ctx);
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null) {
+            error = error.getCause();
         }
+        return error;
     }
 
     private static final class TunnelProtocolBinding extends StrictProtocolBinding<Void> {
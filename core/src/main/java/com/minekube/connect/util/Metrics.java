@@ -7,13 +7,17 @@ import com.minekube.connect.api.logger.ConnectLogger;
 import com.minekube.connect.config.ConnectConfig;
 import com.minekube.connect.config.ConnectConfig.MetricsConfig;
 import com.minekube.connect.platform.util.PlatformUtils;
+import com.minekube.connect.tunnel.TransportHealth;
+import com.minekube.connect.tunnel.Tunneler;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
 import org.bstats.MetricsBase;
 import org.bstats.charts.AdvancedPie;
 import org.bstats.charts.DrilldownPie;
@@ -29,7 +33,8 @@ public final class Metrics {
             PlatformUtils platformUtils,
             ConnectApi api,
             @Named("platformName") String implementationName,
-            ConnectLogger logger) {
+            ConnectLogger logger,
+            Tunneler tunneler) {
 
         MetricsConfig metricsConfig = config.getMetrics();
 
@@ -99,6 +104,23 @@ public final class Metrics {
                 })
         );
 
+        // The transport the tunneler ranks cheapest right now, and the circuits it opened, see
+        // TransportHealth. Addresses stay local, only transport types are reported.
+        metricsBase.addCustomChart(new SimplePie("preferred_tunnel_transport", () -> {
+            List<TransportHealth.Score> scores = tunneler.transportScores();
+            return scores.isEmpty() ? null : transportName(scores.get(0).type());
+        }));
+
+        metricsBase.addCustomChart(new AdvancedPie("open_tunnel_circuits", () -> {
+            Map<String, Integer> valueMap = new HashMap<>();
+            for (TransportHealth.Score score : tunneler.transportScores()) {
+                if (score.circuitOpen()) {
+                    valueMap.merge(transportName(score.type()), 1, Integer::sum);
+                }
+            }
+            return valueMap;
+        }));
+
         // Source: Geyser
         metricsBase.addCustomChart(new DrilldownPie("java_version", () -> {
             Map<String, Map<String, Integer>> map = new HashMap<>();
@@ -125,6 +147,11 @@ public final class Metrics {
         }));
     }
 
+    private static String transportName(Type type) {
+        // TYPE_LIBP2P => libp2p
+        return type.name().toLowerCase(Locale.ROOT).replace("type_", "");
+    }
+
     private void appendPlatformData(JsonObjectBuilder builder) {
         builder.appendField("osName", OS_NAME);
         builder.appendField("osArch",OS_ARCH);
@@ -0,0 +1,96 @@
+package com.minekube.connect.network.netty;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class PeerPinnedEventLoopGroupTest {
+    private final DefaultEventLoopGroup group = new DefaultEventLoopGroup(4);
+    private final List<Channel> channels = new ArrayList<>();
+
+    @AfterEach
+    void shutdown() throws Exception {
+        for (Channel channel : channels) {
+            channel.close().syncUninterruptibly();
+        }
+        group.shutdownGracefully(0, 5, SECONDS).get(5, SECONDS);
+    }
+
+    @Test
+    void registersTheServerEndOfASessionOnTheLoopOfItsClientEnd() throws Exception {
+        BlockingQueue<Channel> accepted = new LinkedBlockingQueue<>();
+        Channel server = bind(accepted);
+
+        for (int i = 0; i < 8; i++) {
+            Channel client = connect(LocalChannelWithSessionContext.class, server);
+            Channel child = accepted.poll(5, SECONDS);
+
+            assertTrue(child instanceof LocalChannelWrapper);
+            assertSame(client, ((LocalChannelWrapper) child).peer());
+            assertSame(client.eventLoop(), child.eventLoop());
+        }
+    }
+
+    @Test
+    void spreadsOtherChannelsOverTheGroup() throws Exception {
+        BlockingQueue<Channel> accepted = new LinkedBlockingQueue<>();
+        Channel server = bind(accepted);
+
+        List<Channel> children = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            connect(LocalChannel.class, server);
+            children.add(accepted.poll(5, SECONDS));
+        }
+
+        assertEquals(8, children.size());
+        for (Channel child : children) {
+            assertTrue(child.isRegistered());
+        }
+    }
+
+    private Channel bind(BlockingQueue<Channel> accepted) {
+        Channel server = new ServerBootstrap()
+                .channel(LocalServerChannelWrapper.class)
+                .group(group, new PeerPinnedEventLoopGroup(group))
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        accepted.add(ch);
+                    }
+                })
+                .localAddress(LocalAddress.ANY)
+                .bind()
+                .syncUninterruptibly()
+                .channel();
+        channels.add(server);
+        return server;
+    }
+
+    private Channel connect(Class<? extends LocalChannel> type, Channel server) {
+        Channel client = new Bootstrap()
+                .channel(type)
+                .group(group)
+                .handler(new ChannelInboundHandlerAdapter())
+                .connect(server.localAddress())
+                .syncUninterruptibly()
+                .channel();
+        channels.add(client);
+        return client;
+    }
+}
@@ -0,0 +1,201 @@
+package com.minekube.connect.network.netty;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.minekube.connect.api.ConnectAttributes;
+import com.minekube.connect.api.SimpleConnectApi;
+import com.minekube.connect.api.logger.ConnectLogger;
+import com.minekube.connect.api.player.Auth;
+import com.minekube.connect.api.player.ConnectPlayer;
+import com.minekube.connect.network.netty.LocalSession.Context;
+import com.minekube.connect.tunnel.TunnelConn;
+import com.minekube.connect.tunnel.TunnelConn.Handler;
+import com.minekube.connect.tunnel.TunnelMemoryBudget;
+import com.minekube.connect.tunnel.Tunneler;
+import com.minekube.connect.watch.SessionProposal;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import java.lang.reflect.Constructor;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import minekube.connect.v1alpha1.WatchServiceOuterClass.Session;
+import minekube.connect.v1alpha1.WatchServiceOuterClass.SessionProtocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TunnelChannelTest {
+    private final DefaultEventLoopGroup group = new DefaultEventLoopGroup(1);
+    private final InetSocketAddress spoofedAddress = new InetSocketAddress("203.0.113.7", 0);
+    private final AtomicReference<Channel> accepted = new AtomicReference<>();
+    private final AtomicReference<Handler> tunnelHandler = new AtomicReference<>();
+    private final RecordingTunnelConn conn = new RecordingTunnelConn();
+    private final TunnelMemoryBudget budget = new TunnelMemoryBudget(1024 * 1024);
+    private Channel server;
+
+    @AfterEach
+    void shutdown() throws Exception {
+        if (server != null) {
+            server.close().syncUninterruptibly();
+        }
+        group.shutdownGracefully(0, 5, SECONDS).get(5, SECONDS);
+    }
+
+    @Test
+    void handsTheSessionToThePlatformAsASingleChannel() throws Exception {
+        ConnectPlayer player = connectPlayer();
+        TunnelChannel channel = connect(player);
+
+        await().atMost(5, SECONDS).until(() -> tunnelHandler.get() != null);
+        assertSame(channel, accepted.get());
+        assertEquals(spoofedAddress, channel.remoteAddress());
+        assertSame(player, channel.attr(ConnectAttributes.CONNECT_PLAYER).get());
+        assertTrue(LocalSession.context(channel).isPresent());
+    }
+
+    @Test
+    void feedsTunnelDataIntoThePipelineAndWritesTheRepliesToTheTunnel() throws Exception {
+        connect(connectPlayer());
+        await().atMost(5, SECONDS).until(() -> tunnelHandler.get() != null);
+
+        tunnelHandler.get().onReceive(new byte[] {1, 2, 3});
+
+        await().atMost(5, SECONDS).until(() -> conn.writes.size() == 1);
+        assertArrayEquals(new byte[] {1, 2, 3}, conn.writes.get(0));
+        await().atMost(5, SECONDS).until(() -> budget.usedBytes() == 0);
+    }
+
+    @Test
+    void holdsTunnelDataBackWhileThePlatformDoesNotRead() throws Exception {
+        TunnelChannel channel = connect(connectPlayer());
+        await().atMost(5, SECONDS).until(() -> tunnelHandler.get() != null);
+        channel.eventLoop().submit(() -> channel.config().setAutoRead(false)).get(5, SECONDS);
+
+        tunnelHandler.get().onReceive(new byte[] {1, 2, 3});
+
+        await().during(200, MILLISECONDS).atMost(1, SECONDS).until(() -> conn.writes.isEmpty());
+        channel.read();
+        await().atMost(5, SECONDS).until(() -> conn.writes.size() == 1);
+        assertArrayEquals(new byte[] {1, 2, 3}, conn.writes.get(0));
+    }
+
+    @Test
+    void failsABindWithAMessage() throws Exception {
+        TunnelChannel channel = connect(connectPlayer());
+
+        ChannelFuture bind = channel.bind(new LocalAddress("other")).await();
+
+        assertFalse(bind.isSuccess());
+        assertTrue(bind.cause() instanceof UnsupportedOperationException);
+        assertTrue(bind.cause().getMessage() != null);
+    }
+
+    @Test
+    void tunnelCloseClosesTheChannel() throws Exception {
+        TunnelChannel channel = connect(connectPlayer());
+        await().atMost(5, SECONDS).until(() -> tunnelHandler.get() != null);
+
+        tunnelHandler.get().onClose();
+
+        assertTrue(channel.closeFuture().await(5, SECONDS));
+        await().atMost(5, SECONDS).until(() -> budget.usage().isEmpty());
+    }
+
+    private TunnelChannel connect(ConnectPlayer player) throws Exception {
+        server = new ServerBootstrap()
+                .channel(LocalServerChannelWrapper.class)
+                .group(group)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        accepted.set(ch);
+                        // Stands in for the platform: echoes everything back.
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                ctx.writeAndFlush(msg);
+                            }
+                        });
+                    }
+                })
+                .localAddress(LocalAddress.ANY)
+                .bind()
+                .syncUninterruptibly()
+                .channel();
+        LocalServerChannelWrapper serverChannel =
+                LocalServerChannelWrapper.boundTo(server.localAddress());
+
+        Tunneler tunneler = mock(Tunneler.class);
+        when(tunneler.tunnelAsync(any(Session.class), any(Handler.class))).thenAnswer(invocation -> {
+            tunnelHandler.set(invocation.getArgument(1));
+            return CompletableFuture.completedFuture(conn);
+        });
+        CountDownLatch registered = new CountDownLatch(1);
+        TunnelChannel channel = new TunnelChannel(serverChannel, context(player),
+                mock(ConnectLogger.class), tunneler, mock(SimpleConnectApi.class), null, budget,
+                registered::countDown);
+        serverChannel.eventLoop().execute(() -> serverChannel.pipeline().fireChannelRead(channel));
+        assertTrue(registered.await(5, SECONDS));
+        return channel;
+    }
+
+    private static ConnectPlayer connectPlayer() {
+        ConnectPlayer player = mock(ConnectPlayer.class);
+        when(player.getAuth()).thenReturn(new Auth(false));
+        when(player.getUsername()).thenReturn("player");
+        return player;
+    }
+
+    private Context context(ConnectPlayer player) throws ReflectiveOperationException {
+        SessionProposal proposal = mock(SessionProposal.class);
+        when(proposal.getSession()).thenReturn(Session.newBuilder().setId("session").build());
+        Constructor<Context> constructor = Context.class.getDeclaredConstructor(
+                ConnectPlayer.class,
+                InetSocketAddress.class,
+                SessionProposal.class,
+                String.class,
+                String.class,
+                SessionProtocol.class,
+                com.minekube.connect.bedrock.BedrockAdmissionCoordinator.AdmissionToken.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(player, spoofedAddress, proposal, "endpoint", "org",
+                SessionProtocol.SESSION_PROTOCOL_JAVA, null);
+    }
+
+    private static final class RecordingTunnelConn extends TunnelConn {
+        private final List<byte[]> writes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void write(byte[] data) {
+            writes.add(data);
+        }
+
+        @Override
+        public void close(Throwable t) {
+        }
+
+        @Override
+        public boolean opened() {
+            return true;
+        }
+    }
+}
@@ -5,20 +5,30 @@ import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.same;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.minekube.connect.api.logger.ConnectLogger;
+import com.minekube.connect.tunnel.TunnelConn;
+import com.minekube.connect.tunnel.TunnelMemoryBudget;
+import com.minekube.connect.tunnel.TunnelSettings;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.DefaultEventLoop;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
@@ -64,7 +74,7 @@ class TunnelHandlerTest {
     }
 
     @Test
-    void burstOfReceivesFlushesEveryPayloadInOrder() throws Exception {
+    void burstOfReceivesWritesEveryPayloadInOrderAndFlushesOnce() throws Exception {
         TunnelHandler handler = newHandler();
         List<byte[]> payloads = new ArrayList<>();
 
@@ -78,7 +88,8 @@ class TunnelHandlerTest {
         awaitEventLoop();
 
         assertEquals(50, count(Event.WRITE));
-        assertEquals(50, count(Event.FLUSH));
+        assertEquals(1, count(Event.FLUSH));
+        assertEquals(Event.FLUSH, events.get(events.size() - 1).type);
         List<byte[]> actualPayloads = writePayloads();
         assertEquals(50, actualPayloads.size());
         for (int i = 0; i < payloads.size(); i++) {
@@ -86,6 +97,163 @@ class TunnelHandlerTest {
         }
     }
 
+    @Test
+    void onReceiveOnTheBackendLoopDeliversWithoutAHandoff() throws Exception {
+        TunnelHandler handler = newHandler();
+        byte[] payload = new byte[] {1, 2, 3};
+
+        List<Event> delivered = eventLoop.submit(() -> {
+            handler.onReceive(payload);
+            return eventTypes();
+        }).get(5, SECONDS);
+
+        assertEquals(List.of(Event.WRITE, Event.FLUSH), delivered);
+        assertArrayEquals(payload, events.get(0).payload);
+    }
+
+    @Test
+    void onReceiveOnTheBackendLoopStaysBehindQueuedDeliveries() throws Exception {
+        TunnelHandler handler = newHandler();
+        CountDownLatch queued = new CountDownLatch(1);
+        eventLoop.execute(() -> {
+            try {
+                assertTrue(queued.await(5, SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+            handler.onReceive(new byte[] {2});
+        });
+
+        handler.onReceive(new byte[] {1});
+        queued.countDown();
+        awaitEventLoop();
+
+        List<byte[]> payloads = writePayloads();
+        assertEquals(2, payloads.size());
+        assertArrayEquals(new byte[] {1}, payloads.get(0));
+        assertArrayEquals(new byte[] {2}, payloads.get(1));
+    }
+
+    @Test
+    void burstOfReceivesIsDrainedByOneEventLoopTask() throws Exception {
+        TunnelHandler handler = newHandler();
+        AtomicInteger observedWrites = new AtomicInteger(-1);
+
+        runWithEventLoopBlocked(() -> {
+            handler.onReceive(new byte[] {1});
+            handler.onReceive(new byte[] {2});
+            // Queued behind the drain the first receive scheduled. Later receives join that
+            // drain, so all of them are delivered before this task runs.
+            eventLoop.execute(() -> observedWrites.set(count(Event.WRITE)));
+            handler.onReceive(new byte[] {3});
+        });
+        awaitEventLoop();
+
+        assertEquals(3, observedWrites.get());
+        assertEquals(3, count(Event.WRITE));
+        assertEquals(1, count(Event.FLUSH));
+    }
+
+    @Test
+    void onReceiveHandsTheTunnelBufferToTheBackendChannelWithoutCopying() throws Exception {
+        TunnelHandler handler = newHandler();
+        ByteBuf payload = Unpooled.directBuffer().writeBytes(new byte[] {7, 7, 7});
+
+        runWithEventLoopBlocked(() -> handler.onReceive(payload));
+        awaitEventLoop();
+
+        verify(channel).write(same(payload), any(ChannelPromise.class));
+        assertEquals(0, payload.refCnt());
+    }
+
+    @Test
+    void onReceiveReleasesLentMemoryOnceTheBackendChannelIsDone() throws Exception {
+        TunnelHandler handler = newHandler();
+        ByteBuffer lent = ByteBuffer.allocateDirect(2).put(new byte[] {3, 4});
+        lent.flip();
+        AtomicInteger releases = new AtomicInteger();
+
+        runWithEventLoopBlocked(() -> handler.onReceive(lent, releases::incrementAndGet));
+        awaitEventLoop();
+
+        assertEventTypes(Event.WRITE, Event.FLUSH);
+        assertArrayEquals(new byte[] {3, 4}, events.get(0).payload);
+        assertEquals(1, releases.get());
+    }
+
+    @Test
+    void pausesTunnelReadsAboveHighWaterMarkUntilTheBackendDrained() throws Exception {
+        TunnelHandler handler = newHandler(TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_HIGH_WATER_MARK_BYTES", "4",
+                "CONNECT_TUNNEL_LOW_WATER_MARK_BYTES", "2")));
+        RecordingTunnelConn conn = new RecordingTunnelConn();
+        handler.attach(conn);
+
+        runWithEventLoopBlocked(() -> {
+            handler.onReceive(new byte[] {1, 2, 3});
+            handler.onReceive(new byte[] {4, 5, 6});
+            assertEquals(List.of(false), conn.autoReads);
+        });
+        awaitEventLoop();
+
+        assertEquals(List.of(false, true), conn.autoReads);
+    }
+
+    @Test
+    void pausesTunnelReadsWhileTheMemoryBudgetIsUsedUp() throws Exception {
+        TunnelMemoryBudget budget = new TunnelMemoryBudget(4);
+        TunnelMemoryBudget.Account account = budget.open("session");
+        TunnelHandler handler = newHandler(TunnelSettings.fromEnvironment(Map.of()), account);
+        account.listen(handler::budgetPressureChanged, () -> { });
+        when(channel.config()).thenReturn(mock(ChannelConfig.class));
+        RecordingTunnelConn conn = new RecordingTunnelConn();
+        handler.attach(conn);
+
+        runWithEventLoopBlocked(() -> {
+            handler.onReceive(new byte[] {1, 2, 3, 4, 5});
+            assertEquals(List.of(false), conn.autoReads);
+        });
+        awaitEventLoop();
+
+        assertEquals(List.of(false, true), conn.autoReads);
+        assertEquals(0, budget.usedBytes());
+    }
+
+    @Test
+    void keepsTunnelReadsPausedWhileTheBackendIsUnwritable() throws Exception {
+        TunnelHandler handler = newHandler();
+        RecordingTunnelConn conn = new RecordingTunnelConn();
+        handler.attach(conn);
+
+        when(channel.isWritable()).thenReturn(false);
+        handler.backendWritabilityChanged();
+        assertEquals(List.of(false), conn.autoReads);
+
+        when(channel.isWritable()).thenReturn(true);
+        handler.backendWritabilityChanged();
+        assertEquals(List.of(false, true), conn.autoReads);
+    }
+
+    @Test
+    void stopsReadingTheBackendWhileTheTunnelIsBackedUp() throws Exception {
+        TunnelHandler handler = newHandler();
+        ChannelConfig config = mock(ChannelConfig.class);
+        when(channel.config()).thenReturn(config);
+        RecordingTunnelConn conn = new RecordingTunnelConn();
+        handler.attach(conn);
+
+        conn.writable = false;
+        handler.onWritabilityChanged(false);
+        awaitEventLoop();
+        verify(config).setAutoRead(false);
+
+        conn.writable = true;
+        handler.onWritabilityChanged(true);
+        awaitEventLoop();
+        verify(config).setAutoRead(true);
+    }
+
     @Test
     void onCloseFlushesPendingWriteBeforeClosingChannel() throws Exception {
         TunnelHandler handler = newHandler();
@@ -110,12 +278,61 @@ class TunnelHandlerTest {
         assertTrue(closeFuture.isDone());
     }
 
+    @Test
+    void holdsTunnelDataBackUntilTheBackendIsActive() throws Exception {
+        TunnelHandler handler = newHandler();
+        doAnswer(invocation -> {
+            ByteBuf buf = invocation.getArgument(0);
+            try {
+                byte[] payload = new byte[buf.readableBytes()];
+                buf.getBytes(buf.readerIndex(), payload);
+                events.add(new RecordedEvent(Event.WRITE, payload));
+                return invocation.getArgument(1);
+            } finally {
+                buf.release();
+            }
+        }).when(channel).write(any(ByteBuf.class), any(ChannelPromise.class));
+        eventLoop.submit(handler::backendConnecting).get(5, SECONDS);
+
+        handler.onReceive(new byte[] {1});
+        handler.onReceive(new byte[] {2});
+        awaitEventLoop();
+        assertEventTypes();
+
+        eventLoop.submit(handler::backendActive).get(5, SECONDS);
+
+        assertEventTypes(Event.WRITE, Event.WRITE, Event.FLUSH);
+        assertArrayEquals(new byte[] {1}, events.get(0).payload);
+        assertArrayEquals(new byte[] {2}, events.get(1).payload);
+    }
+
+    @Test
+    void tunnelCloseTearsDownABackendThatIsStillConnecting() throws Exception {
+        TunnelHandler handler = newHandler();
+        eventLoop.submit(handler::backendConnecting).get(5, SECONDS);
+
+        handler.onReceive(new byte[] {1});
+        handler.onClose();
+        awaitEventLoop();
+
+        assertEventTypes(Event.FLUSH, Event.CLOSE);
+    }
+
     private TunnelHandler newHandler() {
+        return newHandler(TunnelSettings.fromEnvironment(Map.of()));
+    }
+
+    private TunnelHandler newHandler(TunnelSettings settings) {
+        return newHandler(settings, null);
+    }
+
+    private TunnelHandler newHandler(TunnelSettings settings, TunnelMemoryBudget.Account account) {
         eventLoop = new DefaultEventLoop();
         channel = mock(Channel.class);
         closeFuture = mock(ChannelFuture.class);
 
         when(channel.eventLoop()).thenReturn(eventLoop);
+        when(channel.isWritable()).thenReturn(true);
         when(channel.voidPromise()).thenReturn(mock(ChannelPromise.class));
         when(closeFuture.isDone()).thenReturn(true);
 
@@ -154,7 +371,8 @@ class TunnelHandlerTest {
             return closeFuture;
         }).when(channel).close();
 
-        return new TunnelHandler(mock(ConnectLogger.class), channel, "player", "session");
+        return new TunnelHandler(mock(ConnectLogger.class), channel, "player", "session", settings,
+                account);
     }
 
     private void awaitEventLoop() throws Exception {
@@ -216,6 +434,29 @@ class TunnelHandlerTest {
 
     private enum Event { WRITE, FLUSH, CLOSE, OBSERVE }
 
+    private static final class RecordingTunnelConn extends TunnelConn {
+        private final List<Boolean> autoReads = new ArrayList<>();
+        private volatile boolean writable = true;
+
+        @Override
+        public void write(byte[] data) {
+        }
+
+        @Override
+        public boolean isWritable() {
+            return writable;
+        }
+
+        @Override
+        public void setAutoRead(boolean autoRead) {
+            autoReads.add(autoRead);
+        }
+
+        @Override
+        public void close(Throwable t) {
+        }
+    }
+
     private static final class RecordedEvent {
         private final Event type;
         private final byte[] payload;
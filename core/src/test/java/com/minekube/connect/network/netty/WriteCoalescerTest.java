@@ -0,0 +1,139 @@
+package com.minekube.connect.network.netty;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class WriteCoalescerTest {
+    private static final long NO_BUDGET_LIMIT = TimeUnit.SECONDS.toNanos(60);
+
+    private final List<ByteBuf> frames = new ArrayList<>();
+    private final EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    private final ChannelHandlerContext ctx = channel.pipeline().firstContext();
+
+    @AfterEach
+    void releaseFrames() {
+        for (ByteBuf frame : frames) {
+            if (frame.refCnt() > 0) {
+                frame.release();
+            }
+        }
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void gathersReadsOfOneReadCycleIntoOneFrame() {
+        WriteCoalescer coalescer = new WriteCoalescer(1024, NO_BUDGET_LIMIT, frames::add);
+        ByteBuf first = buffer(1, 2);
+        ByteBuf second = buffer(3);
+
+        coalescer.add(ctx, first);
+        coalescer.add(ctx, second);
+        assertTrue(frames.isEmpty());
+        coalescer.flush();
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(new byte[] {1, 2, 3}, ByteBufUtil.getBytes(frames.get(0)));
+        assertEquals(0, first.refCnt());
+        assertEquals(0, second.refCnt());
+    }
+
+    @Test
+    void startsANewFrameWhenTheNextReadWouldExceedTheCap() {
+        WriteCoalescer coalescer = new WriteCoalescer(4, NO_BUDGET_LIMIT, frames::add);
+
+        coalescer.add(ctx, buffer(1, 2, 3));
+        coalescer.add(ctx, buffer(4, 5));
+        coalescer.flush();
+
+        assertEquals(2, frames.size());
+        assertArrayEquals(new byte[] {1, 2, 3}, ByteBufUtil.getBytes(frames.get(0)));
+        assertArrayEquals(new byte[] {4, 5}, ByteBufUtil.getBytes(frames.get(1)));
+    }
+
+    @Test
+    void passesReadsThatFillAFrameThroughAfterPendingBytes() {
+        WriteCoalescer coalescer = new WriteCoalescer(4, NO_BUDGET_LIMIT, frames::add);
+        ByteBuf large = buffer(5, 6, 7, 8, 9);
+
+        coalescer.add(ctx, buffer(1));
+        coalescer.add(ctx, large);
+
+        assertEquals(2, frames.size());
+        assertArrayEquals(new byte[] {1}, ByteBufUtil.getBytes(frames.get(0)));
+        assertSame(large, frames.get(1));
+    }
+
+    @Test
+    void flushesAtOnceWhenTheLatencyBudgetRanOut() {
+        WriteCoalescer coalescer = new WriteCoalescer(1024, 0, frames::add);
+
+        coalescer.add(ctx, buffer(1));
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(new byte[] {1}, ByteBufUtil.getBytes(frames.get(0)));
+    }
+
+    @Test
+    void passesALoneReadOnWithoutCopyingIt() {
+        WriteCoalescer coalescer = new WriteCoalescer(1024, NO_BUDGET_LIMIT, frames::add);
+        ByteBuf read = buffer(1, 2);
+
+        coalescer.add(ctx, read);
+        coalescer.flush();
+
+        assertEquals(1, frames.size());
+        assertSame(read, frames.get(0));
+    }
+
+    @Test
+    void flushesOnTheEventLoopOnceTheLatencyBudgetRanOut() {
+        WriteCoalescer coalescer = new WriteCoalescer(1024,
+                TimeUnit.MILLISECONDS.toNanos(50), frames::add);
+
+        coalescer.add(ctx, buffer(1));
+        coalescer.add(ctx, buffer(2));
+        assertTrue(frames.isEmpty());
+
+        // No further read and no end of the read cycle, only the timer can send it.
+        await().atMost(5, SECONDS).until(() -> {
+            channel.runScheduledPendingTasks();
+            return !frames.isEmpty();
+        });
+        assertArrayEquals(new byte[] {1, 2}, ByteBufUtil.getBytes(frames.get(0)));
+    }
+
+    @Test
+    void discardReleasesThePendingFrame() {
+        WriteCoalescer coalescer = new WriteCoalescer(1024, NO_BUDGET_LIMIT, frames::add);
+
+        coalescer.add(ctx, buffer(1));
+        coalescer.discard();
+        coalescer.flush();
+
+        assertTrue(frames.isEmpty());
+    }
+
+    private static ByteBuf buffer(int... bytes) {
+        ByteBuf buf = Unpooled.buffer(bytes.length);
+        for (int b : bytes) {
+            buf.writeByte(b);
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,148 @@
+package com.minekube.connect.tunnel;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ImpairedTunnelTransportTest {
+    private final RecordingTransport delegate = new RecordingTransport();
+    private ImpairedTunnelTransport transport;
+
+    @AfterEach
+    void tearDown() {
+        transport.close();
+    }
+
+    @Test
+    void delaysBothDirectionsByTheLatency() {
+        impair(Map.of("CONNECT_TUNNEL_IMPAIR_LATENCY_MILLIS", "100"));
+        RecordingHandler handler = new RecordingHandler();
+        TunnelConn conn = transport.tunnel("ws://connect.example", "session-123", handler);
+
+        long started = System.nanoTime();
+        conn.write(new byte[] {1});
+        delegate.handler.onReceive(new byte[] {2});
+
+        assertTrue(delegate.conn.written.isEmpty());
+        assertTrue(handler.received.isEmpty());
+        await().atMost(5, SECONDS).until(() ->
+                delegate.conn.written.size() == 1 && handler.received.size() == 1);
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    void keepsChunksInOrderDespiteJitter() {
+        impair(Map.of("CONNECT_TUNNEL_IMPAIR_JITTER_MILLIS", "20"));
+        TunnelConn conn = transport.tunnel("ws://connect.example", "session-123",
+                new RecordingHandler());
+
+        List<Byte> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            conn.write(new byte[] {(byte) i});
+            expected.add((byte) i);
+        }
+
+        await().atMost(5, SECONDS).until(() -> delegate.conn.written.size() == 50);
+        assertEquals(expected, delegate.conn.written);
+    }
+
+    @Test
+    void capsTheBandwidthAndAppliesBackpressure() {
+        impair(Map.of(
+                "CONNECT_TUNNEL_IMPAIR_BANDWIDTH_BYTES_PER_SECOND", "10000",
+                "CONNECT_TUNNEL_HIGH_WATER_MARK_BYTES", "2000",
+                "CONNECT_TUNNEL_LOW_WATER_MARK_BYTES", "0"));
+        RecordingHandler handler = new RecordingHandler();
+        TunnelConn conn = transport.tunnel("ws://connect.example", "session-123", handler);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            conn.write(new byte[1000]);
+        }
+        assertFalse(conn.isWritable());
+
+        await().atMost(5, SECONDS).until(conn::isWritable);
+        assertEquals(3000, delegate.conn.written.size());
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(List.of(false, true), handler.writability);
+    }
+
+    @Test
+    void dropsTunnelsAfterTheirLifetime() {
+        impair(Map.of("CONNECT_TUNNEL_IMPAIR_DROP_AFTER_MILLIS", "100"));
+        transport.tunnel("ws://connect.example", "session-123", new RecordingHandler());
+
+        await().atMost(5, SECONDS).until(() -> delegate.conn.closedWith != null);
+        assertTrue(delegate.conn.closedWith instanceof IOException);
+    }
+
+    private void impair(Map<String, String> env) {
+        transport = new ImpairedTunnelTransport(delegate, TunnelSettings.fromEnvironment(env));
+    }
+
+    private static final class RecordingTransport implements TunnelClientTransport {
+        private final RecordingConn conn = new RecordingConn();
+        private volatile TunnelConn.Handler handler;
+
+        @Override
+        public Type type() {
+            return Type.TYPE_WEBSOCKET;
+        }
+
+        @Override
+        public TunnelConn tunnel(String address, String sessionId, TunnelConn.Handler handler) {
+            this.handler = handler;
+            return conn;
+        }
+    }
+
+    private static final class RecordingConn extends TunnelConn {
+        private final List<Byte> written = Collections.synchronizedList(new ArrayList<>());
+        private volatile Throwable closedWith;
+
+        @Override
+        public void write(byte[] data) {
+            for (byte b : data) {
+                written.add(b);
+            }
+        }
+
+        @Override
+        public void close(Throwable t) {
+            closedWith = t;
+        }
+    }
+
+    private static final class RecordingHandler implements TunnelConn.Handler {
+        private final List<Byte> received = Collections.synchronizedList(new ArrayList<>());
+        private final List<Boolean> writability = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onReceive(byte[] data) {
+            for (byte b : data) {
+                received.add(b);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onWritabilityChanged(boolean writable) {
+            writability.add(writable);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.minekube.connect.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+class MaskedBinaryFrameEncoderTest {
+
+    @Test
+    void masksEveryByteWithTheRotatingKey() {
+        byte[] payload = new byte[13];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        int mask = 0x1A2B3C4D;
+        byte[] key = {0x1A, 0x2B, 0x3C, 0x4D};
+        ByteBuf buf = Unpooled.buffer().writeByte(0xFF).writeBytes(payload);
+        buf.skipBytes(1);
+
+        MaskedBinaryFrameEncoder.mask(buf, mask);
+
+        byte[] expected = new byte[payload.length];
+        for (int i = 0; i < payload.length; i++) {
+            expected[i] = (byte) (payload[i] ^ key[i % 4]);
+        }
+        assertArrayEquals(expected, ByteBufUtil.getBytes(buf));
+        assertEquals((byte) 0xFF, buf.getByte(0));
+    }
+
+    @Test
+    void encodesPayloadLengths() {
+        assertArrayEquals(ByteBufUtil.decodeHexDump("82fd01020304"), header(125));
+        assertArrayEquals(ByteBufUtil.decodeHexDump("82fe007e01020304"), header(126));
+        assertArrayEquals(ByteBufUtil.decodeHexDump("82ff000000000001000001020304"), header(65536));
+    }
+
+    @Test
+    void masksExclusivelyOwnedPayloadsInPlace() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MaskedBinaryFrameEncoder());
+        ByteBuf payload = Unpooled.directBuffer().writeBytes(new byte[] {1, 2, 3});
+
+        channel.writeOutbound(payload);
+
+        ByteBuf header = channel.readOutbound();
+        ByteBuf written = channel.readOutbound();
+        assertSame(payload, written);
+        assertEquals(2 + 4, header.readableBytes());
+        header.release();
+        written.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void copiesSharedPayloadsBeforeMasking() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MaskedBinaryFrameEncoder());
+        ByteBuf shared = Unpooled.directBuffer().writeBytes(new byte[] {1, 2, 3});
+        ByteBuf ours = shared.retainedDuplicate();
+
+        channel.writeOutbound(ours);
+
+        ByteBuf header = channel.readOutbound();
+        ByteBuf written = channel.readOutbound();
+        assertNotSame(ours, written);
+        assertArrayEquals(new byte[] {1, 2, 3}, ByteBufUtil.getBytes(shared));
+        assertEquals(1, shared.refCnt());
+        header.release();
+        written.release();
+        shared.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void copiesSlicesThatShareTheirParentsReferenceCount() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MaskedBinaryFrameEncoder());
+        byte[] memory = {1, 2, 3, 4, 5, 6};
+        ByteBuf slice = Unpooled.wrappedBuffer(memory).slice(0, 3);
+
+        channel.writeOutbound(slice);
+
+        ByteBuf header = channel.readOutbound();
+        ByteBuf written = channel.readOutbound();
+        assertNotSame(slice, written);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, memory);
+        header.release();
+        written.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void masksChargedPayloadsOnlyWhenTheirOwnerIsExclusive() {
+        TunnelMemoryBudget.Account account = new TunnelMemoryBudget(1000).open("session");
+        EmbeddedChannel channel = new EmbeddedChannel(new MaskedBinaryFrameEncoder());
+        ByteBuf shared = Unpooled.directBuffer().writeBytes(new byte[] {1, 2, 3});
+        ByteBuf borrowed = account.charged(shared.retainedSlice());
+        ByteBuf owned = account.charged(Unpooled.buffer().writeBytes(new byte[] {4, 5, 6}));
+
+        channel.writeOutbound(borrowed, owned);
+
+        ByteBuf[] written = new ByteBuf[4];
+        for (int i = 0; i < written.length; i++) {
+            written[i] = channel.readOutbound();
+        }
+        assertNotSame(borrowed, written[1]);
+        assertSame(owned, written[3]);
+        assertArrayEquals(new byte[] {1, 2, 3}, ByteBufUtil.getBytes(shared));
+        for (ByteBuf buf : written) {
+            buf.release();
+        }
+        assertEquals(0, account.bytes());
+        assertEquals(1, shared.refCnt());
+        shared.release();
+        channel.finishAndReleaseAll();
+    }
+
+    private static byte[] header(int length) {
+        ByteBuf header = MaskedBinaryFrameEncoder.header(ByteBufAllocator.DEFAULT, length, 0x01020304);
+        try {
+            return ByteBufUtil.getBytes(header);
+        } finally {
+            header.release();
+        }
+    }
+}
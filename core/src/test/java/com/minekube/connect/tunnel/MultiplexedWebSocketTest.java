@@ -0,0 +1,145 @@
+package com.minekube.connect.tunnel;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okhttp3.Headers;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class MultiplexedWebSocketTest {
+    private final NettyWebSocketTunnelTransport transport = new NettyWebSocketTunnelTransport(
+            () -> Headers.of("Authorization", "Bearer T-test"),
+            TunnelSettings.fromEnvironment(Map.of("CONNECT_TUNNEL_MULTIPLEX", "true")));
+    private LocalTunnelServer server;
+
+    @AfterEach
+    void tearDown() {
+        transport.close();
+        server.close();
+    }
+
+    @Test
+    void carriesManySessionsOverOneConnection() {
+        server = new LocalTunnelServer(true).start();
+        List<TunnelConn> conns = new ArrayList<>();
+        List<RecordingHandler> handlers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            RecordingHandler handler = new RecordingHandler();
+            TunnelConn conn = transport.tunnel(server.url(), "session-" + i, handler);
+            conn.write(("hello from " + i).getBytes(StandardCharsets.UTF_8));
+            conns.add(conn);
+            handlers.add(handler);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            byte[] expected = ("hello from " + i).getBytes(StandardCharsets.UTF_8);
+            RecordingHandler handler = handlers.get(i);
+            await().atMost(5, SECONDS).until(() -> handler.size() == expected.length);
+            assertArrayEquals(expected, handler.bytes());
+            TunnelConn conn = conns.get(i);
+            await().atMost(5, SECONDS).until(conn::opened);
+        }
+        assertEquals(1, server.connections());
+        assertEquals(List.of("session-0", "session-1", "session-2", "session-3", "session-4"),
+                server.sessions());
+
+        conns.get(0).close();
+        await().atMost(5, SECONDS).untilTrue(handlers.get(0).closed);
+    }
+
+    @Test
+    void streamsLargeWritesThroughTheWindows() {
+        server = new LocalTunnelServer(true).start();
+        RecordingHandler handler = new RecordingHandler();
+        TunnelConn conn = transport.tunnel(server.url(), "session-1", handler);
+
+        byte[] payload = new byte[1024 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 7);
+        }
+        conn.write(payload);
+
+        await().atMost(10, SECONDS).until(() -> handler.size() == payload.length);
+        assertArrayEquals(payload, handler.bytes());
+    }
+
+    @Test
+    void pausedStreamStopsGrantingWindow() {
+        server = new LocalTunnelServer(true).start();
+        RecordingHandler handler = new RecordingHandler();
+        TunnelConn conn = transport.tunnel(server.url(), "session-1", handler);
+        conn.setAutoRead(false);
+
+        conn.write(new byte[1024 * 1024]);
+
+        await().atMost(5, SECONDS).until(() -> handler.size() == MultiplexedWebSocket.INITIAL_WINDOW);
+        await().during(200, MILLISECONDS).atMost(1, SECONDS)
+                .until(() -> handler.size() == MultiplexedWebSocket.INITIAL_WINDOW);
+
+        conn.setAutoRead(true);
+        await().atMost(10, SECONDS).until(() -> handler.size() == 1024 * 1024);
+    }
+
+    @Test
+    void fallsBackToAConnectionPerSessionWithoutTheCapability() {
+        server = new LocalTunnelServer(false).start();
+        RecordingHandler first = new RecordingHandler();
+        RecordingHandler second = new RecordingHandler();
+
+        transport.tunnel(server.url(), "session-1", first).write(new byte[] {1});
+        transport.tunnel(server.url(), "session-2", second).write(new byte[] {2});
+
+        await().atMost(5, SECONDS).until(() -> first.size() == 1 && second.size() == 1);
+        assertArrayEquals(new byte[] {1}, first.bytes());
+        assertArrayEquals(new byte[] {2}, second.bytes());
+        assertEquals(2, server.connections());
+    }
+
+    private static final class RecordingHandler implements TunnelConn.Handler {
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public void onReceive(byte[] data) {
+            received.writeBytes(data);
+        }
+
+        @Override
+        public void onReceive(ByteBuf data) {
+            try {
+                onReceive(ByteBufUtil.getBytes(data));
+            } finally {
+                data.release();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onClose() {
+            closed.set(true);
+        }
+
+        int size() {
+            return received.size();
+        }
+
+        byte[] bytes() {
+            return received.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.minekube.connect.tunnel;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.minekube.connect.tunnel.NettyWebSocketTunnelTransport.NettyWebSocketTunnelConn;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.nio.NioIoHandler;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Headers;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class NettyWebSocketTunnelTransportTest {
+    private final MockWebServer server = new MockWebServer();
+    private final NettyWebSocketTunnelTransport transport = new NettyWebSocketTunnelTransport(
+            () -> Headers.of("Authorization", "Bearer T-test"),
+            TunnelSettings.fromEnvironment(Map.of()));
+    private EventLoopGroup group;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+            @Override
+            public void onMessage(@NotNull WebSocket webSocket, @NotNull ByteString bytes) {
+                webSocket.send(bytes);
+            }
+        }));
+        server.start();
+        group = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        transport.close();
+        group.shutdownGracefully().syncUninterruptibly();
+        server.shutdown();
+    }
+
+    @Test
+    void echoesMaskedFramesAndSendsConnectHeaders() throws Exception {
+        RecordingHandler handler = new RecordingHandler(null);
+        TunnelConn conn = transport.tunnel(url(), "session-123", handler);
+
+        // Written before the handshake finished, so it is queued until the tunnel opened.
+        byte[] small = ByteBufUtil.decodeHexDump("0102030405");
+        conn.write(small);
+        byte[] large = new byte[70_000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        conn.write(Unpooled.directBuffer(large.length).writeBytes(large));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(small);
+        expected.write(large);
+        await().atMost(5, SECONDS).until(() -> handler.received.size() == expected.size());
+        assertArrayEquals(expected.toByteArray(), handler.received.toByteArray());
+        assertTrue(conn.opened());
+
+        RecordedRequest request = server.takeRequest(5, SECONDS);
+        assertEquals("session-123", request.getHeader("Connect-Session"));
+        assertEquals("Bearer T-test", request.getHeader("Authorization"));
+
+        conn.close();
+        await().atMost(5, SECONDS).untilTrue(handler.closed);
+    }
+
+    @Test
+    void probesTheRoundTripTimeOnceOpen() {
+        RecordingHandler handler = new RecordingHandler(null);
+        TunnelConn conn = transport.tunnel(url(), "session-123", handler);
+
+        // The service answers the first probe sent right after the handshake.
+        await().atMost(5, SECONDS).until(() -> conn.rtt().samples() >= 1);
+        assertTrue(conn.rtt().minNanos() <= conn.rtt().maxNanos());
+        conn.close();
+    }
+
+    @Test
+    void runsOnTheHandlersEventLoop() {
+        EventLoop loop = group.next();
+        RecordingHandler handler = new RecordingHandler(loop);
+
+        NettyWebSocketTunnelConn conn =
+                (NettyWebSocketTunnelConn) transport.tunnel(url(), "session-123", handler);
+
+        assertSame(loop, conn.eventLoop());
+        conn.close();
+    }
+
+    @Test
+    void fallsBackToOwnLoopsForLocalOnlyEventLoops() {
+        DefaultEventLoop local = new DefaultEventLoop();
+        try {
+            RecordingHandler handler = new RecordingHandler(local);
+
+            NettyWebSocketTunnelConn conn =
+                    (NettyWebSocketTunnelConn) transport.tunnel(url(), "session-123", handler);
+
+            assertNotSame(local, conn.eventLoop());
+            conn.close();
+        } finally {
+            local.shutdownGracefully();
+        }
+    }
+
+    @Test
+    void takesWarmConnectionsAndRefillsThePool() throws Exception {
+        NettyWebSocketTunnelTransport warm = new NettyWebSocketTunnelTransport(Headers::of,
+                TunnelSettings.fromEnvironment(Map.of("CONNECT_TUNNEL_WARM_POOL_SIZE", "1")));
+        try {
+            warm.prepare(url());
+            await().atMost(5, SECONDS).until(() -> warm.warmPool().idle(uri()) == 1);
+            assertEquals(0, server.getRequestCount());
+
+            EventLoop loop = group.next();
+            RecordingHandler handler = new RecordingHandler(loop);
+            NettyWebSocketTunnelConn conn =
+                    (NettyWebSocketTunnelConn) warm.tunnel(url(), "session-123", handler);
+            conn.write(new byte[] {1, 2, 3});
+
+            await().atMost(5, SECONDS).until(() -> handler.received.size() == 3);
+            // Warm connections are dialed on the transport's own loops.
+            assertNotSame(loop, conn.eventLoop());
+            RecordedRequest request = server.takeRequest(5, SECONDS);
+            assertEquals("session-123", request.getHeader("Connect-Session"));
+            await().atMost(5, SECONDS).until(() -> warm.warmPool().idle(uri()) == 1);
+            conn.close();
+        } finally {
+            warm.close();
+        }
+    }
+
+    @Test
+    void closesWarmConnectionsThatSitIdle() {
+        NettyWebSocketTunnelTransport warm = new NettyWebSocketTunnelTransport(Headers::of,
+                TunnelSettings.fromEnvironment(Map.of(
+                        "CONNECT_TUNNEL_WARM_POOL_SIZE", "2",
+                        "CONNECT_TUNNEL_WARM_POOL_IDLE_MILLIS", "200")));
+        try {
+            warm.prepare(url());
+            await().atMost(5, SECONDS).until(() -> warm.warmPool().idle(uri()) == 2);
+            await().atMost(5, SECONDS).until(() -> warm.warmPool().idle(uri()) == 0);
+        } finally {
+            warm.close();
+        }
+    }
+
+    @Test
+    void backsOffInsteadOfRedialingAWarmConnectionThatFailsRightAway() {
+        AtomicInteger dials = new AtomicInteger();
+        NettyWebSocketTunnelTransport failing = new NettyWebSocketTunnelTransport(Headers::of,
+                TunnelSettings.fromEnvironment(Map.of("CONNECT_TUNNEL_WARM_POOL_SIZE", "2"))) {
+            @Override
+            ChannelFuture connect(URI uri, EventLoop loop, ChannelHandler tunnelHandler) {
+                dials.incrementAndGet();
+                throw new IllegalStateException("no TLS provider");
+            }
+        };
+        try {
+            failing.prepare(url());
+            failing.prepare(url());
+
+            assertEquals(1, dials.get());
+            assertEquals(0, failing.warmPool().idle(uri()));
+        } finally {
+            failing.close();
+        }
+    }
+
+    @Test
+    void compressesWhatItSendsOncePermessageDeflateIsAccepted() throws Exception {
+        MockWebServer deflating = new MockWebServer();
+        deflating.enqueue(new MockResponse()
+                .setHeader("Sec-WebSocket-Extensions", "permessage-deflate")
+                .withWebSocketUpgrade(new WebSocketListener() {
+                    @Override
+                    public void onMessage(@NotNull WebSocket webSocket, @NotNull ByteString bytes) {
+                        webSocket.send(bytes);
+                    }
+                }));
+        deflating.start();
+        NettyWebSocketTunnelTransport compressing = new NettyWebSocketTunnelTransport(
+                Headers::of,
+                TunnelSettings.fromEnvironment(Map.of("CONNECT_TUNNEL_COMPRESSION", "true")));
+        try {
+            RecordingHandler handler = new RecordingHandler(null);
+            NettyWebSocketTunnelConn conn = (NettyWebSocketTunnelConn) compressing.tunnel(
+                    deflating.url("/tunnel").toString(), "session-123", handler);
+            // Chunk data of a backend without network compression is highly repetitive.
+            byte[] chunk = new byte[32 * 1024];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = (byte) (i % 16);
+            }
+            conn.write(chunk);
+            conn.write(chunk);
+
+            await().atMost(5, SECONDS).until(() -> handler.received.size() == 2 * chunk.length);
+            byte[] received = handler.received.toByteArray();
+            for (int i = 0; i < received.length; i++) {
+                assertEquals(chunk[i % chunk.length], received[i]);
+            }
+            RecordedRequest request = deflating.takeRequest(5, SECONDS);
+            assertTrue(request.getHeader("Sec-WebSocket-Extensions")
+                    .contains("permessage-deflate"));
+            TunnelDeflater deflater = conn.deflater();
+            assertTrue(deflater.bytesOut() < deflater.bytesIn() / 10);
+            conn.close();
+        } finally {
+            compressing.close();
+            deflating.shutdown();
+        }
+    }
+
+    @Test
+    void reportsConnectFailures() throws Exception {
+        String url = url();
+        server.shutdown();
+        RecordingHandler handler = new RecordingHandler(null);
+
+        transport.tunnel(url, "session-123", handler);
+
+        await().atMost(15, SECONDS).untilTrue(handler.closed);
+        assertTrue(handler.failed.get());
+    }
+
+    private String url() {
+        return server.url("/tunnel").toString();
+    }
+
+    private URI uri() {
+        return NettyWebSocketTunnelTransport.webSocketUri(url());
+    }
+
+    private static final class RecordingHandler implements TunnelConn.Handler {
+        private final EventLoop eventLoop;
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final AtomicBoolean failed = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private RecordingHandler(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+        }
+
+        @Override
+        public void onReceive(byte[] data) {
+            synchronized (received) {
+                received.writeBytes(data);
+            }
+        }
+
+        @Override
+        public void onReceive(ByteBuf data) {
+            try {
+                onReceive(ByteBufUtil.getBytes(data));
+            } finally {
+                data.release();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            failed.set(true);
+        }
+
+        @Override
+        public void onClose() {
+            closed.set(true);
+        }
+
+        @Override
+        public EventLoop eventLoop() {
+            return eventLoop;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.minekube.connect.tunnel;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import minekube.connect.v1alpha1.WatchServiceOuterClass.Session;
+import okhttp3.Headers;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ResumableTunnelTest {
+    private LocalTunnelServer server;
+    private Tunneler tunneler;
+
+    @AfterEach
+    void tearDown() {
+        if (tunneler != null) {
+            tunneler.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void carriesSessionDataInResumeFrames() {
+        server = new LocalTunnelServer(false, true).start();
+        RecordingHandler handler = new RecordingHandler();
+        TunnelConn conn = open(10_000, handler);
+
+        conn.write(utf8("hello"));
+
+        await().atMost(5, SECONDS).until(() -> handler.text().equals("hello"));
+        assertInstanceOf(ResumableTunnel.class, conn);
+    }
+
+    @Test
+    void resumesWhereTheDroppedConnectionStopped() {
+        server = new LocalTunnelServer(false, true).start();
+        RecordingHandler handler = new RecordingHandler();
+        TunnelConn conn = open(10_000, handler);
+        conn.write(utf8("before"));
+        await().atMost(5, SECONDS).until(() -> handler.text().equals("before"));
+
+        server.dropConnections();
+        // Written while the connection is going away, so it has to come from the replay buffer.
+        conn.write(utf8(" after"));
+
+        await().atMost(5, SECONDS).until(() -> handler.text().equals("before after"));
+        assertEquals(2, server.connections());
+        assertFalse(handler.closed.get());
+
+        conn.close();
+        await().atMost(5, SECONDS).untilTrue(handler.closed);
+    }
+
+    @Test
+    void chargesTheReplayBufferUntilTheSessionEnds() {
+        server = new LocalTunnelServer(false, true).start();
+        RecordingHandler handler = new RecordingHandler();
+        handler.account = new TunnelMemoryBudget(1 << 20).open("session-1");
+        TunnelConn conn = open(10_000, handler);
+
+        conn.write(utf8("hello"));
+        await().atMost(5, SECONDS).until(() -> handler.text().equals("hello"));
+        // Below the ack interval, so the bytes are still kept for replay.
+        assertEquals(5, handler.account.bytes());
+
+        conn.close();
+        await().atMost(5, SECONDS).untilTrue(handler.closed);
+        assertEquals(0, handler.account.bytes());
+    }
+
+    @Test
+    void closesTheSessionWhenNoConnectionComesBackInTime() {
+        server = new LocalTunnelServer(false, true).start();
+        RecordingHandler handler = new RecordingHandler();
+        TunnelConn conn = open(300, handler);
+        conn.write(utf8("hello"));
+        await().atMost(5, SECONDS).until(() -> handler.text().equals("hello"));
+
+        server.close();
+
+        await().atMost(5, SECONDS).untilTrue(handler.closed);
+        assertFalse(handler.errors.isEmpty());
+    }
+
+    @Test
+    void handsThePayloadToTheTransportWithoutCopyingIt() {
+        RecordingConn transport = new RecordingConn();
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_RESUME", "true"));
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        TunnelConn conn = ResumableTunnel.open(new RecordingHandler(),
+                connection -> CompletableFuture.completedFuture(transport), settings, timer)
+                .toCompletableFuture().join();
+        ByteBuf payload = Unpooled.directBuffer().writeBytes(utf8("hello"));
+
+        conn.write(payload);
+
+        // The resume frame, then the data frame as its header and the payload itself.
+        assertEquals(3, transport.written.size());
+        ByteBuf header = transport.written.get(1);
+        assertEquals(ResumableTunnel.TYPE_DATA, header.getByte(0));
+        assertEquals(5, header.getInt(1));
+        assertSame(payload, transport.written.get(2));
+        conn.close();
+        timer.shutdownNow();
+    }
+
+    private TunnelConn open(long graceMillis, RecordingHandler handler) {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_RESUME", "true",
+                "CONNECT_TUNNEL_RESUME_GRACE_MILLIS", String.valueOf(graceMillis)));
+        tunneler = new Tunneler(Set.of(new NettyWebSocketTunnelTransport(
+                () -> Headers.of("Authorization", "Bearer T-test"), settings)), settings);
+        Session session = Session.newBuilder()
+                .setId("session-1")
+                .setTunnelServiceAddr(server.url())
+                .build();
+        return tunneler.tunnelAsync(session, handler).toCompletableFuture().join();
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class RecordingConn extends TunnelConn {
+        private final List<ByteBuf> written = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void write(byte[] data) {
+            written.add(Unpooled.wrappedBuffer(data));
+        }
+
+        @Override
+        public void write(ByteBuf data) {
+            written.add(data);
+        }
+
+        @Override
+        public void close(Throwable t) {
+        }
+
+        @Override
+        public boolean opened() {
+            return true;
+        }
+    }
+
+    private static final class RecordingHandler implements TunnelConn.Handler {
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private TunnelMemoryBudget.Account account;
+
+        @Override
+        public synchronized void onReceive(byte[] data) {
+            received.writeBytes(data);
+        }
+
+        @Override
+        public void onReceive(ByteBuf data) {
+            try {
+                onReceive(ByteBufUtil.getBytes(data));
+            } finally {
+                data.release();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            errors.add(t);
+        }
+
+        @Override
+        public void onClose() {
+            closed.set(true);
+        }
+
+        @Override
+        public TunnelMemoryBudget.Account memoryAccount() {
+            return account;
+        }
+
+        synchronized String text() {
+            return received.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
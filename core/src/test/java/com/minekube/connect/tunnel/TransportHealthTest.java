@@ -0,0 +1,111 @@
+package com.minekube.connect.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport.Type;
+import org.junit.jupiter.api.Test;
+
+class TransportHealthTest {
+    private static final String LIBP2P = "/ip4/127.0.0.1/tcp/1/p2p/test";
+    private static final String WEBSOCKET = "ws://connect.example/tunnel";
+
+    private final AtomicLong now = new AtomicLong();
+    private final TransportHealth health = new TransportHealth(TunnelSettings.fromEnvironment(Map.of(
+            "CONNECT_TUNNEL_BREAKER_FAILURES", "2",
+            "CONNECT_TUNNEL_BREAKER_COOLDOWN_MILLIS", "1000")), now::get);
+
+    @Test
+    void opensTheCircuitAfterConsecutiveFailuresAndProbesAfterTheCooldown() {
+        health.failed(Type.TYPE_LIBP2P, LIBP2P);
+        assertTrue(health.allow(Type.TYPE_LIBP2P, LIBP2P));
+
+        health.failed(Type.TYPE_LIBP2P, LIBP2P);
+        assertTrue(health.circuitOpen(Type.TYPE_LIBP2P, LIBP2P));
+        assertFalse(health.allow(Type.TYPE_LIBP2P, LIBP2P));
+
+        advanceMillis(1000);
+        assertTrue(health.allow(Type.TYPE_LIBP2P, LIBP2P));
+        assertFalse(health.allow(Type.TYPE_LIBP2P, LIBP2P), "only one probe per cool-down");
+
+        health.succeeded(Type.TYPE_LIBP2P, LIBP2P, TimeUnit.MILLISECONDS.toNanos(20));
+        assertFalse(health.circuitOpen(Type.TYPE_LIBP2P, LIBP2P));
+        assertTrue(health.allow(Type.TYPE_LIBP2P, LIBP2P));
+    }
+
+    @Test
+    void costReflectsLatencyAndFailures() {
+        health.succeeded(Type.TYPE_LIBP2P, LIBP2P, TimeUnit.MILLISECONDS.toNanos(10));
+        health.succeeded(Type.TYPE_WEBSOCKET, WEBSOCKET, TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(health.cost(Type.TYPE_LIBP2P, LIBP2P) < health.cost(Type.TYPE_WEBSOCKET, WEBSOCKET));
+
+        health.failed(Type.TYPE_LIBP2P, LIBP2P);
+        assertTrue(health.cost(Type.TYPE_LIBP2P, LIBP2P) > health.cost(Type.TYPE_WEBSOCKET, WEBSOCKET));
+
+        List<TransportHealth.Score> scores = health.scores();
+        assertEquals(Type.TYPE_WEBSOCKET, scores.get(0).type());
+        assertEquals(Type.TYPE_LIBP2P, scores.get(1).type());
+        assertEquals(10, scores.get(1).latencyMillis(), 0.001);
+        assertEquals(1, scores.get(1).consecutiveFailures());
+    }
+
+    @Test
+    void averagesTheOpenLatency() {
+        health.succeeded(Type.TYPE_WEBSOCKET, WEBSOCKET, TimeUnit.MILLISECONDS.toNanos(100));
+        health.succeeded(Type.TYPE_WEBSOCKET, WEBSOCKET, TimeUnit.MILLISECONDS.toNanos(200));
+
+        assertEquals(100 + TransportHealth.ALPHA * 100, health.scores().get(0).latencyMillis(), 0.001);
+    }
+
+    @Test
+    void failureRateDecaysWithoutNewFailures() {
+        health.failed(Type.TYPE_LIBP2P, LIBP2P);
+        assertEquals(TransportHealth.ALPHA, health.scores().get(0).failureRate(), 0.001);
+
+        advanceMillis(1000);
+        assertEquals(TransportHealth.ALPHA / 2, health.scores().get(0).failureRate(), 0.001);
+    }
+
+    @Test
+    void unknownTransportsCostNothing() {
+        assertEquals(0, health.cost(Type.TYPE_LIBP2P, LIBP2P));
+        assertTrue(health.allow(Type.TYPE_LIBP2P, LIBP2P));
+        assertTrue(health.scores().isEmpty());
+    }
+
+    @Test
+    void unknownTransportsCostTheMedianOfKnownOnes() {
+        health.succeeded(Type.TYPE_LIBP2P, LIBP2P, TimeUnit.MILLISECONDS.toNanos(40));
+
+        // A new address must not jump ahead of a preferred transport that works.
+        assertEquals(40, health.cost(Type.TYPE_WEBSOCKET, WEBSOCKET), 0.001);
+
+        health.succeeded(Type.TYPE_WEBSOCKET, "ws://other.example/tunnel",
+                TimeUnit.MILLISECONDS.toNanos(60));
+        health.succeeded(Type.TYPE_WEBSOCKET, "ws://third.example/tunnel",
+                TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(60, health.cost(Type.TYPE_WEBSOCKET, WEBSOCKET), 0.001);
+    }
+
+    @Test
+    void forgetsAddressesWithoutRecentAttempts() {
+        health.succeeded(Type.TYPE_LIBP2P, LIBP2P, TimeUnit.MILLISECONDS.toNanos(40));
+        advanceMillis(1000);
+        health.succeeded(Type.TYPE_WEBSOCKET, WEBSOCKET, TimeUnit.MILLISECONDS.toNanos(60));
+
+        advanceMillis(TransportHealth.STALE_COOLDOWNS * 1000 - 1000);
+        health.cost(Type.TYPE_WEBSOCKET, WEBSOCKET);
+
+        assertEquals(1, health.size());
+        assertEquals(Type.TYPE_WEBSOCKET, health.scores().get(0).type());
+    }
+
+    private void advanceMillis(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
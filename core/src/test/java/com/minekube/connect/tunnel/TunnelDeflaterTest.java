@@ -0,0 +1,106 @@
+package com.minekube.connect.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.Inflater;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TunnelDeflaterTest {
+    private final TunnelDeflater deflater = new TunnelDeflater(false);
+
+    @AfterEach
+    void tearDown() {
+        deflater.close();
+    }
+
+    @Test
+    void compressesMessagesThatInflateBackWithTheSharedContext() throws Exception {
+        byte[] chunk = new byte[4096];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) (i % 7);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            for (int message = 0; message < 3; message++) {
+                ByteBuf deflated = deflater.deflate(
+                        ByteBufAllocator.DEFAULT, Unpooled.copiedBuffer(chunk));
+                assertNotNull(deflated);
+                assertArrayEquals(chunk, inflate(inflater, deflated));
+            }
+        } finally {
+            inflater.end();
+        }
+        assertTrue(deflater.bytesOut() < deflater.bytesIn() / 10);
+    }
+
+    @Test
+    void leavesSmallMessagesAlone() {
+        ByteBuf small = Unpooled.copiedBuffer(new byte[16]);
+
+        assertNull(deflater.deflate(ByteBufAllocator.DEFAULT, small));
+        assertTrue(small.release());
+    }
+
+    @Test
+    void switchesOffForIncompressiblePayloadsAndProbesAgainLater() {
+        Random random = new Random(42);
+        byte[] noise = new byte[4096];
+        int sent = 0;
+        while (sent < TunnelDeflater.SAMPLE_BYTES) {
+            random.nextBytes(noise);
+            deflater.deflate(ByteBufAllocator.DEFAULT, Unpooled.copiedBuffer(noise)).release();
+            sent += noise.length;
+        }
+        assertFalse(deflater.enabled());
+
+        int skipped = 0;
+        while (skipped + noise.length < TunnelDeflater.PROBE_INTERVAL_BYTES) {
+            ByteBuf payload = Unpooled.copiedBuffer(noise);
+            assertNull(deflater.deflate(ByteBufAllocator.DEFAULT, payload));
+            payload.release();
+            skipped += noise.length;
+        }
+        ByteBuf probe = deflater.deflate(ByteBufAllocator.DEFAULT, Unpooled.copiedBuffer(noise));
+        assertNotNull(probe);
+        probe.release();
+        assertTrue(deflater.enabled());
+    }
+
+    @Test
+    void negotiatesFromTheHandshakeResponse() {
+        assertNull(TunnelDeflater.negotiated(null));
+        assertNull(TunnelDeflater.negotiated("x-webkit-deflate-frame"));
+        TunnelDeflater negotiated = TunnelDeflater.negotiated(
+                "x-custom, Permessage-Deflate; client_no_context_takeover");
+        assertNotNull(negotiated);
+        negotiated.close();
+    }
+
+    private static byte[] inflate(Inflater inflater, ByteBuf deflated) throws Exception {
+        byte[] input = ByteBufUtil.getBytes(deflated);
+        deflated.release();
+        byte[] withTail = new byte[input.length + 4];
+        System.arraycopy(input, 0, withTail, 0, input.length);
+        withTail[input.length + 2] = (byte) 0xFF;
+        withTail[input.length + 3] = (byte) 0xFF;
+        inflater.setInput(withTail);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = inflater.inflate(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,50 @@
+package com.minekube.connect.tunnel;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.channel.DefaultEventLoop;
+import io.netty.resolver.AddressResolver;
+import io.netty.util.concurrent.Future;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TunnelHostResolverTest {
+    private final Queue<Runnable> lookups = new ArrayDeque<>();
+    private final TunnelHostResolver resolver = new TunnelHostResolver(lookups::add);
+    private final DefaultEventLoop loop = new DefaultEventLoop();
+
+    @AfterEach
+    void tearDown() {
+        resolver.close();
+        loop.shutdownGracefully(0, 5, SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    void looksHostsUpOnTheLookupExecutor() throws Exception {
+        AddressResolver<InetSocketAddress> addresses = resolver.getResolver(loop);
+
+        Future<InetSocketAddress> resolved =
+                addresses.resolve(InetSocketAddress.createUnresolved("localhost", 443));
+
+        assertFalse(resolved.isDone());
+        assertEquals(1, lookups.size());
+        lookups.poll().run();
+        InetSocketAddress address = resolved.get(5, SECONDS);
+        assertFalse(address.isUnresolved());
+        assertEquals(443, address.getPort());
+    }
+
+    @Test
+    void passesResolvedAddressesStraightThrough() {
+        AddressResolver<InetSocketAddress> addresses = resolver.getResolver(loop);
+
+        assertTrue(addresses.resolve(new InetSocketAddress("127.0.0.1", 80)).isSuccess());
+        assertTrue(lookups.isEmpty());
+    }
+}
@@ -0,0 +1,148 @@
+package com.minekube.connect.tunnel;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class TunnelMemoryBudgetTest {
+
+    @Test
+    void chargesSessionsAndTheGlobalPool() {
+        TunnelMemoryBudget budget = new TunnelMemoryBudget(1000);
+        TunnelMemoryBudget.Account first = budget.open("first");
+        TunnelMemoryBudget.Account second = budget.open("second");
+
+        first.charge(100);
+        second.charge(300);
+        first.release(40);
+
+        assertEquals(60, first.bytes());
+        assertEquals(360, budget.usedBytes());
+        assertEquals("second", budget.usage().get(0).sessionId());
+        assertEquals(300, budget.usage().get(0).bytes());
+    }
+
+    @Test
+    void closingAnAccountGivesBackWhatItStillHolds() {
+        TunnelMemoryBudget budget = new TunnelMemoryBudget(1000);
+        TunnelMemoryBudget.Account account = budget.open("session");
+        account.charge(200);
+
+        account.close();
+        // Buffers released after the session ended must not be given back twice.
+        account.release(200);
+
+        assertEquals(0, budget.usedBytes());
+        assertTrue(budget.usage().isEmpty());
+    }
+
+    @Test
+    void asksSessionsToPauseAboveTheLimitUntilUsageFellBelowThreeQuarters() {
+        TunnelMemoryBudget budget = new TunnelMemoryBudget(1000);
+        List<Boolean> pressure = new ArrayList<>();
+        TunnelMemoryBudget.Account account = budget.open("session");
+        account.listen(() -> pressure.add(account.pressured()), () -> { });
+
+        account.charge(1001);
+        assertTrue(account.pressured());
+
+        account.release(200);
+        assertTrue(account.pressured());
+
+        account.release(100);
+        assertFalse(account.pressured());
+        assertEquals(List.of(true, false), pressure);
+    }
+
+    @Test
+    void shedsTheLargestSessionOnceUsageOvershootsTheLimit() {
+        TunnelMemoryBudget budget = new TunnelMemoryBudget(1000);
+        AtomicInteger smallShed = new AtomicInteger();
+        AtomicInteger largeShed = new AtomicInteger();
+        TunnelMemoryBudget.Account small = budget.open("small");
+        TunnelMemoryBudget.Account large = budget.open("large");
+        small.listen(() -> { }, smallShed::incrementAndGet);
+        large.listen(() -> { }, largeShed::incrementAndGet);
+
+        small.charge(200);
+        large.charge(1000);
+        large.charge(100);
+
+        assertEquals(0, smallShed.get());
+        assertEquals(1, largeShed.get());
+
+        // Nothing else is shed while the shed session still holds its bytes.
+        small.charge(100);
+        assertEquals(0, smallShed.get());
+
+        large.close();
+        small.charge(1200);
+        assertEquals(1, smallShed.get());
+    }
+
+    @Test
+    void chargesBuffersUntilTheyAreReleased() {
+        TunnelMemoryBudget budget = new TunnelMemoryBudget(1000);
+        TunnelMemoryBudget.Account account = budget.open("session");
+        CompositeByteBuf composite = Unpooled.compositeBuffer()
+                .addComponents(true, Unpooled.directBuffer().writeInt(1),
+                        Unpooled.directBuffer().writeInt(2));
+
+        ByteBuf exclusive = account.charged(Unpooled.directBuffer().writeLong(3));
+        ByteBuf merged = account.charged(composite);
+        assertEquals(16, account.bytes());
+        assertFalse(exclusive.isReadOnly());
+        assertEquals(2, merged.getInt(4));
+
+        exclusive.release();
+        merged.release();
+        assertEquals(0, account.bytes());
+        assertEquals(0, composite.refCnt());
+    }
+
+    @Test
+    void leavesTheChargedBufferTraceableToItsOwner() {
+        TunnelMemoryBudget budget = new TunnelMemoryBudget(1000);
+        TunnelMemoryBudget.Account account = budget.open("session");
+        ByteBuf data = Unpooled.directBuffer().writeLong(1);
+        ByteBuf slice = data.retainedSlice();
+
+        ByteBuf charged = account.charged(slice);
+
+        assertSame(slice, BorrowedByteBuf.owner(charged));
+        charged.release();
+        assertEquals(0, account.bytes());
+        assertEquals(1, data.refCnt());
+        data.release();
+    }
+
+    @Test
+    void shedsAStuckSessionWhenPressureOutlastsTheDeadline() {
+        TunnelMemoryBudget budget = new TunnelMemoryBudget(1000, 50);
+        AtomicInteger healthyShed = new AtomicInteger();
+        TunnelMemoryBudget.Account healthy = budget.open("healthy");
+        TunnelMemoryBudget.Account stuck = budget.open("stuck");
+        healthy.listen(() -> { }, healthyShed::incrementAndGet);
+        stuck.listen(() -> { }, stuck::close);
+
+        // Its peer stopped reading, so it pins usage between the limit and the shed threshold.
+        healthy.charge(100);
+        stuck.charge(1000);
+        assertTrue(healthy.pressured());
+
+        await().atMost(5, SECONDS).until(() -> !healthy.pressured());
+        assertEquals(100, budget.usedBytes());
+        assertEquals(0, healthyShed.get());
+    }
+}
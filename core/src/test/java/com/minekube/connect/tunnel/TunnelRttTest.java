@@ -0,0 +1,46 @@
+package com.minekube.connect.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class TunnelRttTest {
+
+    @Test
+    void startsAtTheFirstSampleAndMovesAnEighthTowardsEachNextOne() {
+        TunnelRtt rtt = new TunnelRtt();
+
+        rtt.record(millis(80));
+        assertEquals(millis(80), rtt.averageNanos());
+
+        rtt.record(millis(160));
+        assertEquals(millis(90), rtt.averageNanos());
+        assertEquals(millis(80), rtt.minNanos());
+        assertEquals(millis(160), rtt.maxNanos());
+        assertEquals(2, rtt.samples());
+    }
+
+    @Test
+    void ignoresNegativeSamples() {
+        TunnelRtt rtt = new TunnelRtt();
+
+        rtt.record(-1);
+
+        assertEquals(0, rtt.samples());
+        assertEquals("samples=0", rtt.toString());
+    }
+
+    @Test
+    void formatsSamplesInMillis() {
+        TunnelRtt rtt = new TunnelRtt();
+
+        rtt.record(TimeUnit.MICROSECONDS.toNanos(12_345));
+
+        assertEquals("avg=12.3ms min=12.3ms max=12.3ms samples=1", rtt.toString());
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,235 @@
+package com.minekube.connect.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.minekube.connect.tunnel.TunnelSettings.TlsProvider;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class TunnelSettingsTest {
+
+    @Test
+    void defaultsKeepTheDataPathUnchanged() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of());
+
+        assertFalse(settings.coalesceWrites());
+        assertEquals(32 * 1024, settings.coalesceMaxFrameBytes());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(250), settings.coalesceLatencyBudgetNanos());
+        assertFalse(settings.nettyWebSocket());
+        assertFalse(settings.multiplexTunnels());
+        assertFalse(settings.raceTransports());
+        assertEquals(250, settings.raceStaggerMillis());
+        assertEquals(3, settings.breakerFailures());
+        assertEquals(30_000, settings.breakerCooldownMillis());
+        assertTrue(settings.memoryBudgetBytes() >= 64 * 1024 * 1024);
+        assertFalse(settings.directInjection());
+        assertFalse(settings.resumeTunnels());
+        assertEquals(10_000, settings.resumeGraceMillis());
+        assertEquals(1024 * 1024, settings.resumeBufferBytes());
+        assertEquals(10_000, settings.rttProbeMillis());
+        assertEquals(0, settings.warmPoolSize());
+        assertEquals(30_000, settings.warmPoolIdleMillis());
+        assertEquals(0, settings.streamPoolSize());
+        assertEquals(1, settings.stripes());
+        assertFalse(settings.quic());
+        assertFalse(settings.yamuxAutotune());
+        assertEquals(16 * 1024 * 1024, settings.yamuxMaxWindowBytes());
+        assertEquals(64 * 1024 * 1024, settings.yamuxWindowBudgetBytes());
+        assertFalse(settings.fairWrites());
+        assertFalse(settings.compressTunnels());
+        assertFalse(settings.impairTunnels());
+        assertEquals(TlsProvider.AUTO, settings.tlsProvider());
+        assertEquals(1024, settings.tlsSessionCacheSize());
+    }
+
+    @Test
+    void parsesCoalescingSettings() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_COALESCE_WRITES", " true ",
+                "CONNECT_TUNNEL_COALESCE_MAX_FRAME_BYTES", "8192",
+                "CONNECT_TUNNEL_COALESCE_LATENCY_BUDGET_MICROS", "50"));
+
+        assertTrue(settings.coalesceWrites());
+        assertEquals(8192, settings.coalesceMaxFrameBytes());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(50), settings.coalesceLatencyBudgetNanos());
+    }
+
+    @Test
+    void keepsTheLowWaterMarkBelowTheHighWaterMark() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_HIGH_WATER_MARK_BYTES", "1000",
+                "CONNECT_TUNNEL_LOW_WATER_MARK_BYTES", "4000"));
+
+        assertEquals(1000, settings.highWaterMarkBytes());
+        assertEquals(500, settings.lowWaterMarkBytes());
+    }
+
+    @Test
+    void fallsBackToDefaultsForInvalidValues() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_COALESCE_MAX_FRAME_BYTES", "0",
+                "CONNECT_TUNNEL_COALESCE_LATENCY_BUDGET_MICROS", "soon"));
+
+        assertEquals(32 * 1024, settings.coalesceMaxFrameBytes());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(250), settings.coalesceLatencyBudgetNanos());
+    }
+
+    @Test
+    void optsIntoTheNettyWebSocketTransport() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_NETTY_WEBSOCKET", "1",
+                "CONNECT_TUNNEL_MULTIPLEX", "true"));
+
+        assertTrue(settings.nettyWebSocket());
+        assertTrue(settings.multiplexTunnels());
+    }
+
+    @Test
+    void optsIntoDirectPipelineInjection() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_DIRECT_INJECTION", "true"));
+
+        assertTrue(settings.directInjection());
+    }
+
+    @Test
+    void parsesTransportRacingSettings() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_RACE_TRANSPORTS", "true",
+                "CONNECT_TUNNEL_RACE_STAGGER_MILLIS", "100"));
+
+        assertTrue(settings.raceTransports());
+        assertEquals(100, settings.raceStaggerMillis());
+    }
+
+    @Test
+    void parsesCircuitBreakerSettings() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_BREAKER_FAILURES", "5",
+                "CONNECT_TUNNEL_BREAKER_COOLDOWN_MILLIS", "0"));
+
+        assertEquals(5, settings.breakerFailures());
+        assertEquals(30_000, settings.breakerCooldownMillis());
+    }
+
+    @Test
+    void parsesTheMemoryBudget() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_MEMORY_BUDGET_BYTES", "1048576"));
+
+        assertEquals(1024 * 1024, settings.memoryBudgetBytes());
+    }
+
+    @Test
+    void parsesResumeSettings() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_RESUME", "true",
+                "CONNECT_TUNNEL_RESUME_GRACE_MILLIS", "2500",
+                "CONNECT_TUNNEL_RESUME_BUFFER_BYTES", "65536"));
+
+        assertTrue(settings.resumeTunnels());
+        assertEquals(2500, settings.resumeGraceMillis());
+        assertEquals(64 * 1024, settings.resumeBufferBytes());
+    }
+
+    @Test
+    void disablesRttProbesWithZero() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_RTT_PROBE_MILLIS", "0"));
+
+        assertEquals(0, settings.rttProbeMillis());
+    }
+
+    @Test
+    void parsesWarmPoolSettings() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_WARM_POOL_SIZE", "2",
+                "CONNECT_TUNNEL_WARM_POOL_IDLE_MILLIS", "5000",
+                "CONNECT_TUNNEL_STREAM_POOL_SIZE", "8"));
+
+        assertEquals(2, settings.warmPoolSize());
+        assertEquals(5000, settings.warmPoolIdleMillis());
+        assertEquals(8, settings.streamPoolSize());
+    }
+
+    @Test
+    void parsesLibp2pDialSettings() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_STRIPES", "4",
+                "CONNECT_TUNNEL_QUIC", "true"));
+
+        assertEquals(4, settings.stripes());
+        assertTrue(settings.quic());
+    }
+
+    @Test
+    void parsesYamuxAutotuningSettings() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_YAMUX_AUTOTUNE", "true",
+                "CONNECT_TUNNEL_YAMUX_MAX_WINDOW_BYTES", "8589934592",
+                "CONNECT_TUNNEL_YAMUX_WINDOW_BUDGET_BYTES", "1048576"));
+
+        assertTrue(settings.yamuxAutotune());
+        assertEquals(Integer.MAX_VALUE, settings.yamuxMaxWindowBytes());
+        assertEquals(1024 * 1024, settings.yamuxWindowBudgetBytes());
+    }
+
+    @Test
+    void optsIntoCompressionAndFairWrites() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_COMPRESSION", "true",
+                "CONNECT_TUNNEL_FAIR_WRITES", "true"));
+
+        assertTrue(settings.compressTunnels());
+        assertTrue(settings.fairWrites());
+    }
+
+    @Test
+    void parsesImpairmentSettings() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_IMPAIR_ENABLED", "true",
+                "CONNECT_TUNNEL_IMPAIR_LATENCY_MILLIS", "40",
+                "CONNECT_TUNNEL_IMPAIR_JITTER_MILLIS", "10",
+                "CONNECT_TUNNEL_IMPAIR_BANDWIDTH_BYTES_PER_SECOND", "125000",
+                "CONNECT_TUNNEL_IMPAIR_REORDER_PERCENT", "150",
+                "CONNECT_TUNNEL_IMPAIR_DROP_AFTER_MILLIS", "60000"));
+
+        assertTrue(settings.impairTunnels());
+        assertEquals(40, settings.impairLatencyMillis());
+        assertEquals(10, settings.impairJitterMillis());
+        assertEquals(125_000, settings.impairBandwidthBytesPerSecond());
+        assertEquals(100, settings.impairReorderPercent());
+        assertEquals(60_000, settings.impairDropAfterMillis());
+        assertEquals("latency=40ms jitter=10ms bandwidth=125000B/s reorder=100% dropAfter=60000ms",
+                settings.impairments());
+    }
+
+    @Test
+    void ignoresImpairmentsUnlessExplicitlyEnabled() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_IMPAIR_LATENCY_MILLIS", "40"));
+
+        assertFalse(settings.impairTunnels());
+    }
+
+    @Test
+    void parsesTlsSettings() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_TLS_PROVIDER", " OpenSSL ",
+                "CONNECT_TUNNEL_TLS_SESSION_CACHE_SIZE", "64"));
+
+        assertEquals(TlsProvider.OPENSSL, settings.tlsProvider());
+        assertEquals(64, settings.tlsSessionCacheSize());
+    }
+
+    @Test
+    void fallsBackToAutoForUnknownTlsProviders() {
+        TunnelSettings settings = TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_TLS_PROVIDER", "wolfssl"));
+
+        assertEquals(TlsProvider.AUTO, settings.tlsProvider());
+    }
+}
@@ -0,0 +1,41 @@
+package com.minekube.connect.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.minekube.connect.tunnel.TunnelSettings.TlsProvider;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import java.security.Security;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class TunnelTlsTest {
+
+    @Test
+    void fallsBackToTheJdkWithoutNativeEngines() {
+        assumeFalse(OpenSsl.isAvailable());
+        assumeTrue(Security.getProvider("Conscrypt") == null);
+
+        assertEquals(TlsProvider.JDK, TunnelTls.resolve(TlsProvider.AUTO));
+        assertEquals(TlsProvider.JDK, TunnelTls.resolve(TlsProvider.OPENSSL));
+        assertEquals(TlsProvider.JDK, TunnelTls.resolve(TlsProvider.CONSCRYPT));
+    }
+
+    @Test
+    void keepsTheJdkWhenAskedFor() {
+        assertEquals(TlsProvider.JDK, TunnelTls.resolve(TlsProvider.JDK));
+    }
+
+    @Test
+    void cachesSessionsForResumption() {
+        SslContext context = TunnelTls.clientContext(TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_TLS_PROVIDER", "jdk",
+                "CONNECT_TUNNEL_TLS_SESSION_CACHE_SIZE", "16")));
+
+        assertTrue(context.isClient());
+        assertEquals(16, context.sessionCacheSize());
+    }
+}
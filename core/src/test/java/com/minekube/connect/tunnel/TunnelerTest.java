@@ -6,14 +6,19 @@ import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicReference;
 import minekube.connect.v1alpha1.WatchServiceOuterClass.Session;
 import minekube.connect.v1alpha1.WatchServiceOuterClass.TunnelTransport;
@@ -172,6 +177,242 @@ class TunnelerTest {
                 websocket.args);
     }
 
+    @Test
+    void tunnelAsyncDoesNotWaitForPendingTransport() {
+        RecordingTransport libp2p = new RecordingTransport(Type.TYPE_LIBP2P);
+        libp2p.pending = new CompletableFuture<>();
+        OpenConn expected = new OpenConn();
+        Tunneler tunneler = new Tunneler(libp2p);
+
+        CompletableFuture<TunnelConn> actual = tunneler.tunnelAsync(session(
+                "session-async",
+                "",
+                transport(Type.TYPE_LIBP2P, "/ip4/127.0.0.1/tcp/1/p2p/test")
+        ), new CapturingHandler()).toCompletableFuture();
+
+        assertFalse(actual.isDone());
+        libp2p.pending.complete(expected);
+        assertSame(expected, actual.join());
+    }
+
+    @Test
+    void tunnelAsyncFallsBackOnceAdvertisedTransportFails() {
+        RecordingTransport websocket = new RecordingTransport(Type.TYPE_WEBSOCKET);
+        RecordingTransport libp2p = new RecordingTransport(Type.TYPE_LIBP2P);
+        libp2p.pending = new CompletableFuture<>();
+        OpenConn expected = new OpenConn();
+        websocket.next = expected;
+        Tunneler tunneler = new Tunneler(new HashSet<>(Arrays.asList(websocket, libp2p)));
+
+        CompletableFuture<TunnelConn> actual = tunneler.tunnelAsync(session(
+                "session-async-fallback",
+                "ws://connect.example/fallback",
+                transport(Type.TYPE_LIBP2P, "/ip4/127.0.0.1/tcp/1/p2p/test")
+        ), new CapturingHandler()).toCompletableFuture();
+
+        assertNull(websocket.args);
+        libp2p.pending.completeExceptionally(new IllegalStateException("stale libp2p peer"));
+        assertSame(expected, actual.join());
+        assertArrayEquals(new String[] {"ws://connect.example/fallback", "session-async-fallback"},
+                websocket.args);
+    }
+
+    @Test
+    void racingStartsTheFallbackAfterTheStaggerAndCancelsTheLoser() throws Exception {
+        RecordingTransport websocket = new RecordingTransport(Type.TYPE_WEBSOCKET);
+        RecordingTransport libp2p = new RecordingTransport(Type.TYPE_LIBP2P);
+        libp2p.pending = new CompletableFuture<>();
+        OpenConn expected = new OpenConn();
+        websocket.next = expected;
+        CapturingHandler handler = new CapturingHandler();
+        Tunneler tunneler = racingTunneler(20, websocket, libp2p);
+
+        TunnelConn actual = tunneler.tunnelAsync(session(
+                "session-race",
+                "ws://connect.example/fallback",
+                transport(Type.TYPE_LIBP2P, "/ip4/127.0.0.1/tcp/1/p2p/test")
+        ), handler).toCompletableFuture().get(5, SECONDS);
+
+        assertSame(expected, actual);
+        libp2p.handler.onReceive(new byte[] {1});
+        assertNull(handler.received.get());
+        websocket.handler.onReceive(new byte[] {2});
+        assertArrayEquals(new byte[] {2}, handler.received.get());
+
+        // Cancelled before it could claim the session, not left to finish its dial.
+        assertTrue(libp2p.pending.isCancelled());
+        assertFalse(expected.closed);
+        tunneler.close();
+    }
+
+    @Test
+    void racingClosesALoserThatResolvedWithoutOpening() throws Exception {
+        RecordingTransport websocket = new RecordingTransport(Type.TYPE_WEBSOCKET);
+        RecordingTransport libp2p = new RecordingTransport(Type.TYPE_LIBP2P);
+        libp2p.pending = new CompletableFuture<>();
+        OpenConn expected = new OpenConn();
+        websocket.next = expected;
+        Tunneler tunneler = racingTunneler(20, websocket, libp2p);
+        CompletableFuture<TunnelConn> actual = tunneler.tunnelAsync(session(
+                "session-race-resolved",
+                "ws://connect.example/fallback",
+                transport(Type.TYPE_LIBP2P, "/ip4/127.0.0.1/tcp/1/p2p/test")
+        ), new CapturingHandler()).toCompletableFuture();
+        ConnectingConn connecting = new ConnectingConn();
+        libp2p.pending.complete(connecting);
+
+        assertSame(expected, actual.get(5, SECONDS));
+        assertTrue(connecting.closed);
+        tunneler.close();
+    }
+
+    @Test
+    void handsDataReceivedBeforeTheRaceWasDecidedToTheWinner() throws Exception {
+        RecordingTransport libp2p = new RecordingTransport(Type.TYPE_LIBP2P);
+        libp2p.pending = new CompletableFuture<>();
+        CapturingHandler handler = new CapturingHandler();
+        Tunneler tunneler = new Tunneler(libp2p);
+
+        CompletableFuture<TunnelConn> actual = tunneler.tunnelAsync(session(
+                "session-early-data",
+                "",
+                transport(Type.TYPE_LIBP2P, "/ip4/127.0.0.1/tcp/1/p2p/test")
+        ), handler).toCompletableFuture();
+        // The service answered the header before the stream open resolved.
+        libp2p.handler.onReceive(new byte[] {7});
+        assertNull(handler.received.get());
+
+        libp2p.pending.complete(new OpenConn());
+
+        assertNotNull(actual.get(5, SECONDS));
+        assertArrayEquals(new byte[] {7}, handler.received.get());
+        libp2p.handler.onReceive(new byte[] {8});
+        assertArrayEquals(new byte[] {8}, handler.received.get());
+    }
+
+    @Test
+    void racingKeepsThePreferredTransportWhenItOpensWithinTheStagger() throws Exception {
+        RecordingTransport websocket = new RecordingTransport(Type.TYPE_WEBSOCKET);
+        RecordingTransport libp2p = new RecordingTransport(Type.TYPE_LIBP2P);
+        OpenConn expected = new OpenConn();
+        libp2p.next = expected;
+        websocket.next = new OpenConn();
+        Tunneler tunneler = racingTunneler(60_000, websocket, libp2p);
+
+        TunnelConn actual = tunneler.tunnelAsync(session(
+                "session-race-preferred",
+                "ws://connect.example/fallback",
+                transport(Type.TYPE_LIBP2P, "/ip4/127.0.0.1/tcp/1/p2p/test")
+        ), new CapturingHandler()).toCompletableFuture().get(5, SECONDS);
+
+        assertSame(expected, actual);
+        assertNull(websocket.args);
+        tunneler.close();
+    }
+
+    @Test
+    void racingStartsTheNextCandidateRightAwayWhenOneFails() throws Exception {
+        RecordingTransport websocket = new RecordingTransport(Type.TYPE_WEBSOCKET);
+        RecordingTransport libp2p = new RecordingTransport(Type.TYPE_LIBP2P);
+        libp2p.tunnelFailure = new IllegalStateException("stale libp2p peer");
+        OpenConn expected = new OpenConn();
+        websocket.next = expected;
+        Tunneler tunneler = racingTunneler(60_000, websocket, libp2p);
+
+        TunnelConn actual = tunneler.tunnelAsync(session(
+                "session-race-failure",
+                "ws://connect.example/fallback",
+                transport(Type.TYPE_LIBP2P, "/ip4/127.0.0.1/tcp/1/p2p/test")
+        ), new CapturingHandler()).toCompletableFuture().get(5, SECONDS);
+
+        assertSame(expected, actual);
+        tunneler.close();
+    }
+
+    @Test
+    void racingWaitsForATunnelToOpen() throws Exception {
+        RecordingTransport websocket = new RecordingTransport(Type.TYPE_WEBSOCKET);
+        TunnelConn connecting = new TunnelConn() {
+            @Override
+            public void write(byte[] data) {
+            }
+
+            @Override
+            public void close(Throwable t) {
+            }
+        };
+        websocket.next = connecting;
+        Tunneler tunneler = racingTunneler(20, websocket);
+
+        CompletableFuture<TunnelConn> actual = tunneler.tunnelAsync(session(
+                "session-race-open",
+                "ws://connect.example/fallback"
+        ), new CapturingHandler()).toCompletableFuture();
+
+        assertFalse(actual.isDone());
+        websocket.handler.onOpen();
+        assertSame(connecting, actual.get(5, SECONDS));
+        tunneler.close();
+    }
+
+    @Test
+    void skipsATransportWhoseCircuitIsOpen() {
+        RecordingTransport websocket = new RecordingTransport(Type.TYPE_WEBSOCKET);
+        RecordingTransport libp2p = new RecordingTransport(Type.TYPE_LIBP2P);
+        libp2p.tunnelFailure = new IllegalStateException("stale libp2p peer");
+        websocket.next = new OpenConn();
+        Tunneler tunneler = new Tunneler(new HashSet<>(Arrays.asList(websocket, libp2p)),
+                TunnelSettings.fromEnvironment(Map.of("CONNECT_TUNNEL_BREAKER_FAILURES", "1")));
+        Session session = session(
+                "session-breaker",
+                "ws://connect.example/fallback",
+                transport(Type.TYPE_LIBP2P, "/ip4/127.0.0.1/tcp/1/p2p/test")
+        );
+
+        tunneler.tunnel(session, new CapturingHandler());
+        tunneler.tunnel(session, new CapturingHandler());
+
+        assertEquals(1, libp2p.attempts);
+        assertEquals(2, websocket.attempts);
+        TransportHealth.Score libp2pScore = tunneler.transportScores().stream()
+                .filter(score -> score.type() == Type.TYPE_LIBP2P)
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+        assertTrue(libp2pScore.circuitOpen());
+    }
+
+    @Test
+    void triesTheCheaperTransportFirst() throws Exception {
+        RecordingTransport websocket = new RecordingTransport(Type.TYPE_WEBSOCKET);
+        RecordingTransport libp2p = new RecordingTransport(Type.TYPE_LIBP2P);
+        libp2p.pending = new CompletableFuture<>();
+        websocket.next = new OpenConn();
+        Tunneler tunneler = new Tunneler(new HashSet<>(Arrays.asList(websocket, libp2p)),
+                TunnelSettings.fromEnvironment(Map.of()));
+        Session session = session(
+                "session-score",
+                "ws://connect.example/fallback",
+                transport(Type.TYPE_LIBP2P, "/ip4/127.0.0.1/tcp/1/p2p/test")
+        );
+
+        CompletableFuture<TunnelConn> first = tunneler.tunnelAsync(session, new CapturingHandler())
+                .toCompletableFuture();
+        libp2p.pending.completeExceptionally(new IllegalStateException("stale libp2p peer"));
+        first.get(5, SECONDS);
+        libp2p.pending = new CompletableFuture<>();
+
+        tunneler.tunnelAsync(session, new CapturingHandler()).toCompletableFuture().get(5, SECONDS);
+
+        assertEquals(1, libp2p.attempts);
+        assertEquals(2, websocket.attempts);
+    }
+
+    private static Tunneler racingTunneler(long staggerMillis, TunnelClientTransport... transports) {
+        return new Tunneler(new HashSet<>(Arrays.asList(transports)), TunnelSettings.fromEnvironment(Map.of(
+                "CONNECT_TUNNEL_RACE_TRANSPORTS", "true",
+                "CONNECT_TUNNEL_RACE_STAGGER_MILLIS", Long.toString(staggerMillis))));
+    }
+
     @Test
     void receivesBinaryFrameFromTunnelService() throws Exception {
         byte[] sent = new byte[] {1, 2, 3, 4, 5};
@@ -335,6 +576,37 @@ class TunnelerTest {
         }
     }
 
+    private static final class ConnectingConn extends TunnelConn {
+        private volatile boolean closed;
+
+        @Override
+        public void write(byte[] data) {
+        }
+
+        @Override
+        public void close(Throwable t) {
+            closed = true;
+        }
+    }
+
+    private static final class OpenConn extends TunnelConn {
+        private volatile boolean closed;
+
+        @Override
+        public void write(byte[] data) {
+        }
+
+        @Override
+        public void close(Throwable t) {
+            closed = true;
+        }
+
+        @Override
+        public boolean opened() {
+            return true;
+        }
+    }
+
     private static Session session(String id, String tunnelServiceAddr, TunnelTransport... transports) {
         Session.Builder builder = Session.newBuilder()
                 .setId(id)
@@ -360,6 +632,8 @@ class TunnelerTest {
         private TunnelConn.Handler handler;
         private RuntimeException prepareFailure;
         private RuntimeException tunnelFailure;
+        private CompletableFuture<TunnelConn> pending;
+        private int attempts;
         private boolean closed;
 
         private RecordingTransport(Type type) {
@@ -381,6 +655,7 @@ class TunnelerTest {
 
         @Override
         public TunnelConn tunnel(String address, String sessionId, TunnelConn.Handler handler) {
+            attempts++;
             if (tunnelFailure != null) {
                 throw tunnelFailure;
             }
@@ -389,6 +664,20 @@ class TunnelerTest {
             return next;
         }
 
+        @Override
+        public CompletionStage<TunnelConn> tunnelAsync(
+                String address,
+                String sessionId,
+                TunnelConn.Handler handler) {
+            if (pending == null) {
+                return TunnelClientTransport.super.tunnelAsync(address, sessionId, handler);
+            }
+            attempts++;
+            this.args = new String[] {address, sessionId};
+            this.handler = handler;
+            return pending;
+        }
+
         @Override
         public void close() {
             closed = true;
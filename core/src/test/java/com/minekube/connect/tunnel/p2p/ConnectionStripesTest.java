@@ -0,0 +1,107 @@
+package com.minekube.connect.tunnel.p2p;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.libp2p.core.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class ConnectionStripesTest {
+    private final List<Integer> dials = new ArrayList<>();
+    private final List<Connection> connections = new ArrayList<>();
+
+    @Test
+    void assignsSessionsToTheLeastLoadedStripe() {
+        ConnectionStripes stripes = new ConnectionStripes(3, this::dial);
+
+        Connection first = stripes.acquire().join();
+        Connection second = stripes.acquire().join();
+        Connection third = stripes.acquire().join();
+        Connection fourth = stripes.acquire().join();
+
+        assertEquals(List.of(0, 1, 2), dials);
+        assertEquals(3, List.of(first, second, third).stream().distinct().count());
+        assertSame(first, fourth);
+        assertEquals(2, stripes.sessions(0));
+
+        stripes.release(second);
+        stripes.release(first);
+        stripes.release(first);
+        assertSame(first, stripes.acquire().join());
+        assertSame(second, stripes.acquire().join());
+    }
+
+    @Test
+    void redialsADeadStripeAndRoutesAroundItMeanwhile() {
+        List<CompletableFuture<Connection>> pending = new ArrayList<>();
+        ConnectionStripes stripes = new ConnectionStripes(2, index -> {
+            dials.add(index);
+            if (dials.size() <= 2) {
+                return CompletableFuture.completedFuture(connection());
+            }
+            CompletableFuture<Connection> redial = new CompletableFuture<>();
+            pending.add(redial);
+            return redial;
+        });
+        stripes.fill().join();
+        Connection stripe1 = connections.get(1);
+
+        ((CompletableFuture<?>) stripe1.closeFuture()).complete(null);
+
+        assertEquals(List.of(0, 1, 1), dials);
+        assertSame(connections.get(0), stripes.acquire().join());
+        assertSame(connections.get(0), stripes.acquire().join());
+
+        Connection replacement = connection();
+        pending.get(0).complete(replacement);
+        assertSame(replacement, stripes.acquire().join());
+    }
+
+    @Test
+    void waitsForTheFirstStripeBeforeAnyIsUp() {
+        CompletableFuture<Connection> primary = new CompletableFuture<>();
+        ConnectionStripes stripes = new ConnectionStripes(2, index -> {
+            dials.add(index);
+            return index == 0 ? primary : new CompletableFuture<>();
+        });
+
+        CompletableFuture<Connection> acquired = stripes.acquire();
+        assertFalse(acquired.isDone());
+
+        Connection connection = connection();
+        primary.complete(connection);
+        assertSame(connection, acquired.join());
+        assertEquals(1, stripes.sessions(0));
+    }
+
+    @Test
+    void closingClosesOnlyTheExtraStripes() {
+        ConnectionStripes stripes = new ConnectionStripes(2, this::dial);
+        stripes.fill().join();
+
+        stripes.close();
+
+        verify(connections.get(0), never()).close();
+        verify(connections.get(1)).close();
+    }
+
+    private CompletableFuture<Connection> dial(int index) {
+        dials.add(index);
+        return CompletableFuture.completedFuture(connection());
+    }
+
+    private Connection connection() {
+        Connection connection = mock(Connection.class);
+        when(connection.closeFuture()).thenReturn(new CompletableFuture<>());
+        connections.add(connection);
+        return connection;
+    }
+}
@@ -0,0 +1,36 @@
+package com.minekube.connect.tunnel.p2p;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.libp2p.core.PeerId;
+import io.libp2p.core.multiformats.Multiaddr;
+import org.junit.jupiter.api.Test;
+
+class Libp2pDialAddressesTest {
+    private static final String PEER = "/p2p/" + PeerId.random().toBase58();
+
+    @Test
+    void mapsDirectAddressesBetweenTcpAndQuic() {
+        Multiaddr tcp = Multiaddr.fromString("/ip4/203.0.113.7/tcp/4001" + PEER);
+        Multiaddr quic = Libp2pDialAddresses.quic(tcp);
+
+        assertEquals("/ip4/203.0.113.7/udp/4001/quic-v1" + PEER, quic.toString());
+        assertTrue(Libp2pDialAddresses.isQuic(quic));
+        assertFalse(Libp2pDialAddresses.isQuic(tcp));
+        assertEquals(tcp, Libp2pDialAddresses.tcp(quic));
+        assertEquals("/dns4/edge.example/udp/443/quic-v1", Libp2pDialAddresses.quic(
+                Multiaddr.fromString("/dns4/edge.example/tcp/443")).toString());
+    }
+
+    @Test
+    void leavesRelayedAddressesAlone() {
+        Multiaddr relayed = Multiaddr.fromString(
+                "/ip4/203.0.113.7/tcp/4001" + PEER + "/p2p-circuit" + PEER);
+
+        assertNull(Libp2pDialAddresses.quic(relayed));
+        assertNull(Libp2pDialAddresses.tcp(relayed));
+    }
+}
@@ -33,6 +33,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.minekube.connect.tunnel.P2PTunnelHeader;
 import com.minekube.connect.tunnel.TunnelConn;
+import com.minekube.connect.tunnel.TunnelSettings;
 import io.libp2p.core.Host;
 import io.libp2p.core.Stream;
 import io.libp2p.core.crypto.KeyType;
@@ -49,6 +50,7 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -105,6 +107,84 @@ class Libp2pTunnelTransportRuntimeTest {
         }
     }
 
+    @Test
+    void tunnelAsyncOpensSessionStreamWithoutBlockingTheCaller() throws Exception {
+        Responder responder = startResponder();
+        try {
+            Libp2pTunnelTransportRuntime transport = new Libp2pTunnelTransportRuntime(tcpOnlyHost());
+            try {
+                RecordingHandler handler = new RecordingHandler();
+                TunnelConn conn = transport.tunnelAsync(responder.address(), "async-session", handler)
+                        .toCompletableFuture()
+                        .get(30, TimeUnit.SECONDS);
+
+                assertTrue(conn.opened());
+                assertTrue(transport.hasWarmConnection(responder.address()));
+                assertArrayEquals(P2PTunnelHeader.encode("async-session"),
+                        responder.awaitHeader());
+                assertArrayEquals(new byte[] {1, 2, 3}, handler.awaitData());
+            } finally {
+                transport.close();
+            }
+        } finally {
+            responder.close();
+        }
+    }
+
+    @Test
+    void dialsOverQuicOnLoopback() throws Exception {
+        Responder responder = new Responder(Libp2pTunnelTransportRuntime.createHost(
+                null, "/ip4/127.0.0.1/udp/0/quic-v1"));
+        responder.start();
+        try {
+            Libp2pTunnelTransportRuntime transport = new Libp2pTunnelTransportRuntime(
+                    Libp2pTunnelTransportRuntime.createHost(), quicSettings());
+            try {
+                RecordingHandler handler = new RecordingHandler();
+                TunnelConn conn = transport.tunnel(
+                        responder.address("/quic-v1"), "quic-session", handler);
+
+                assertTrue(conn.opened());
+                assertArrayEquals(P2PTunnelHeader.encode("quic-session"),
+                        responder.awaitHeader());
+                assertArrayEquals(new byte[] {1, 2, 3}, handler.awaitData());
+                assertTrue(responder.remoteAddress().contains("/quic-v1"),
+                        responder.remoteAddress());
+            } finally {
+                transport.close();
+            }
+        } finally {
+            responder.close();
+        }
+    }
+
+    @Test
+    void fallsBackToTcpWhenQuicDoesNotGetThrough() throws Exception {
+        Responder responder = startResponder();
+        try {
+            Libp2pTunnelTransportRuntime transport = new Libp2pTunnelTransportRuntime(
+                    Libp2pTunnelTransportRuntime.createHost(), quicSettings());
+            try {
+                RecordingHandler handler = new RecordingHandler();
+                TunnelConn conn = transport.tunnel(responder.address(), "tcp-session", handler);
+
+                assertTrue(conn.opened());
+                assertArrayEquals(P2PTunnelHeader.encode("tcp-session"),
+                        responder.awaitHeader());
+                assertTrue(responder.remoteAddress().contains("/tcp/"),
+                        responder.remoteAddress());
+            } finally {
+                transport.close();
+            }
+        } finally {
+            responder.close();
+        }
+    }
+
+    private static TunnelSettings quicSettings() {
+        return TunnelSettings.fromEnvironment(Map.of("CONNECT_TUNNEL_QUIC", "true"));
+    }
+
     private static Responder startResponder() throws Exception {
         Responder responder = new Responder(tcpOnlyHost());
         responder.start();
@@ -126,6 +206,7 @@ class Libp2pTunnelTransportRuntimeTest {
         private final CountDownLatch headerLatch = new CountDownLatch(1);
         private final AtomicReference<byte[]> header = new AtomicReference<>();
         private final AtomicInteger streams = new AtomicInteger();
+        private final AtomicReference<String> remote = new AtomicReference<>();
 
         private Responder(Host host) {
             this.host = host;
@@ -143,6 +224,7 @@ class Libp2pTunnelTransportRuntimeTest {
                         @Override
                         protected CompletableFuture<Void> onStartResponder(Stream stream) {
                             streams.incrementAndGet();
+                            remote.set(stream.getConnection().remoteAddress().toString());
                             stream.pushHandler(new SimpleChannelInboundHandler<ByteBuf>() {
                                 @Override
                                 protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
@@ -160,10 +242,14 @@ class Libp2pTunnelTransportRuntimeTest {
         }
 
         private String address() {
+            return address("/tcp/");
+        }
+
+        private String address(String protocol) {
             return host.listenAddresses().stream()
-                    .filter(addr -> addr.toString().contains("/tcp/"))
+                    .filter(addr -> addr.toString().contains(protocol))
                     .findFirst()
-                    .orElseThrow(() -> new AssertionError("no tcp listen address"))
+                    .orElseThrow(() -> new AssertionError("no " + protocol + " listen address"))
                     .withP2P(host.getPeerId())
                     .toString();
         }
@@ -173,6 +259,10 @@ class Libp2pTunnelTransportRuntimeTest {
             return header.get();
         }
 
+        private String remoteAddress() {
+            return remote.get();
+        }
+
         private int streamCount() {
             return streams.get();
         }
@@ -0,0 +1,213 @@
+package com.minekube.connect.tunnel.p2p;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import minekube.connect.v1alpha1.ConnectLibp2P.PeerRegisterResult;
+import minekube.connect.v1alpha1.ConnectLibp2P.SessionAck;
+import minekube.connect.v1alpha1.ConnectLibp2P.SessionResponse;
+import org.junit.jupiter.api.Test;
+
+class P2PFrameFuzzTest {
+    private static final long SEED = 0x5eed_f4a3_e5L;
+
+    @Test
+    void bufferEncodingMatchesTheStreamEncoding() throws Exception {
+        Random random = new Random(SEED);
+        for (int i = 0; i < 200; i++) {
+            SessionResponse response = response(random);
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            P2PFrameCodec.write(stream, response);
+            ByteBuf buf = P2PFrameCodec.encode(ByteBufAllocator.DEFAULT, response);
+            try {
+                assertArrayEquals(stream.toByteArray(), ByteBufUtil.getBytes(buf));
+            } finally {
+                buf.release();
+            }
+
+            PeerRegisterResult result = result(random);
+            byte kind = (byte) (1 + random.nextInt(4));
+            stream.reset();
+            P2PFrameCodec.writeKindPrefixed(stream, kind, result);
+            buf = P2PFrameCodec.encodeKindPrefixed(ByteBufAllocator.DEFAULT, kind, result);
+            try {
+                assertArrayEquals(stream.toByteArray(), ByteBufUtil.getBytes(buf));
+            } finally {
+                buf.release();
+            }
+        }
+    }
+
+    @Test
+    void decodesFramesSplitAtArbitraryBoundaries() {
+        Random random = new Random(SEED);
+        for (int round = 0; round < 50; round++) {
+            List<SessionResponse> sent = new ArrayList<>();
+            ByteBuf wire = Unpooled.buffer();
+            int frames = 1 + random.nextInt(20);
+            for (int i = 0; i < frames; i++) {
+                SessionResponse response = response(random);
+                sent.add(response);
+                ByteBuf frame = P2PFrameCodec.encode(ByteBufAllocator.DEFAULT, response);
+                wire.writeBytes(frame);
+                frame.release();
+            }
+            P2PFrameDecoder<SessionResponse> decoder = new P2PFrameDecoder<>(
+                    SessionResponse.parser(), P2PFrameCodec.MAX_CONTROL_FRAME_SIZE);
+            decoder.setSingleDecode(false);
+            EmbeddedChannel channel = new EmbeddedChannel(decoder);
+
+            feedInChunks(channel, wire, random);
+
+            for (SessionResponse expected : sent) {
+                assertEquals(expected, channel.readInbound());
+            }
+            assertNull(channel.readInbound());
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    void exposesKindFramePayloadsAsRetainedSlices() throws Exception {
+        Random random = new Random(SEED);
+        for (int round = 0; round < 50; round++) {
+            List<PeerRegisterResult> sent = new ArrayList<>();
+            List<Byte> kinds = new ArrayList<>();
+            ByteBuf wire = Unpooled.buffer();
+            int frames = 1 + random.nextInt(20);
+            for (int i = 0; i < frames; i++) {
+                PeerRegisterResult result = result(random);
+                byte kind = (byte) (1 + random.nextInt(4));
+                sent.add(result);
+                kinds.add(kind);
+                ByteBuf frame = P2PFrameCodec.encodeKindPrefixed(
+                        ByteBufAllocator.DEFAULT, kind, result);
+                wire.writeBytes(frame);
+                frame.release();
+            }
+            EmbeddedChannel channel = new EmbeddedChannel(new P2PKindFrameDecoder());
+
+            feedInChunks(channel, wire, random);
+
+            for (int i = 0; i < frames; i++) {
+                P2PKindFrame frame = channel.readInbound();
+                try {
+                    assertEquals(kinds.get(i), frame.kind());
+                    assertEquals(sent.get(i), frame.parse(PeerRegisterResult.parser()));
+                    assertEquals(sent.get(i).getSerializedSize(), frame.content().readableBytes());
+                } finally {
+                    assertTrue(frame.release());
+                }
+            }
+            assertNull(channel.readInbound());
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    void rejectsOversizedLengthsBeforeThePayloadArrives() {
+        ByteBuf length = Unpooled.buffer();
+        writeVarint(length, P2PFrameCodec.MAX_CONTROL_FRAME_SIZE + 1);
+        EmbeddedChannel control = new EmbeddedChannel(new P2PFrameDecoder<>(
+                SessionResponse.parser(), P2PFrameCodec.MAX_CONTROL_FRAME_SIZE));
+        DecoderException error = assertThrows(DecoderException.class,
+                () -> control.writeInbound(length));
+        assertInstanceOf(IllegalArgumentException.class, error.getCause());
+
+        ByteBuf kindLength = Unpooled.buffer();
+        writeVarint(kindLength, P2PFrameCodec.MAX_KIND_PREFIXED_FRAME_SIZE + 1);
+        EmbeddedChannel kind = new EmbeddedChannel(new P2PKindFrameDecoder());
+        error = assertThrows(DecoderException.class, () -> kind.writeInbound(kindLength));
+        assertInstanceOf(IllegalArgumentException.class, error.getCause());
+
+        ByteBuf overflow = Unpooled.wrappedBuffer(new byte[] {
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f});
+        EmbeddedChannel overflowing = new EmbeddedChannel(new P2PKindFrameDecoder());
+        error = assertThrows(DecoderException.class, () -> overflowing.writeInbound(overflow));
+        assertInstanceOf(IllegalArgumentException.class, error.getCause());
+    }
+
+    @Test
+    void garbageOnlyFailsWithFramingOrParseErrors() {
+        Random random = new Random(SEED);
+        for (int round = 0; round < 500; round++) {
+            byte[] garbage = new byte[random.nextInt(64)];
+            random.nextBytes(garbage);
+            P2PFrameDecoder<SessionResponse> decoder = new P2PFrameDecoder<>(
+                    SessionResponse.parser(), 4096);
+            decoder.setSingleDecode(false);
+            assertFailsCleanly(new EmbeddedChannel(decoder), garbage, random);
+            assertFailsCleanly(new EmbeddedChannel(new P2PKindFrameDecoder()), garbage, random);
+        }
+    }
+
+    private static void assertFailsCleanly(EmbeddedChannel channel, byte[] garbage, Random random) {
+        try {
+            feedInChunks(channel, Unpooled.wrappedBuffer(garbage), random);
+        } catch (DecoderException e) {
+            Throwable cause = e.getCause();
+            assertTrue(cause instanceof IllegalArgumentException
+                            || cause instanceof InvalidProtocolBufferException,
+                    () -> "unexpected decode failure " + cause);
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    private static void feedInChunks(EmbeddedChannel channel, ByteBuf wire, Random random) {
+        try {
+            while (wire.isReadable()) {
+                int chunk = Math.min(wire.readableBytes(), 1 + random.nextInt(97));
+                channel.writeInbound(wire.readRetainedSlice(chunk));
+            }
+        } finally {
+            wire.release();
+        }
+    }
+
+    private static SessionResponse response(Random random) {
+        return SessionResponse.newBuilder()
+                .setSessionId(text(random, random.nextInt(3000)))
+                .setAck(SessionAck.getDefaultInstance())
+                .build();
+    }
+
+    private static PeerRegisterResult result(Random random) {
+        return PeerRegisterResult.newBuilder()
+                .setEndpointId(text(random, random.nextInt(1000)))
+                .setKvRevision(random.nextLong())
+                .build();
+    }
+
+    private static String text(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    private static void writeVarint(ByteBuf out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
@@ -0,0 +1,141 @@
+package com.minekube.connect.tunnel.p2p;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.libp2p.core.Stream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class PreopenedStreamPoolTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<CompletableFuture<Stream>> opens = new ArrayList<>();
+    private final AtomicLong clock = new AtomicLong();
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void joinsTakeAReadyStreamAndThePoolRefills() {
+        PreopenedStreamPool pool = pool(4, 30_000);
+
+        pool.fill();
+        assertEquals(1, opens.size());
+        Stream first = completeNext();
+
+        assertSame(first, pool.poll());
+        assertEquals(2, opens.size());
+        completeNext();
+        assertEquals(1, pool.ready());
+    }
+
+    @Test
+    void missesWhenNothingIsReady() {
+        PreopenedStreamPool pool = pool(4, 30_000);
+
+        assertNull(pool.poll());
+        assertEquals(1, opens.size());
+    }
+
+    @Test
+    void growsWithTheJoinRateAndShrinksWhenJoinsStop() {
+        PreopenedStreamPool pool = pool(8, 30_000);
+        pool.fill();
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        completeNext();
+
+        for (int i = 0; i < 20; i++) {
+            pool.poll();
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(25));
+        }
+        // 100 ms to open a stream, a join every 25 ms: 4 in flight plus one ready.
+        assertEquals(5, pool.target());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(1, pool.target());
+    }
+
+    @Test
+    void neverExceedsTheMaximum() {
+        PreopenedStreamPool pool = pool(3, 30_000);
+        pool.fill();
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        completeNext();
+
+        for (int i = 0; i < 10; i++) {
+            pool.poll();
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        assertEquals(3, pool.target());
+    }
+
+    @Test
+    void closesStreamsThatSitIdle() {
+        PreopenedStreamPool pool = pool(4, 50);
+        pool.fill();
+        Stream idle = completeNext();
+
+        verify(idle, timeout(2_000)).close();
+        assertEquals(0, pool.ready());
+    }
+
+    @Test
+    void skipsStreamsThePeerClosed() {
+        PreopenedStreamPool pool = pool(4, 30_000);
+        pool.fill();
+        Stream stream = completeNext();
+
+        ((CompletableFuture<?>) stream.closeFuture()).complete(null);
+
+        assertNull(pool.poll());
+    }
+
+    @Test
+    void closingThePoolClosesReadyStreams() {
+        PreopenedStreamPool pool = pool(4, 30_000);
+        pool.fill();
+        Stream stream = completeNext();
+
+        pool.close();
+
+        verify(stream).close();
+        assertEquals(0, pool.ready());
+        pool.fill();
+        assertEquals(1, opens.size());
+    }
+
+    private PreopenedStreamPool pool(int maxSize, long idleMillis) {
+        return new PreopenedStreamPool(() -> {
+            CompletableFuture<Stream> open = new CompletableFuture<>();
+            opens.add(open);
+            return open;
+        }, scheduler, maxSize, idleMillis, clock::get);
+    }
+
+    private Stream completeNext() {
+        for (CompletableFuture<Stream> open : opens) {
+            if (!open.isDone()) {
+                Stream stream = mock(Stream.class);
+                when(stream.closeFuture()).thenReturn(new CompletableFuture<>());
+                open.complete(stream);
+                return stream;
+            }
+        }
+        throw new AssertionError("no pending stream open");
+    }
+}
@@ -1,6 +1,7 @@
 package com.minekube.connect.tunnel.p2p;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
@@ -10,6 +11,7 @@ import com.minekube.connect.tunnel.TunnelConn;
 import io.libp2p.core.Stream;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.embedded.EmbeddedChannel;
 import java.util.ArrayList;
@@ -56,6 +58,25 @@ class SameStreamTunnelTransportTest {
         assertArrayEquals(new byte[] {1, 2, 3}, ByteBufUtil.getBytes(buf));
     }
 
+    @Test
+    void lendsOutboundBufferToStreamWithoutCopying() {
+        Stream stream = mock(Stream.class);
+        SameStreamTunnelTransport transport = new SameStreamTunnelTransport(stream, ignored -> {});
+        TunnelConn conn = transport.tunnel("", "session-1", new RecordingHandler());
+
+        ByteBuf payload = Unpooled.directBuffer().writeBytes(new byte[] {1, 2, 3});
+        conn.write(payload);
+        payload.setByte(0, 9);
+
+        ArgumentCaptor<Object> outbound = ArgumentCaptor.forClass(Object.class);
+        verify(stream).writeAndFlush(outbound.capture());
+        ByteBuf buf = (ByteBuf) outbound.getValue();
+        assertArrayEquals(new byte[] {9, 2, 3}, ByteBufUtil.getBytes(buf));
+        assertEquals(1, payload.refCnt());
+        buf.release();
+        assertEquals(0, payload.refCnt());
+    }
+
     @Test
     void forwardsInboundBytesToTunnelHandler() {
         Stream stream = mock(Stream.class);
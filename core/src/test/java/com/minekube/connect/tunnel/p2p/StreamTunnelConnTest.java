@@ -0,0 +1,112 @@
+package com.minekube.connect.tunnel.p2p;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.minekube.connect.tunnel.TunnelConn;
+import com.minekube.connect.tunnel.TunnelSettings;
+import io.libp2p.core.Stream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+class StreamTunnelConnTest {
+    private static final TunnelSettings SMALL_WATER_MARKS = TunnelSettings.fromEnvironment(Map.of(
+            "CONNECT_TUNNEL_HIGH_WATER_MARK_BYTES", "4",
+            "CONNECT_TUNNEL_LOW_WATER_MARK_BYTES", "2"));
+
+    @Test
+    void becomesUnwritableUntilTheStreamReleasedLentBytes() {
+        Stream stream = mock(Stream.class);
+        RecordingHandler handler = new RecordingHandler();
+        StreamTunnelConn conn = new StreamTunnelConn(stream, handler, SMALL_WATER_MARKS);
+
+        conn.write(Unpooled.directBuffer().writeBytes(new byte[] {1, 2, 3, 4, 5}));
+
+        assertFalse(conn.isWritable());
+        assertEquals(List.of(false), handler.writability);
+
+        ArgumentCaptor<Object> outbound = ArgumentCaptor.forClass(Object.class);
+        verify(stream).writeAndFlush(outbound.capture());
+        ((ByteBuf) outbound.getValue()).release();
+
+        assertTrue(conn.isWritable());
+        assertEquals(List.of(false, true), handler.writability);
+    }
+
+    @Test
+    void staysWritableBelowTheHighWaterMark() {
+        RecordingHandler handler = new RecordingHandler();
+        StreamTunnelConn conn = new StreamTunnelConn(mock(Stream.class), handler, SMALL_WATER_MARKS);
+
+        conn.write(new byte[] {1, 2});
+
+        assertTrue(conn.isWritable());
+        assertTrue(handler.writability.isEmpty());
+    }
+
+    @Test
+    void sendsWhatWasWrittenBeforeCloseThroughAFairScheduler() {
+        Stream stream = mock(Stream.class);
+        List<byte[]> sent = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            ByteBuf buf = invocation.getArgument(0);
+            sent.add(ByteBufUtil.getBytes(buf));
+            buf.release();
+            return null;
+        }).when(stream).writeAndFlush(any());
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            StreamTunnelConn conn = new StreamTunnelConn(stream, new RecordingHandler(),
+                    SMALL_WATER_MARKS, null, new StreamWriteScheduler(writer));
+
+            conn.write(new byte[] {1, 2, 3});
+            conn.write(new byte[] {4, 5});
+            conn.close();
+
+            verify(stream, timeout(5000)).close();
+            assertArrayEquals(new byte[] {1, 2, 3}, sent.get(0));
+            assertArrayEquals(new byte[] {4, 5}, sent.get(1));
+            InOrder order = inOrder(stream);
+            order.verify(stream, times(2)).writeAndFlush(any());
+            order.verify(stream).close();
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    private static final class RecordingHandler implements TunnelConn.Handler {
+        private final List<Boolean> writability = new ArrayList<>();
+
+        @Override
+        public void onReceive(byte[] data) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onWritabilityChanged(boolean writable) {
+            writability.add(writable);
+        }
+    }
+}
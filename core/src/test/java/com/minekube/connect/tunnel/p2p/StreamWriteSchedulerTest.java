@@ -0,0 +1,180 @@
+package com.minekube.connect.tunnel.p2p;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import io.libp2p.core.Stream;
+import io.netty.buffer.ByteBuf;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+class StreamWriteSchedulerTest {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final StreamWriteScheduler scheduler = new StreamWriteScheduler(tasks::add);
+    private final List<String> sent = new ArrayList<>();
+    private final List<ByteBuf> written = new ArrayList<>();
+
+    @Test
+    void sendsSmallFramesAheadOfQueuedBulkData() {
+        StreamWriteScheduler.Lane bulk = scheduler.lane(stream("bulk"));
+        StreamWriteScheduler.Lane keepAlive = scheduler.lane(stream("keepalive"));
+        for (int i = 0; i < 4; i++) {
+            bulk.write(ByteBuffer.allocate(64 * 1024), () -> {
+            });
+        }
+        keepAlive.write(ByteBuffer.allocate(10), () -> {
+        });
+
+        runTasks();
+
+        assertEquals(List.of("keepalive", "bulk", "bulk", "bulk", "bulk"), sent);
+    }
+
+    @Test
+    void sharesTheConnectionEvenlyBetweenBulkStreams() {
+        StreamWriteScheduler.Lane a = scheduler.lane(stream("a"));
+        StreamWriteScheduler.Lane b = scheduler.lane(stream("b"));
+        for (int i = 0; i < 3; i++) {
+            a.write(ByteBuffer.allocate(StreamWriteScheduler.QUANTUM_BYTES), () -> {
+            });
+        }
+        for (int i = 0; i < 3; i++) {
+            b.write(ByteBuffer.allocate(StreamWriteScheduler.QUANTUM_BYTES), () -> {
+            });
+        }
+
+        runTasks();
+
+        assertEquals(List.of("a", "b", "a", "b", "a", "b"), sent);
+    }
+
+    @Test
+    void holdsBackFramesUntilInFlightBytesAreReleased() {
+        int frames = StreamWriteScheduler.MAX_IN_FLIGHT_BYTES / StreamWriteScheduler.QUANTUM_BYTES;
+        int perLane =
+                StreamWriteScheduler.MAX_LANE_IN_FLIGHT_BYTES / StreamWriteScheduler.QUANTUM_BYTES;
+        // One lane more than the connection takes at a time.
+        for (int i = 0; i <= frames / perLane; i++) {
+            StreamWriteScheduler.Lane lane = scheduler.lane(stream("bulk" + i));
+            for (int j = 0; j < perLane; j++) {
+                lane.write(ByteBuffer.allocate(StreamWriteScheduler.QUANTUM_BYTES), () -> {
+                });
+            }
+        }
+
+        runTasks();
+        assertEquals(frames, sent.size());
+
+        written.get(0).release();
+        runTasks();
+        assertEquals(frames + 1, sent.size());
+        assertEquals(StreamWriteScheduler.MAX_IN_FLIGHT_BYTES, scheduler.inFlight());
+    }
+
+    @Test
+    void keepsOtherLanesFlowingWhileOneLaneIsStalled() {
+        StreamWriteScheduler.Lane stalled = scheduler.lane(stream("stalled"));
+        StreamWriteScheduler.Lane flowing = scheduler.lane(stream("flowing"));
+        int frames =
+                2 * StreamWriteScheduler.MAX_IN_FLIGHT_BYTES / StreamWriteScheduler.QUANTUM_BYTES;
+        for (int i = 0; i < frames; i++) {
+            stalled.write(ByteBuffer.allocate(StreamWriteScheduler.QUANTUM_BYTES), () -> {
+            });
+            flowing.write(ByteBuffer.allocate(StreamWriteScheduler.QUANTUM_BYTES), () -> {
+            });
+        }
+
+        // The window of the stalled stream never opens, so the muxer never releases its frames.
+        for (int round = 0; round < frames; round++) {
+            runTasks();
+            for (int i = 0; i < sent.size(); i++) {
+                if (sent.get(i).equals("flowing") && written.get(i).refCnt() > 0) {
+                    written.get(i).release();
+                }
+            }
+        }
+
+        assertEquals(frames, Collections.frequency(sent, "flowing"));
+        assertEquals(StreamWriteScheduler.MAX_LANE_IN_FLIGHT_BYTES,
+                Collections.frequency(sent, "stalled") * StreamWriteScheduler.QUANTUM_BYTES);
+    }
+
+    @Test
+    void sendsQueuedFramesBeforeClosingTheStream() {
+        Stream stream = stream("closing");
+        StreamWriteScheduler.Lane lane = scheduler.lane(stream);
+        AtomicInteger released = new AtomicInteger();
+        lane.write(ByteBuffer.allocate(1024), released::incrementAndGet);
+        lane.write(ByteBuffer.allocate(1024), released::incrementAndGet);
+
+        lane.close();
+        lane.write(ByteBuffer.allocate(1024), released::incrementAndGet);
+        verify(stream, never()).close();
+        runTasks();
+
+        assertEquals(List.of("closing", "closing"), sent);
+        assertEquals(1, released.get());
+        InOrder order = inOrder(stream);
+        order.verify(stream, times(2)).writeAndFlush(any());
+        order.verify(stream).close();
+    }
+
+    @Test
+    void closesAnIdleLanesStreamRightAway() {
+        Stream stream = stream("idle");
+        StreamWriteScheduler.Lane lane = scheduler.lane(stream);
+
+        lane.close();
+        lane.close();
+
+        verify(stream).close();
+    }
+
+    @Test
+    void releasesQueuedFramesWhenTheLaneAborts() {
+        Stream stream = stream("aborted");
+        StreamWriteScheduler.Lane lane = scheduler.lane(stream);
+        AtomicInteger released = new AtomicInteger();
+        lane.write(ByteBuffer.allocate(1024), released::incrementAndGet);
+        lane.write(ByteBuffer.allocate(1024), released::incrementAndGet);
+
+        lane.abort();
+        lane.write(ByteBuffer.allocate(1024), released::incrementAndGet);
+        runTasks();
+
+        assertEquals(3, released.get());
+        assertEquals(List.of(), sent);
+        assertEquals(0, scheduler.inFlight());
+        verify(stream).close();
+    }
+
+    private Stream stream(String name) {
+        Stream stream = mock(Stream.class);
+        doAnswer(invocation -> {
+            sent.add(name);
+            written.add(invocation.getArgument(0));
+            return null;
+        }).when(stream).writeAndFlush(any());
+        return stream;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
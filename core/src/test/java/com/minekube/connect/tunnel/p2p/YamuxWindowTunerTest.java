@@ -0,0 +1,270 @@
+package com.minekube.connect.tunnel.p2p;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.minekube.connect.tunnel.TunnelRtt;
+import io.libp2p.core.Connection;
+import io.libp2p.core.Host;
+import io.libp2p.core.Stream;
+import io.libp2p.core.crypto.KeyType;
+import io.libp2p.core.dsl.HostBuilder;
+import io.libp2p.core.multiformats.Multiaddr;
+import io.libp2p.core.multistream.StrictProtocolBinding;
+import io.libp2p.core.mux.StreamMuxerProtocol;
+import io.libp2p.etc.util.netty.mux.MuxId;
+import io.libp2p.protocol.ProtocolHandler;
+import io.libp2p.security.noise.NoiseXXSecureChannel;
+import io.libp2p.transport.tcp.TcpTransport;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+class YamuxWindowTunerTest {
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIB = 1024 * 1024;
+
+    @Test
+    void growsTheWindowWhileTheSenderIsWindowBound() {
+        YamuxWindowTuner tuner = new YamuxWindowTuner(16 * MIB, 64 * MIB);
+        YamuxWindowTuner.Window window = tuner.window(rtt());
+
+        // A full window per round trip: the window is the limit, so it doubles.
+        assertEquals(0, window.grant(256 * 1024, 0));
+        assertEquals(256 * 1024, window.grant(0, RTT));
+        assertEquals(512 * 1024, window.bytes());
+
+        assertEquals(512 * 1024, window.grant(512 * 1024, 2 * RTT));
+        assertEquals(MIB, window.bytes());
+        assertEquals(MIB - 256 * 1024, tuner.granted());
+    }
+
+    @Test
+    void leavesTheWindowAloneWhenTheSenderIsNotWindowBound() {
+        YamuxWindowTuner tuner = new YamuxWindowTuner(16 * MIB, 64 * MIB);
+        YamuxWindowTuner.Window window = tuner.window(rtt());
+
+        window.grant(64 * 1024, 0);
+        assertEquals(0, window.grant(0, RTT));
+        window.grant(100 * 1024, 2 * RTT);
+        assertEquals(0, window.grant(0, 3 * RTT));
+
+        assertEquals(256 * 1024, window.bytes());
+    }
+
+    @Test
+    void capsEveryStreamAndTheSharedBudget() {
+        YamuxWindowTuner tuner = new YamuxWindowTuner(MIB, MIB);
+        YamuxWindowTuner.Window first = tuner.window(rtt());
+        YamuxWindowTuner.Window second = tuner.window(rtt());
+
+        first.grant(4 * MIB, 0);
+        assertEquals(MIB - 256 * 1024, first.grant(0, RTT));
+        second.grant(4 * MIB, 0);
+        assertEquals(256 * 1024, second.grant(0, RTT));
+        assertEquals(MIB, tuner.granted());
+
+        first.release();
+        first.release();
+        assertEquals(256 * 1024, tuner.granted());
+    }
+
+    @Test
+    void needsProbedRoundTripTimes() {
+        YamuxWindowTuner tuner = new YamuxWindowTuner(16 * MIB, 64 * MIB);
+
+        YamuxWindowTuner.Window unprobed = tuner.window(new TunnelRtt());
+        unprobed.grant(4 * MIB, 0);
+        assertEquals(0, unprobed.grant(4 * MIB, RTT));
+        YamuxWindowTuner.Window withoutRtt = tuner.window(null);
+        withoutRtt.grant(4 * MIB, 0);
+        assertEquals(0, withoutRtt.grant(4 * MIB, RTT));
+    }
+
+    @Test
+    void encodesYamuxWindowUpdates() {
+        ByteBuf frame = YamuxWindowTuner.windowUpdate(ByteBufAllocator.DEFAULT, 3, 65_536);
+        try {
+            assertEquals(12, frame.readableBytes());
+            assertEquals(0, frame.getByte(0));
+            assertEquals(YamuxWindowTuner.WINDOW_UPDATE, frame.getByte(1));
+            assertEquals(0, frame.getShort(2));
+            assertEquals(3, frame.getInt(4));
+            assertEquals(65_536, frame.getInt(8));
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    void leavesStreamsOfOtherMuxersAlone() {
+        assertEquals(-1, YamuxWindowTuner.streamId(new EmbeddedChannel()));
+    }
+
+    @Test
+    void runsAgainstTheJvmLibp2pItWasCheckedWith() {
+        // Upgrading jvm-libp2p turns tuning off until the stream id and frame are checked again.
+        String version = MuxId.class.getPackage().getImplementationVersion();
+        assertTrue(version == null || version.startsWith(YamuxWindowTuner.VERIFIED_LIBP2P),
+                "jvm-libp2p " + version);
+    }
+
+    @Test
+    void looksUpTheStreamIdOnce() {
+        YamuxWindowTuner.Window window = new YamuxWindowTuner(16 * MIB, 64 * MIB).window(rtt());
+        Channel stream = mock(Channel.class);
+
+        window.received(stream, 1024);
+        window.received(stream, 1024);
+
+        verify(stream, times(1)).parent();
+    }
+
+    @Test
+    void raisedWindowLetsTheSenderPastTheDefaultOverARealMuxer() throws Exception {
+        long raise = 512 * 1024;
+        AtomicLong streamId = new AtomicLong();
+        AtomicLong received = new AtomicLong();
+        AtomicReference<Channel> receiving = new AtomicReference<>();
+        Host receiver = loopbackHost();
+        Host sender = loopbackHost();
+        receiver.addProtocolHandler(binding(stream -> stream.pushHandler(
+                new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void handlerAdded(ChannelHandlerContext ctx) {
+                        Channel channel = ctx.channel();
+                        receiving.set(channel);
+                        streamId.set(YamuxWindowTuner.streamId(channel));
+                        holdBackMuxerWindowUpdates(channel.parent().pipeline());
+                        // What the tuner sends, while the muxer's own top-ups never arrive as
+                        // if the round trip did not end.
+                        channel.parent().writeAndFlush(
+                                YamuxWindowTuner.windowUpdate(ctx.alloc(), streamId.get(), raise));
+                    }
+
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        received.addAndGet(((ByteBuf) msg).readableBytes());
+                        ReferenceCountUtil.release(msg);
+                    }
+                })));
+        sender.addProtocolHandler(binding(stream -> { }));
+        try {
+            receiver.start().get(10, SECONDS);
+            sender.start().get(10, SECONDS);
+            Multiaddr address = receiver.listenAddresses().get(0).withP2P(receiver.getPeerId());
+            Connection connection = sender.getNetwork()
+                    .connect(receiver.getPeerId(), address)
+                    .get(10, SECONDS);
+            Stream stream = sender.newStream(List.of(PROTOCOL_ID), connection)
+                    .getStream()
+                    .get(10, SECONDS);
+
+            stream.writeAndFlush(Unpooled.wrappedBuffer(new byte[2 * MIB]));
+
+            long window = YamuxWindowTuner.BASE_WINDOW_BYTES + raise;
+            // Multistream negotiation used a few bytes of the window before the handler was added.
+            await().atMost(5, SECONDS).until(() -> received.get() > window - 1024);
+            await().during(200, MILLISECONDS).atMost(2, SECONDS)
+                    .until(() -> received.get() <= window);
+            assertTrue(streamId.get() > 0, "no yamux stream id: " + streamId.get());
+            assertTrue(receiving.get().isActive(), "the muxer reset the stream");
+            assertFalse(stream.closeFuture().isDone(), "the muxer reset the stream");
+        } finally {
+            sender.stop().get(10, SECONDS);
+            receiver.stop().get(10, SECONDS);
+        }
+    }
+
+    private static final String PROTOCOL_ID = "/connect-test/window/1.0.0";
+
+    /**
+     * Drops the window updates the muxer sends on its own, leaving only raw ones like the
+     * tuner's.
+     */
+    private static void holdBackMuxerWindowUpdates(ChannelPipeline connection) {
+        String codec = connection.names().stream()
+                .filter(name -> connection.get(name) != null
+                        && connection.get(name).getClass().getSimpleName().contains("FrameCodec"))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("no yamux codec in " + connection.names()));
+        connection.addAfter(codec, "hold-back-window-updates", new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                if (isWindowUpdate(msg)) {
+                    ReferenceCountUtil.release(msg);
+                    promise.trySuccess();
+                    return;
+                }
+                ctx.write(msg, promise);
+            }
+        });
+    }
+
+    private static boolean isWindowUpdate(Object frame) {
+        if (!frame.getClass().getSimpleName().equals("YamuxFrame")) {
+            return false;
+        }
+        try {
+            String type = String.valueOf(frame.getClass().getMethod("getType").invoke(frame));
+            return type.equals("WINDOW_UPDATE") || type.equals("1");
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static StrictProtocolBinding<Void> binding(Consumer<Stream> responder) {
+        return new StrictProtocolBinding<Void>(PROTOCOL_ID,
+                new ProtocolHandler<Void>(Long.MAX_VALUE, Long.MAX_VALUE) {
+                    @Override
+                    protected CompletableFuture<Void> onStartInitiator(Stream stream) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+
+                    @Override
+                    protected CompletableFuture<Void> onStartResponder(Stream stream) {
+                        responder.accept(stream);
+                        return CompletableFuture.completedFuture(null);
+                    }
+                }) {
+        };
+    }
+
+    private static Host loopbackHost() {
+        return new HostBuilder(HostBuilder.DefaultMode.None)
+                .keyType(KeyType.ED25519)
+                .transport(TcpTransport::new)
+                .secureChannel(NoiseXXSecureChannel::new)
+                .muxer(StreamMuxerProtocol::getYamux)
+                .listen("/ip4/127.0.0.1/tcp/0")
+                .build();
+    }
+
+    private static TunnelRtt rtt() {
+        TunnelRtt rtt = new TunnelRtt();
+        rtt.record(RTT);
+        return rtt;
+    }
+}
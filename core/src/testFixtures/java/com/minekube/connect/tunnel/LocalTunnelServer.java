@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2021-2022 Minekube. https://minekube.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Minekube
+ * @link https://github.com/minekube/connect-java
+ */
+
+package com.minekube.connect.tunnel;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for the tunnel service in tests. Echoes the bytes of every session back, either over
+ * a WebSocket per session ({@code Connect-Session} header) or, if enabled, as streams of a
+ * {@link MultiplexedWebSocket}, honoring the stream windows of the client. Sessions over their
+ * own WebSocket may speak the {@link ResumableTunnel} framing instead, in which case they are
+ * resumed by the next WebSocket of the same session after {@link #dropConnections()}.
+ */
+public final class LocalTunnelServer implements AutoCloseable {
+    private static final String SESSION_HEADER = "Connect-Session";
+
+    private final boolean multiplex;
+    private final boolean resumable;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<String> sessions = new CopyOnWriteArrayList<>();
+    private final List<Channel> children = new CopyOnWriteArrayList<>();
+    // Only touched on the server's single event loop.
+    private final Map<String, ResumedSession> resumedSessions = new HashMap<>();
+    private EventLoopGroup group;
+    private Channel serverChannel;
+
+    public LocalTunnelServer(boolean multiplex) {
+        this(multiplex, false);
+    }
+
+    public LocalTunnelServer(boolean multiplex, boolean resumable) {
+        this.multiplex = multiplex;
+        this.resumable = resumable;
+    }
+
+    public LocalTunnelServer start() {
+        group = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
+        serverChannel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        children.add(ch);
+                        ch.closeFuture().addListener(future -> children.remove(ch));
+                        ch.pipeline().addLast(
+                                new HttpServerCodec(),
+                                new HttpObjectAggregator(64 * 1024),
+                                new Connection());
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .syncUninterruptibly()
+                .channel();
+        return this;
+    }
+
+    /**
+     * Address to use as tunnel service address.
+     */
+    public String url() {
+        return "ws://127.0.0.1:" + ((InetSocketAddress) serverChannel.localAddress()).getPort() + "/tunnel";
+    }
+
+    /**
+     * Number of WebSocket connections accepted so far.
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    /**
+     * Session ids of all tunnels opened so far, in order.
+     */
+    public List<String> sessions() {
+        return sessions;
+    }
+
+    /**
+     * Drops every accepted connection without closing its sessions, like a network blip would.
+     */
+    public void dropConnections() {
+        for (Channel child : children) {
+            child.close().syncUninterruptibly();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (serverChannel != null) {
+            serverChannel.close().syncUninterruptibly();
+        }
+        if (group != null) {
+            group.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+
+    private final class Connection extends SimpleChannelInboundHandler<Object> {
+        private final Map<Integer, Stream> streams = new HashMap<>();
+        private WebSocketServerHandshaker handshaker;
+        private boolean multiplexed;
+        private ResumedSession resumed;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof FullHttpRequest) {
+                handshake(ctx, (FullHttpRequest) msg);
+            } else if (msg instanceof CloseWebSocketFrame) {
+                handshaker.close(ctx.channel(), ((CloseWebSocketFrame) msg).retain());
+            } else if (msg instanceof BinaryWebSocketFrame && multiplexed) {
+                readFrames(ctx, ((WebSocketFrame) msg).content());
+                ctx.flush();
+            } else if (msg instanceof BinaryWebSocketFrame && resumed != null) {
+                resumed.read(ctx, ((WebSocketFrame) msg).content());
+            } else if (msg instanceof BinaryWebSocketFrame) {
+                ctx.writeAndFlush(new BinaryWebSocketFrame(((WebSocketFrame) msg).content().retain()));
+            }
+        }
+
+        private void handshake(ChannelHandlerContext ctx, FullHttpRequest request) {
+            HttpHeaders headers = request.headers();
+            HttpHeaders responseHeaders = new DefaultHttpHeaders();
+            if (multiplex && headers.containsValue(MultiplexedWebSocket.CAPABILITIES_HEADER,
+                    MultiplexedWebSocket.CAPABILITY, true)) {
+                multiplexed = true;
+                responseHeaders.add(MultiplexedWebSocket.CAPABILITIES_HEADER, MultiplexedWebSocket.CAPABILITY);
+            } else if (headers.contains(SESSION_HEADER)) {
+                String session = headers.get(SESSION_HEADER);
+                sessions.add(session);
+                if (resumable) {
+                    resumed = resumedSessions.computeIfAbsent(session, id -> new ResumedSession());
+                    resumed.connected();
+                }
+            } else {
+                // Like a tunnel service that does not know the multiplexed mode.
+                ctx.close();
+                return;
+            }
+            handshaker = new WebSocketServerHandshakerFactory(
+                    "ws://" + headers.get("Host") + request.uri(), null, false, 16 * 1024 * 1024)
+                    .newHandshaker(request);
+            handshaker.handshake(ctx.channel(), request, responseHeaders, ctx.newPromise());
+            connections.incrementAndGet();
+        }
+
+        private void readFrames(ChannelHandlerContext ctx, ByteBuf message) {
+            while (message.isReadable()) {
+                int type = message.readUnsignedByte();
+                int streamId = message.readInt();
+                int length = message.readInt();
+                switch (type) {
+                    case MultiplexedWebSocket.TYPE_OPEN:
+                        sessions.add(message.readCharSequence(length, StandardCharsets.UTF_8).toString());
+                        streams.put(streamId, new Stream(streamId));
+                        writeFrame(ctx, MultiplexedWebSocket.TYPE_OPEN, streamId, 0, null);
+                        break;
+                    case MultiplexedWebSocket.TYPE_DATA:
+                        Stream stream = streams.get(streamId);
+                        ByteBuf payload = message.readRetainedSlice(length);
+                        if (stream == null) {
+                            payload.release();
+                        } else {
+                            stream.echo(ctx, payload);
+                        }
+                        break;
+                    case MultiplexedWebSocket.TYPE_WINDOW_UPDATE:
+                        Stream updated = streams.get(streamId);
+                        if (updated != null) {
+                            updated.sendWindow += length;
+                            updated.drain(ctx);
+                        }
+                        break;
+                    case MultiplexedWebSocket.TYPE_CLOSE:
+                        message.skipBytes(length);
+                        Stream closed = streams.remove(streamId);
+                        if (closed != null) {
+                            closed.release();
+                        }
+                        break;
+                    default:
+                        ctx.close();
+                        return;
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            streams.values().forEach(Stream::release);
+            streams.clear();
+            super.channelInactive(ctx);
+        }
+
+        private final class Stream {
+            private final int id;
+            private final Queue<ByteBuf> queued = new ArrayDeque<>();
+            private long sendWindow = MultiplexedWebSocket.INITIAL_WINDOW;
+            private int consumed;
+
+            private Stream(int id) {
+                this.id = id;
+            }
+
+            void echo(ChannelHandlerContext ctx, ByteBuf payload) {
+                // Received bytes count as consumed once queued for the echo.
+                consumed += payload.readableBytes();
+                if (consumed >= MultiplexedWebSocket.INITIAL_WINDOW / 2) {
+                    writeFrame(ctx, MultiplexedWebSocket.TYPE_WINDOW_UPDATE, id, consumed, null);
+                    consumed = 0;
+                }
+                queued.add(payload);
+                drain(ctx);
+            }
+
+            void drain(ChannelHandlerContext ctx) {
+                ByteBuf data;
+                while (sendWindow > 0 && (data = queued.peek()) != null) {
+                    int length = (int) Math.min(data.readableBytes(), sendWindow);
+                    ByteBuf part = data.readRetainedSlice(length);
+                    if (!data.isReadable()) {
+                        queued.poll().release();
+                    }
+                    sendWindow -= length;
+                    writeFrame(ctx, MultiplexedWebSocket.TYPE_DATA, id, length, part);
+                }
+            }
+
+            void release() {
+                queued.forEach(ByteBuf::release);
+                queued.clear();
+            }
+        }
+
+        private void writeFrame(ChannelHandlerContext ctx, int type, int streamId, int length, ByteBuf payload) {
+            ByteBuf frame = ctx.alloc().buffer(MultiplexedWebSocket.HEADER_BYTES + (payload == null ? 0 : length));
+            frame.writeByte(type).writeInt(streamId).writeInt(length);
+            if (payload != null) {
+                frame.writeBytes(payload);
+                payload.release();
+            }
+            ctx.write(new BinaryWebSocketFrame(frame));
+        }
+    }
+
+    /**
+     * Server side of a {@link ResumableTunnel} session, echoing its data and keeping what the
+     * client has not acknowledged yet for the next connection.
+     */
+    private static final class ResumedSession {
+        private final ByteBuf cumulation = Unpooled.buffer();
+        private final ByteBuf unacked = Unpooled.buffer();
+        private long unackedStart;
+        private long received;
+
+        void connected() {
+            // A frame cut off by the dropped connection is sent again in full.
+            cumulation.clear();
+        }
+
+        void read(ChannelHandlerContext ctx, ByteBuf content) {
+            cumulation.writeBytes(content);
+            while (cumulation.readableBytes() >= ResumableTunnel.HEADER_BYTES) {
+                int type = cumulation.getUnsignedByte(cumulation.readerIndex());
+                int length = cumulation.getInt(cumulation.readerIndex() + 1);
+                if (cumulation.readableBytes() < ResumableTunnel.HEADER_BYTES + length) {
+                    break;
+                }
+                cumulation.skipBytes(ResumableTunnel.HEADER_BYTES);
+                switch (type) {
+                    case ResumableTunnel.TYPE_RESUME:
+                        acknowledge(cumulation.readLong());
+                        writeControl(ctx, ResumableTunnel.TYPE_RESUME, received);
+                        if (unacked.isReadable()) {
+                            writeData(ctx, unacked.duplicate());
+                        }
+                        break;
+                    case ResumableTunnel.TYPE_DATA:
+                        ByteBuf payload = cumulation.readSlice(length);
+                        received += length;
+                        unacked.writeBytes(payload, payload.readerIndex(), length);
+                        writeData(ctx, payload);
+                        writeControl(ctx, ResumableTunnel.TYPE_ACK, received);
+                        break;
+                    case ResumableTunnel.TYPE_ACK:
+                        acknowledge(cumulation.readLong());
+                        break;
+                    default:
+                        cumulation.skipBytes(length);
+                        ByteBuf close = ctx.alloc().buffer(ResumableTunnel.HEADER_BYTES)
+                                .writeByte(ResumableTunnel.TYPE_CLOSE)
+                                .writeInt(0);
+                        ctx.writeAndFlush(new BinaryWebSocketFrame(close));
+                        ctx.close();
+                        return;
+                }
+            }
+            cumulation.discardReadBytes();
+            ctx.flush();
+        }
+
+        private void acknowledge(long offset) {
+            int acknowledged = (int) (offset - unackedStart);
+            if (acknowledged > 0) {
+                unacked.skipBytes(acknowledged);
+                unacked.discardReadBytes();
+                unackedStart = offset;
+            }
+        }
+
+        private static void writeData(ChannelHandlerContext ctx, ByteBuf payload) {
+            int length = payload.readableBytes();
+            ByteBuf frame = ctx.alloc().buffer(ResumableTunnel.HEADER_BYTES + length)
+                    .writeByte(ResumableTunnel.TYPE_DATA)
+                    .writeInt(length)
+                    .writeBytes(payload);
+            ctx.write(new BinaryWebSocketFrame(frame));
+        }
+
+        private static void writeControl(ChannelHandlerContext ctx, int type, long offset) {
+            ByteBuf frame = ctx.alloc().buffer(ResumableTunnel.HEADER_BYTES + Long.BYTES)
+                    .writeByte(type)
+                    .writeInt(Long.BYTES)
+                    .writeLong(offset);
+            ctx.write(new BinaryWebSocketFrame(frame));
+        }
+    }
+}
@@ -31,6 +31,7 @@ import com.minekube.connect.bedrock.BedrockIdentityEnforcer.Decision;
 import com.minekube.connect.inject.CommonPlatformInjector;
 import com.minekube.connect.network.netty.LocalServerChannelWrapper;
 import com.minekube.connect.network.netty.LocalSession;
+import com.minekube.connect.network.netty.PeerPinnedEventLoopGroup;
 import com.minekube.connect.util.ClassNames;
 import com.minekube.connect.util.ReflectionUtils;
 import com.viaversion.viaversion.bukkit.handlers.BukkitChannelInitializer;
@@ -43,8 +44,17 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.IoEventLoop;
+import io.netty.channel.IoEventLoopGroup;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SingleThreadEventLoop;
+import io.netty.channel.SingleThreadIoEventLoop;
 import io.netty.channel.local.LocalAddress;
 import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalIoHandler;
+import io.netty.channel.nio.NioIoHandler;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -53,6 +63,8 @@ import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 import lombok.Getter;
 import org.checkerframework.checker.nullness.qual.NonNull;
 
@@ -275,6 +287,7 @@ public final class SpigotInjector extends CommonPlatformInjector {
                 Channel.class);
         initChannel.setAccessible(true);
 
+        EventLoopGroup eventLoopGroup = connectionEventLoopGroup(listeningChannel);
         ChannelFuture channelFuture = (new ServerBootstrap()
                 .channel(LocalServerChannelWrapper.class)
                 .childHandler(new ChannelInitializer<Channel>() {
@@ -283,10 +296,8 @@ public final class SpigotInjector extends CommonPlatformInjector {
                         initChannel.invoke(childHandler, ch);
                     }
                 })
-                // Set to MAX_PRIORITY as MultithreadEventLoopGroup#newDefaultThreadFactory which DefaultEventLoopGroup implements does by default
-                .group(new DefaultEventLoopGroup(0,
-                        new DefaultThreadFactory("Connect Spigot connection thread",
-                                Thread.MAX_PRIORITY)))
+                // The server end of a session joins the event loop of its client end
+                .group(eventLoopGroup, new PeerPinnedEventLoopGroup(eventLoopGroup))
                 .localAddress(LocalAddress.ANY))
                 .bind()
                 .syncUninterruptibly();
@@ -296,9 +307,41 @@ public final class SpigotInjector extends CommonPlatformInjector {
         this.localChannel = channelFuture;
         this.serverSocketAddress = channelFuture.channel().localAddress();
 
+        // Set the platform event loop group for LocalSession to use, so the client end of a
+        // session (and a tunnel transport running next to it) is on the same loops as well
+        LocalSession.setPlatformEventLoopGroup(eventLoopGroup);
+
         workAroundWeirdBug();
     }
 
+    /**
+     * Returns the event loops Connect sessions run on. Where the server's Netty allows it these are
+     * tied to the server's own worker loops instead of adding another thread handoff: on Netty 4.1
+     * the worker loops run local channels as they are, on Netty 4.2 local channels need loops
+     * that also run a {@link LocalIoHandler}, which are parented to the worker group like on
+     * BungeeCord. Otherwise a dedicated group is used.
+     */
+    private EventLoopGroup connectionEventLoopGroup(ChannelFuture listeningChannel) {
+        // Minecraft accepts and serves connections on the same group
+        EventLoopGroup serverGroup = listeningChannel.channel().eventLoop().parent();
+        try {
+            EventLoopGroup group = IoEventLoops.sharing(serverGroup);
+            if (group != null) {
+                return group;
+            }
+        } catch (LinkageError e) {
+            // Netty 4.1 has no IoEventLoopGroup
+            if (serverGroup != null && serverGroup.next() instanceof SingleThreadEventLoop) {
+                return serverGroup;
+            }
+        } catch (RuntimeException e) {
+            logger.debug("Could not share the server's event loops with Connect sessions: " + e);
+        }
+        // Set to MAX_PRIORITY as MultithreadEventLoopGroup#newDefaultThreadFactory which DefaultEventLoopGroup implements does by default
+        return new DefaultEventLoopGroup(0,
+                new DefaultThreadFactory("Connect Spigot connection thread", Thread.MAX_PRIORITY));
+    }
+
     @SuppressWarnings("unchecked")
     private ChannelInitializer<Channel> getChildHandler(ChannelFuture listeningChannel) {
         List<String> names = listeningChannel.channel().pipeline().names();
@@ -395,6 +438,39 @@ public final class SpigotInjector extends CommonPlatformInjector {
 
     // End of logic from GeyserMC
 
+    /**
+     * Netty 4.2 only, kept in its own class so Netty 4.1 servers fail to link it instead of
+     * failing to load the injector.
+     */
+    private static final class IoEventLoops {
+        static EventLoopGroup sharing(EventLoopGroup serverGroup) {
+            if (!(serverGroup instanceof IoEventLoopGroup)) {
+                return null;
+            }
+            IoEventLoopGroup workerGroup = (IoEventLoopGroup) serverGroup;
+            IoHandlerFactory localFactory = LocalIoHandler.newFactory();
+            IoHandlerFactory nativeFactory = NioIoHandler.newFactory();
+            IoHandlerFactory wrapperFactory = ioExecutor -> new IoHandlerWrapper(
+                    localFactory.newHandler(ioExecutor),
+                    nativeFactory.newHandler(ioExecutor));
+
+            return new MultiThreadIoEventLoopGroup(localFactory) {
+                @Override
+                protected ThreadFactory newDefaultThreadFactory() {
+                    return new DefaultThreadFactory("Connect Spigot connection thread",
+                            Thread.MAX_PRIORITY);
+                }
+
+                @Override
+                protected IoEventLoop newChild(
+                        Executor executor, IoHandlerFactory ioHandlerFactory, Object... args) {
+                    // LocalChannels use the LocalIoHandler while native channels use NIO
+                    return new SingleThreadIoEventLoop(workerGroup, executor, wrapperFactory);
+                }
+            };
+        }
+    }
+
     private void connectAndClose() {
         new Bootstrap()
                 .remoteAddress(serverSocketAddress)